@@ -19,6 +19,7 @@ import com.brsanthu.googleanalytics.GoogleAnalytics;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.datavyu.controllers.RubyEnginePool;
 import org.datavyu.controllers.project.ProjectController;
 import org.datavyu.models.db.TitleNotifier;
 import org.datavyu.models.db.UserWarningException;
@@ -940,6 +941,8 @@ public final class Datavyu extends SingleFrameApplication implements KeyEventDis
     @Override
     protected void ready() {
         readyToOpenFile = true;
+        // So that the first script does not wait for JRuby to start.
+        RubyEnginePool.warmUp();
         if (commandLineFile != null) {
             getView().openExternalFile(new File(commandLineFile));
             commandLineFile = null;
@@ -0,0 +1,174 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.datavyu.controllers.BatchController;
+import org.datavyu.controllers.BatchController.Operation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Converts and exports project files from the command line, without opening Datavyu; see USAGE.
+ *
+ * This is an entry point of its own rather than an option of Datavyu.main, as loading the Datavyu application already
+ * sets up the platform and the display.
+ */
+public final class DatavyuBatch {
+
+    /** The logger instance for this class */
+    private static Logger logger = LogManager.getLogger(DatavyuBatch.class);
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -cp datavyu.jar org.datavyu.DatavyuBatch [options] <file|directory|glob>...",
+            "",
+            "Converts every project archive (.opf) in a directory, at any depth, every file matching a glob such as",
+            "'data/**/*.opf', or the given files, which may also be CSV data stores for the exports.",
+            "",
+            "  --frames <fps>    export a row per frame at the frame rate to <name>.frames.csv",
+            "  --cells           export a row per cell to <name>.cells.csv",
+            "  --json            export to <name>.json",
+            "  --compact         write the compact JSON: no indentation or ids, times in milliseconds",
+            "  --upgrade         rewrite project archives in place in the current format, folding in their journal",
+            "  --level <0-9>     compression level of upgraded archives, 0 to store (default: -1, the default level)",
+            "  --out <directory> where the exports go (default: next to their file)",
+            "  --jobs <n>        files converted at a time (default: the number of processors)",
+            "",
+            "Logs the time taken by every step of every file; exits with 1 if any file failed.");
+
+    private DatavyuBatch() {
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        // Before anything asks: the controllers leave out their dialogs when headless.
+        System.setProperty("java.awt.headless", "true");
+
+        Set<Operation> operations = EnumSet.noneOf(Operation.class);
+        List<String> patterns = new ArrayList<>();
+        double frameRate = 0;
+        boolean compact = false;
+        int level = -1;
+        File outputDirectory = null;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--frames":
+                        operations.add(Operation.FRAMES);
+                        frameRate = Double.parseDouble(value(args, ++i));
+                        if (!(frameRate > 0)) {
+                            throw new IllegalArgumentException("The frame rate must be positive: " + args[i]);
+                        }
+                        break;
+                    case "--cells":
+                        operations.add(Operation.CELLS);
+                        break;
+                    case "--json":
+                        operations.add(Operation.JSON);
+                        break;
+                    case "--compact":
+                        compact = true;
+                        break;
+                    case "--upgrade":
+                        operations.add(Operation.UPGRADE);
+                        break;
+                    case "--level":
+                        level = Integer.parseInt(value(args, ++i));
+                        if (level < -1 || level > 9) {
+                            throw new IllegalArgumentException("The level must be from -1 to 9: " + args[i]);
+                        }
+                        break;
+                    case "--out":
+                        outputDirectory = new File(value(args, ++i));
+                        if (!outputDirectory.isDirectory()) {
+                            throw new IllegalArgumentException("Not a directory: " + outputDirectory);
+                        }
+                        break;
+                    case "--jobs":
+                        jobs = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--help":
+                        System.out.println(USAGE);
+                        return;
+                    default:
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option: " + args[i]);
+                        }
+                        patterns.add(args[i]);
+                }
+            }
+            if (operations.isEmpty() || patterns.isEmpty()) {
+                throw new IllegalArgumentException("Nothing to do");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        // A file named twice, or matched by two patterns, is converted once.
+        Set<File> files = new LinkedHashSet<>();
+        for (String pattern : patterns) {
+            try {
+                files.addAll(BatchController.find(pattern));
+            } catch (IOException e) {
+                logger.error("Unable to find the files of " + pattern, e);
+                System.exit(2);
+            }
+        }
+
+        BatchController batch = new BatchController(operations);
+        batch.setFrameRate(frameRate);
+        batch.setCompactJSON(compact);
+        batch.setCompressionLevel(level);
+        batch.setOutputDirectory(outputDirectory);
+
+        long start = System.nanoTime();
+        int failed = 0;
+        for (BatchController.Result result : batch.convertAll(new ArrayList<>(files), jobs, DatavyuBatch::log)) {
+            if (result.getError() != null) {
+                failed++;
+            }
+        }
+        logger.info(String.format("Converted %d of %d files in %.1f s", files.size() - failed, files.size(),
+                (System.nanoTime() - start) / 1e9));
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    /**
+     * Logs the steps of a file as it is done, as an error if it failed.
+     */
+    private static void log(final BatchController.Result result) {
+        if (result.getError() != null) {
+            logger.error(result);
+        } else {
+            logger.info(result);
+        }
+    }
+
+    private static String value(final String[] args, final int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing the value of " + args[i - 1]);
+        }
+        return args[i];
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive, serializing and compressing its entries concurrently on the fork/join pool.
+ *
+ * An entry is serialized into memory, then compressed in blocks of BLOCK_SIZE bytes at once: every block is deflated
+ * on its own, primed with the 32K before it, and all but the last end on a sync flush, so the blocks join into one
+ * deflate stream. Entries are written in the order they were added, while the ones after them are still being
+ * prepared; no more than WINDOW entries are held in memory at a time. The archive is plain ZIP, without ZIP64
+ * extensions, readable by ZipFile and any other tool.
+ */
+final class ArchiveWriter {
+
+    /** Writes the contents of an entry. */
+    interface Content {
+        void writeTo(final OutputStream out) throws IOException;
+    }
+
+    /** Compression level that stores the entries without compressing them, for fast saves to local disks. */
+    static final int STORED = 0;
+
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int WINDOW = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+
+    private final OutputStream out;
+
+    private final int level;
+
+    /** The entries being prepared, in order. */
+    private final Deque<Future<Entry>> pending = new ArrayDeque<>();
+
+    /** The entries written so far. */
+    private final List<Entry> written = new ArrayList<>();
+
+    /** Bytes written so far. */
+    private long position;
+
+    private final int time;
+
+    private final int date;
+
+    /**
+     * @param out   The stream to write to; it is not closed.
+     * @param level The compression level: STORED, 1 (fastest) to 9 (smallest) or Deflater.DEFAULT_COMPRESSION.
+     */
+    ArchiveWriter(final OutputStream out, final int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level " + level);
+        }
+        this.out = out;
+        this.level = level;
+        Calendar now = Calendar.getInstance();
+        time = now.get(Calendar.HOUR_OF_DAY) << 11 | now.get(Calendar.MINUTE) << 5 | now.get(Calendar.SECOND) >> 1;
+        date = Math.max(now.get(Calendar.YEAR) - 1980, 0) << 9 | (now.get(Calendar.MONTH) + 1) << 5
+                | now.get(Calendar.DAY_OF_MONTH);
+    }
+
+    /**
+     * Adds an entry, whose contents are written on another thread.
+     *
+     * @param name    The name of the entry.
+     * @param content Writes the contents of the entry; it must not depend on anything that changes meanwhile.
+     * @throws IOException If an entry before can not be written.
+     */
+    void putEntry(final String name, final Content content) throws IOException {
+        pending.add(ForkJoinPool.commonPool().submit(() -> {
+            Bytes bytes = new Bytes();
+            content.writeTo(bytes);
+            return compress(name, bytes.buffer(), bytes.size());
+        }));
+        while (pending.size() > WINDOW) {
+            writeEntry(await(pending.remove()));
+        }
+    }
+
+    /**
+     * Adds an entry.
+     *
+     * @param name  The name of the entry.
+     * @param bytes The contents of the entry.
+     * @throws IOException If an entry before can not be written.
+     */
+    void putEntry(final String name, final byte[] bytes) throws IOException {
+        putEntry(name, out -> out.write(bytes));
+    }
+
+    /**
+     * Writes the entries that are still pending and the central directory that ends the archive.
+     *
+     * @throws IOException If the archive can not be written.
+     */
+    void finish() throws IOException {
+        while (!pending.isEmpty()) {
+            writeEntry(await(pending.remove()));
+        }
+        if (written.size() > 0xFFFF || position > 0xFFFFFFFFL) {
+            throw new IOException("Archive too large");
+        }
+
+        long directory = position;
+        for (Entry entry : written) {
+            writeInt(0x02014B50);
+            writeShort(20);
+            writeHeader(entry);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt((int) entry.offset);
+            write(entry.name);
+        }
+        long directorySize = position - directory;
+        writeInt(0x06054B50);
+        writeShort(0);
+        writeShort(0);
+        writeShort(written.size());
+        writeShort(written.size());
+        writeInt((int) directorySize);
+        writeInt((int) directory);
+        writeShort(0);
+        out.flush();
+    }
+
+    private static Entry await(final Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // Fork/join tasks wrap the checked exceptions of their callables in runtime exceptions.
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing archive", e);
+        }
+    }
+
+    /**
+     * Compresses the contents of an entry, a block at a time on the fork/join pool.
+     */
+    private Entry compress(final String name, final byte[] bytes, final int size) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, size);
+        Entry entry = new Entry(name.getBytes(StandardCharsets.UTF_8), crc.getValue(), size);
+        if (level == STORED) {
+            entry.blocks = new byte[][]{bytes};
+            entry.blockSizes = new int[]{size};
+            entry.compressedSize = size;
+            return entry;
+        }
+
+        int count = Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int start = i * BLOCK_SIZE;
+            final int end = Math.min(start + BLOCK_SIZE, size);
+            tasks.add(ForkJoinTask.adapt((Callable<byte[]>) () -> deflate(bytes, start, end, end == size)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+        entry.blocks = new byte[count][];
+        entry.blockSizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            entry.blocks[i] = tasks.get(i).join();
+            entry.blockSizes[i] = entry.blocks[i].length;
+            entry.compressedSize += entry.blockSizes[i];
+        }
+        return entry;
+    }
+
+    /**
+     * Deflates a block of an entry.
+     *
+     * @param last True for the last block, which ends the deflate stream; the others end on a sync flush.
+     */
+    private byte[] deflate(final byte[] bytes, final int start, final int end, final boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (start > 0) {
+                int dictionary = Math.min(start, DICTIONARY_SIZE);
+                deflater.setDictionary(bytes, start - dictionary, dictionary);
+            }
+            deflater.setInput(bytes, start, end - start);
+            if (last) {
+                deflater.finish();
+            }
+            Bytes out = new Bytes();
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                int n = last ? deflater.deflate(buffer) : deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, n);
+                if (last ? deflater.finished() : n < buffer.length) {
+                    break;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeEntry(final Entry entry) throws IOException {
+        if (entry.size > 0xFFFFFFFFL || entry.compressedSize > 0xFFFFFFFFL || position > 0xFFFFFFFFL) {
+            throw new IOException("Archive entry too large: " + new String(entry.name, StandardCharsets.UTF_8));
+        }
+        entry.offset = position;
+        writeInt(0x04034B50);
+        writeHeader(entry);
+        write(entry.name);
+        for (int i = 0; i < entry.blocks.length; i++) {
+            out.write(entry.blocks[i], 0, entry.blockSizes[i]);
+            position += entry.blockSizes[i];
+        }
+        // Let the memory go as soon as the entry is out.
+        entry.blocks = null;
+        written.add(entry);
+    }
+
+    /**
+     * Writes the part that the local and central headers of an entry share, from the version needed to extract on.
+     */
+    private void writeHeader(final Entry entry) throws IOException {
+        writeShort(20);
+        writeShort(0x0800);
+        writeShort(level == STORED ? 0 : 8);
+        writeShort(time);
+        writeShort(date);
+        writeInt((int) entry.crc);
+        writeInt((int) entry.compressedSize);
+        writeInt((int) entry.size);
+        writeShort(entry.name.length);
+        writeShort(0);
+    }
+
+    private void writeShort(final int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        position += 2;
+    }
+
+    private void writeInt(final int v) throws IOException {
+        writeShort(v);
+        writeShort(v >>> 16);
+    }
+
+    private void write(final byte[] bytes) throws IOException {
+        out.write(bytes);
+        position += bytes.length;
+    }
+
+    /**
+     * An entry ready to be written.
+     */
+    private static final class Entry {
+
+        final byte[] name;
+
+        final long crc;
+
+        final long size;
+
+        long compressedSize;
+
+        byte[][] blocks;
+
+        int[] blockSizes;
+
+        long offset;
+
+        Entry(final byte[] name, final long crc, final long size) {
+            this.name = name;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A byte array output stream that hands out its buffer rather than a copy.
+     */
+    private static final class Bytes extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
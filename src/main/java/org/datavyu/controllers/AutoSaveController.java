@@ -14,12 +14,15 @@
  */
 package org.datavyu.controllers;
 
+import com.brsanthu.googleanalytics.GoogleAnalytics;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.datavyu.Datavyu;
 import org.datavyu.controllers.project.ProjectController;
+import org.datavyu.models.db.DataStore;
 import org.datavyu.models.db.UserWarningException;
+import org.datavyu.models.db.Variable;
 import org.datavyu.util.FileFilters.OpfFilter;
 import org.datavyu.util.FileFilters.ShapaFilter;
 
@@ -27,19 +30,67 @@ import javax.swing.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Periodically saves a copy of the open project to the temporary directory, from which it is recovered after a crash.
+ *
+ * The timer serializes the project on the event dispatch thread, which is quick; the snapshot of the data store is then
+ * taken and the copy written on a thread of its own. It goes to a temporary file that is forced to disk and
+ * renamed over the newest copy, after the older copies have moved down one generation, so there is a complete copy on
+ * disk at any time. Nothing is written while the data store has not changed since the previous copy.
+ */
 public class AutoSaveController implements ActionListener {
 
     /** Logger for this class */
-    private static Logger logger = LogManager.getLogger(DeleteColumnController.class);
+    private static Logger logger = LogManager.getLogger(AutoSaveController.class);
+
+    /** Number of copies kept, the newest one included */
+    private static final int GENERATIONS = 3;
+
+    /** Names of the copies: the newest one, or an older one numbered by generation */
+    private static final Pattern AUTOSAVE = Pattern.compile("(~.*?)(?:\\.(\\d+))?(\\.(?:opf|csv))");
+
+    /** Writes the copies off the event dispatch thread */
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(r, "Autosave");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     /** Timer for this class */
     private static Timer timer;
 
-    /** File to auto save */
+    /** The newest copy */
     private static File file;
 
+    /** The prefix and extension the name of the newest copy was made from */
+    private static String fileKey;
+
+    /** The copy being written, if any */
+    private static Future<?> pending;
+
+    /** The variables of the data store as of the newest copy */
+    private static volatile List<Variable> saved;
+
     private AutoSaveController() {}
 
     public static void setInterval(int interval) {
@@ -67,44 +118,218 @@ public class AutoSaveController implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent evt) {
-        String baseName;
-        String ext;
+        if (pending != null && !pending.isDone()) {
+            logger.info("Skipping autosave, the previous one is still being written.");
+            return;
+        }
         try {
-            if (file != null) {
-                file.delete();
-            }
             ProjectController projController = Datavyu.getProjectController();
-            SaveController saveController = new SaveController();
+            DataStore dataStore = projController.getDataStore();
+            if (!dataStore.isChanged()) {
+                return;
+            }
+
+            boolean archive = projController.isNewProject() || (projController.getProjectName() == null)
+                    || (projController.getLastSaveOption() instanceof ShapaFilter)
+                    || (projController.getLastSaveOption() instanceof OpfFilter);
+            final File target;
             if (projController.isNewProject() || (projController.getProjectName() == null)) {
-                baseName = "~noname_";
-                ext = ".opf";
-                file = File.createTempFile(baseName, ext);
-                saveController.saveProject(file, projController.getProject(),
-                        projController.getDataStore(), false);
+                target = target("~noname_", ".opf");
+            } else if (archive) {
+                target = target("~" + projController.getProjectName() + "_", ".opf");
             } else {
-                if ((projController.getLastSaveOption() instanceof ShapaFilter)
-                        || (projController.getLastSaveOption()
-                        instanceof OpfFilter)) {
-                    baseName = "~" + projController.getProjectName() + "_";
-                    ext = ".opf";
-                    file = File.createTempFile(baseName, ext);
-                    saveController.saveProject(file, projController.getProject(),
-                            projController.getDataStore(), false);
-                    // Save content just as a database.
-                } else {
-                    String filename = "~" + projController.getDatabaseFileName();
-                    baseName = FilenameUtils.getBaseName(filename) + "_";
-                    ext = "." + FilenameUtils.getExtension(filename);
-                    file = File.createTempFile(baseName, ext);
-                    saveController.saveDataStore(file, projController.getDataStore(), false);
+                // Save content just as a database.
+                String filename = "~" + projController.getDatabaseFileName();
+                if (!"csv".equalsIgnoreCase(FilenameUtils.getExtension(filename))) {
+                    return;
                 }
+                target = target(FilenameUtils.getBaseName(filename) + "_", ".csv");
             }
-        } catch (UserWarningException lee) {
-            logger.error("UserWarningException: Unable to autosave.", lee);
-        } catch (IOException ioe) {
-            logger.error("IOException: Unable to autosave.", ioe);
-        } finally {
+
+            if (archive) {
+                pending = writer.submit(new Write(target, dataStore,
+                        SaveController.projectBytes(projController.getProject()),
+                        SaveController.settingsBytes(projController.getProject())));
+            } else {
+                pending = writer.submit(new Write(target, dataStore, null, null));
+            }
+        } catch (IOException e) {
+            logger.error("Unable to autosave.", e);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the data store, writes a copy and moves it into place.
+     */
+    private static final class Write implements Runnable {
+
+        private final File target;
+
+        private final DataStore dataStore;
+
+        /** The project, as written to an archive; null to write the data store as CSV */
+        private final byte[] project;
+
+        /** The viewer settings of the project by id, as written to an archive */
+        private final Map<String, byte[]> settings;
+
+        Write(final File target, final DataStore dataStore, final byte[] project, final Map<String, byte[]> settings) {
+            this.target = target;
+            this.dataStore = dataStore;
+            this.project = project;
+            this.settings = settings;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            File part = new File(target.getPath() + ".part");
+            try {
+                // Copying a large variable that changed takes a while, so it is not done on the event dispatch thread.
+                DataStore snapshot = dataStore.snapshot();
+                List<Variable> variables = snapshot.getAllVariables();
+                if (sameVariables(variables, saved)) {
+                    return;
+                }
+
+                long copied = System.nanoTime();
+                try (FileOutputStream out = new FileOutputStream(part)) {
+                    if (project != null) {
+                        SaveController.writeArchive(out, project, new BinaryDataStoreWriter(snapshot), settings);
+                    } else {
+                        new SaveDataStoreFileController().saveAsCsv(out, snapshot);
+                    }
+                    out.flush();
+                    out.getFD().sync();
+                }
+                for (int generation = GENERATIONS - 1; generation > 0; generation--) {
+                    File older = generation(target, generation - 1);
+                    if (older.exists()) {
+                        move(older, generation(target, generation));
+                        generation(target, generation).deleteOnExit();
+                    }
+                }
+                move(part, target);
+                target.deleteOnExit();
+                saved = variables;
+
+                long done = System.nanoTime();
+                long copyMillis = (copied - start) / 1000000;
+                long writeMillis = (done - copied) / 1000000;
+                logger.info("Autosaved " + target + ": " + copyMillis + " ms to copy, " + writeMillis + " ms to write.");
+                GoogleAnalytics ga = Datavyu.getGoogleAnalytics();
+                if (ga != null) {
+                    ga.timing()
+                            .userTimingCategory("autosave")
+                            .userTimingVariableName("duration")
+                            .userTimingTime((int) (copyMillis + writeMillis))
+                            .send();
+                }
+            } catch (IOException | UserWarningException | RuntimeException e) {
+                logger.error("Unable to autosave.", e);
+                part.delete();
+            }
+        }
+    }
+
+    private static void move(final File source, final File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static boolean sameVariables(final List<Variable> variables, final List<Variable> saved) {
+        if (saved == null || saved.size() != variables.size()) {
+            return false;
+        }
+        for (int i = 0; i < variables.size(); i++) {
+            if (variables.get(i) != saved.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param baseName The start of the name of the copy.
+     * @param ext      The extension of the copy.
+     * @return The newest copy, with a new name if the project was saved under another name since.
+     */
+    private static File target(final String baseName, final String ext) throws IOException {
+        if (file == null || !(baseName + ext).equals(fileKey)) {
+            if (file != null) {
+                deleteAutosaves(file);
+            }
+            file = File.createTempFile(baseName, ext);
             file.deleteOnExit();
+            fileKey = baseName + ext;
+            saved = null;
+        }
+        return file;
+    }
+
+    /**
+     * @param newest     The newest copy.
+     * @param generation The generation of the copy, 0 for the newest one.
+     * @return The copy.
+     */
+    private static File generation(final File newest, final int generation) {
+        if (generation == 0) {
+            return newest;
+        }
+        Matcher matcher = AUTOSAVE.matcher(newest.getName());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not an autosave: " + newest);
+        }
+        return new File(newest.getParentFile(), matcher.group(1) + "." + generation + matcher.group(3));
+    }
+
+    /**
+     * Finds the copies left behind by a crash.
+     *
+     * @param folder The folder copies are saved in.
+     * @return The newest copy of each project that has one.
+     */
+    public static List<File> findAutosaves(final File folder) {
+        Map<String, File> newest = new TreeMap<>();
+        Map<String, Integer> generations = new HashMap<>();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                Matcher matcher = AUTOSAVE.matcher(f.getName());
+                if (!f.isFile() || f.length() == 0 || !matcher.matches()) {
+                    continue;
+                }
+                String key = matcher.group(1) + matcher.group(3);
+                int generation = matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2));
+                Integer found = generations.get(key);
+                if (found == null || generation < found) {
+                    generations.put(key, generation);
+                    newest.put(key, f);
+                }
+            }
+        }
+        return new ArrayList<>(newest.values());
+    }
+
+    /**
+     * Deletes a copy and the other generations of it.
+     *
+     * @param autosave A copy.
+     */
+    public static void deleteAutosaves(final File autosave) {
+        Matcher matcher = AUTOSAVE.matcher(autosave.getName());
+        if (!matcher.matches()) {
+            autosave.delete();
+            return;
+        }
+        File newest = new File(autosave.getParentFile(), matcher.group(1) + matcher.group(3));
+        for (int generation = 0; generation < GENERATIONS; generation++) {
+            generation(newest, generation).delete();
         }
+        new File(newest.getPath() + ".part").delete();
     }
 }
@@ -0,0 +1,395 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.datavyu.models.db.DataStore;
+import org.datavyu.models.project.Project;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Converts and exports project files without a user interface, many at a time, for DatavyuBatch.
+ *
+ * A file is opened through OpenController and written through the same writers that SaveController and
+ * ExportDatabaseFileController use, but nothing here touches the application, its configuration or the display; run
+ * it with java.awt.headless set, so that the controllers leave out their dialogs. Every file is converted on a thread
+ * of its own, up to the given number at a time; the writers spread their own work over the fork/join pool. Outputs go
+ * to a temporary file that is renamed once complete, so a failed conversion leaves no partial file behind.
+ */
+public final class BatchController {
+
+    /** The logger instance for this class */
+    private static Logger logger = LogManager.getLogger(BatchController.class);
+
+    /** Size of the buffer of an output file */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The directories of a glob before the first one with a wildcard, and the rest */
+    private static final Pattern GLOB = Pattern.compile("((?:[^*?\\[{/\\\\]*[/\\\\])*)(.*[*?\\[{].*)");
+
+    /**
+     * What to make of a file.
+     */
+    public enum Operation {
+
+        /** A row per frame at the frame rate, as ExportDatabaseFileController.exportByFrame; to name.frames.csv */
+        FRAMES,
+
+        /** A row per cell, as ExportDatabaseFileController.exportAsCells; to name.cells.csv */
+        CELLS,
+
+        /** As ExportDatabaseFileController.exportAsJSON; to name.json */
+        JSON,
+
+        /** Rewrites a project archive in full in the current format, folding in its journal; in place */
+        UPGRADE
+    }
+
+    /**
+     * The outcome of converting a file.
+     */
+    public static final class Result {
+
+        private final File file;
+
+        /** Milliseconds taken to open the file, then by each operation, in order */
+        private final Map<String, Long> millis = new LinkedHashMap<>();
+
+        private long totalMillis;
+
+        private Exception error;
+
+        Result(final File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return Milliseconds taken by each step: "open", then the operations done, in order.
+         */
+        public Map<String, Long> getMillis() {
+            return millis;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        /**
+         * @return Why the conversion failed, null if it succeeded.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder(file.getPath()).append(' ');
+            for (Map.Entry<String, Long> step : millis.entrySet()) {
+                line.append(' ').append(step.getKey()).append(' ').append(step.getValue()).append(" ms,");
+            }
+            if (error != null) {
+                line.append(" FAILED (").append(error.getMessage()).append("),");
+            }
+            return line.append(" total ").append(totalMillis).append(" ms").toString();
+        }
+    }
+
+    private final EnumSet<Operation> operations;
+
+    private double frameRate = 0;
+
+    private boolean compactJSON = false;
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private File outputDirectory = null;
+
+    /**
+     * @param operations What to make of every file, done in the order of Operation.
+     */
+    public BatchController(final Collection<Operation> operations) {
+        this.operations = operations.isEmpty() ? EnumSet.noneOf(Operation.class) : EnumSet.copyOf(operations);
+    }
+
+    /**
+     * @param frameRate The frames per second of the FRAMES export.
+     */
+    public void setFrameRate(final double frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * @param compactJSON True for the compact variant of the JSON export.
+     */
+    public void setCompactJSON(final boolean compactJSON) {
+        this.compactJSON = compactJSON;
+    }
+
+    /**
+     * @param compressionLevel The compression level of upgraded archives: 0 (stored), 1 (fastest) to 9 (smallest)
+     *                         or -1 for the default.
+     */
+    public void setCompressionLevel(final int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param outputDirectory Where the exports go, null to put them next to their file.
+     */
+    public void setOutputDirectory(final File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Converts files, up to a number of them at a time.
+     *
+     * @param files The files to convert.
+     * @param jobs The number of files converted at a time.
+     * @param listener Hears about every file once it is converted, on the thread that converted it; null for none.
+     * @return The results, in the order of the files.
+     * @throws InterruptedException If interrupted while waiting for the conversions.
+     */
+    public List<Result> convertAll(final List<File> files, final int jobs, final Consumer<Result> listener)
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, jobs), new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "Batch-" + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Result>> futures = new ArrayList<>(files.size());
+            for (File file : files) {
+                futures.add(executor.submit(() -> {
+                    Result result = convert(file);
+                    if (listener != null) {
+                        listener.accept(result);
+                    }
+                    return result;
+                }));
+            }
+            List<Result> results = new ArrayList<>(files.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // Only a listener can fail here, convert reports its errors in the result.
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Converts a file.
+     *
+     * @param file A project archive, or a CSV data store for the exports.
+     * @return What came of it; it holds the error if the file could not be converted.
+     */
+    public Result convert(final File file) {
+        Result result = new Result(file);
+        long start = System.nanoTime();
+        long time = start;
+        boolean isProject = file.getName().toLowerCase().endsWith(".opf");
+        try {
+            OpenController openController = new OpenController();
+            try {
+                if (isProject) {
+                    openController.openProject(file);
+                } else {
+                    openController.openDataStore(file);
+                }
+            } catch (RuntimeException e) {
+                // The controller logs why, then fails on the data store it could not open.
+                throw new IOException("Unable to open " + file, e);
+            }
+            DataStore dataStore = openController.getDataStore();
+            time = lap(result, "open", time);
+
+            for (Operation operation : operations) {
+                switch (operation) {
+                    case FRAMES:
+                        FrameCsvWriter frameWriter = new FrameCsvWriter(dataStore.snapshot(), frameRate);
+                        writeFile(output(file, ".frames.csv"), out -> frameWriter.write(out, null), false);
+                        break;
+
+                    case CELLS:
+                        writeFile(output(file, ".cells.csv"),
+                                out -> new ExportDatabaseFileController().exportAsCells(out, dataStore), false);
+                        break;
+
+                    case JSON:
+                        writeFile(output(file, ".json"), out -> writeJSON(out, dataStore), false);
+                        break;
+
+                    case UPGRADE:
+                        if (!isProject) {
+                            throw new IOException("Only project archives (.opf) can be upgraded");
+                        }
+                        upgrade(file, openController.getProject(), dataStore);
+                        break;
+                }
+                time = lap(result, operation.name().toLowerCase(), time);
+            }
+        } catch (Exception e) {
+            logger.error("Unable to convert " + file, e);
+            result.error = e;
+        } finally {
+            // Nothing more is saved to the journal of the file, if it has one.
+            ProjectJournal.stopTracking(file);
+        }
+        result.totalMillis = (System.nanoTime() - start) / 1000000;
+        return result;
+    }
+
+    private static long lap(final Result result, final String step, final long since) {
+        long now = System.nanoTime();
+        result.millis.put(step, (now - since) / 1000000);
+        return now;
+    }
+
+    /**
+     * @return The export of a file with the given suffix in place of its extension.
+     */
+    private File output(final File file, final String suffix) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        name = (dot > 0 ? name.substring(0, dot) : name) + suffix;
+        return new File(outputDirectory != null ? outputDirectory : file.getAbsoluteFile().getParentFile(), name);
+    }
+
+    private void writeJSON(final OutputStream out, final DataStore dataStore) throws IOException {
+        try (JsonGenerator g = new JsonFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            new ExportDatabaseFileController().writeJSON(g, dataStore.snapshot(), compactJSON);
+        }
+    }
+
+    /**
+     * Rewrites a project archive in full, the way a checkpoint of its journal does, and drops the journal.
+     */
+    private void upgrade(final File file, final Project project, final DataStore dataStore) throws IOException {
+        byte[] projectBytes = SaveController.projectBytes(project);
+        Map<String, byte[]> settings = SaveController.settingsBytes(project);
+        BinaryDataStoreWriter dataStoreWriter = new BinaryDataStoreWriter(dataStore);
+        writeFile(file, out -> SaveController.writeArchive(out, projectBytes, dataStoreWriter, settings,
+                compressionLevel), true);
+        ProjectJournal.discard(file);
+    }
+
+    /**
+     * Writes a file through a temporary one next to it, which replaces it once complete.
+     *
+     * @param force True to force the file to disk before it replaces the old one, as when that is the original.
+     */
+    static void writeFile(final File target, final ArchiveWriter.Content content, final boolean force)
+            throws IOException {
+        File part = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".part");
+        boolean written = false;
+        try {
+            try (FileOutputStream fos = new FileOutputStream(part)) {
+                OutputStream out = new BufferedOutputStream(fos, BUFFER_SIZE);
+                content.writeTo(out);
+                out.flush();
+                if (force) {
+                    fos.getFD().sync();
+                }
+            }
+            try {
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            written = true;
+        } finally {
+            if (!written && part.exists() && !part.delete()) {
+                logger.warn("Unable to delete " + part);
+            }
+        }
+    }
+
+    /**
+     * Finds the files to convert.
+     *
+     * @param pattern A file, a directory, whose project archives (.opf) are found at any depth, or a glob such as
+     *                data/**&#47;*.opf, as java.nio.file.FileSystem.getPathMatcher takes it.
+     * @return The files, sorted.
+     * @throws IOException If a directory can not be read.
+     */
+    public static List<File> find(final String pattern) throws IOException {
+        Matcher glob = GLOB.matcher(pattern);
+        if (!glob.matches()) {
+            Path path = Paths.get(pattern);
+            if (!Files.isDirectory(path)) {
+                return Collections.singletonList(path.toFile());
+            }
+            return walk(path, p -> p.getFileName().toString().toLowerCase().endsWith(".opf"));
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        return walk(Paths.get(glob.group(1)), matcher);
+    }
+
+    /**
+     * @param base The directory to walk; the paths matched start with it, the empty path being the working directory.
+     */
+    private static List<File> walk(final Path base, final PathMatcher matcher) throws IOException {
+        Path start = base.toString().isEmpty() ? Paths.get(".") : base;
+        if (!Files.isDirectory(start)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> paths = Files.walk(start)) {
+            return paths.filter(Files::isRegularFile)
+                    .map(p -> start == base ? p : start.relativize(p))
+                    .filter(matcher::matches)
+                    .map(Path::toFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
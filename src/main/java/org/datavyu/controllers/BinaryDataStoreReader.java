@@ -0,0 +1,355 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.datavyu.models.db.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads a data store that BinaryDataStoreWriter wrote into a project archive.
+ *
+ * Only the table of contents is read up front. The cells of the visible variables are read straight away, those of
+ * the hidden ones the first time they are used; until then a hidden variable takes next to no memory.
+ */
+final class BinaryDataStoreReader {
+
+    /** The logger instance for this class */
+    private static Logger logger = LogManager.getLogger(BinaryDataStoreReader.class);
+
+    private final File archiveFile;
+
+    private final ZipFile zipFile;
+
+    /**
+     * @param archiveFile The archive, which is opened again to load a hidden variable later on.
+     * @param zipFile     The archive opened for reading it now; it is not closed.
+     */
+    BinaryDataStoreReader(final File archiveFile, final ZipFile zipFile) {
+        this.archiveFile = archiveFile;
+        this.zipFile = zipFile;
+    }
+
+    /**
+     * @param zipFile The archive to look at.
+     * @return True if the archive holds a data store in the binary format.
+     */
+    static boolean holdsDataStore(final ZipFile zipFile) {
+        return zipFile.getEntry(BinaryDataStoreWriter.TOC_ENTRY) != null;
+    }
+
+    /**
+     * @return The data store held in the archive.
+     * @throws IOException If the archive can not be read or holds a version of the format that is not supported.
+     */
+    DataStore read() throws IOException {
+        return read(null);
+    }
+
+    /**
+     * @param journal The journal of the changes saved since the archive was written, null for none.
+     * @return The data store held in the archive, with the changes of the journal applied.
+     * @throws IOException If the archive can not be read or holds a version of the format that is not supported.
+     */
+    DataStore read(final ProjectJournal journal) throws IOException {
+        List<Item> items = readToc();
+        if (journal != null) {
+            items = journal.replay(items);
+        }
+
+        DataStore dataStore = DataStoreFactory.newDataStore();
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            Variable variable;
+            try {
+                if ((item.flags & BinaryDataStoreWriter.HIDDEN) != 0
+                        && (item.flags & BinaryDataStoreWriter.COLUMNAR) == 0) {
+                    variable = dataStore.createLazyVariable(item.name, item.root, item.loader);
+                } else {
+                    variable = createVariable(dataStore, item.name, item.root, item.flags);
+                    if (item.loader instanceof EntryLoader) {
+                        ((EntryLoader) item.loader).loadCells(variable, zipFile);
+                    } else {
+                        item.loader.loadCells(variable);
+                    }
+                }
+            } catch (UserWarningException e) {
+                throw new IOException("Unable to add variable " + item.name + ": " + archiveFile, e);
+            }
+            variable.setHidden((item.flags & BinaryDataStoreWriter.HIDDEN) != 0);
+            variable.setOrderIndex(i);
+        }
+        return dataStore;
+    }
+
+    /**
+     * @return The variables listed in the table of contents, in order.
+     * @throws IOException If the table of contents can not be read.
+     */
+    private List<Item> readToc() throws IOException {
+        List<Item> items = new ArrayList<>();
+        try (DataInputStream toc = new DataInputStream(new BufferedInputStream(
+                zipFile.getInputStream(zipFile.getEntry(BinaryDataStoreWriter.TOC_ENTRY))))) {
+            if (toc.readInt() != BinaryDataStoreWriter.MAGIC) {
+                throw new IOException("Not a data store: " + archiveFile);
+            }
+            short version = toc.readShort();
+            if (version > BinaryDataStoreWriter.VERSION) {
+                throw new IOException("Unsupported data store version " + version + ": " + archiveFile);
+            }
+
+            int count = toc.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = readString(toc);
+                Argument.Type type = Argument.Type.valueOf(readString(toc));
+                int flags = toc.readByte();
+                String entryName = readString(toc);
+                int cellCount = toc.readInt();
+                Argument root = readRootNode(toc, name, type);
+
+                ZipEntry entry = zipFile.getEntry(entryName);
+                if (entry == null) {
+                    throw new IOException("Missing variable " + name + ": " + archiveFile);
+                }
+                items.add(new Item(name, flags, root, new EntryLoader(archiveFile, entry, cellCount)));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * A variable to create in the data store being read.
+     */
+    static final class Item {
+
+        final String name;
+
+        /** BinaryDataStoreWriter.HIDDEN and COLUMNAR. */
+        final int flags;
+
+        final Argument root;
+
+        /** Loads the cells of the variable. */
+        final CellLoader loader;
+
+        Item(final String name, final int flags, final Argument root, final CellLoader loader) {
+            this.name = name;
+            this.flags = flags;
+            this.root = root;
+            this.loader = loader;
+        }
+    }
+
+    /**
+     * Loads the cells of a variable from its entry in the archive, or copies the entry as it is.
+     */
+    static final class EntryLoader implements CellLoader, BinaryDataStoreWriter.EncodedCells {
+
+        private final File archiveFile;
+
+        private final String entryName;
+
+        /** Checksum of the entry when the archive was opened, to notice the archive being replaced since. */
+        private final long crc;
+
+        private final int cellCount;
+
+        EntryLoader(final File archiveFile, final ZipEntry entry, final int cellCount) {
+            this.archiveFile = archiveFile;
+            this.entryName = entry.getName();
+            this.crc = entry.getCrc();
+            this.cellCount = cellCount;
+        }
+
+        /**
+         * @return The name of the entry in the archive.
+         */
+        String getEntryName() {
+            return entryName;
+        }
+
+        @Override
+        public int getCellCount() {
+            return cellCount;
+        }
+
+        @Override
+        public void loadCells(final Variable variable) throws IOException {
+            logger.info("Loading the cells of " + variable.getName());
+            try (ZipFile archive = open()) {
+                loadCells(variable, archive);
+            }
+        }
+
+        void loadCells(final Variable variable, final ZipFile archive) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    archive.getInputStream(archive.getEntry(entryName)), 64 * 1024))) {
+                readCells(in, variable);
+            }
+        }
+
+        @Override
+        public void copyTo(final OutputStream out) throws IOException {
+            try (ZipFile archive = open(); InputStream in = archive.getInputStream(archive.getEntry(entryName))) {
+                CRC32 copied = new CRC32();
+                byte[] buffer = new byte[64 * 1024];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    copied.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+                if (copied.getValue() != crc) {
+                    throw new IOException(entryName + " of " + archiveFile + " is corrupt");
+                }
+            }
+        }
+
+        /**
+         * @return The archive, opened for reading.
+         * @throws IOException If the archive has changed since the entry was read from it.
+         */
+        private ZipFile open() throws IOException {
+            ZipFile archive = new ZipFile(archiveFile);
+            ZipEntry entry = archive.getEntry(entryName);
+            if (entry == null || entry.getCrc() != crc) {
+                archive.close();
+                throw new IOException(archiveFile + " has changed since it was opened");
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * @param name The name of the variable.
+     * @param type The type of the variable.
+     * @return The root node of the variable, with the arguments that follow for a matrix.
+     */
+    static Argument readRootNode(final DataInputStream in, final String name, final Argument.Type type)
+            throws IOException {
+        Argument root = new Argument(type == Argument.Type.MATRIX ? name + name.hashCode() : "var", type);
+        if (type == Argument.Type.MATRIX) {
+            root.clearChildArguments();
+            int args = in.readInt();
+            for (int arg = 0; arg < args; arg++) {
+                String argName = readString(in);
+                root.childArguments.add(new Argument(argName, Argument.Type.valueOf(readString(in))));
+            }
+        }
+        return root;
+    }
+
+    /**
+     * @return A new variable of the data store, without cells.
+     * @throws UserWarningException If the data store already holds a variable with the name.
+     */
+    static Variable createVariable(final DataStore dataStore, final String name, final Argument root,
+                                   final int flags) throws UserWarningException {
+        Variable variable = (flags & BinaryDataStoreWriter.COLUMNAR) != 0
+                ? dataStore.createColumnarVariable(name, root.type)
+                : dataStore.createVariable(name, root.type, true);
+        variable.setRootNode(root);
+        return variable;
+    }
+
+    /**
+     * Reads cells written by BinaryDataStoreWriter.writeCells into a variable.
+     */
+    static void readCells(final DataInputStream in, final Variable variable) throws IOException {
+        int count = (int) readVarLong(in);
+        long[] onsets = new long[count];
+        long onset = 0;
+        for (int i = 0; i < count; i++) {
+            onset += readVarLong(in);
+            onsets[i] = onset;
+        }
+        Cell[] cells = new Cell[count];
+        for (int i = 0; i < count; i++) {
+            cells[i] = variable.createCell(onsets[i], onsets[i] + readVarLong(in));
+        }
+
+        Argument root = variable.getRootNode();
+        if (root.type == Argument.Type.MATRIX) {
+            for (int arg = 0; arg < root.childArguments.size(); arg++) {
+                readColumn(in, cells, arg, root.childArguments.get(arg).type);
+            }
+        } else {
+            readColumn(in, cells, -1, root.type);
+        }
+    }
+
+    /**
+     * @param arg  The index of the argument of a matrix, -1 for the value of a cell that is not a matrix.
+     * @param type The type of the argument.
+     */
+    private static void readColumn(final DataInputStream in, final Cell[] cells, final int arg,
+                                   final Argument.Type type) throws IOException {
+        if (type == Argument.Type.NOMINAL) {
+            String[] dictionary = new String[(int) readVarLong(in)];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString(in);
+            }
+            for (Cell cell : cells) {
+                int code = (int) readVarLong(in);
+                if (code > 0) {
+                    valueOf(cell, arg).set(dictionary[code - 1]);
+                }
+            }
+        } else {
+            byte[] buffer = new byte[256];
+            for (Cell cell : cells) {
+                int length = (int) readVarLong(in) - 1;
+                if (length >= 0) {
+                    if (length > buffer.length) {
+                        buffer = new byte[Math.max(length, buffer.length * 2)];
+                    }
+                    in.readFully(buffer, 0, length);
+                    valueOf(cell, arg).set(new String(buffer, 0, length, StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    private static CellValue valueOf(final Cell cell, final int arg) {
+        return arg < 0 ? cell.getCellValue() : cell.getMatrixValue(arg);
+    }
+
+    static long readVarLong(final DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 63) {
+                throw new IOException("Malformed number");
+            }
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static String readString(final DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Writes a data store into a project archive in the binary columnar format, which BinaryDataStoreReader reads.
+ *
+ * The data store takes an entry per variable next to a table of contents, so that a variable can be read without
+ * reading the others:
+ * <pre>
+ * datastore/toc:  int MAGIC, short VERSION, int number of variables, then per variable in order:
+ *                 string name, string type, byte flags (HIDDEN, COLUMNAR), string entry, int number of cells,
+ *                 for a matrix: int number of arguments, then string name and string type of each.
+ * datastore/N:    varint number of cells, the cells in temporal order:
+ *                 every onset as a varint delta to the previous onset, every offset as a varint delta to its onset,
+ *                 then a column of values per argument:
+ *                 nominal - varint size of the dictionary, its values in order of first use, a varint per cell
+ *                           with 0 for an empty value and i + 1 for the i-th value of the dictionary;
+ *                 text    - a varint per cell with 0 for an empty value and the length + 1 of its UTF-8 bytes,
+ *                           followed by the bytes.
+ * </pre>
+ * Varints are zig-zag encoded, 7 bits per byte; strings are a varint length followed by their UTF-8 bytes.
+ */
+final class BinaryDataStoreWriter {
+
+    /** Name of the table of contents, the entry that marks an archive holding the binary format. */
+    static final String TOC_ENTRY = "datastore/toc";
+
+    /** Prefix of the entries holding the variables. */
+    static final String VARIABLE_ENTRY = "datastore/";
+
+    static final int MAGIC = 0x44564442;
+
+    static final short VERSION = 1;
+
+    static final int HIDDEN = 1;
+
+    static final int COLUMNAR = 2;
+
+    private final DataStore snapshot;
+
+    /** The variables of the data store, in the order of the snapshot. */
+    private final List<Variable> variables;
+
+    /**
+     * Cells held encoded as in the entry of a variable, as by the loader of a variable that has not been loaded yet.
+     * They are copied as they are instead of being decoded and encoded again.
+     */
+    interface EncodedCells {
+
+        /**
+         * @return The number of cells.
+         */
+        int getCellCount();
+
+        /**
+         * @param out The stream to copy the encoded cells to.
+         * @throws IOException If the cells can not be read, or are not the ones they were when first read.
+         */
+        void copyTo(final OutputStream out) throws IOException;
+    }
+
+    /**
+     * Takes a snapshot of the data store, so the archive holds one consistent state even while other threads keep
+     * editing. The variables that have not been loaded yet are not loaded: their entries are copied from the archive
+     * they were read from, so create the writer and write the archive before that file gets overwritten.
+     *
+     * @param dataStore The data store to write.
+     */
+    BinaryDataStoreWriter(final DataStore dataStore) {
+        Lock l = dataStore.getLock().readLock();
+        l.lock();
+        try {
+            snapshot = dataStore.snapshot();
+            variables = dataStore.getAllVariables();
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * @return The snapshot of the data store that is written.
+     */
+    DataStore getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return The variables of the data store, in the order they are written.
+     */
+    List<Variable> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Adds the entries of the data store to an archive. The table of contents and every variable take an entry of
+     * their own, so the archive writer serializes and compresses them at the same time.
+     *
+     * @param archive The archive to write to.
+     * @throws IOException If the archive can not be written.
+     */
+    void write(final ArchiveWriter archive) throws IOException {
+        final List<Variable> variables = snapshot.getAllVariables();
+
+        // A variable that is copied keeps the name of its entry, so the loaders of variables that have not been loaded
+        // yet still find their entries when the archive they were read from is written over.
+        final String[] entryNames = new String[variables.size()];
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < variables.size(); i++) {
+            CellLoader loader = snapshot.getCellLoader(variables.get(i));
+            if (loader instanceof BinaryDataStoreReader.EntryLoader
+                    && used.add(((BinaryDataStoreReader.EntryLoader) loader).getEntryName())) {
+                entryNames[i] = ((BinaryDataStoreReader.EntryLoader) loader).getEntryName();
+            }
+        }
+        int next = 0;
+        for (int i = 0; i < variables.size(); i++) {
+            while (entryNames[i] == null) {
+                String entryName = VARIABLE_ENTRY + next++;
+                if (used.add(entryName)) {
+                    entryNames[i] = entryName;
+                }
+            }
+        }
+
+        archive.putEntry(TOC_ENTRY, zos -> {
+            DataOutputStream toc = new DataOutputStream(new BufferedOutputStream(zos));
+            toc.writeInt(MAGIC);
+            toc.writeShort(VERSION);
+            toc.writeInt(variables.size());
+            for (int i = 0; i < variables.size(); i++) {
+                Variable variable = variables.get(i);
+                Argument root = variable.getRootNode();
+                writeString(toc, variable.getName());
+                writeString(toc, root.type.name());
+                int flags = variable.isHidden() ? HIDDEN : 0;
+                if (this.variables.get(i) instanceof ColumnarVariable) {
+                    flags |= COLUMNAR;
+                }
+                toc.writeByte(flags);
+                writeString(toc, entryNames[i]);
+                EncodedCells encoded = encodedCells(snapshot, variable);
+                toc.writeInt(encoded != null ? encoded.getCellCount() : variable.getCells().size());
+                writeArguments(toc, root);
+            }
+            toc.flush();
+        });
+
+        for (int i = 0; i < variables.size(); i++) {
+            final Variable variable = variables.get(i);
+            archive.putEntry(entryNames[i], zos -> {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(zos, 64 * 1024));
+                writeCells(out, snapshot, variable);
+                out.flush();
+            });
+        }
+    }
+
+    /**
+     * @param snapshot A snapshot of a data store.
+     * @param variable A variable of the snapshot.
+     * @return The cells of the variable as they were read, if they are copied as they are; null if they have been
+     * loaded and changed since, or were not read encoded.
+     */
+    private static EncodedCells encodedCells(final DataStore snapshot, final Variable variable) {
+        CellLoader loader = snapshot.getCellLoader(variable);
+        return loader instanceof EncodedCells ? (EncodedCells) loader : null;
+    }
+
+    /**
+     * Writes the cells of a variable of a snapshot, as laid out for the entry of a variable. Cells that were read
+     * encoded and have not changed since are copied as they are, without loading them.
+     */
+    static void writeCells(final DataOutputStream out, final DataStore snapshot, final Variable variable)
+            throws IOException {
+        EncodedCells encoded = encodedCells(snapshot, variable);
+        if (encoded != null) {
+            encoded.copyTo(out);
+        } else {
+            writeCells(out, variable);
+        }
+    }
+
+    /**
+     * Writes the arguments of a matrix, nothing for other types of variables.
+     */
+    static void writeArguments(final DataOutputStream out, final Argument root) throws IOException {
+        if (root.type == Argument.Type.MATRIX) {
+            out.writeInt(root.childArguments.size());
+            for (Argument arg : root.childArguments) {
+                writeString(out, arg.name);
+                writeString(out, arg.type.name());
+            }
+        }
+    }
+
+    /**
+     * Writes the cells of a variable, as laid out for the entry of a variable.
+     */
+    static void writeCells(final DataOutputStream out, final Variable variable) throws IOException {
+        List<Cell> cells = variable.getCellsTemporally();
+        writeVarLong(out, cells.size());
+
+        long previous = 0;
+        for (Cell cell : cells) {
+            writeVarLong(out, cell.getOnset() - previous);
+            previous = cell.getOnset();
+        }
+        for (Cell cell : cells) {
+            writeVarLong(out, cell.getOffset() - cell.getOnset());
+        }
+
+        Argument root = variable.getRootNode();
+        if (root.type == Argument.Type.MATRIX) {
+            for (int arg = 0; arg < root.childArguments.size(); arg++) {
+                writeColumn(out, cells, arg, root.childArguments.get(arg).type);
+            }
+        } else {
+            writeColumn(out, cells, -1, root.type);
+        }
+    }
+
+    /**
+     * @param arg  The index of the argument of a matrix, -1 for the value of a cell that is not a matrix.
+     * @param type The type of the argument.
+     */
+    private static void writeColumn(final DataOutputStream out, final List<Cell> cells, final int arg,
+                                    final Argument.Type type) throws IOException {
+        if (type == Argument.Type.NOMINAL) {
+            Map<String, Integer> dictionary = new HashMap<>();
+            int[] codes = new int[cells.size()];
+            String[] entries = new String[16];
+            for (int i = 0; i < codes.length; i++) {
+                CellValue value = valueOf(cells.get(i), arg);
+                if (!value.isEmpty()) {
+                    String s = value.toString();
+                    Integer code = dictionary.get(s);
+                    if (code == null) {
+                        code = dictionary.size() + 1;
+                        dictionary.put(s, code);
+                        if (code > entries.length) {
+                            entries = Arrays.copyOf(entries, entries.length * 2);
+                        }
+                        entries[code - 1] = s;
+                    }
+                    codes[i] = code;
+                }
+            }
+            writeVarLong(out, dictionary.size());
+            for (int i = 0; i < dictionary.size(); i++) {
+                writeString(out, entries[i]);
+            }
+            for (int code : codes) {
+                writeVarLong(out, code);
+            }
+        } else {
+            for (Cell cell : cells) {
+                CellValue value = valueOf(cell, arg);
+                if (value.isEmpty()) {
+                    writeVarLong(out, 0);
+                } else {
+                    byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                    writeVarLong(out, bytes.length + 1);
+                    out.write(bytes);
+                }
+            }
+        }
+    }
+
+    private static CellValue valueOf(final Cell cell, final int arg) {
+        return arg < 0 ? cell.getCellValue() : cell.getMatrixValue(arg);
+    }
+
+    static void writeVarLong(final DataOutputStream out, final long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static void writeString(final DataOutputStream out, final String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+}
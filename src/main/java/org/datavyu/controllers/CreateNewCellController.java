@@ -127,10 +127,12 @@ public final class CreateNewCellController {
                 if(Datavyu.getProjectController().getLastSelectedCell() != null){
                     Variable columnToParse = model.getVariable(Datavyu.getProjectController().getLastSelectedCell());
                     Cell cellToEdit = findClosestCell(columnToParse, milliseconds);
-                    UndoableEdit edit = new ChangeOffsetCellEdit(cellToEdit, cellToEdit.getOffset(),
-                            milliseconds - 1, ChangeCellEdit.Granularity.FINEGRAINED);
-                    Datavyu.getView().getUndoSupport().postEdit(edit);
-                    cellToEdit.setOffset(Math.max(0, (milliseconds - 1)));
+                    if(cellToEdit != null) {
+                        UndoableEdit edit = new ChangeOffsetCellEdit(cellToEdit, cellToEdit.getOffset(),
+                                milliseconds - 1, ChangeCellEdit.Granularity.FINEGRAINED);
+                        Datavyu.getView().getUndoSupport().postEdit(edit);
+                        cellToEdit.setOffset(Math.max(0, (milliseconds - 1)));
+                    }
                 }
             }
         }
@@ -138,26 +140,20 @@ public final class CreateNewCellController {
         createNewCell(milliseconds);
     }
 
-    //need to refactor this
     private Cell findClosestCell(final Variable column,final long timeInMillis) {
-        if (column.getCells().size() == 0) return null;
-
         //find the closest onset to the current time of the VideoController
-        List<Cell> cells = new ArrayList<>();
-        List<Cell> cellsToEdit = new ArrayList<>();
-        //Go through the cells temporally and add them to a list of cell
-        for (Cell cell : column.getCellsTemporally() ){
-            if(cell.getOnset() <= timeInMillis){
-                cells.add(cell);
-            }
-        }
+        Cell lastCell = column.getPreviousCell(timeInMillis);
+        if (lastCell == null) return null;
 
-        //Go backward through the list of cells and get the last cells with the same onset
-        long lastOnSet = cells.get(cells.size()-1).getOnset();
-        for(int i = cells.size()-1; i >= 0; i--){
-            if(cells.get(i).getOnset() == lastOnSet){
-                cellsToEdit.add(cells.get(i));
+        //Go backward from the last cell and get the last cells with the same onset
+        List<Cell> cellsToEdit = new ArrayList<>();
+        long lastOnSet = lastCell.getOnset();
+        for (int i = column.getTemporalIndex(lastCell); i >= 0; i--) {
+            Cell cell = column.getCellTemporally(i);
+            if (cell.getOnset() != lastOnSet) {
+                break;
             }
+            cellsToEdit.add(cell);
         }
 
         //If there is more than one cell with the same onset and close to the current time
@@ -187,8 +183,6 @@ public final class CreateNewCellController {
         logger.info("create cell in selected column");
 
         // perform the operation
-        List<Cell> cells = v.getCellsTemporally();
-
         long newOnset = 0;
         newOnset = Datavyu.getVideoController().getCurrentTime();
 
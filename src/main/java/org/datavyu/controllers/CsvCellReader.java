@@ -0,0 +1,303 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the CSV data store format in one pass over a char buffer.
+ *
+ * Lines that are not cells are read with readLine. A cell line 'onset,offset,(value,value,...)' is read with readCell,
+ * which parses the timestamps straight to milliseconds and splits and unescapes the values in place: a '\' takes the
+ * next character literally, or stands for a newline when it ends the line, in which case the value continues on the
+ * next line. This matches what SaveDataStoreFileController writes.
+ */
+final class CsvCellReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Enough characters for the hours of any time, with a minus sign and the colon after them. */
+    private static final int HOURS_LENGTH = 24;
+
+    private final Reader in;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private int position;
+
+    private int limit;
+
+    /** The value being read. */
+    private char[] field = new char[128];
+
+    private int fieldLength;
+
+    /** The line the next character is on, counting from 1. */
+    private int lineNumber = 1;
+
+    private long onset;
+
+    private long offset;
+
+    /**
+     * @param in The reader to read from; it is closed with this reader.
+     */
+    CsvCellReader(final Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Makes sure that the buffer holds at least the given number of characters, unless the input ends before.
+     *
+     * @return True if the characters are in the buffer.
+     */
+    private boolean fill(final int needed) throws IOException {
+        if (limit - position >= needed) {
+            return true;
+        }
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+        while (limit < needed) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    /**
+     * @return The next character, or -1 at the end of the input.
+     */
+    private int read() throws IOException {
+        if (position == limit && !fill(1)) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * Consumes the rest of a line ending that started with the given character.
+     */
+    private void endLine(final int c) throws IOException {
+        if (c == '\r' && fill(1) && buffer[position] == '\n') {
+            position++;
+        }
+        lineNumber++;
+    }
+
+    /**
+     * Reads a line like BufferedReader does.
+     *
+     * @return The line without its line ending, or null at the end of the input.
+     */
+    String readLine() throws IOException {
+        StringBuilder line = null;
+        while (true) {
+            if (position == limit && !fill(1)) {
+                return line == null ? null : line.toString();
+            }
+            int start = position;
+            while (position < limit) {
+                char c = buffer[position];
+                if (c == '\n' || c == '\r') {
+                    String result = line == null
+                            ? new String(buffer, start, position - start)
+                            : line.append(buffer, start, position - start).toString();
+                    position++;
+                    endLine(c);
+                    return result;
+                }
+                position++;
+            }
+            if (line == null) {
+                line = new StringBuilder();
+            }
+            line.append(buffer, start, position - start);
+        }
+    }
+
+    /**
+     * @return True if the next line is a cell, i.e. starts with the hours of a time and a colon.
+     */
+    boolean isAtCell() throws IOException {
+        // At the end of the input the buffer holds what is left, which may be a cell still.
+        fill(HOURS_LENGTH);
+        return isCell(buffer, position, limit);
+    }
+
+    /**
+     * @return True if the text from start to end begins with the hours of a time, negative ones with a minus sign,
+     * and a colon, as a cell line of a matrix variable does.
+     */
+    static boolean isCell(final char[] text, final int start, final int end) {
+        int position = start < end && text[start] == '-' ? start + 1 : start;
+        int digits = position;
+        while (position < end && Character.isDigit(text[position])) {
+            position++;
+        }
+        return position > digits && position < end && text[position] == ':';
+    }
+
+    /**
+     * @return True if the text at start begins with a time, with a minus sign if it is negative, as a cell line does.
+     */
+    static boolean startsWithTime(final char[] text, final int start) {
+        int position = start < text.length && text[start] == '-' ? start + 1 : start;
+        return position < text.length && Character.isDigit(text[position]);
+    }
+
+    /**
+     * @return True if the line begins with a time, with a minus sign if it is negative, as a cell line does.
+     */
+    static boolean startsWithTime(final String line) {
+        int position = line.startsWith("-") ? 1 : 0;
+        return position < line.length() && Character.isDigit(line.charAt(position));
+    }
+
+    /**
+     * Reads a cell line; its times are then available from getOnset and getOffset.
+     *
+     * @param values Receives the values of the cell, unescaped, without the parentheses around them.
+     * @throws IOException If the line is not a cell or can not be read.
+     */
+    void readCell(final List<String> values) throws IOException {
+        onset = readTimestamp();
+        offset = readTimestamp();
+
+        values.clear();
+        fieldLength = 0;
+        boolean first = true;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                break;
+            }
+            if (c == '\n' || c == '\r') {
+                endLine(c);
+                break;
+            }
+            if (c == '\\') {
+                int escaped = read();
+                if (escaped == -1 || escaped == '\n' || escaped == '\r') {
+                    // An escape at the end of the line is a newline in the value, which goes on on the next line.
+                    append('\n');
+                    if (escaped == -1) {
+                        break;
+                    }
+                    endLine(escaped);
+                } else {
+                    append((char) escaped);
+                }
+            } else if (c == ',') {
+                values.add(field(first ? 1 : 0, fieldLength));
+                first = false;
+                fieldLength = 0;
+            } else {
+                append((char) c);
+            }
+        }
+
+        // Strip the first and last chars - presumably parens.
+        int start = first ? 1 : 0;
+        values.add(field(start, Math.max(start, fieldLength - 1)));
+    }
+
+    /**
+     * @return The onset of the last cell read, in milliseconds.
+     */
+    long getOnset() {
+        return onset;
+    }
+
+    /**
+     * @return The offset of the last cell read, in milliseconds.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The line the reader is on, counting from 1.
+     */
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    private void append(final char c) {
+        if (fieldLength == field.length) {
+            field = Arrays.copyOf(field, fieldLength * 2);
+        }
+        field[fieldLength++] = c;
+    }
+
+    private String field(final int start, final int end) {
+        return start >= end ? "" : new String(field, start, end - start);
+    }
+
+    /**
+     * Reads a timestamp up to and including the comma after it, as DatavyuCell.convertTimestampToMS would convert it:
+     * either HH:MM:SS:mmm or a plain number of milliseconds. A leading '-' negates the first field only, so negative
+     * times written by DatavyuCell.convertMStoTimestamp and CsvCellWriter (e.g. -1:59:59:999) read back as they were.
+     */
+    private long readTimestamp() throws IOException {
+        boolean negative = false;
+        long hours = 0;
+        long minutes = 0;
+        long seconds = 0;
+        int count = 0;
+        long part = 0;
+        int digits = 0;
+        while (true) {
+            int c = read();
+            if (c >= '0' && c <= '9') {
+                part = part * 10 + (c - '0');
+                digits++;
+            } else if (c == '-' && digits == 0 && count == 0 && !negative) {
+                negative = true;
+            } else if (c == ':' && digits > 0 && count < 3) {
+                if (count == 0) {
+                    hours = negative ? -part : part;
+                } else if (count == 1) {
+                    minutes = part;
+                } else {
+                    seconds = part;
+                }
+                count++;
+                part = 0;
+                digits = 0;
+            } else if (c == ',' && digits > 0 && (count == 0 || count == 3)) {
+                break;
+            } else {
+                throw new IOException("Malformed cell time on line " + lineNumber);
+            }
+        }
+        if (count == 0) {
+            return negative ? -part : part;
+        }
+        return hours * 60 * 60 * 1000 + minutes * 60 * 1000 + seconds * 1000 + part;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
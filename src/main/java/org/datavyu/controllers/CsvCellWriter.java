@@ -0,0 +1,214 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.Cell;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes the CSV data store format through a char buffer, the counterpart of CsvCellReader.
+ *
+ * The output is the same as printing to a PrintStream in the default charset, which is how the format was written
+ * before: writeCell formats the timestamps with integer arithmetic and appends the escaped values straight into the
+ * buffer, and the buffer is encoded into a byte buffer that is written to the stream in large blocks.
+ */
+final class CsvCellWriter implements Appendable, Flushable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final WritableByteChannel out;
+
+    private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private final CharBuffer chars = CharBuffer.wrap(buffer);
+
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private int length;
+
+    /**
+     * @param out The stream to write to; it is not closed.
+     */
+    CsvCellWriter(final OutputStream out) {
+        this.out = Channels.newChannel(out);
+    }
+
+    /**
+     * Writes a cell line: 'onset,offset,value' with the value as serialized by the cell.
+     */
+    void writeCell(final Cell cell) throws IOException {
+        writeTimestamp(cell.getOnset());
+        append(',');
+        writeTimestamp(cell.getOffset());
+        append(',');
+        cell.getCellValue().serializeTo(this);
+        newLine();
+    }
+
+    /**
+     * Writes a time as HH:MM:SS:mmm, the same as Cell.getOnsetString.
+     *
+     * @param time The time in milliseconds.
+     */
+    void writeTimestamp(final long time) throws IOException {
+        long hours = Math.floorDiv(time, 60 * 60 * 1000L);
+        long rest = time - hours * 60 * 60 * 1000L;
+        ensure(32);
+        appendPadded(hours, 2);
+        buffer[length++] = ':';
+        appendPadded(rest / (60 * 1000), 2);
+        buffer[length++] = ':';
+        appendPadded(rest / 1000 % 60, 2);
+        buffer[length++] = ':';
+        appendPadded(rest % 1000, 3);
+    }
+
+    /**
+     * Appends a number like String.format("%0<width>d"), to room made by the caller.
+     */
+    private void appendPadded(final long value, final int width) {
+        long magnitude = value;
+        int padded = width;
+        if (value < 0) {
+            buffer[length++] = '-';
+            magnitude = -value;
+            padded--;
+        }
+        int digits = 1;
+        for (long v = magnitude; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < padded; i++) {
+            buffer[length++] = '0';
+        }
+        length += digits;
+        for (int i = length - 1; i >= length - digits; i--) {
+            buffer[i] = (char) ('0' + magnitude % 10);
+            magnitude /= 10;
+        }
+    }
+
+    /**
+     * Ends the line with the line separator of the platform, as PrintStream.println does.
+     */
+    void newLine() throws IOException {
+        append(LINE_SEPARATOR);
+    }
+
+    @Override
+    public CsvCellWriter append(final CharSequence s) throws IOException {
+        return append(s, 0, s.length());
+    }
+
+    @Override
+    public CsvCellWriter append(final CharSequence s, final int start, final int end) throws IOException {
+        int from = start;
+        while (from < end) {
+            if (length == buffer.length) {
+                flushBuffer(false);
+            }
+            int n = Math.min(end - from, buffer.length - length);
+            if (s instanceof String) {
+                ((String) s).getChars(from, from + n, buffer, length);
+            } else if (s instanceof StringBuilder) {
+                ((StringBuilder) s).getChars(from, from + n, buffer, length);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    buffer[length + i] = s.charAt(from + i);
+                }
+            }
+            length += n;
+            from += n;
+        }
+        return this;
+    }
+
+    @Override
+    public CsvCellWriter append(final char c) throws IOException {
+        if (length == buffer.length) {
+            flushBuffer(false);
+        }
+        buffer[length++] = c;
+        return this;
+    }
+
+    /**
+     * Makes room for the given number of characters in the buffer.
+     */
+    private void ensure(final int needed) throws IOException {
+        if (buffer.length - length < needed) {
+            flushBuffer(false);
+        }
+    }
+
+    /**
+     * Encodes the buffer and writes out the bytes. A surrogate pair cut in half by the end of the buffer stays in the
+     * buffer until the rest of it follows, unless the output ends there.
+     */
+    private void flushBuffer(final boolean endOfInput) throws IOException {
+        chars.limit(length).position(0);
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                writeBytes();
+            } else {
+                break;
+            }
+        }
+        if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) {
+                writeBytes();
+            }
+            encoder.reset();
+        }
+        writeBytes();
+        int remaining = chars.remaining();
+        System.arraycopy(buffer, chars.position(), buffer, 0, remaining);
+        length = remaining;
+    }
+
+    private void writeBytes() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    /**
+     * Writes out everything appended so far. The stream itself is not flushed.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer(true);
+    }
+}
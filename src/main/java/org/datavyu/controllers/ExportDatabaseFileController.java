@@ -18,7 +18,6 @@ import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import javax.swing.JOptionPane;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -47,6 +46,19 @@ public final class ExportDatabaseFileController {
     /** Logger for this class */
     private static Logger logger = LogManager.getLogger(ExportDatabaseFileController.class);
 
+    /**
+     * Hears about the progress of a long export and can cancel it; DataviewProgressBar.setProgress is one.
+     */
+    public interface Progress {
+
+        /**
+         * @param value The percentage of the export that is done.
+         * @param update A note on the progress.
+         * @return True to cancel the export.
+         */
+        boolean setProgress(int value, String update);
+    }
+
     /**
      * Saves the database to the specified destination in a CSV format.
      *
@@ -56,280 +68,194 @@ public final class ExportDatabaseFileController {
      *                              disk (usually because of permissions errors).
      */
     public void exportByFrame(final String outFile, final DataStore dataStore) throws UserWarningException {
-        try {
-            FileOutputStream fos = new FileOutputStream(outFile);
-            PrintStream ps = new PrintStream(fos);
-
-            List<Variable> variables = dataStore.getAllVariables();
-
-            ArrayList<List<Cell>> cellCache = new ArrayList<>();
-            int[] currentIndex = new int[variables.size()];
-
-            // Get all of the cells from the DB and store them locally
-            for (Variable v : variables) {
-                cellCache.add(v.getCellsTemporally());
-            }
-
-            // Get first and last time point by sweeping over the cells
-            long firstTime = Long.MAX_VALUE;
-            long lastTime = 0;
-
-            for (int i = 0; i < variables.size(); i++) {
-                List<Cell> cells = cellCache.get(i);
-                if (cells.isEmpty()) {
-                    continue;
-                }
-                if (cells.get(0).getOnset() < firstTime) {
-                    firstTime = cells.get(0).getOnset();
-                }
-                if (cells.get(0).getOffset() < firstTime) {
-                    firstTime = cells.get(0).getOffset();
-                }
-
-                if (cells.get(cells.size() - 1).getOnset() > lastTime) {
-                    lastTime = cells.get(cells.size() - 1).getOnset();
-                }
-                if (cells.get(cells.size() - 1).getOffset() > lastTime) {
-                    lastTime = cells.get(cells.size() - 1).getOffset();
-                }
-            }
-
-            // Now that we have the first and last time, we loop over it using
-            // playback model's frameRate as step size. Fallback is 30.0
-            double frameRate;
-            try{
-                frameRate = Datavyu.getVideoController().getFrameRateController().getFrameRate();
-                if (frameRate <= 1.0) {
-                    throw new IllegalArgumentException("Invalid frame rate");
-                }
-            } catch(IllegalArgumentException e) {
-                frameRate = 30.0;
-                String defaultOption = "Cancel";
-                String alternativeOption = "OK";
-                String[] options = Datavyu.getPlatform() == Platform.MAC ? MacOS
-                    .getOptions(defaultOption, alternativeOption) :
-                    WindowsOS.getOptions(defaultOption, alternativeOption);
-                int selectedOption = JOptionPane.showOptionDialog(Datavyu.getView().getComponent(),
-                    "Unable to get frame rate. Would you like to export with a 30 frame per second?",
-                    e.getMessage(),
-                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE,
-                    null, options, defaultOption);
-                boolean confirmation = (Datavyu.getPlatform() == Platform.MAC) ? (selectedOption == 1) : (selectedOption == 0);
-                if (!confirmation) { return; }
-                logger.error("Unable to get frame rate. Assuming value: " + frameRate);
-            }
-            long current_time = firstTime;
-
-            // Print header
-            String header = "nFrame,time,";
-            for (Variable v : variables) {
-
-                header += v.getName() + ".ordinal";
-                header += "," + v.getName() + ".onset";
-                header += "," + v.getName() + ".offset";
-
-                // Test if the variable is a matrix. If it is, then we have to print out all of its arguments.
-                if (v.getRootNode().type == Argument.Type.MATRIX) {
-                    for (Argument a : v.getRootNode().childArguments) {
-                        header += "," + v.getName() + "." + a.name;
-                    }
-                } else {
-                    header += "," + v.getName() + ".value";
-                }
-                header += ',';
-            }
-            header = header.trim();
-
-            // Write header
-            ps.println(header);
-
-            int nFrame = 1;
-            while (current_time <= lastTime + 1000.0 / frameRate) {
-                // Update the currentIndex list
-                for (int i = 0; i < variables.size(); i++) {
-                    if (!cellCache.get(i).isEmpty()) {
-                        Cell c = cellCache.get(i).get(currentIndex[i]);
-                        if (current_time > c.getOffset()) {
-
-                            for (int j = currentIndex[i]; j < cellCache.get(i).size(); j++) {
-                                Cell nextCell = cellCache.get(i).get(j);
-                                if (current_time >= nextCell.getOnset()) {
-                                    currentIndex[i] = j;
-                                }
-                            }
-                        }
-                    }
-                }
-
-                // Now print each frame as we loop through it
-                String row = Integer.toString(nFrame) + "," + Long.toString(current_time) + ",";
-                for (int i = 0; i < variables.size(); i++) {
-                    if (!cellCache.get(i).isEmpty()) {
-
-                        Cell cell = cellCache.get(i).get(currentIndex[i]);
-
-                        if ((cell.getOnset() <= current_time && cell.getOffset() >= current_time) ||
-                                (Math.abs(cell.getOffset() - cell.getOnset()) < 1000.0 / frameRate &&
-                                        cell.getOnset() > current_time - 1000.0 / frameRate + 1 &&
-                                        current_time >= cell.getOnset() &&
-                                        cell.getOnset() < current_time + 1000.0 / frameRate - 1)) {
-
-                            CellValue cellValue = cell.getCellValue();
-
-                            // Print ordinal, onset, offset
-                            row += Integer.toString(currentIndex[i] + 1) + "," +
-                                    Long.toString(cell.getOnset()) + "," +
-                                    Long.toString(cell.getOffset());
-
-
-                            if (cellValue instanceof MatrixCellValue) {
-                                // Then this is a matrix cellValue, get the sub arguments
-                                MatrixCellValue mv = (MatrixCellValue) cellValue;
-                                for (CellValue v : mv.getArguments()) {
-                                    // Loop over each cellValue and print it with a comma separator
-                                    row += "," + StringUtils.escapeCSVQuotes(v.toString());
-                                }
-                            } else {
-                                // Otherwise just print the single argument
-                                row += "," + StringUtils.escapeCSVQuotes(cell.getCellValue().toString());
-                            }
-                            row += ",";
-
-                        } else {
-                            // Figure out what to print if we don't have a cell here
-                            CellValue cellValue = cell.getCellValue();
-
-                            // Print ordinal, onset, offset
-                            row += ",,";
-
-
-                            if (cellValue instanceof MatrixCellValue) {
-                                // Then this is a matrix cellValue, get the sub arguments
-                                MatrixCellValue mv = (MatrixCellValue) cellValue;
-                                for (CellValue v : mv.getArguments()) {
-                                    // Loop over each cellValue and print it with a comma separator
-                                    row += ",";
-                                }
-                            } else {
-                                // Otherwise just print the single argument
-                                row += ",";
-                            }
-                            row += ",";
-                        }
-                    }
+        double frameRate = askFrameRate();
+        if (frameRate > 0) {
+            exportByFrame(outFile, dataStore, frameRate, null);
+        }
+    }
 
-                }
-                ps.println(row);
-                current_time += 1000.0 / frameRate;
-                ++nFrame;
+    /**
+     * Gets the frame rate to export by frame at: the one of the video controller, or 30 frames per second if the
+     * user agrees to that when it has none. Asks the user, so call it on the event dispatch thread.
+     *
+     * @return The frame rate, 0 if the user declines to export.
+     */
+    public double askFrameRate() {
+        // We loop over the time from the first to the last time point using
+        // playback model's frameRate as step size. Fallback is 30.0
+        double frameRate;
+        try{
+            frameRate = Datavyu.getVideoController().getFrameRateController().getFrameRate();
+            if (frameRate <= 1.0) {
+                throw new IllegalArgumentException("Invalid frame rate");
             }
+        } catch(IllegalArgumentException e) {
+            frameRate = 30.0;
+            String defaultOption = "Cancel";
+            String alternativeOption = "OK";
+            String[] options = Datavyu.getPlatform() == Platform.MAC ? MacOS
+                .getOptions(defaultOption, alternativeOption) :
+                WindowsOS.getOptions(defaultOption, alternativeOption);
+            int selectedOption = JOptionPane.showOptionDialog(Datavyu.getView().getComponent(),
+                "Unable to get frame rate. Would you like to export with a 30 frame per second?",
+                e.getMessage(),
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE,
+                null, options, defaultOption);
+            boolean confirmation = (Datavyu.getPlatform() == Platform.MAC) ? (selectedOption == 1) : (selectedOption == 0);
+            if (!confirmation) { return 0; }
+            logger.error("Unable to get frame rate. Assuming value: " + frameRate);
+        }
+        return frameRate;
+    }
 
-            fos.close();
+    /**
+     * Saves the database to the specified destination in a CSV format with a row per frame; see FrameCsvWriter. Can
+     * be called off the event dispatch thread; a cancelled export leaves no file behind.
+     *
+     * @param outFile The path of the file to use when writing to disk.
+     * @param dataStore The data store to save as a CSV file.
+     * @param frameRate The frames per second, see askFrameRate.
+     * @param progress Hears about the progress and can cancel the export, null for none.
+     * @return False if the export was cancelled.
+     * @throws UserWarningException When unable to save the database as a CSV to
+     *                              disk (usually because of permissions errors).
+     */
+    public boolean exportByFrame(final String outFile, final DataStore dataStore, final double frameRate,
+                                 final Progress progress) throws UserWarningException {
+        // Export a snapshot, so that editing can go on meanwhile.
+        FrameCsvWriter writer = new FrameCsvWriter(dataStore.snapshot(), frameRate);
+        boolean completed = false;
+        try (FileOutputStream fos = new FileOutputStream(outFile)) {
+            completed = writer.write(fos, progress);
         } catch (IOException ie) {
             logger.error("Export failed. Error: ", ie);
             ResourceMap rMap = Application.getInstance(Datavyu.class).getContext().getResourceMap(Datavyu.class);
             throw new UserWarningException(rMap.getString("UnableToSave.message", outFile), ie);
+        } finally {
+            if (!completed && !new File(outFile).delete()) {
+                logger.warn("Unable to delete incomplete export " + outFile);
+            }
         }
+        if (!completed) {
+            logger.info("Export by frame cancelled: " + outFile);
+        }
+        return completed;
     }
 
     public void exportAsCells(final String outFile, final DataStore ds)
             throws UserWarningException {
         try {
             FileOutputStream outStream = new FileOutputStream(outFile);
-            PrintStream ps = new PrintStream(outStream);
-
-            // Get the variables, sort them, and cache the cells
-            List<Variable> variables = ds.getAllVariables();
-            Collections.sort(variables, new Comparator<Variable>() {
-                @Override
-                public int compare(Variable o1, Variable o2) {
-                    return o1.getName().compareTo(o2.getName());
-                }
-            });
+            exportAsCells(outStream, ds);
+            outStream.flush();
+            outStream.close();
+        } catch (IOException ie) {
+            logger.error("Export as cells failed. Error: ", ie);
+            ResourceMap rMap = Application.getInstance(Datavyu.class).getContext().getResourceMap(Datavyu.class);
+            throw new UserWarningException(rMap.getString("UnableToSave.message", outFile), ie);
+        }
+    }
 
-            ArrayList<List<Cell>> cellCache = new ArrayList<>();
+    /**
+     * Serialize the database to the specified stream with a row per cell, the variables side by side.
+     *
+     * @param outStream The stream to use when serializing; it is flushed but not closed.
+     * @param ds        The datastore to export.
+     * @throws IOException When unable to write to the stream.
+     */
+    public void exportAsCells(final OutputStream outStream, final DataStore ds) throws IOException {
+        PrintStream ps = new PrintStream(outStream);
 
-            int max_length = 0;
-            // Get all of the cells from the DB and store them locally
-            for (Variable v : variables) {
-                cellCache.add(v.getCellsTemporally());
-                if (v.getCells().size() > max_length) {
-                    max_length = v.getCells().size();
-                }
+        // Export a snapshot, so that editing can go on meanwhile.
+        DataStore snapshot = ds.snapshot();
+
+        // Get the variables, sort them, and cache the cells
+        List<Variable> variables = snapshot.getAllVariables();
+        Collections.sort(variables, new Comparator<Variable>() {
+            @Override
+            public int compare(Variable o1, Variable o2) {
+                return o1.getName().compareTo(o2.getName());
             }
+        });
 
-            // Print header
-            String header = "";
+        ArrayList<List<Cell>> cellCache = new ArrayList<>();
 
-            List<Integer> arglengths = new ArrayList<Integer>();
-            for (Variable v : variables) {
+        int max_length = 0;
+        // Get all of the cells from the DB and store them locally
+        for (Variable v : variables) {
+            cellCache.add(v.getCellsTemporally());
+            if (v.getCells().size() > max_length) {
+                max_length = v.getCells().size();
+            }
+        }
 
-                header += v.getName() + ".ordinal";
-                header += "," + v.getName() + ".onset";
-                header += "," + v.getName() + ".offset,";
+        // Print header
+        String header = "";
 
-                // Test if the variable is a matrix. If it is, then
-                // we have to print out all of its arguments.
-                if (v.getRootNode().type == Argument.Type.MATRIX) {
-                    for (Argument a : v.getRootNode().childArguments) {
-                        header += v.getName() + "." + a.name + ",";
-                    }
-                    arglengths.add(v.getRootNode().childArguments.size() + 3);
-                } else {
-                    header += v.getName() + ".value,";
-                    arglengths.add(4);
+        List<Integer> arglengths = new ArrayList<Integer>();
+        for (Variable v : variables) {
+
+            header += v.getName() + ".ordinal";
+            header += "," + v.getName() + ".onset";
+            header += "," + v.getName() + ".offset,";
+
+            // Test if the variable is a matrix. If it is, then
+            // we have to print out all of its arguments.
+            if (v.getRootNode().type == Argument.Type.MATRIX) {
+                for (Argument a : v.getRootNode().childArguments) {
+                    header += v.getName() + "." + a.name + ",";
                 }
+                arglengths.add(v.getRootNode().childArguments.size() + 3);
+            } else {
+                header += v.getName() + ".value,";
+                arglengths.add(4);
             }
-            header = header.trim();
-
-            // Write header
-            ps.println(header);
-
-            // Now get the column that has the most cells, we are going to use
-            // that number as the number of iterations to loop over everything
-            // printing blanks if that column does not have a cell there
-            StringBuilder row;
-            for (int i = 0; i < max_length; i++) {
-                row = new StringBuilder();
-                for (int j = 0; j < variables.size(); j++) {
-                    Variable v = variables.get(j);
-                    if (cellCache.get(j).size() > i) {
-                        // Print the cell
-                        Cell c = cellCache.get(j).get(i);
-                        row.append(i);
-                        row.append(",");
-                        row.append(c.getOnset());
-                        row.append(",");
-                        row.append(c.getOffset());
-                        row.append(",");
-                        if (v.getRootNode().type == Argument.Type.MATRIX) {
-                            for (int k = 0; k < v.getRootNode().childArguments.size(); k++) {
-                                row.append(StringUtils.escapeCSVQuotes(c.getMatrixValue(k).toString()));
-                                row.append(",");
-                            }
-                        }
-                        else{
-                            row.append(StringUtils.escapeCSVQuotes(c.getCellValue().toString()));
-                            row.append(",");
-                        }
-                    } else {
-                        // Print a placeholder: we are out of cells
-                        for (int k = 0; k < arglengths.get(j); k++) {
+        }
+        header = header.trim();
+
+        // Write header
+        ps.println(header);
+
+        // Now get the column that has the most cells, we are going to use
+        // that number as the number of iterations to loop over everything
+        // printing blanks if that column does not have a cell there
+        StringBuilder row;
+        for (int i = 0; i < max_length; i++) {
+            row = new StringBuilder();
+            for (int j = 0; j < variables.size(); j++) {
+                Variable v = variables.get(j);
+                if (cellCache.get(j).size() > i) {
+                    // Print the cell
+                    Cell c = cellCache.get(j).get(i);
+                    row.append(i);
+                    row.append(",");
+                    row.append(c.getOnset());
+                    row.append(",");
+                    row.append(c.getOffset());
+                    row.append(",");
+                    if (v.getRootNode().type == Argument.Type.MATRIX) {
+                        for (int k = 0; k < v.getRootNode().childArguments.size(); k++) {
+                            row.append(StringUtils.escapeCSVQuotes(c.getMatrixValue(k).toString()));
                             row.append(",");
                         }
                     }
-
+                    else{
+                        row.append(StringUtils.escapeCSVQuotes(c.getCellValue().toString()));
+                        row.append(",");
+                    }
+                } else {
+                    // Print a placeholder: we are out of cells
+                    for (int k = 0; k < arglengths.get(j); k++) {
+                        row.append(",");
+                    }
                 }
-                ps.println(row);
+
             }
-            ps.flush();
-            ps.close();
-            outStream.flush();
-            outStream.close();
-        } catch (IOException ie) {
-            logger.error("Export as cells failed. Error: ", ie);
-            ResourceMap rMap = Application.getInstance(Datavyu.class).getContext().getResourceMap(Datavyu.class);
-            throw new UserWarningException(rMap.getString("UnableToSave.message", outFile), ie);
+            ps.println(row);
+        }
+        ps.flush();
+        if (ps.checkError()) {
+            throw new IOException("Unable to write the cells");
         }
     }
 
@@ -349,7 +275,9 @@ public final class ExportDatabaseFileController {
         PrintStream ps = new PrintStream(outStream);
         ps.println("#4");
 
-        for (Variable variable : ds.getAllVariables()) {
+        // Export a snapshot, so that editing can go on meanwhile.
+        DataStore snapshot = ds.snapshot();
+        for (Variable variable : snapshot.getAllVariables()) {
             ps.printf("%s (%s,%s,%s)",
                     StringUtils.escapeCSV(variable.getName()),
                     variable.getRootNode().type,
@@ -374,7 +302,7 @@ public final class ExportDatabaseFileController {
 
             ps.println();
 
-            for (Cell cell : variable.getCells()) {
+            for (Cell cell : variable.getCellsTemporally()) {
                 ps.printf("%s,%s,%s",
                         cell.getOnsetString(),
                         cell.getOffsetString(),
@@ -392,82 +320,110 @@ public final class ExportDatabaseFileController {
      */
 
     public void exportAsJSON(String dbFileName, DataStore dataStore) throws UserWarningException{
-        ObjectMapper mapper = new ObjectMapper();
-        JsonFactory f = mapper.getFactory();
+        exportAsJSON(dbFileName, dataStore, false);
+    }
+
+    /**
+     * Save a Datavyu Spreadseet in a JSON File.
+     *
+     * @param dbFileName Target File
+     * @param dataStore DataStore to be saved as JSON
+     * @param compact True to leave out the indentation and the cell ids and to write the onsets and offsets as numbers
+     *                of milliseconds, false to write them formatted like the spreadsheet shows them
+     */
+    public void exportAsJSON(String dbFileName, DataStore dataStore, boolean compact) throws UserWarningException{
+        JsonFactory f = new JsonFactory();
         File jsonFile = new File(dbFileName);
-        try {
-            JsonGenerator g = f.createGenerator(jsonFile, JsonEncoding.UTF8);
+        try (JsonGenerator g = f.createGenerator(jsonFile, JsonEncoding.UTF8)) {
+            // Export a snapshot, so that editing can go on meanwhile.
+            writeJSON(g, dataStore.snapshot(), compact);
+            logger.info("JSON File has been successfully saved");
+
+        } catch (IOException e) {
+            logger.error("Export as JSON failed. Error: ", e);
+            ResourceMap rMap = Application.getInstance(Datavyu.class).getContext().getResourceMap(Datavyu.class);
+            throw new UserWarningException(rMap.getString("UnableToSave.message", dbFileName), e);
+        }
+
+    }
+
+    /**
+     * Writes a data store as JSON, which JsonDataStoreReader reads. The cells go straight to the generator, one at
+     * a time.
+     *
+     * @param g The generator to write to; it is flushed but not closed
+     * @param dataStore DataStore to be saved as JSON, which must not change meanwhile
+     * @param compact True for the compact variant, see exportAsJSON
+     * @throws IOException If the JSON can not be written
+     */
+    void writeJSON(final JsonGenerator g, final DataStore dataStore, final boolean compact) throws IOException {
+        if (!compact) {
             g.setPrettyPrinter(new DefaultPrettyPrinter());
-            //Start a Spreadsheet Object
+        }
+        //Start a Spreadsheet Object
+        g.writeStartObject();
+        //Spreadsheet name Field
+//        g.writeStringField("name", dataStore.getName());
+
+        //Start an Array of Passes (Column(Spreadsheet)/Variable(DataStore))
+        g.writeArrayFieldStart("passes");
+        for (Variable column : dataStore.getAllVariables()) {
+            // Start an Object for each Pass(Column/Variable)
             g.writeStartObject();
-            //Spreadsheet name Field
-//            g.writeStringField("name", dataStore.getName());
+            // Pass(Column/Variable) name
+            g.writeStringField("name", column.getName());
 
-            //Start an Array of Passes (Column(Spreadsheet)/Variable(DataStore))
-            g.writeArrayFieldStart("passes");
-            for (Variable column : dataStore.getAllVariables()) {
-                // Start an Object for each Pass(Column/Variable)
-                g.writeStartObject();
-                // Pass(Column/Variable) name
-                g.writeStringField("name", column.getName());
-
-                g.writeStringField("type",column.getRootNode().type.toString());
+            g.writeStringField("type",column.getRootNode().type.toString());
 
-                g.writeObjectFieldStart("arguments");
+            g.writeObjectFieldStart("arguments");
+            for (Argument argument : column.getRootNode().childArguments) {
+                g.writeStringField(argument.type.name(), argument.name);
+            }
+            g.writeEndObject();
 
-                column.getRootNode().childArguments.forEach(argument -> {
-                    try {
-                        g.writeStringField(argument.type.name(), argument.name);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
-                g.writeEndObject();
+            boolean matrix = column.getRootNode().type == Argument.Type.MATRIX;
+            int numArgs = column.getRootNode().childArguments.size();
 
-                //Start an Array of Cells
-                g.writeArrayFieldStart("cells");
-                int count = 1;
-                for (Cell cell : column.getCellsTemporally()) {
-                    // Start an Object for each Cell
-                    g.writeStartObject();
+            //Start an Array of Cells
+            g.writeArrayFieldStart("cells");
+            int count = 1;
+            for (Cell cell : column.getCellsTemporally()) {
+                // Start an Object for each Cell
+                g.writeStartObject();
 
+                if (compact) {
+                    g.writeNumberField("onset", cell.getOnset());
+                    g.writeNumberField("offset", cell.getOffset());
+                } else {
                     g.writeNumberField("id", count);
                     g.writeStringField("onset", cell.getOnsetString());
                     g.writeStringField("offset", cell.getOffsetString());
-                    g.writeArrayFieldStart("values");
+                }
+                g.writeArrayFieldStart("values");
 
-                    if (column.getRootNode().type == Argument.Type.MATRIX) {
-                        for (int k = 0; k < column.getRootNode().childArguments.size(); k++) {
-                            g.writeString(cell.getMatrixValue(k).toString());
-                        }
-                    } else {
-                        g.writeString(cell.getCellValue().toString());
+                if (matrix) {
+                    for (int k = 0; k < numArgs; k++) {
+                        g.writeString(cell.getMatrixValue(k).toString());
                     }
-
-                    g.writeEndArray();
-                    // End Cell Object
-                    g.writeEndObject();
-                    count++;
+                } else {
+                    g.writeString(cell.getCellValue().toString());
                 }
-                // End Cells Array
+
                 g.writeEndArray();
-                // End Pass Object
+                // End Cell Object
                 g.writeEndObject();
+                count++;
             }
-            // End the Passes Array
+            // End Cells Array
             g.writeEndArray();
-
-            //End a Spreadsheet Object
+            // End Pass Object
             g.writeEndObject();
-
-            g.close();
-            logger.info("JSON File has been successfully saved");
-
-        } catch (IOException e) {
-            logger.error("Export as JSON failed. Error: ", e);
-            ResourceMap rMap = Application.getInstance(Datavyu.class).getContext().getResourceMap(Datavyu.class);
-            throw new UserWarningException(rMap.getString("UnableToSave.message", dbFileName), e);
         }
+        // End the Passes Array
+        g.writeEndArray();
 
+        //End a Spreadsheet Object
+        g.writeEndObject();
+        g.flush();
     }
 }
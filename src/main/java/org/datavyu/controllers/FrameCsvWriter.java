@@ -0,0 +1,319 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.*;
+import org.datavyu.util.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a data store as a frame-by-frame CSV file: a row per frame, with the cell of every variable that is current
+ * at the time of the frame.
+ *
+ * Every variable keeps a cursor on its cells that only moves forward with time, so a row takes constant time for each
+ * variable. The rows are rendered in chunks of CHUNK_FRAMES frames on the fork/join pool: the position of the cursors
+ * at the start of a chunk is found on the calling thread, which only takes comparing times, then the chunk renders
+ * its rows into a buffer of its own, which is written out in order. No more than WINDOW chunks are held in memory at
+ * a time.
+ */
+final class FrameCsvWriter {
+
+    /** Frames in a chunk. */
+    static final int CHUNK_FRAMES = 1024;
+
+    private static final int WINDOW = ForkJoinPool.getCommonPoolParallelism() + 2;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    /** The variables that have cells, in order. */
+    private final List<Column> columns = new ArrayList<>();
+
+    private final String header;
+
+    /** Milliseconds from one frame to the next. */
+    private final double step;
+
+    private final long firstTime;
+
+    private final long lastTime;
+
+    /**
+     * @param dataStore The data store to write, which must not change meanwhile; use a snapshot.
+     * @param frameRate The frames per second.
+     */
+    FrameCsvWriter(final DataStore dataStore, final double frameRate) {
+        step = 1000.0 / frameRate;
+
+        StringBuilder header = new StringBuilder("nFrame,time,");
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = 0;
+        for (Variable v : dataStore.getAllVariables()) {
+            header.append(v.getName()).append(".ordinal");
+            header.append(',').append(v.getName()).append(".onset");
+            header.append(',').append(v.getName()).append(".offset");
+            // Test if the variable is a matrix. If it is, then we have to print out all of its arguments.
+            if (v.getRootNode().type == Argument.Type.MATRIX) {
+                for (Argument a : v.getRootNode().childArguments) {
+                    header.append(',').append(v.getName()).append('.').append(a.name);
+                }
+            } else {
+                header.append(',').append(v.getName()).append(".value");
+            }
+            header.append(',');
+
+            List<Cell> cells = v.getCellsTemporally();
+            if (cells.isEmpty()) {
+                continue;
+            }
+            Column column = new Column(cells);
+            columns.add(column);
+
+            // The first and last time point over the first and last cells.
+            int last = cells.size() - 1;
+            firstTime = Math.min(firstTime, Math.min(column.onsets[0], column.offsets[0]));
+            lastTime = Math.max(lastTime, Math.max(column.onsets[last], column.offsets[last]));
+        }
+        this.header = header.toString().trim();
+        this.firstTime = firstTime;
+        this.lastTime = lastTime;
+    }
+
+    /**
+     * Writes the header and the rows.
+     *
+     * @param out The stream to write to; it is not closed.
+     * @param progress Hears about the progress and can cancel the export, null for none.
+     * @return False if the export was cancelled.
+     * @throws IOException If the file can not be written.
+     */
+    boolean write(final OutputStream out, final ExportDatabaseFileController.Progress progress) throws IOException {
+        long frames = 0;
+        for (long time = firstTime; hasFrame(time); time = nextTime(time)) {
+            frames++;
+        }
+
+        CsvCellWriter writer = new CsvCellWriter(out);
+        writer.append(header);
+        writer.newLine();
+
+        Deque<Future<StringBuilder>> pending = new ArrayDeque<>();
+        int[] current = new int[columns.size()];
+        int[] started = new int[columns.size()];
+        long time = firstTime;
+        int nFrame = 1;
+        long written = 0;
+        int percent = -1;
+        try {
+            while (hasFrame(time) || !pending.isEmpty()) {
+                if (hasFrame(time) && pending.size() < WINDOW) {
+                    Chunk chunk = new Chunk(nFrame, time, current.clone(), started.clone());
+                    pending.add(ForkJoinPool.commonPool().submit(chunk));
+                    for (int frame = 0; frame < CHUNK_FRAMES && hasFrame(time); frame++) {
+                        advance(time, current, started);
+                        time = nextTime(time);
+                        nFrame++;
+                    }
+                    continue;
+                }
+
+                StringBuilder rows = await(pending.remove());
+                writer.append(rows);
+                written += CHUNK_FRAMES;
+                int done = (int) (Math.min(written, frames) * 100 / Math.max(frames, 1));
+                if (progress != null && done != percent) {
+                    percent = done;
+                    if (progress.setProgress(percent, "Exported " + Math.min(written, frames) + " of " + frames
+                            + " frames")) {
+                        return false;
+                    }
+                }
+            }
+            writer.flush();
+            return true;
+        } finally {
+            for (Future<StringBuilder> chunk : pending) {
+                chunk.cancel(false);
+            }
+        }
+    }
+
+    private boolean hasFrame(final long time) {
+        return time <= lastTime + step;
+    }
+
+    /**
+     * @return The time of the frame after the one at the given time, truncated to a millisecond the same way that
+     * adding the step to a long does.
+     */
+    private long nextTime(final long time) {
+        return (long) (time + step);
+    }
+
+    /**
+     * Moves the cursors on to the cells at the time of a frame: once the current cell of a variable has ended, its
+     * current cell becomes the latest one that has started, unless that is an earlier one.
+     *
+     * @param current The index of the current cell of every variable.
+     * @param started The number of cells of every variable that have started.
+     */
+    private void advance(final long time, final int[] current, final int[] started) {
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            while (started[i] < column.onsets.length && column.onsets[started[i]] <= time) {
+                started[i]++;
+            }
+            if (time > column.offsets[current[i]] && started[i] > 0) {
+                current[i] = Math.max(current[i], started[i] - 1);
+            }
+        }
+    }
+
+    private static StringBuilder await(final Future<StringBuilder> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting", e);
+        }
+    }
+
+    /**
+     * The cells of a variable.
+     */
+    private static final class Column {
+
+        final List<Cell> cells;
+
+        final long[] onsets;
+
+        final long[] offsets;
+
+        /** The columns of a frame without a cell. */
+        final String empty;
+
+        Column(final List<Cell> cells) {
+            this.cells = cells;
+            onsets = new long[cells.size()];
+            offsets = new long[cells.size()];
+            for (int i = 0; i < onsets.length; i++) {
+                onsets[i] = cells.get(i).getOnset();
+                offsets[i] = cells.get(i).getOffset();
+            }
+
+            // Ordinal, onset, offset, the values and the separator after them.
+            CellValue value = cells.get(0).getCellValue();
+            int values = value instanceof MatrixCellValue ? ((MatrixCellValue) value).getArguments().size() : 1;
+            StringBuilder empty = new StringBuilder(",,");
+            for (int i = 0; i < values; i++) {
+                empty.append(',');
+            }
+            this.empty = empty.append(',').toString();
+        }
+
+        /**
+         * @return The columns of a frame with the given cell.
+         */
+        String render(final int index) {
+            Cell cell = cells.get(index);
+            StringBuilder columns = new StringBuilder();
+            columns.append(index + 1).append(',').append(onsets[index]).append(',').append(offsets[index]);
+            CellValue cellValue = cell.getCellValue();
+            if (cellValue instanceof MatrixCellValue) {
+                for (CellValue v : ((MatrixCellValue) cellValue).getArguments()) {
+                    columns.append(',').append(StringUtils.escapeCSVQuotes(v.toString()));
+                }
+            } else {
+                columns.append(',').append(StringUtils.escapeCSVQuotes(cellValue.toString()));
+            }
+            return columns.append(',').toString();
+        }
+    }
+
+    /**
+     * Renders the rows of up to CHUNK_FRAMES frames.
+     */
+    private final class Chunk implements Callable<StringBuilder> {
+
+        private final int firstFrame;
+
+        private final long startTime;
+
+        private final int[] current;
+
+        private final int[] started;
+
+        Chunk(final int firstFrame, final long startTime, final int[] current, final int[] started) {
+            this.firstFrame = firstFrame;
+            this.startTime = startTime;
+            this.current = current;
+            this.started = started;
+        }
+
+        @Override
+        public StringBuilder call() {
+            StringBuilder rows = new StringBuilder(CHUNK_FRAMES * (header.length() + LINE_SEPARATOR.length()));
+
+            // A cell takes many frames in a row, so the columns of the last cell of every variable are kept.
+            int[] renderedIndex = new int[columns.size()];
+            String[] rendered = new String[columns.size()];
+            Arrays.fill(renderedIndex, -1);
+
+            long time = startTime;
+            for (int frame = 0; frame < CHUNK_FRAMES && hasFrame(time); frame++) {
+                advance(time, current, started);
+
+                rows.append(firstFrame + frame).append(',').append(time).append(',');
+                for (int i = 0; i < columns.size(); i++) {
+                    Column column = columns.get(i);
+                    int index = current[i];
+                    long onset = column.onsets[index];
+                    long offset = column.offsets[index];
+                    if ((onset <= time && offset >= time) ||
+                            (Math.abs(offset - onset) < step &&
+                                    onset > time - step + 1 &&
+                                    time >= onset &&
+                                    onset < time + step - 1)) {
+                        if (renderedIndex[i] != index) {
+                            renderedIndex[i] = index;
+                            rendered[i] = column.render(index);
+                        }
+                        rows.append(rendered[i]);
+                    } else {
+                        rows.append(column.empty);
+                    }
+                }
+                rows.append(LINE_SEPARATOR);
+                time = nextTime(time);
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.datavyu.models.db.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the JSON written by ExportDatabaseFileController.exportAsJSON, a token at a time, into a data store of its
+ * own; the data store has no listeners, so nothing is notified about the cells as they are read.
+ * <pre>
+ * {"passes": [{"name": ..., "type": "TEXT|NOMINAL|MATRIX", "arguments": {type: name, ...},
+ *              "cells": [{"id": ..., "onset": ..., "offset": ..., "values": [...]}, ...]}, ...]}
+ * </pre>
+ * Times are either strings as formatted by Cell.getOnsetString or numbers of milliseconds, as written by the compact
+ * variant of the format. The name and type of a pass come before its arguments and the arguments before its cells; the
+ * fields of a cell come in any order. Only the cell being read is held apart from the data store.
+ */
+final class JsonDataStoreReader {
+
+    /** The logger instance for this class */
+    private static Logger logger = LogManager.getLogger(JsonDataStoreReader.class);
+
+    private final JsonParser parser;
+
+    private final DataStore dataStore = DataStoreFactory.newDataStore();
+
+    /** The values of the cell being read. */
+    private final List<String> values = new ArrayList<>();
+
+    /**
+     * @param parser The parser to read from; it is not closed.
+     */
+    JsonDataStoreReader(final JsonParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * @return A data store of its own holding the passes read, as variables in order.
+     * @throws IOException If the JSON can not be read.
+     * @throws UserWarningException If the JSON does not hold passes as laid out by the format.
+     */
+    DataStore read() throws IOException, UserWarningException {
+        expect(parser.nextToken(), JsonToken.START_OBJECT, "'{'");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("passes".equals(field)) {
+                expect(token, JsonToken.START_ARRAY, "'['");
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readPass();
+                }
+                expect(parser.getCurrentToken(), JsonToken.END_ARRAY, "']'");
+            } else {
+                parser.skipChildren();
+            }
+        }
+        expect(parser.getCurrentToken(), JsonToken.END_OBJECT, "'}'");
+        return dataStore;
+    }
+
+    /**
+     * Reads a pass into a variable, from the field after its '{' to its '}'.
+     */
+    private void readPass() throws IOException, UserWarningException {
+        String name = null;
+        Argument.Type type = null;
+        boolean unknownType = false;
+        Argument root = null;
+        Variable variable = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("name".equals(field)) {
+                name = parser.getValueAsString();
+            } else if ("type".equals(field)) {
+                type = getVarType(parser.getValueAsString());
+                if (type == null) {
+                    unknownType = true;
+                    logger.warn("Unknown argument ('" + parser.getValueAsString() + "' line "
+                            + parser.getCurrentLocation().getLineNr() + " ): skipping pass " + name);
+                }
+            } else if ("arguments".equals(field)) {
+                expect(token, JsonToken.START_OBJECT, "'{'");
+                if (type == null && !unknownType) {
+                    throw unexpected("type field name");
+                }
+                root = unknownType ? null : readArguments(name, type);
+                if (unknownType) {
+                    parser.skipChildren();
+                }
+            } else if ("cells".equals(field)) {
+                expect(token, JsonToken.START_ARRAY, "'['");
+                if (unknownType) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (name == null) {
+                    throw unexpected("name field name");
+                }
+                if (type == null) {
+                    throw unexpected("type field name");
+                }
+                if (root == null) {
+                    throw unexpected("arguments field name");
+                }
+                variable = dataStore.createVariable(name, type, true);
+                variable.setRootNode(root);
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readCell(variable);
+                }
+                expect(parser.getCurrentToken(), JsonToken.END_ARRAY, "']'");
+            } else {
+                parser.skipChildren();
+            }
+        }
+        expect(parser.getCurrentToken(), JsonToken.END_OBJECT, "'}'");
+
+        if (variable == null && !unknownType) {
+            throw unexpected("cells field name");
+        }
+    }
+
+    /**
+     * Reads the arguments of a pass, from the field after their '{' to their '}'.
+     *
+     * @return The root node of the variable.
+     */
+    private Argument readArguments(final String name, final Argument.Type type)
+            throws IOException, UserWarningException {
+        if (name == null) {
+            throw unexpected("name field name");
+        }
+        Argument root = new Argument(type == Argument.Type.MATRIX ? name + name.hashCode() : "var", type);
+        root.clearChildArguments();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String argType = parser.getCurrentName();
+            parser.nextToken();
+            if (type == Argument.Type.MATRIX) {
+                Argument.Type childType = getVarType(argType);
+                if (childType == null) {
+                    throw new UserWarningException("Unknown argument ('" + argType + "' line "
+                            + parser.getCurrentLocation().getLineNr() + " ): was expecting argument "
+                            + "(NOMINAL, TEXT or MATRIX) field name");
+                }
+                root.childArguments.add(new Argument(parser.getValueAsString(), childType));
+            } else {
+                root.name = parser.getValueAsString();
+            }
+        }
+        expect(parser.getCurrentToken(), JsonToken.END_OBJECT, "'}'");
+        return root;
+    }
+
+    /**
+     * Reads a cell into a variable, from the field after its '{' to its '}'.
+     */
+    private void readCell(final Variable variable) throws IOException, UserWarningException {
+        long onset = 0;
+        long offset = 0;
+        values.clear();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("onset".equals(field)) {
+                onset = readTime(token);
+            } else if ("offset".equals(field)) {
+                offset = readTime(token);
+            } else if ("values".equals(field)) {
+                expect(token, JsonToken.START_ARRAY, "'['");
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (parser.getCurrentToken() == null) {
+                        throw unexpected("']'");
+                    }
+                    values.add(parser.getValueAsString());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        expect(parser.getCurrentToken(), JsonToken.END_OBJECT, "'}'");
+
+        Cell cell = variable.createCell(onset, offset);
+        if (variable.getRootNode().type == Argument.Type.MATRIX) {
+            for (int k = 0; k < Math.min(values.size(), variable.getRootNode().childArguments.size()); k++) {
+                cell.setMatrixValue(k, values.get(k));
+            }
+        } else if (!values.isEmpty()) {
+            cell.getCellValue().set(values.get(values.size() - 1));
+        }
+    }
+
+    /**
+     * @return A time in milliseconds, from a number or a string as formatted by Cell.getOnsetString.
+     */
+    private long readTime(final JsonToken token) throws IOException, UserWarningException {
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        String timestamp = parser.getValueAsString();
+        try {
+            String[] s = timestamp.split(":");
+            if (s.length == 1) {
+                return Long.parseLong(timestamp);
+            }
+            return Long.parseLong(s[0]) * 60 * 60 * 1000 + Long.parseLong(s[1]) * 60 * 1000
+                    + Long.parseLong(s[2]) * 1000 + Long.parseLong(s[3]);
+        } catch (NullPointerException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new UserWarningException("Unexpected time ('" + timestamp + "' line "
+                    + parser.getCurrentLocation().getLineNr() + " ): was expecting HH:MM:SS:mmm", e);
+        }
+    }
+
+    private void expect(final JsonToken token, final JsonToken expected, final String description)
+            throws IOException, UserWarningException {
+        if (token != expected) {
+            throw unexpected(description);
+        }
+    }
+
+    private UserWarningException unexpected(final String description) throws IOException {
+        return new UserWarningException("Unexpected character ('" + parser.getCurrentName() + "' line "
+                + parser.getCurrentLocation().getLineNr() + " ): was expecting " + description);
+    }
+
+    /**
+     * @return The type of a variable or argument, null for a type that is not supported.
+     */
+    private static Argument.Type getVarType(final String type) {
+        if (type == null) {
+            return null;
+        } else if (type.equalsIgnoreCase("text")) {
+            return Argument.Type.TEXT;
+        } else if (type.equalsIgnoreCase("nominal")) {
+            return Argument.Type.NOMINAL;
+        } else if (type.equalsIgnoreCase("matrix")) {
+            return Argument.Type.MATRIX;
+        }
+        return null;
+    }
+}
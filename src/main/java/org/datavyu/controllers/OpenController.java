@@ -21,6 +21,10 @@ import org.datavyu.models.project.Project;
 import org.datavyu.models.project.ViewerSetting;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -39,6 +43,9 @@ public final class OpenController {
     /** Reference to the project that this controller opened */
     private Project project = null;
 
+    /** The journal of the saves of the project that this controller opened, null if it was not opened from one */
+    private ProjectJournal journal = null;
+
     /**
      * Opens a file as a Datavyu dataStore.
      *
@@ -60,6 +67,28 @@ public final class OpenController {
         dataStore.deselectAll();
     }
 
+    /**
+     * Copies the settings of the viewers of the project, the journaled ones over those in the archive.
+     *
+     * @param zipFile        The archive.
+     * @param projectJournal The journal of the archive, null if it has none.
+     * @throws IOException If a setting can not be read.
+     */
+    private void copyViewerSettings(final ZipFile zipFile, final ProjectJournal projectJournal) throws IOException {
+        for (ViewerSetting vs : project.getViewerSettings()) {
+            if (vs.getSettingsId() != null) {
+                InputStream journaledSettings = projectJournal == null
+                        ? null : projectJournal.getSettings(vs.getSettingsId());
+                if (journaledSettings != null) {
+                    vs.copySettings(journaledSettings);
+                } else {
+                    ZipEntry entry = zipFile.getEntry(vs.getSettingsId());
+                    vs.copySettings(zipFile.getInputStream(entry));
+                }
+            }
+        }
+    }
+
     /**
      * Opens a file as a Datavyu project.
      *
@@ -91,6 +120,11 @@ public final class OpenController {
 
         // Mark as unchanged after loading spreadsheet
         dataStore.markAsUnchanged();
+
+        // Later saves append to the journal.
+        if (journal != null) {
+            journal.track(projectFile, dataStore);
+        }
     }
 
     /**
@@ -100,8 +134,7 @@ public final class OpenController {
      */
     private void openProjectArchive(final File archiveFile) {
 
-        try {
-            ZipFile zipFile = new ZipFile(archiveFile);
+        try (ZipFile zipFile = new ZipFile(archiveFile)) {
 
             String arch = archiveFile.getName().substring(0, archiveFile.getName().lastIndexOf('.'));
             ZipEntry zippedProjectFile = zipFile.getEntry("project");
@@ -112,29 +145,38 @@ public final class OpenController {
                 zippedProjectFile = zipFile.getEntry(arch + File.separator + "project");
             }
 
-            OpenProjectFileController opc = new OpenProjectFileController();
-            project = opc.open(zipFile.getInputStream(zippedProjectFile));
-
-            ZipEntry zippedDataStore = zipFile.getEntry("db");
-
-            // BugzID:1941 - Older dataStore files are nested within a directory
-            // Try in the nested location if unable to find a project.
-            if (zippedDataStore == null) {
-                zippedDataStore = zipFile.getEntry(arch + File.separator + "db");
-            }
-
-            OpenDataStoreFileController odc = new OpenDataStoreFileController();
-            dataStore = odc.openAsCsv(zipFile.getInputStream(zippedDataStore));
+            // Saves since the archive was written in full are in its journal.
+            ProjectJournal projectJournal = BinaryDataStoreReader.holdsDataStore(zipFile)
+                    ? ProjectJournal.open(archiveFile, zipFile) : null;
+            InputStream journaledProject = projectJournal == null ? null : projectJournal.getProject();
 
-            // BugzID:1806
-            for (ViewerSetting vs : project.getViewerSettings()) {
-                if (vs.getSettingsId() != null) {
-                    ZipEntry entry = zipFile.getEntry(vs.getSettingsId());
-                    vs.copySettings(zipFile.getInputStream(entry));
+            OpenProjectFileController opc = new OpenProjectFileController();
+            project = opc.open(journaledProject != null
+                    ? journaledProject : zipFile.getInputStream(zippedProjectFile));
+
+            // BugzID:1806 - The viewer settings are copied out of the archive while the data store is read.
+            Future<?> settings = ForkJoinPool.commonPool().submit(() -> {
+                copyViewerSettings(zipFile, projectJournal);
+                return null;
+            });
+
+            if (projectJournal != null) {
+                dataStore = new BinaryDataStoreReader(archiveFile, zipFile).read(projectJournal);
+            } else {
+                ZipEntry zippedDataStore = zipFile.getEntry("db");
+
+                // BugzID:1941 - Older dataStore files are nested within a directory
+                // Try in the nested location if unable to find a project.
+                if (zippedDataStore == null) {
+                    zippedDataStore = zipFile.getEntry(arch + File.separator + "db");
                 }
+
+                OpenDataStoreFileController odc = new OpenDataStoreFileController();
+                dataStore = odc.openAsCsv(zipFile.getInputStream(zippedDataStore));
             }
 
-            zipFile.close();
+            settings.get();
+            journal = projectJournal;
         } catch (Exception e) {
             logger.error("Unable to open project archive", e);
         }
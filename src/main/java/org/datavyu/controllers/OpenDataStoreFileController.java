@@ -17,7 +17,6 @@ package org.datavyu.controllers;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.datavyu.Datavyu;
@@ -26,9 +25,15 @@ import org.datavyu.util.ConfigProperties;
 import org.datavyu.views.discrete.SpreadSheetPanel;
 
 import javax.swing.*;
+import java.awt.GraphicsEnvironment;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.Math.min;
 
@@ -52,6 +57,9 @@ public final class OpenDataStoreFileController {
     /** The number of variables that were parsed */
     private int numVariablesParsed = 0;
 
+    /** The number of cells that could not be read; variables may be decoded concurrently */
+    private final AtomicInteger corruptedCells = new AtomicInteger();
+
     /**
      * Opens a data store
      *
@@ -105,11 +113,20 @@ public final class OpenDataStoreFileController {
     protected DataStore openAsCsv(final InputStream inputStream) {
         try {
             logger.info("Open csv data base from input stream");
+            corruptedCells.set(0);
 
             DataStore db = DataStoreFactory.newDataStore();
-            db.setTitleNotifier(Datavyu.getApplication());
+            // Headless, as in a batch conversion, there is no application whose title to update.
+            if (!GraphicsEnvironment.isHeadless()) {
+                db.setTitleNotifier(Datavyu.getApplication());
+            }
             InputStreamReader isr = new InputStreamReader(inputStream);
-            BufferedReader csvFile = new BufferedReader(isr);
+
+            // Read the whole file first, so that its variables can be decoded concurrently.
+            char[] text = readFully(isr);
+            isr.close();
+            CsvCellReader csvFile = new CsvCellReader(new CharArrayReader(text));
+            int secondLine = nextLine(text, lineEnd(text, 0));
 
             // Read each line of the CSV file.
             String line = csvFile.readLine();
@@ -120,38 +137,34 @@ public final class OpenDataStoreFileController {
 
                 //Version 4 includes a comment for columns.
                 line = csvFile.readLine();
-                while (line != null) {
-                    line = parseVariable(csvFile, line, db, "#4");
-                }
+                parseVariables(csvFile, line, text, secondLine, db, "#4");
                 if (!db.getExemptionVariables().isEmpty()) {
                     logger.info("We have excemption variables");
-                    SwingUtilities.invokeLater(new NameWarning(db.getExemptionVariables()));
+                    if (GraphicsEnvironment.isHeadless()) {
+                        logger.warn("No longer valid column name(s): " + db.getExemptionVariables());
+                    } else {
+                        SwingUtilities.invokeLater(new NameWarning(db.getExemptionVariables()));
+                    }
                 }
             } else if ("#3".equalsIgnoreCase(line)) {
 
                 //Version 3 includes column visible status after the column type
                 line = csvFile.readLine();
-                while (line != null) {
-                    line = parseVariable(csvFile, line, db, "#3");
-                }
+                parseVariables(csvFile, line, text, secondLine, db, "#3");
             } else if ("#2".equalsIgnoreCase(line)) {
 
                 line = csvFile.readLine();
-                while (line != null) {
-                    line = parseVariable(csvFile, line, db);
-                }
+                parseVariables(csvFile, line, text, secondLine, db, "#2");
 
             } else {
 
                 // Use the original schema to load the file - just variables,
                 // and no escape characters.
-                while (line != null) {
-                    line = parseVariable(csvFile, line, db);
-                }
+                parseVariables(csvFile, line, text, 0, db, "#2");
             }
 
             csvFile.close();
-            isr.close();
+            reportCorruptedCells();
 
             return db;
         } catch (IOException e) {
@@ -164,257 +177,255 @@ public final class OpenDataStoreFileController {
         return null;
     }
 
+    /**
+     * Parses the variables from the given line on; concurrently if possible, see decodeVariables.
+     *
+     * @param csvFile The CSV file we are currently reading
+     * @param line The line of the CSV file we are currently reading
+     * @param text The contents of the CSV file
+     * @param from The start of the line in the contents
+     * @param dataStore The data store we are populating with data from the CSV file
+     * @param version The version of the file format
+     * @throws IOException When we are unable to read from the csvFile
+     * @throws UserWarningException When we are unable to create variables
+     */
+    private void parseVariables(final CsvCellReader csvFile, String line, final char[] text, final int from,
+                                final DataStore dataStore, final String version)
+            throws IOException, UserWarningException {
+        if (!decodeVariables(text, from, dataStore, version)) {
+            while (line != null) {
+                line = parseVariable(csvFile, line, dataStore, version);
+            }
+        }
+    }
+
+    /**
+     * Decodes the variables of a CSV file in two phases: the blocks of lines that make up the variables are found
+     * first, then the blocks are decoded concurrently on the fork/join pool, each into a data store of its own. The
+     * variables are attached to the data store in file order.
+     *
+     * @param text The contents of the CSV file
+     * @param from The start of the first variable in the contents
+     * @param dataStore The data store we are populating with data from the CSV file
+     * @param version The version of the file format
+     * @return False if the variables were not decoded, the data store is unchanged then
+     * @throws UserWarningException When we are unable to attach a variable
+     */
+    private boolean decodeVariables(final char[] text, final int from, final DataStore dataStore,
+                                    final String version) throws UserWarningException {
+        int[] blocks = findVariableBlocks(text, from, version);
+        if (blocks == null || blocks.length < 3) {
+            return false;
+        }
+
+        List<Callable<Variable>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < blocks.length; i++) {
+            final int start = blocks[i];
+            final int end = blocks[i + 1];
+            // parseVariable keeps count of the variables, so every block gets a controller of its own.
+            tasks.add(() -> {
+                OpenDataStoreFileController controller = new OpenDataStoreFileController();
+                Variable variable = controller.decodeVariable(text, start, end, version);
+                corruptedCells.addAndGet(controller.corruptedCells.get());
+                return variable;
+            });
+        }
+
+        List<Variable> variables = new ArrayList<>();
+        try {
+            for (Future<Variable> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                variables.add(result.get());
+            }
+        } catch (ExecutionException e) {
+            // Read the file line by line instead; that gives the same results as it always did.
+            logger.warn("Unable to decode the variables concurrently. Error: ", e.getCause());
+            corruptedCells.set(0);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        for (Variable variable : variables) {
+            if (variable != null) {
+                dataStore.attachVariable(variable);
+                variable.setOrderIndex(numVariablesParsed);
+                numVariablesParsed++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes one block of lines that makes up a variable into a data store of its own.
+     *
+     * @param text The contents of the CSV file
+     * @param start The start of the block in the contents
+     * @param end The end of the block in the contents
+     * @param version The version of the file format
+     * @return The variable, or null for a variable that is skipped
+     * @throws IOException When the block does not hold exactly one variable
+     * @throws UserWarningException When we are unable to create the variable
+     */
+    private Variable decodeVariable(final char[] text, final int start, final int end, final String version)
+            throws IOException, UserWarningException {
+        DataStore dataStore = DataStoreFactory.newDataStore();
+        CsvCellReader csvFile = new CsvCellReader(new CharArrayReader(text, start, end - start));
+        String next = parseVariable(csvFile, csvFile.readLine(), dataStore, version);
+        if (next != null) {
+            throw new IOException("Variable ends before line: " + next);
+        }
+        List<Variable> variables = dataStore.getAllVariables();
+        return variables.isEmpty() ? null : variables.get(0);
+    }
+
+    /**
+     * Finds the blocks of lines that make up the variables, following the same rules as parseVariable.
+     *
+     * @param text The contents of the CSV file
+     * @param from The start of the first variable in the contents
+     * @param version The version of the file format
+     * @return The start of every block followed by the end of the contents; null if a variable can not be read
+     */
+    private static int[] findVariableBlocks(final char[] text, final int from, final String version) {
+        List<Integer> starts = new ArrayList<>();
+        int position = from;
+        while (position < text.length) {
+            starts.add(position);
+            int end = lineEnd(text, position);
+            String varType;
+            try {
+                varType = getVarTypeName(new String(text, position, end - position).split("\\("), version);
+            } catch (RuntimeException e) {
+                return null;
+            }
+            position = nextLine(text, end);
+            if (varType.equalsIgnoreCase("matrix")) {
+                position = skipMatrixCells(text, position);
+            } else {
+                position = skipEntries(text, position);
+            }
+        }
+
+        int[] blocks = new int[starts.size() + 1];
+        for (int i = 0; i < starts.size(); i++) {
+            blocks[i] = starts.get(i);
+        }
+        blocks[starts.size()] = text.length;
+        return blocks;
+    }
+
+    /**
+     * Skips the cells of a matrix variable like parseMatrixVariable reads them.
+     *
+     * @return The start of the first line after the cells.
+     */
+    private static int skipMatrixCells(final char[] text, int position) {
+        while (CsvCellReader.isCell(text, position, text.length)) {
+            // A value that ends a line with an escape goes on on the next line.
+            while (position < text.length && text[position] != '\n' && text[position] != '\r') {
+                if (text[position] == '\\' && position + 1 < text.length) {
+                    position++;
+                    if (text[position] == '\n' || text[position] == '\r') {
+                        position = nextLine(text, position);
+                        continue;
+                    }
+                }
+                position++;
+            }
+            position = nextLine(text, position);
+        }
+        return position;
+    }
+
+    /**
+     * Skips the cells of a text or nominal variable like parseEntries reads them.
+     *
+     * @return The start of the first line after the cells.
+     */
+    private static int skipEntries(final char[] text, int position) {
+        boolean cell = CsvCellReader.startsWithTime(text, position);
+        while (cell) {
+            int end = lineEnd(text, position);
+            boolean continued = end > position && text[end - 1] == '\\';
+            position = nextLine(text, end);
+            while (continued && position < text.length) {
+                end = lineEnd(text, position);
+                continued = end > position && text[end - 1] == '\\'
+                        && !(end - 1 > position && text[end - 2] == '\\');
+                position = nextLine(text, end);
+            }
+
+            // The next line is a cell too if it starts with a time, or if it is a corrupt line that gets fixed.
+            if (position >= text.length) {
+                break;
+            }
+            cell = CsvCellReader.startsWithTime(text, position)
+                    || new String(text, position, lineEnd(text, position) - position).split("\\(").length != 2;
+        }
+        return position;
+    }
+
+    /**
+     * @return The end of the line at the given position, i.e. the position of its line ending.
+     */
+    private static int lineEnd(final char[] text, int position) {
+        while (position < text.length && text[position] != '\n' && text[position] != '\r') {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * @return The start of the line after the line ending at the given position.
+     */
+    private static int nextLine(final char[] text, final int end) {
+        if (end >= text.length) {
+            return text.length;
+        }
+        return text[end] == '\r' && end + 1 < text.length && text[end + 1] == '\n' ? end + 2 : end + 1;
+    }
+
+    private static char[] readFully(final Reader reader) throws IOException {
+        CharArrayWriter contents = new CharArrayWriter(64 * 1024);
+        char[] buffer = new char[64 * 1024];
+        for (int read = reader.read(buffer); read != -1; read = reader.read(buffer)) {
+            contents.write(buffer, 0, read);
+        }
+        return contents.toCharArray();
+    }
+
+    /**
+     * Imports the passes of a JSON file, as exported by ExportDatabaseFileController.exportAsJSON, as new columns of
+     * the spreadsheet. The file is read into a data store of its own first, so the spreadsheet only hears about the
+     * columns once they are complete; columns that the spreadsheet already has are left out.
+     *
+     * @param file The JSON file to import.
+     * @param spreadSheet The spreadsheet to add the columns to.
+     * @throws UserWarningException When unable to add a column.
+     * @throws JsonParseException When the file is not well formed JSON.
+     * @throws IOException When the file can not be read.
+     */
     public void importJSONToSpreadsheet(File file, SpreadSheetPanel spreadSheet) throws UserWarningException,  JsonParseException, IOException {
         if (file.getAbsolutePath().endsWith(".json")) {
-            JsonFactory factory = new JsonFactory();
-            JsonParser parser = factory.createParser(file);
-
-            while (!parser.isClosed()) {
-                JsonToken token = parser.nextToken();
-                if (token == null) { break; }
-
-                if (JsonToken.START_OBJECT.equals(token)) {
-
-                    token = parser.nextToken();
-                    if (JsonToken.FIELD_NAME.equals(token) && "passes".equals(parser.getCurrentName())) {
-
-                        DataStore dataStore = spreadSheet.getDataStore();
-
-                        token = parser.nextToken();
-                        if (!JsonToken.START_ARRAY.equals(token)) { break; }
-
-                        while (!JsonToken.END_ARRAY.equals(token)) { // for each pass
-
-                            token = parser.nextToken();
-                            if (token == null) { break; }
-                            if (!JsonToken.START_OBJECT.equals(token)) { break; }
-
-                            token = parser.nextToken();
-                            if (JsonToken.FIELD_NAME.equals(token) && "name".equals(parser.getCurrentName())) {
-
-                                token = parser.nextToken();
-                                String columnName = parser.getValueAsString();
-
-                                // Check if we already have the same column name
-                                if (spreadSheet.getDataStore().getVariable(columnName) == null) {
-
-                                    token = parser.nextToken();
-                                    if (JsonToken.FIELD_NAME.equals(token) && "type".equals(parser.getCurrentName())) {
-                                        token = parser.nextToken();
-                                        Argument.Type variableType = getVarType(parser.getValueAsString());
-
-                                        if (variableType != null) {
-                                            token = parser.nextToken();
-                                            if (JsonToken.FIELD_NAME.equals(token) && "arguments".equals(parser
-                                                    .getCurrentName())) {
-                                                token = parser.nextToken();
-                                                if (token == null) { break; }
-                                                if (!JsonToken.START_OBJECT.equals(token)) { break; }
-
-                                                Variable newColumn = dataStore.createVariable(columnName,
-                                                        variableType, true);
-                                                Argument variableArg = newColumn.getRootNode();
-                                                variableArg.clearChildArguments();
-
-                                                while (!JsonToken.END_OBJECT.equals(token)) {
-                                                    token = parser.nextToken();
-                                                    if (token == null) { break; }
-                                                    if (JsonToken.START_OBJECT.equals(token) || JsonToken
-                                                            .START_OBJECT.equals(token) || JsonToken.END_OBJECT
-                                                            .equals(token)) {
-                                                        break;
-                                                    }
-
-                                                    token = parser.nextToken();
-                                                    if (variableType == Argument.Type.TEXT) {
-                                                        variableArg.name = parser.getValueAsString();
-                                                    }
-                                                    if (variableType == Argument.Type.NOMINAL) {
-                                                        variableArg.name = parser.getValueAsString();
-                                                    }
-                                                    if (variableType == Argument.Type.MATRIX) {
-                                                        if (getVarType(parser.getCurrentName()) != null) {
-                                                            variableArg.childArguments.add(new Argument(parser
-                                                                    .getValueAsString(), getVarType(parser
-                                                                    .getCurrentName())));
-                                                        } else {
-                                                            logger.warn("Unknown argument ('" + parser.getCurrentName
-                                                                    () + "' line " + parser.getCurrentLocation()
-                                                                    .getLineNr() + " ): was expecting " + "argument "
-                                                                    + "(NOMINAL, TEXT or MATRIX)" + " field name");
-                                                            break;
-                                                        }
-                                                    }
-                                                }
-                                                newColumn.setRootNode(variableArg);
-
-                                                token = parser.nextToken();
-                                                if (JsonToken.FIELD_NAME.equals(token) && "cells".equals(parser
-                                                        .getCurrentName())) {
-
-                                                    token = parser.nextToken();
-                                                    if (!JsonToken.START_ARRAY.equals(token)) { break; }
-
-
-                                                    while (!JsonToken.END_ARRAY.equals(token)) { // for each cell
-                                                        token = parser.nextToken();
-                                                        if (!JsonToken.START_OBJECT.equals(token)) { break; }
-                                                        if (JsonToken.END_ARRAY.equals(token)) { break; }
-                                                        if (token == null) { break; }
-
-                                                        Cell newCell = newColumn.createCell();
-
-                                                        token = parser.nextToken();
-                                                        if (JsonToken.FIELD_NAME.equals(token) && "id".equals(parser
-                                                                .getCurrentName())) {
-                                                            token = parser.nextToken(); // we skip the id value
-                                                            token = parser.nextToken();
-                                                            if (JsonToken.FIELD_NAME.equals(token) && "onset".equals
-                                                                    (parser.getCurrentName())) {
-                                                                token = parser.nextToken();
-                                                                String cellONSET = parser.getValueAsString();
-                                                                newCell.setOnset(cellONSET);
-
-                                                                token = parser.nextToken();
-                                                                if (JsonToken.FIELD_NAME.equals(token) && "offset"
-                                                                        .equals(parser.getCurrentName())) {
-                                                                    token = parser.nextToken();
-                                                                    String cellOFFSET = parser.getValueAsString();
-                                                                    newCell.setOffset(cellOFFSET);
-
-                                                                    token = parser.nextToken();
-                                                                    if (JsonToken.FIELD_NAME.equals(token) &&
-                                                                            "values".equals(parser.getCurrentName())) {
-                                                                        token = parser.nextToken();
-                                                                        if (!JsonToken.START_ARRAY.equals(token)) {
-                                                                            break;
-                                                                        }
-
-                                                                        token = parser.nextToken();
-                                                                        int k = 0; // keep track of the matrix value
-                                                                        // number
-                                                                        while (!JsonToken.END_ARRAY.equals(token)) {
-                                                                            if (token == null) { break; }
-
-                                                                            if (newColumn.getRootNode().type ==
-                                                                                    Argument.Type.MATRIX) {
-
-                                                                                newCell.setMatrixValue(k, parser
-                                                                                        .getValueAsString());
-                                                                                k++;
-                                                                            } else {
-                                                                                newCell.getCellValue().set(parser
-                                                                                        .getValueAsString());
-                                                                            }
-                                                                            token = parser.nextToken();
-                                                                        }
-                                                                    } else {
-                                                                        dataStore.removeVariable(newColumn);
-                                                                        String msg = "Unexpected character ('" +
-                                                                                parser.getCurrentName() + "' line " +
-                                                                                parser.getCurrentLocation().getLineNr
-                                                                                        () + " ): " + "was expecting " +
-                                                                                "" + "values field name";
-                                                                        logger.warn(msg);
-                                                                        Datavyu.getApplication().showWarningDialog(msg);
-                                                                        break;
-                                                                    }
-                                                                } else {
-                                                                    dataStore.removeVariable(newColumn);
-                                                                    String msg = "Unexpected character ('" + parser
-                                                                            .getCurrentName() + "' line " + parser
-                                                                            .getCurrentLocation().getLineNr() + " ): " +
-                                                                            "" + "was " + "expecting offset field " +
-                                                                            "name";
-                                                                    logger.warn(msg);
-                                                                    Datavyu.getApplication().showWarningDialog(msg);
-                                                                    break;
-                                                                }
-                                                            } else {
-                                                                dataStore.removeVariable(newColumn);
-                                                                String msg = "Unexpected character ('" + parser
-                                                                        .getCurrentName() + "' line " + parser
-                                                                        .getCurrentLocation().getLineNr() + " ): was " +
-                                                                        "" + "" + "expecting onset field name";
-                                                                logger.warn(msg);
-                                                                Datavyu.getApplication().showWarningDialog(msg);
-                                                                break;
-                                                            }
-                                                        } else {
-                                                            dataStore.removeVariable(newColumn);
-                                                            String msg = "Unexpected character ('" + parser
-                                                                    .getCurrentName() + "' line " + parser
-                                                                    .getCurrentLocation().getLineNr() + " ): was " +
-                                                                    "expecting " + "id field name";
-                                                            logger.warn(msg);
-                                                            Datavyu.getApplication().showWarningDialog(msg);
-                                                            break;
-                                                        }
-                                                        token = parser.nextToken();
-                                                    }
-                                                } else {
-                                                    dataStore.removeVariable(newColumn);
-                                                    String msg = "Unexpected character ('" + parser.getCurrentName() +
-                                                            "' line " + parser.getCurrentLocation().getLineNr() + " )" +
-                                                            ": was expecting cells " + "field name";
-                                                    logger.warn(msg);
-                                                    Datavyu.getApplication().showWarningDialog(msg);
-                                                    break;
-                                                    }
-                                            } else {
-                                                String msg = "Unexpected character ('" + parser.getCurrentName() + "' "
-                                                        + "line " + parser.getCurrentLocation().getLineNr() +
-                                                        " ):" + " was expecting arguments field name";
-                                                logger.warn(msg);
-                                                Datavyu.getApplication().showWarningDialog(msg);
-                                                break;
-                                            }
-                                        } else {
-                                            String msg = "Unknown argument ('" + parser.getCurrentName() + "' line " +
-                                                    parser.getCurrentLocation().getLineNr() + " ): was expecting " +
-                                                    "argument (NOMINAL, TEXT or MATRIX) field name";
-                                            logger.warn(msg);
-                                            Datavyu.getApplication().showWarningDialog(msg);
-                                            break;
-                                        }
-                                    } else {
-                                        String msg = "Unexpected character ('" + parser.getCurrentName() + "' line " +
-                                                parser.getCurrentLocation().getLineNr() + " ): was expecting type " +
-                                                "field name";
-                                        logger.warn(msg);
-                                        Datavyu.getApplication().showWarningDialog(msg);
-                                        break;
-                                    }
-                                } else {
-                                    String msg = "The column " + columnName + " already exists in the current" + " " +
-                                            "spreadsheet";
-                                    logger.warn(msg);
-                                    Datavyu.getApplication().showWarningDialog(msg);
-                                    break;
-                                }
-                            } else {
-                                String msg = "Unexpected character ('" + parser.getCurrentName() + "' line " + parser
-                                        .getCurrentLocation().getLineNr() + " ): was expecting name field name";
-                                logger.warn(msg);
-                                Datavyu.getApplication().showWarningDialog(msg);
-                                break;
-                            }
-                            token = parser.nextToken();
-                        }
-                        parser.close();
-                    } else {
-                        String msg = "Unexpected character ('" + parser.getCurrentName() + "' line " + parser
-                                .getCurrentLocation().getLineNr() + " ): was expecting passes field name";
-                        logger.error(msg);
-                        Datavyu.getApplication().showWarningDialog(msg);
-                        break;
-                    }
-                } else {
-                    String msg ="Unexpected character ('" + parser.getCurrentName() + "' line " + parser
-                            .getCurrentLocation().getLineNr() + " ): was expecting '{'";
-                    logger.error(msg);
+            DataStore imported;
+            try (JsonParser parser = new JsonFactory().createParser(file)) {
+                imported = new JsonDataStoreReader(parser).read();
+            } catch (UserWarningException e) {
+                logger.warn(e.getMessage());
+                Datavyu.getApplication().showWarningDialog(e.getMessage());
+                return;
+            }
+
+            DataStore dataStore = spreadSheet.getDataStore();
+            for (Variable variable : imported.getAllVariables()) {
+                if (dataStore.getVariable(variable.getName()) != null) {
+                    String msg = "The column " + variable.getName() + " already exists in the current" + " " +
+                            "spreadsheet";
+                    logger.warn(msg);
                     Datavyu.getApplication().showWarningDialog(msg);
-                    break;
+                } else {
+                    dataStore.attachVariable(variable);
                 }
             }
         } else {
@@ -476,48 +487,42 @@ public final class OpenDataStoreFileController {
     /**
      * Method to create data values for the formal arguments of a vocab element
      *
-     * @param tokens The array of string tokens
-     * @param startIndex The start index
+     * @param values The values read for the cell
+     * @param destPattern The arguments of the matrix
      * @param destValue The destination value that we are populating
      */
-    private void parseFormalArgs(final String[] tokens, final int startIndex, final Argument destPattern,
+    private void parseFormalArgs(final List<String> values, final Argument destPattern,
                                  final MatrixCellValue destValue) {
 
-        // Check to see if the list of tokens we have here is correct.
-        // If it is not, then mark an error state and do our best to parse.
-        // Fill in missing info with a missing value.
-
+        // Check to see if the list of values we have here is correct.
+        // If it is not, then do our best to parse: get as much as we can and leave missing values empty.
         List<CellValue> args = destValue.getArguments();
+        int endIndex = min(values.size(), args.size());
 
-        int endIndex = tokens.length;
-        boolean parseError = false;
-        if (args.size() != tokens.length - startIndex) {
-            // We have a problem. Arguments are of different length.
-            // Get as much from the string as we can.
+        for (int argIndex = 0; argIndex < endIndex; argIndex++) {
+            String value = values.get(argIndex);
 
-            parseError = true; // TODO: Do something with this: warning, user warning exception?
-            endIndex = min(tokens.length, destValue.getArguments().size() + startIndex);
-        }
-
-        for (int tokenIndex = startIndex; tokenIndex < endIndex; tokenIndex++) {
-            int argIndex = tokenIndex - startIndex;
-            Argument fa = destPattern.childArguments.get(argIndex);
-            boolean emptyArg = false;
-
-            // If the field doesn't contain anything or matches the FargName
-            // we consider the argument to be 'empty'. 
-            if ((tokens[tokenIndex].length() == 0) || tokens[tokenIndex].equals("<" + fa.name + ">")) {
-                emptyArg = true;
-                tokens[tokenIndex] = ""; //set <placeholder> to empty string. 
+            // If the field matches the FargName we consider the argument to be 'empty'; empty values are left alone.
+            if (!value.isEmpty() && !isPlaceholder(value, destPattern.childArguments.get(argIndex).name)) {
+                value = value.trim(); //is this desirable?
+                if (!value.isEmpty()) {
+                    args.get(argIndex).set(value);
+                }
             }
-
-            tokens[tokenIndex] = tokens[tokenIndex].trim(); //is this desirable?
-            destValue.getArguments().get(argIndex).set(tokens[tokenIndex]);
         }
     }
 
     /**
-     * Method to invoke when we encounter a block of text in the CSV file that is the contents of a matrix variable
+     * @return True if the value is the placeholder of the argument with the given name, i.e. '&lt;name&gt;'.
+     */
+    private static boolean isPlaceholder(final String value, final String name) {
+        return value.length() == name.length() + 2 && value.charAt(0) == '<'
+                && value.charAt(value.length() - 1) == '>' && value.startsWith(name, 1);
+    }
+
+    /**
+     * Method to invoke when we encounter a block of text in the CSV file that is the contents of a matrix variable.
+     * The cells are tokenized straight from the reader's buffer and created with their times in one step.
      *
      * @param csvReader The csvReader we are currently parsing
      * @param variable The variable that we will be adding cells too.
@@ -526,73 +531,17 @@ public final class OpenDataStoreFileController {
      * @return The next line in the file that is not part of the block of text in the CSV file
      * @throws IOException If unable to read the file correctly
      */
-    private String parseMatrixVariable(final BufferedReader csvReader, final Variable variable, final Argument argument)
+    private String parseMatrixVariable(final CsvCellReader csvReader, final Variable variable, final Argument argument)
             throws IOException {
+        List<String> values = new ArrayList<>();
 
-        // TODO: Check if we need the argument possibly for proper error reporting
-        String line = csvReader.readLine();
-
-        while ((line != null) && isCell(line)) {
-
-            ArrayList tokensList = new ArrayList<String>();
-            String[] onsetOffsetVals = line.split(",", 3);
-            tokensList.add(onsetOffsetVals[0]); //onset
-            tokensList.add(onsetOffsetVals[1]); //offset
-
-            String valuesStr = onsetOffsetVals[2];
-            StringBuilder sb = new StringBuilder();
-
-            for (int i = 0; i < valuesStr.length(); i++) {
-                char cur = valuesStr.charAt(i);
-                if (cur == '\\') {
-                    if (i + 1 == valuesStr.length()) //newline
-                    {
-                        sb.append('\n');
-                        valuesStr += csvReader.readLine();
-                    } else //stuff following escape backslash
-                    {
-                        i++;
-                        sb.append(valuesStr.charAt(i));
-                    }
-                } else if (cur == ',') //structural comma
-                {
-                    tokensList.add(sb.toString());
-                    sb = new StringBuilder();
-                } else sb.append(cur); //ordinary char
-            }
-            tokensList.add(sb.toString());
-
-            String[] tokens = (String[]) tokensList.toArray(new String[tokensList.size()]);
-
-            Cell newCell = variable.createCell();
-            // Set the onset and offset from tokens in the line.
-            newCell.setOnset(tokens[DATA_ONSET]);
-            newCell.setOffset(tokens[DATA_OFFSET]);
-
-            // Strip the first and last chars - presumably parens
-            tokens[DATA_INDEX] = tokens[DATA_INDEX].substring(1, tokens[DATA_INDEX].length());
-            int end = tokens.length - 1;
-            tokens[end] = tokens[end].substring(0, tokens[end].length() - 1);
-
-            parseFormalArgs(tokens, DATA_INDEX, variable.getRootNode(), (MatrixCellValue) newCell.getCellValue());
-            // Get the next line in the file for reading.
-            line = csvReader.readLine();
+        while (csvReader.isAtCell()) {
+            csvReader.readCell(values);
+            Cell newCell = variable.createCell(csvReader.getOnset(), csvReader.getOffset());
+            parseFormalArgs(values, argument, (MatrixCellValue) newCell.getCellValue());
         }
 
-        return line;
-    }
-
-    /**
-     * Does the string represent a cell?
-     *
-     * @param string The string.
-     *
-     * @return True if it is a cell; otherwise false.
-     */
-    private boolean isCell(String string) {
-        return Character.isDigit(string.charAt(0))
-                && Character.isDigit(string.charAt(1))
-                && string.charAt(2) == ':';
+        return csvReader.readLine();
     }
 
     /**
@@ -605,17 +554,14 @@ public final class OpenDataStoreFileController {
      * @return The next line in the file that is not part of the block of text in the CSV file
      * @throws IOException Exception if unable to read the file correctly
      */
-    private String parseEntries(final BufferedReader csvReader, final Variable variable,
+    private String parseEntries(final CsvCellReader csvReader, final Variable variable,
                                 final PopulateEntry populateEntry) throws IOException {
 
         // Keep parsing lines and putting them in the newly formed nominal variable until we get to a line indicating
         // the end of file or a new variable section
         String line = csvReader.readLine();
 
-        boolean hasParseError = false;
-        int nError = 0;
-
-        while ((line != null) && Character.isDigit(line.charAt(0))) {
+        while ((line != null) && CsvCellReader.startsWithTime(line)) {
 
             // Remove backslashes if there are more than would be used for newline escapes
             if (line.contains("\\")) {
@@ -650,32 +596,42 @@ public final class OpenDataStoreFileController {
                 line = csvReader.readLine();
 
                 // Test to see if the new line is an error line
-                if ((line != null) && !Character.isDigit(line.charAt(0))) {
+                if ((line != null) && !CsvCellReader.startsWithTime(line)) {
                     if (testForCorruptLine(line)) {
-                        hasParseError = true;
-                        nError += 1;
+                        corruptedCells.incrementAndGet();
                         line = fixCorruptLine(line);
                         logger.error("Error in line " + line);
                     }
                 }
             } catch (Exception e) {
                 // TODO: Add in fix here for matrix cells that are corrupted in the data values
-                hasParseError = true;
-                nError += 1;
+                corruptedCells.incrementAndGet();
                 logger.error("Error in line: " + line + ". Error: ", e);
             }
         }
 
-        if (hasParseError) {
-            JOptionPane.showMessageDialog(null,
+        return line;
+    }
+
+    /**
+     * Reports the cells that could not be read, once for the whole file: to the user on the event dispatch thread, or
+     * to the log when headless.
+     */
+    private void reportCorruptedCells() {
+        final int nError = corruptedCells.get();
+        if (nError == 0) {
+            return;
+        }
+        if (GraphicsEnvironment.isHeadless()) {
+            logger.error("Error reading file. " + nError + " cells could not be read and have time 99:00:00:000.");
+        } else {
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null,
                     "Error reading file. " + String.valueOf(nError) + " cells could not be read.\n" +
                             "Recovered files have time 99:00:00:000.\n" +
                             "Please send this file to Datavyu Support for further analysis!",
                     "Error reading file: Corrupted cells",
-                    JOptionPane.ERROR_MESSAGE);
+                    JOptionPane.ERROR_MESSAGE));
         }
-
-        return line;
     }
 
     private boolean testForCorruptLine(String line) {
@@ -717,24 +673,6 @@ public final class OpenDataStoreFileController {
         return argument;
     }
 
-    /**
-     * Method to invoke when we encounter a block of text that is a variable.
-     *
-     * @param csvFile The CSV file we are currently reading.
-     * @param line    The line of the CSV file we are currently reading.
-     * @param db      The data store we are populating with data from the CSV file.
-     * @return The next String that is not part of the currently variable that
-     * we are parsing.
-     * @throws IOException          When we are unable to read from the csvFile.
-     * @throws UserWarningException When we are unable to create a new variable.
-     */
-    private String parseVariable(final BufferedReader csvFile,
-                                 final String line,
-                                 final DataStore db)
-            throws IOException, UserWarningException {
-        return parseVariable(csvFile, line, db, "#2");
-    }
-
     /**
      * Method to invoke when we encounter a block of text that is a variable.
      *
@@ -745,7 +683,7 @@ public final class OpenDataStoreFileController {
      * @throws IOException When we are unable to read from the csvFile
      * @throws UserWarningException When we are unable to create variables
      */
-    private String parseVariable(final BufferedReader csvFile, final String line, final DataStore dataStore,
+    private String parseVariable(final CsvCellReader csvFile, final String line, final DataStore dataStore,
                                  final String version)
             throws IOException, UserWarningException {
         // Determine the variable name and type.
@@ -756,17 +694,14 @@ public final class OpenDataStoreFileController {
 
         logger.info("Parsing variable from line: " + line);
         logger.info("Found " + tokens.length + " tokens");
+        varType = getVarTypeName(tokens, version);
         if (version.equals("#4")) {
             String[] varArgs = tokens[1].split(",");
-            varType = varArgs[0];
             varVisible = Boolean.parseBoolean(varArgs[1]);
             //varComment = varArgs[2].substring(0, varArgs[2].indexOf(")"));
         } else if (version.equals("#3")) {
-            varType = tokens[1].substring(0, tokens[1].indexOf(","));
             varVisible = Boolean.parseBoolean(tokens[1].substring(
                     tokens[1].indexOf(",") + 1, tokens[1].indexOf(")")));
-        } else {
-            varType = tokens[1].substring(0, tokens[1].indexOf(")"));
         }
 
         // BugzID:1703 - Ignore old macshapa query variables, we don't have a
@@ -827,6 +762,21 @@ public final class OpenDataStoreFileController {
         throw new IllegalStateException("Unknown variable type.");
     }
 
+    /**
+     * @param tokens The line declaring a variable, split at '('.
+     * @param version The version of the file format.
+     * @return The name of the type of the variable.
+     */
+    private static String getVarTypeName(final String[] tokens, final String version) {
+        if (version.equals("#4")) {
+            return tokens[1].split(",")[0];
+        } else if (version.equals("#3")) {
+            return tokens[1].substring(0, tokens[1].indexOf(","));
+        } else {
+            return tokens[1].substring(0, tokens[1].indexOf(")"));
+        }
+    }
+
     /**
      * @param type The string containing the variable type.
      * @return The type of the variable.
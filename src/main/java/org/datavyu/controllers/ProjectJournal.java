@@ -0,0 +1,519 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.datavyu.models.db.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An append-only log of the saves of a project since its archive was last written in full, kept next to the archive
+ * in a file of the same name ending in .journal.
+ *
+ * Saving appends a commit to the journal: the project and viewer settings if they have changed, then the variables of
+ * the data store in order. A variable that has not changed since the previous commit refers to itself in that commit
+ * by position; only the changed ones are written out, encoded like the entries of BinaryDataStoreWriter. A variable
+ * has changed when the copy it keeps for snapshots of the data store is not the one saved, as every change to the
+ * variable drops that copy. The archive is written in full again - a checkpoint - once the journal would grow larger
+ * than it, or when asked to through SaveController.compactProject.
+ *
+ * The journal works per variable, not per cell: changing a single cell writes out every cell of its variable again.
+ * A save thus costs time and space in proportion to the variables changed since the previous save, which is small
+ * next to writing the archive for projects of many variables, but not for a project that is one large variable.
+ * <pre>
+ * header:  int MAGIC, short VERSION, long id of the archive.
+ * commit:  int length, int CRC-32 of the contents, the contents:
+ *          byte 1 if followed by the project and viewer settings: varint length and bytes of the project, varint
+ *          number of settings, then string id, varint length and bytes of each; 0 if they have not changed.
+ *          varint number of variables, then per variable in order:
+ *          SAME - varint position in the previous commit, string name, byte flags;
+ *          BODY - string name, string type, byte flags, the arguments as in the table of contents of
+ *                 BinaryDataStoreWriter, varint length of the cells, the cells as in the entry of a variable.
+ * </pre>
+ * Every commit is forced to disk before the save returns. Opening replays the commits on top of the archive; a commit
+ * cut short by a crash fails its check and is dropped, and the next save writes over it. A journal left behind by an
+ * archive that has since been written in full by other means does not match the archive's id and is ignored.
+ */
+final class ProjectJournal {
+
+    /** The logger instance for this class */
+    private static Logger logger = LogManager.getLogger(ProjectJournal.class);
+
+    private static final int MAGIC = 0x44564A4C;
+
+    private static final short VERSION = 1;
+
+    /** Length of the header. */
+    private static final int HEADER = 4 + 2 + 8;
+
+    private static final int SAME = 0;
+
+    private static final int BODY = 1;
+
+    /** The journals of the data stores being saved, by project file. */
+    private static final Map<File, ProjectJournal> journals = new HashMap<>();
+
+    private final File file;
+
+    /** Identifies the archive the journal belongs to. */
+    private final long archiveId;
+
+    /** End of the last complete commit, 0 while the journal has not been started. */
+    private long length;
+
+    /** The project as last saved, null if not known. */
+    private byte[] project;
+
+    /** The viewer settings as last saved, by id. */
+    private Map<String, byte[]> settings = new LinkedHashMap<>();
+
+    /** The data store of the project. */
+    private DataStore dataStore;
+
+    /** The variables of the data store as last saved. */
+    private List<Variable> variables = new ArrayList<>();
+
+    /** The copies of the variables that were saved. */
+    private List<Variable> copies = new ArrayList<>();
+
+    /** The data store part of the commits read when opening, for replay. */
+    private final List<byte[]> commits = new ArrayList<>();
+
+    private ProjectJournal(final File projectFile, final long archiveId) {
+        this.file = journalFile(projectFile);
+        this.archiveId = archiveId;
+    }
+
+    /**
+     * @param projectFile The archive of the project.
+     * @return The journal kept next to the archive.
+     */
+    static File journalFile(final File projectFile) {
+        return new File(projectFile.getPath() + ".journal");
+    }
+
+    /**
+     * Reads the journal of an archive being opened. The journal is empty if there is none or it belongs to another
+     * archive.
+     *
+     * @param projectFile The archive.
+     * @param zipFile     The archive opened for reading.
+     * @return The journal.
+     */
+    static ProjectJournal open(final File projectFile, final ZipFile zipFile) {
+        ProjectJournal journal = new ProjectJournal(projectFile, archiveId(zipFile));
+        if (journal.file.exists()) {
+            try {
+                journal.read();
+            } catch (IOException e) {
+                logger.error("Unable to read " + journal.file, e);
+                journal.commits.clear();
+                journal.project = null;
+                journal.settings.clear();
+                journal.length = 0;
+            }
+        }
+        return journal;
+    }
+
+    private void read() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long size = file.length();
+            if (size < HEADER || in.readInt() != MAGIC || in.readShort() != VERSION || in.readLong() != archiveId) {
+                logger.info("Ignoring " + file + ", which belongs to another version of the project");
+                return;
+            }
+            long position = HEADER;
+            CRC32 crc = new CRC32();
+            while (position + 8 <= size) {
+                int commitLength = in.readInt();
+                int checksum = in.readInt();
+                if (commitLength < 0 || position + 8 + commitLength > size) {
+                    break;
+                }
+                byte[] commit = new byte[commitLength];
+                in.readFully(commit);
+                crc.reset();
+                crc.update(commit);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                position += 8 + commitLength;
+                commits.add(readProject(commit));
+            }
+            length = position;
+            if (length < size) {
+                logger.warn("Dropping an incomplete commit at the end of " + file);
+            }
+        }
+    }
+
+    /**
+     * @param commit A commit.
+     * @return The data store part of the commit, after the project and viewer settings it starts with.
+     */
+    private byte[] readProject(final byte[] commit) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(commit);
+        DataInputStream in = new DataInputStream(bytes);
+        if (in.readByte() != 0) {
+            project = new byte[(int) BinaryDataStoreReader.readVarLong(in)];
+            in.readFully(project);
+            settings = new LinkedHashMap<>();
+            int count = (int) BinaryDataStoreReader.readVarLong(in);
+            for (int i = 0; i < count; i++) {
+                String id = BinaryDataStoreReader.readString(in);
+                byte[] setting = new byte[(int) BinaryDataStoreReader.readVarLong(in)];
+                in.readFully(setting);
+                settings.put(id, setting);
+            }
+        }
+        return Arrays.copyOfRange(commit, commit.length - bytes.available(), commit.length);
+    }
+
+    /**
+     * @return The project as last saved to the journal, null if it is the one in the archive.
+     */
+    InputStream getProject() {
+        return project == null ? null : new ByteArrayInputStream(project);
+    }
+
+    /**
+     * @param id The id of viewer settings.
+     * @return The viewer settings as last saved to the journal, null if they are the ones in the archive.
+     */
+    InputStream getSettings(final String id) {
+        byte[] setting = project == null ? null : settings.get(id);
+        return setting == null ? null : new ByteArrayInputStream(setting);
+    }
+
+    /**
+     * Applies the commits read when opening to the variables of the archive.
+     *
+     * @param items The variables in the table of contents of the archive.
+     * @return The variables as last saved.
+     * @throws IOException If a commit is malformed.
+     */
+    List<BinaryDataStoreReader.Item> replay(final List<BinaryDataStoreReader.Item> items) throws IOException {
+        List<BinaryDataStoreReader.Item> previous = items;
+        for (byte[] commit : commits) {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(commit);
+            DataInputStream in = new DataInputStream(bytes);
+            int count = (int) BinaryDataStoreReader.readVarLong(in);
+            List<BinaryDataStoreReader.Item> next = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int kind = in.readByte();
+                if (kind == SAME) {
+                    BinaryDataStoreReader.Item item = previous.get((int) BinaryDataStoreReader.readVarLong(in));
+                    String name = BinaryDataStoreReader.readString(in);
+                    next.add(new BinaryDataStoreReader.Item(name, in.readByte(), item.root, item.loader));
+                } else if (kind == BODY) {
+                    String name = BinaryDataStoreReader.readString(in);
+                    Argument.Type type = Argument.Type.valueOf(BinaryDataStoreReader.readString(in));
+                    int flags = in.readByte();
+                    Argument root = BinaryDataStoreReader.readRootNode(in, name, type);
+                    int cellsLength = (int) BinaryDataStoreReader.readVarLong(in);
+                    CellLoader loader = new CommitLoader(commit, commit.length - bytes.available(), cellsLength);
+                    in.skipBytes(cellsLength);
+                    next.add(new BinaryDataStoreReader.Item(name, flags, root, loader));
+                } else {
+                    throw new IOException("Malformed commit in " + file);
+                }
+            }
+            previous = next;
+        }
+        commits.clear();
+        return previous;
+    }
+
+    /**
+     * Loads the cells of a variable written out in a commit, or copies them as they are.
+     */
+    private static final class CommitLoader implements CellLoader, BinaryDataStoreWriter.EncodedCells {
+
+        private final byte[] commit;
+
+        private final int offset;
+
+        private final int length;
+
+        private final int cellCount;
+
+        CommitLoader(final byte[] commit, final int offset, final int length) throws IOException {
+            this.commit = commit;
+            this.offset = offset;
+            this.length = length;
+            cellCount = (int) BinaryDataStoreReader.readVarLong(
+                    new DataInputStream(new ByteArrayInputStream(commit, offset, length)));
+        }
+
+        @Override
+        public void loadCells(final Variable variable) throws IOException {
+            BinaryDataStoreReader.readCells(new DataInputStream(new ByteArrayInputStream(commit, offset, length)),
+                    variable);
+        }
+
+        @Override
+        public int getCellCount() {
+            return cellCount;
+        }
+
+        @Override
+        public void copyTo(final OutputStream out) throws IOException {
+            out.write(commit, offset, length);
+        }
+    }
+
+    /**
+     * Starts journaling the saves of a data store opened from the archive, taking it as saved.
+     *
+     * @param projectFile The archive.
+     * @param dataStore   The data store read from the archive and the journal.
+     */
+    void track(final File projectFile, final DataStore dataStore) {
+        Lock l = dataStore.getLock().readLock();
+        l.lock();
+        try {
+            track(dataStore, dataStore.getAllVariables(), dataStore.snapshot());
+        } finally {
+            l.unlock();
+        }
+        register(projectFile, this);
+    }
+
+    private void track(final DataStore dataStore, final List<Variable> variables, final DataStore snapshot) {
+        this.dataStore = dataStore;
+        this.variables = variables;
+        copies = new ArrayList<>(variables.size());
+        for (Variable variable : variables) {
+            copies.add(snapshot.getVariable(variable.getName()));
+        }
+    }
+
+    private static void register(final File projectFile, final ProjectJournal journal) {
+        synchronized (journals) {
+            if (journal == null) {
+                journals.remove(projectFile.getAbsoluteFile());
+            } else {
+                journals.put(projectFile.getAbsoluteFile(), journal);
+            }
+        }
+    }
+
+    /**
+     * Saves a project by appending a commit to its journal.
+     *
+     * @param projectFile The archive of the project.
+     * @param dataStore   The data store of the project.
+     * @param project     The project, as written to the archive.
+     * @param settings    The viewer settings of the project by id, as written to the archive.
+     * @return False if the project is to be written in full instead: its data store was not opened from or written to
+     * the archive, or the journal would grow larger than the archive.
+     * @throws IOException If the journal can not be written.
+     */
+    static boolean append(final File projectFile, final DataStore dataStore, final byte[] project,
+                          final Map<String, byte[]> settings) throws IOException {
+        ProjectJournal journal;
+        synchronized (journals) {
+            journal = journals.get(projectFile.getAbsoluteFile());
+        }
+        if (journal == null || journal.dataStore != dataStore || !projectFile.exists()) {
+            return false;
+        }
+        synchronized (journal) {
+            return journal.append(projectFile, project, settings);
+        }
+    }
+
+    private boolean append(final File projectFile, final byte[] project, final Map<String, byte[]> settings)
+            throws IOException {
+        List<Variable> live;
+        DataStore snapshot;
+        Lock l = dataStore.getLock().readLock();
+        l.lock();
+        try {
+            live = dataStore.getAllVariables();
+            snapshot = dataStore.snapshot();
+        } finally {
+            l.unlock();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        boolean projectChanged = !Arrays.equals(project, this.project) || !sameSettings(settings);
+        out.writeByte(projectChanged ? 1 : 0);
+        if (projectChanged) {
+            BinaryDataStoreWriter.writeVarLong(out, project.length);
+            out.write(project);
+            BinaryDataStoreWriter.writeVarLong(out, settings.size());
+            for (Map.Entry<String, byte[]> setting : settings.entrySet()) {
+                BinaryDataStoreWriter.writeString(out, setting.getKey());
+                BinaryDataStoreWriter.writeVarLong(out, setting.getValue().length);
+                out.write(setting.getValue());
+            }
+        }
+
+        Map<Variable, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < variables.size(); i++) {
+            positions.put(variables.get(i), i);
+        }
+        List<Variable> saved = new ArrayList<>(live.size());
+        int changed = 0;
+        BinaryDataStoreWriter.writeVarLong(out, live.size());
+        for (Variable variable : live) {
+            Variable copy = snapshot.getVariable(variable.getName());
+            Integer position = positions.get(variable);
+            int flags = variable.isHidden() ? BinaryDataStoreWriter.HIDDEN : 0;
+            if (variable instanceof ColumnarVariable) {
+                flags |= BinaryDataStoreWriter.COLUMNAR;
+            }
+            if (position != null && copy == copies.get(position)) {
+                out.writeByte(SAME);
+                BinaryDataStoreWriter.writeVarLong(out, position);
+                BinaryDataStoreWriter.writeString(out, variable.getName());
+                out.writeByte(flags);
+            } else {
+                Argument root = copy.getRootNode();
+                out.writeByte(BODY);
+                BinaryDataStoreWriter.writeString(out, variable.getName());
+                BinaryDataStoreWriter.writeString(out, root.type.name());
+                out.writeByte(flags);
+                BinaryDataStoreWriter.writeArguments(out, root);
+                ByteArrayOutputStream cells = new ByteArrayOutputStream();
+                DataOutputStream cellsOut = new DataOutputStream(cells);
+                BinaryDataStoreWriter.writeCells(cellsOut, snapshot, copy);
+                cellsOut.flush();
+                BinaryDataStoreWriter.writeVarLong(out, cells.size());
+                cells.writeTo(out);
+                changed++;
+            }
+            saved.add(copy);
+        }
+        out.flush();
+
+        byte[] commit = bytes.toByteArray();
+        long start = length == 0 ? HEADER : length;
+        if (start + 8 + commit.length > projectFile.length()) {
+            logger.info("Journal of " + projectFile + " outgrows the project, writing it in full");
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(commit);
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+            if (length == 0) {
+                journal.setLength(0);
+                journal.writeInt(MAGIC);
+                journal.writeShort(VERSION);
+                journal.writeLong(archiveId);
+            } else {
+                // Writes over an incomplete commit left by a crash.
+                journal.setLength(length);
+                journal.seek(length);
+            }
+            ByteArrayOutputStream record = new ByteArrayOutputStream(8 + commit.length);
+            DataOutputStream recordOut = new DataOutputStream(record);
+            recordOut.writeInt(commit.length);
+            recordOut.writeInt((int) crc.getValue());
+            recordOut.write(commit);
+            journal.write(record.toByteArray());
+            journal.getChannel().force(false);
+        }
+        logger.info("Journaled " + changed + " of " + live.size() + " variables of " + projectFile);
+
+        length = start + 8 + commit.length;
+        this.project = project;
+        this.settings = new LinkedHashMap<>(settings);
+        variables = live;
+        copies = saved;
+        return true;
+    }
+
+    private boolean sameSettings(final Map<String, byte[]> settings) {
+        if (!settings.keySet().equals(this.settings.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> setting : settings.entrySet()) {
+            if (!Arrays.equals(setting.getValue(), this.settings.get(setting.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new journal for an archive that has just been written in full.
+     *
+     * @param projectFile The archive.
+     * @param dataStore   The data store written to the archive.
+     * @param writer      The writer of the data store.
+     * @param project     The project, as written to the archive.
+     * @param settings    The viewer settings of the project by id, as written to the archive.
+     * @throws IOException If the archive can not be read.
+     */
+    static void checkpoint(final File projectFile, final DataStore dataStore, final BinaryDataStoreWriter writer,
+                           final byte[] project, final Map<String, byte[]> settings) throws IOException {
+        discard(projectFile);
+        ProjectJournal journal;
+        try (ZipFile zipFile = new ZipFile(projectFile)) {
+            journal = new ProjectJournal(projectFile, archiveId(zipFile));
+        }
+        journal.project = project;
+        journal.settings = new LinkedHashMap<>(settings);
+        journal.track(dataStore, writer.getVariables(), writer.getSnapshot());
+        register(projectFile, journal);
+    }
+
+    /**
+     * Stops journaling the saves of an archive, so the next save writes it in full.
+     *
+     * @param projectFile The archive.
+     */
+    static void stopTracking(final File projectFile) {
+        register(projectFile, null);
+    }
+
+    /**
+     * Deletes the journal of an archive that has just been written in full, and stops journaling its saves.
+     *
+     * @param projectFile The archive.
+     */
+    static void discard(final File projectFile) {
+        register(projectFile, null);
+        File file = journalFile(projectFile);
+        if (file.exists() && !file.delete()) {
+            logger.error("Unable to delete " + file);
+        }
+    }
+
+    /**
+     * @param zipFile An archive.
+     * @return A checksum of the entries of the archive.
+     */
+    private static long archiveId(final ZipFile zipFile) {
+        long id = 17;
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+            ZipEntry entry = entries.nextElement();
+            id = 31 * (31 * (31 * id + entry.getName().hashCode()) + entry.getCrc()) + entry.getSize();
+        }
+        return id;
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Passes the data store to an R script and reads what the script leaves in datavyu_out back.
+ *
+ * Every variable is written to a CSV file of its own in a temporary directory, on the fork/join pool, in a single
+ * pass over its cells in temporal order: a row per cell with the ordinal, onset and offset and the quoted values, one
+ * column per argument, or one column 'arg' for a variable that is not a matrix. The R code of getLoadCode reads them
+ * into the list db as db[["name"]], with the name of the variable in lower case. Only the types of the ordinal, onset
+ * and offset columns are given; R guesses the types of the code columns and makes syntactic names of them, with the
+ * defaults of read.csv, as scripts have always seen them.
+ *
+ * The script can set datavyu_out to a named list of data frames with onset and offset columns and a column per code,
+ * e.g. a data frame of db, changed. The R code of getSaveCode writes them out as CSV files, which read turns into
+ * variables: a data frame with the name and the codes of a variable replaces its cells, and any other becomes a new
+ * variable, or replaces the one with its name. A single code column named 'arg' makes a text variable, other code
+ * columns make a matrix of nominals.
+ */
+final class RDataBridge implements Closeable {
+
+    /** The R variable that the script leaves its results in. */
+    static final String OUTPUT = "datavyu_out";
+
+    /** The file in the output directory with the names of the data frames, written last. */
+    static final String NAMES = "names.txt";
+
+    /** The code column of a variable that is not a matrix. */
+    private static final String ARG = "arg";
+
+    private static final String ORDINAL = "ordinal";
+
+    private static final String ONSET = "onset";
+
+    private static final String OFFSET = "offset";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The reserved words of R, which make.names does not take as they are. */
+    private static final Set<String> R_RESERVED = new HashSet<>(Arrays.asList("if", "else", "repeat", "while",
+            "function", "for", "next", "break", "TRUE", "FALSE", "NULL", "Inf", "NaN", "NA", "NA_integer_", "NA_real_",
+            "NA_character_", "NA_complex_", "in"));
+
+    private final File directory;
+
+    private final File output;
+
+    /** The R code that reads the exported variables into db. */
+    private final StringBuilder loadCode = new StringBuilder("db <- list()\n");
+
+    /**
+     * @throws IOException If unable to create the temporary directory.
+     */
+    RDataBridge() throws IOException {
+        directory = Files.createTempDirectory("datavyu-r").toFile();
+        output = new File(directory, "out");
+        if (!output.mkdir()) {
+            throw new IOException("Unable to create " + output);
+        }
+    }
+
+    /**
+     * Writes the variables of a data store to the temporary directory.
+     *
+     * @param dataStore The data store, of which a snapshot is written.
+     * @throws IOException If unable to write a variable.
+     */
+    void export(final DataStore dataStore) throws IOException {
+        List<Variable> variables = dataStore.snapshot().getAllVariables();
+        List<Future<String>> pending = new ArrayList<>(variables.size());
+        for (int i = 0; i < variables.size(); i++) {
+            final Variable variable = variables.get(i);
+            final File file = new File(directory, "column" + (i + 1) + ".csv");
+            pending.add(ForkJoinPool.commonPool().submit(() -> write(variable, file)));
+        }
+        for (int i = 0; i < variables.size(); i++) {
+            loadCode.append("db[[").append(rString(variables.get(i).getName().toLowerCase())).append("]] <- ")
+                    .append(await(pending.get(i))).append('\n');
+        }
+    }
+
+    /**
+     * Writes a variable to a file.
+     *
+     * @return The R code that reads the file.
+     */
+    private static String write(final Variable variable, final File file) throws IOException {
+        Argument rootNode = variable.getRootNode();
+        boolean matrix = rootNode.type == Argument.Type.MATRIX;
+        int codes = matrix ? rootNode.childArguments.size() : 1;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            out.write(ORDINAL + ',' + ONSET + ',' + OFFSET);
+            if (matrix) {
+                for (Argument child : rootNode.childArguments) {
+                    out.write(',');
+                    writeQuoted(out, child.name);
+                }
+            } else {
+                out.write(',' + ARG);
+            }
+            out.write('\n');
+
+            int ordinal = 0;
+            for (Cell cell : variable.getCellsTemporally()) {
+                out.write(Integer.toString(++ordinal));
+                out.write(',');
+                out.write(Long.toString(cell.getOnset()));
+                out.write(',');
+                out.write(Long.toString(cell.getOffset()));
+                CellValue value = cell.getCellValue();
+                if (matrix) {
+                    for (CellValue argument : ((MatrixCellValue) value).getArguments()) {
+                        out.write(',');
+                        writeQuoted(out, argument.isEmpty() ? "" : argument.toString());
+                    }
+                } else {
+                    out.write(',');
+                    writeQuoted(out, value.isEmpty() ? "" : value.toString());
+                }
+                out.write('\n');
+            }
+        }
+
+        // NA leaves the type of a code column to R.
+        StringBuilder classes = new StringBuilder("c(\"integer\", \"numeric\", \"numeric\"");
+        if (codes > 0) {
+            classes.append(", rep(NA, ").append(codes).append(')');
+        }
+        return "read.csv(" + rString(path(file)) + ", colClasses = " + classes.append(')')
+                + ", fileEncoding = \"UTF-8\")";
+    }
+
+    private static void writeQuoted(final Writer out, final String value) throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int quote = value.indexOf('"'); quote >= 0; quote = value.indexOf('"', quote + 1)) {
+            out.write(value, start, quote + 1 - start);
+            out.write('"');
+            start = quote + 1;
+        }
+        out.write(value, start, value.length() - start);
+        out.write('"');
+    }
+
+    /**
+     * @return The R code that reads the exported variables into the list db.
+     */
+    String getLoadCode() {
+        return loadCode.toString();
+    }
+
+    /**
+     * @return The R code to run after the script, that writes datavyu_out to the output directory if it was set.
+     */
+    String getSaveCode() {
+        String dir = rString(path(output));
+        return "if (exists(\"" + OUTPUT + "\")) local({\n"
+                + "    out <- get(\"" + OUTPUT + "\")\n"
+                + "    if (!is.list(out) || is.data.frame(out) || is.null(names(out))) {\n"
+                + "        stop(\"" + OUTPUT + " must be a named list of data frames\")\n"
+                + "    }\n"
+                + "    options(scipen = 999)\n"
+                + "    for (i in seq_along(out)) {\n"
+                + "        write.csv(as.data.frame(out[[i]], stringsAsFactors = FALSE), file.path(" + dir
+                + ", paste0(i, \".csv\")), row.names = FALSE, na = \"\", fileEncoding = \"UTF-8\")\n"
+                + "    }\n"
+                + "    con <- file(file.path(" + dir + ", \"" + NAMES + "\"), open = \"w\", encoding = \"UTF-8\")\n"
+                + "    writeLines(names(out), con)\n"
+                + "    close(con)\n"
+                + "})\n";
+    }
+
+    /**
+     * @return The directory that the R code of getSaveCode writes to.
+     */
+    File getOutputDirectory() {
+        return output;
+    }
+
+    /**
+     * @return True if the script set datavyu_out.
+     */
+    boolean hasOutput() {
+        return new File(output, NAMES).isFile();
+    }
+
+    /**
+     * Reads the data frames of datavyu_out into the variables of a data store.
+     *
+     * @param dataStore The data store to change, a copy of the spreadsheet's.
+     * @return The names of the variables that were written.
+     * @throws IOException          If unable to read the output.
+     * @throws UserWarningException If the output can not be turned into variables; the data store may have been
+     *                              changed in part then.
+     */
+    List<String> read(final DataStore dataStore) throws IOException, UserWarningException {
+        List<String> names = Files.readAllLines(new File(output, NAMES).toPath(), StandardCharsets.UTF_8);
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if (name.isEmpty()) {
+                throw new UserWarningException("Data frame " + (i + 1) + " of " + OUTPUT + " has no name.");
+            }
+            if (!seen.add(name)) {
+                throw new UserWarningException("There are two data frames named '" + name + "' in " + OUTPUT + ".");
+            }
+            try (Reader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(new File(output, (i + 1) + ".csv")), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                readVariable(dataStore, name, in);
+            }
+        }
+        return names;
+    }
+
+    private static void readVariable(final DataStore dataStore, final String name, final Reader in)
+            throws IOException, UserWarningException {
+        List<String> header = readRecord(in);
+        int onsetColumn = header == null ? -1 : header.indexOf(ONSET);
+        int offsetColumn = header == null ? -1 : header.indexOf(OFFSET);
+        if (onsetColumn < 0 || offsetColumn < 0) {
+            throw new UserWarningException("The data frame '" + name + "' of " + OUTPUT
+                    + " needs an onset and an offset column.");
+        }
+        List<Integer> codeColumns = new ArrayList<>();
+        List<String> codes = new ArrayList<>();
+        for (int i = 0; i < header.size(); i++) {
+            if (i != onsetColumn && i != offsetColumn && !header.get(i).equals(ORDINAL)) {
+                codeColumns.add(i);
+                codes.add(header.get(i));
+            }
+        }
+        if (codes.isEmpty()) {
+            throw new UserWarningException("The data frame '" + name + "' of " + OUTPUT + " has no code columns.");
+        }
+
+        // The variable is created again, so that the changes are found from the cells alone; one with the same
+        // name and arguments keeps its place and its cells that stay the same.
+        Variable old = dataStore.getVariable(name);
+        Argument rootNode;
+        if (old != null && fits(old.getRootNode(), codes)) {
+            rootNode = old.getRootNode().copy();
+        } else if (codes.size() == 1 && codes.get(0).equals(ARG)) {
+            rootNode = new Argument("var", Argument.Type.TEXT);
+        } else {
+            rootNode = new Argument(name + name.hashCode(), Argument.Type.MATRIX);
+            rootNode.clearChildArguments();
+            for (String code : codes) {
+                rootNode.childArguments.add(new Argument(code, Argument.Type.NOMINAL));
+            }
+        }
+        boolean matrix = rootNode.type == Argument.Type.MATRIX;
+        if (old != null) {
+            dataStore.removeVariable(old);
+        }
+        Variable variable = dataStore.createVariable(name, rootNode.type, old != null);
+        variable.setRootNode(rootNode);
+        if (old != null) {
+            variable.setHidden(old.isHidden());
+        }
+
+        int row = 1;
+        for (List<String> record = readRecord(in); record != null; record = readRecord(in)) {
+            row++;
+            if (record.size() != header.size()) {
+                throw new UserWarningException("Line " + row + " of the data frame '" + name + "' of " + OUTPUT
+                        + " has " + record.size() + " columns instead of " + header.size() + ".");
+            }
+            Cell cell = variable.createCell(parseTime(record.get(onsetColumn), name, row),
+                    parseTime(record.get(offsetColumn), name, row));
+            for (int i = 0; i < codeColumns.size(); i++) {
+                String value = record.get(codeColumns.get(i));
+                if (value.isEmpty()) {
+                    continue;
+                }
+                if (matrix) {
+                    cell.setMatrixValue(i, value);
+                } else {
+                    cell.getCellValue().set(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if a variable with the arguments of a root node takes the codes as they are, or as R named them
+     * when it read the variable.
+     */
+    private static boolean fits(final Argument rootNode, final List<String> codes) {
+        if (rootNode.type != Argument.Type.MATRIX) {
+            return codes.size() == 1 && codes.get(0).equals(ARG);
+        }
+        List<String> names = new ArrayList<>();
+        for (Argument child : rootNode.childArguments) {
+            names.add(child.name);
+        }
+        return names.equals(codes) || rNames(names).equals(codes);
+    }
+
+    /**
+     * Makes the names that read.csv gives the code columns, like make.names(unique = TRUE) does with the header: an
+     * invalid character becomes a dot, a name that does not start with a letter or a dot gets an X in front and a
+     * reserved word a dot after it, and repeated names get a number.
+     *
+     * @param codes The names of the code columns, which follow the ordinal, onset and offset columns.
+     * @return The names of the code columns in R.
+     */
+    static List<String> rNames(final List<String> codes) {
+        Set<String> used = new HashSet<>(Arrays.asList(ORDINAL, ONSET, OFFSET));
+        List<String> result = new ArrayList<>(codes.size());
+        for (String code : codes) {
+            StringBuilder name = new StringBuilder(code.length() + 1);
+            for (int i = 0; i < code.length(); i++) {
+                char c = code.charAt(i);
+                name.append(Character.isLetterOrDigit(c) || c == '.' || c == '_' ? c : '.');
+            }
+            boolean valid = name.length() > 0 && (Character.isLetter(name.charAt(0))
+                    || name.charAt(0) == '.' && (name.length() == 1 || !Character.isDigit(name.charAt(1))));
+            if (!valid) {
+                name.insert(0, 'X');
+            }
+            if (R_RESERVED.contains(name.toString())) {
+                name.append('.');
+            }
+            String unique = name.toString();
+            for (int n = 1; !used.add(unique); n++) {
+                unique = name + "." + n;
+            }
+            result.add(unique);
+        }
+        return result;
+    }
+
+    /**
+     * @return A time in milliseconds, which R may have written as a decimal.
+     */
+    private static long parseTime(final String time, final String name, final int row) throws UserWarningException {
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            try {
+                double value = Double.parseDouble(time);
+                if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                    return Math.round(value);
+                }
+            } catch (NumberFormatException ignored) {
+                // Reported below.
+            }
+            throw new UserWarningException("Line " + row + " of the data frame '" + name + "' of " + OUTPUT
+                    + " has the time '" + time + "', which is not a number of milliseconds.");
+        }
+    }
+
+    /**
+     * Reads a record of a CSV file as R writes it: values separated by commas, quoted when they start with a quote,
+     * with quotes in them doubled; the lines end with a line feed, or a carriage return and a line feed.
+     *
+     * @return The values of the record, or null at the end of the file.
+     */
+    static List<String> readRecord(final Reader in) throws IOException {
+        int c = in.read();
+        if (c < 0) {
+            return null;
+        }
+        List<String> record = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        boolean inQuotes = false;
+        while (true) {
+            if (inQuotes) {
+                if (c < 0) {
+                    throw new EOFException("A quoted value is not closed.");
+                }
+                if (c == '"') {
+                    c = in.read();
+                    if (c != '"') {
+                        inQuotes = false;
+                        continue;
+                    }
+                }
+                value.append((char) c);
+            } else if (c == '"' && value.length() == 0 && !quoted) {
+                quoted = true;
+                inQuotes = true;
+            } else if (c == ',') {
+                record.add(value.toString());
+                value.setLength(0);
+                quoted = false;
+            } else if (c < 0 || c == '\n') {
+                record.add(value.toString());
+                return record;
+            } else if (c != '\r') {
+                value.append((char) c);
+            }
+            c = in.read();
+        }
+    }
+
+    private static String await(final Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting", e);
+        }
+    }
+
+    /**
+     * @return The path of a file for R, which takes forward slashes on every platform.
+     */
+    private static String path(final File file) {
+        return file.getAbsolutePath().replace('\\', '/');
+    }
+
+    /**
+     * @return A string literal of R.
+     */
+    static String rString(final String s) {
+        StringBuilder result = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    result.append('\\').append(c);
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                case '\r':
+                    result.append("\\r");
+                    break;
+                case '\t':
+                    result.append("\\t");
+                    break;
+                default:
+                    result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    /**
+     * Deletes the temporary files.
+     */
+    @Override
+    public void close() {
+        delete(directory);
+    }
+
+    private static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
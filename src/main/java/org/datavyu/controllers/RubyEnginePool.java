@@ -0,0 +1,120 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.LocalVariableBehavior;
+import org.jruby.embed.ScriptingContainer;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps a Ruby engine ready for the next script, with Datavyu_API.rb loaded.
+ *
+ * Starting JRuby and loading the API takes seconds, which every script run used to wait for. Each engine has a
+ * runtime of its own and runs a single script, so nothing a script defines is seen by the next one; as one is taken
+ * the next is started in the background. The engines are scripting containers rather than JSR 223 engines, as the
+ * JRuby engine factory only takes the scope of its runtimes from system properties, which would apply to every other
+ * user of JRuby in the application as well.
+ */
+public final class RubyEnginePool {
+
+    /** The logger instance for this class */
+    private static Logger logger = LogManager.getLogger(RubyEnginePool.class);
+
+    /** Sets the globals of the API that refer to the project, which may have changed since the engine was loaded. */
+    private static final String RESET = "$debug = false\n"
+            + "$db = Datavyu.get_project_controller.get_data_store\n"
+            + "$pj = Datavyu.get_project_controller.get_project\n"
+            + "$sp = Datavyu.get_view\n";
+
+    private static final ExecutorService WARM_UP = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Ruby warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /** The engine for the next script, null when none is warming up. */
+    private static Future<ScriptingContainer> next;
+
+    private RubyEnginePool() {
+    }
+
+    /**
+     * Starts loading an engine in the background, unless one is already.
+     */
+    public static synchronized void warmUp() {
+        if (next == null) {
+            next = WARM_UP.submit(RubyEnginePool::newEngine);
+        }
+    }
+
+    /**
+     * Takes the engine loaded in the background, or loads one if there is none, and starts loading the next.
+     *
+     * @return An engine with the API loaded, for one script: it is to be terminated afterwards.
+     * @throws org.jruby.embed.EvalFailedException If unable to load the API.
+     */
+    public static ScriptingContainer take() {
+        long start = System.nanoTime();
+        Future<ScriptingContainer> warm;
+        synchronized (RubyEnginePool.class) {
+            warm = next;
+            next = null;
+        }
+
+        ScriptingContainer engine = null;
+        if (warm != null) {
+            try {
+                engine = warm.get();
+            } catch (ExecutionException e) {
+                // Load it again below, where the error reaches the script's console.
+                logger.warn("Unable to load the Ruby engine in the background: ", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        boolean cold = engine == null;
+        if (cold) {
+            engine = newEngine();
+        }
+        engine.runScriptlet(RESET);
+        logger.info("Ruby engine ready in " + (System.nanoTime() - start) / 1000000 + " ms ("
+                + (cold ? "cold" : "warm") + ")");
+
+        warmUp();
+        return engine;
+    }
+
+    /**
+     * @return A new engine, with a runtime of its own, with the API loaded.
+     * @throws org.jruby.embed.EvalFailedException If unable to load the API.
+     */
+    private static ScriptingContainer newEngine() {
+        long start = System.nanoTime();
+        // A runtime per engine, not bound to the thread that made it; local variables do not outlive a script.
+        ScriptingContainer engine = new ScriptingContainer(LocalContextScope.SINGLETHREAD,
+                LocalVariableBehavior.TRANSIENT);
+        engine.runScriptlet("load 'Datavyu_API.rb'\n");
+        logger.info("Loaded a Ruby engine in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return engine;
+    }
+}
@@ -20,17 +20,22 @@ import org.apache.logging.log4j.Logger;
 import org.datavyu.Datavyu;
 import org.datavyu.FileHistory;
 import org.datavyu.models.db.*;
+import org.datavyu.undoableedits.ScriptChangesEdit;
+import org.datavyu.util.ConfigProperties;
 import org.datavyu.util.FileFilters.RbFilter;
 import org.datavyu.views.ConsoleV;
 import org.datavyu.views.DatavyuFileChooser;
-import org.jruby.embed.AttributeName;
+import org.jruby.embed.EvalFailedException;
+import org.jruby.embed.ParseFailedException;
+import org.jruby.embed.ScriptingContainer;
 import com.github.rcaller.rstuff.RCaller;
 import com.github.rcaller.rstuff.RCode;
 
-import javax.script.*;
 import javax.swing.*;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -63,6 +68,9 @@ public final class RunScriptController extends SwingWorker<Object, String> {
 
     private StringBuilder outString = new StringBuilder("");
 
+    /** True if the script runs on a copy of the spreadsheet, see ConfigProperties.getScriptsOnCopy */
+    private boolean onCopy;
+
     /**
      * Constructs and invokes the run script controller.
      *
@@ -118,6 +126,20 @@ public final class RunScriptController extends SwingWorker<Object, String> {
         OutputStream sIn2 = new PipedOutputStream(consoleOutputStreamAfter);
         consoleWriter = new OutputStreamWriter(sIn);
         consoleWriterAfter = new OutputStreamWriter(sIn2);
+        // R scripts always do: they only change the spreadsheet through what they leave in datavyu_out.
+        onCopy = isRScript() || ConfigProperties.getInstance().getScriptsOnCopy();
+    }
+
+    /**
+     * @return True if the script runs on a copy of the spreadsheet and posts its own undoable edit of the changes it
+     * made, false if it changes the spreadsheet as it goes.
+     */
+    public boolean isRunningOnCopy() {
+        return onCopy;
+    }
+
+    private boolean isRScript() {
+        return scriptFile != null && (scriptFile.getName().endsWith(".r") || scriptFile.getName().endsWith(".R"));
     }
 
     @Override
@@ -131,7 +153,7 @@ public final class RunScriptController extends SwingWorker<Object, String> {
 
         if (scriptFile.getName().endsWith(".rb")) {
             runRubyScript(scriptFile);
-        } else if (scriptFile.getName().endsWith(".r") || scriptFile.getName().endsWith(".R")) {
+        } else if (isRScript()) {
             runRScript(scriptFile);
         }
 
@@ -145,24 +167,16 @@ public final class RunScriptController extends SwingWorker<Object, String> {
         return null;
     }
 
-    private static boolean rubyScriptIsRunning = false;
+    private static final AtomicBoolean rubyScriptIsRunning = new AtomicBoolean();
 
     private void runRubyScript(File scriptFile) {
         // The scripting engine factory that we use with Datavyu
 
-        if (rubyScriptIsRunning) {
+        if (!rubyScriptIsRunning.compareAndSet(false, true)) {
             JOptionPane.showMessageDialog(null, "A script is running. One script at a time!");
             return;
         }
-        rubyScriptIsRunning = true;
         outString = new StringBuilder("");
-        // init script engine
-        System.setProperty("org.jruby.embed.localvariable.behavior", "transient");
-        ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
-        ScriptEngineFactory scriptEngineFactory = scriptEngineManager.getEngineByName("jruby").getFactory();
-        ScriptEngine rubyEngine = scriptEngineFactory.getScriptEngine();
-        ScriptContext rubyContext = new SimpleScriptContext();
-//        rubyContext.setAttribute("db", Datavyu.getProjectController().getDataStore(), ScriptContext.ENGINE_SCOPE);
 
         try {
             try {
@@ -175,32 +189,26 @@ public final class RunScriptController extends SwingWorker<Object, String> {
                 // Place reference to various Datavyu functionality.
 
                 logger.info("Project controller uses data store: " + Datavyu.getProjectController().getDataStore());
-                String path = System.getProperty("user.dir") + File.separator;
-                
-                rubyEngine.put("path", path);
+                // The script changes a copy, away from the spreadsheet, which gets the changes once it has finished.
+                DataStoreCopy copy = onCopy ? DataStoreCopy.of(Datavyu.getProjectController().getDataStore()) : null;
 
                 FileReader scriptReader = new FileReader(scriptFile);
                 LineNumberReader lineReader = new LineNumberReader(
                         fileReaderIntoStringReader(scriptReader));
 
-                rubyEngine.setContext(rubyContext);
-                rubyEngine.getContext().setWriter(consoleWriter);
-                rubyEngine.getContext().setErrorWriter(consoleWriter);
-                rubyEngine.getContext().setAttribute(AttributeName.TERMINATION.toString(), true,
-                        ScriptContext.ENGINE_SCOPE);
-                rubyEngine.getContext().setAttribute(AttributeName.CLEAR_VARAIBLES.toString(), true,
-                        ScriptContext.ENGINE_SCOPE);
                 try{
-                    rubyEngine.eval("load 'Datavyu_API.rb'\n");
-                    rubyEngine.eval(lineReader);
+                    runRuby(lineReader, copy, consoleWriter);
                     consoleWriter.close();
 
+                    if (copy != null) {
+                        consoleWriterAfter.write(applyChanges(copy.diff()));
+                    }
                     consoleWriterAfter.write("\nScript has finished running.");
                     consoleWriterAfter.flush();
                     consoleWriterAfter.close();
                     lineReader.close();
                 }
-                catch (ScriptException e) {
+                catch (EvalFailedException | ParseFailedException e) {
                     //unfortunately the above seems to always be final line not line of error. still, no noticeable
                     // performance difference, so im leaving the LineNumberReader wrap
                     String msg = makeFriendlyRubyErrorMsg(outString.toString(), e);
@@ -208,6 +216,9 @@ public final class RunScriptController extends SwingWorker<Object, String> {
                     consoleWriter.close();
                     consoleWriterAfter.write("\n\n***** SCRIPT ERROR *****\n");
                     consoleWriterAfter.write(msg);
+                    if (copy != null) {
+                        consoleWriterAfter.write("\nThe spreadsheet has not been changed.");
+                    }
                     consoleWriterAfter.write("\n*************************\n");
                     consoleWriterAfter.flush();
                     logger.error("Unable to execute script: ", e);
@@ -225,11 +236,74 @@ public final class RunScriptController extends SwingWorker<Object, String> {
         } catch (IOException ioe) {
             logger.error("IO Exception occurred when executing the ruby script", ioe);
         } finally{
-            rubyScriptIsRunning = false;
+            rubyScriptIsRunning.set(false);
         }
         Datavyu.getView().getSpreadsheetPanel().redrawCells();
     }
     
+    /**
+     * Runs a Ruby script in an engine from the pool.
+     *
+     * @param script The script.
+     * @param copy   The copy of the spreadsheet the script changes; null to let it change the spreadsheet itself.
+     * @param output Where the script writes to.
+     * @throws EvalFailedException  If the script fails.
+     * @throws ParseFailedException If the script can not be parsed.
+     */
+    static void runRuby(final Reader script, final DataStoreCopy copy, final Writer output) {
+        // Usually loaded in the background since the last script: the API is already in it.
+        long start = System.nanoTime();
+        ScriptingContainer rubyEngine = RubyEnginePool.take();
+        logger.info("Script started after " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        try {
+            rubyEngine.put("path", System.getProperty("user.dir") + File.separator);
+            if (copy != null) {
+                rubyEngine.put("$db", copy.getCopy());
+            }
+            rubyEngine.setWriter(output);
+            rubyEngine.setErrorWriter(output);
+            rubyEngine.runScriptlet(script, "<script>");
+        } finally {
+            rubyEngine.terminate();
+        }
+    }
+
+    /**
+     * Applies the changes a script made to its copy of the spreadsheet, in one pass on the event dispatch thread, and
+     * posts them as an undoable edit.
+     *
+     * @param changes The changes made by the script.
+     * @return The message for the console.
+     */
+    private String applyChanges(final DataStoreDiff changes) {
+        if (changes.isEmpty()) {
+            return "\nThe spreadsheet has not been changed.";
+        }
+        final String[] failure = new String[1];
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                ScriptChangesEdit edit = new ScriptChangesEdit(getScriptFilePath(), changes);
+                try {
+                    edit.apply();
+                    Datavyu.getView().getUndoSupport().postEdit(edit);
+                } catch (UserWarningException e) {
+                    failure[0] = e.getMessage();
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure[0] = "Interrupted.";
+        } catch (InvocationTargetException e) {
+            logger.error("Unable to apply the changes of the script: ", e.getCause());
+            failure[0] = String.valueOf(e.getCause());
+        }
+        if (failure[0] != null) {
+            return "\nThe spreadsheet has not been changed: " + failure[0];
+        }
+        return "\nChanged the spreadsheet: " + changes + ".";
+    }
+
     private StringReader fileReaderIntoStringReader(FileReader fr) throws IOException
     {
         BufferedReader br = new BufferedReader(fr);
@@ -247,7 +321,7 @@ public final class RunScriptController extends SwingWorker<Object, String> {
         return new StringReader(sb.toString());
     }
 
-    private String makeFriendlyRubyErrorMsg(String out, ScriptException e) {
+    private String makeFriendlyRubyErrorMsg(String out, RuntimeException e) {
         try {
             if (out.lastIndexOf("<script>") == -1) return e.getMessage();
             String s = "";
@@ -289,109 +363,59 @@ public final class RunScriptController extends SwingWorker<Object, String> {
 
         caller.redirectROutputToStream(sIn);
 
-        // Initialize our code buffer and database string representation
-        RCode code = RCode.create();
-        HashMap db = convertDbToColStrings();
-        HashMap<String, File> tempFiles = new HashMap<>();
+        try (RDataBridge bridge = new RDataBridge()) {
+            // Write the database out to temporary files, which are read into a list called db
+            long start = System.nanoTime();
+            bridge.export(Datavyu.getProjectController().getDataStore());
+            logger.info("Exported the spreadsheet for R in " + (System.nanoTime() - start) / 1000000 + " ms");
 
-        // Write the database out to temporary files
-        Iterator it = db.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry pairs = (Map.Entry) it.next();
+            RCode code = RCode.create();
+            code.addRCode(bridge.getLoadCode());
 
-            // Now write this out to a temporary file
-            File outfile = new File(System.getProperty("java.io.tmpdir"), (String) pairs.getKey());
+            // Set up plotting. If something gets plotted, display it. Otherwise, just run the code.
             try {
-                BufferedWriter output = new BufferedWriter(new FileWriter(outfile));
-                output.write((String) pairs.getValue());
-                output.close();
-                tempFiles.put((String) pairs.getKey(), outfile);
-            } catch (IOException e) {
-                logger.error("Writing output to temporary files failed. Error: ", e);
-            }
-            it.remove(); // avoids a ConcurrentModificationException
-        }
-
-        // Create the R code to read in the temporary db files into a structure
-        // called db
-        code.addRCode("db <- list()");
-        try {
-            // Load each of the temporary files created above into R
-            it = tempFiles.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry pairs = (Map.Entry) it.next();
-
-                String load = "db[[\"" + ((String) pairs.getKey()).toLowerCase() + "\"]] <- read.csv(\""
-                        + ((File) pairs.getValue()).getPath() + "\",header=TRUE, sep=',')";
-                code.addRCode(load);
-
-                it.remove(); // avoids a ConcurrentModificationException
+                File plt = code.startPlot();
+                code.R_source(scriptFile.getPath());
+                code.addRCode(bridge.getSaveCode());
+                caller.setRCode(code);
+                caller.runOnly();
+                code.endPlot();
+                if (plt.length() > 0) {
+                    code.showPlot(plt);
+                }
+            } catch (Exception e) {
+                logger.error("Failed when plotting. Error: ", e);
             }
-        } catch (Exception e) {
-            logger.error("Loading of temporary files failed. Error: ", e);
-        }
+            consoleWriter.close();
 
-        // Set up plotting. If something gets plotted, display it. Otherwise, just run the code.
-        try {
-            File plt = code.startPlot();
-            code.R_source(scriptFile.getPath());
-            caller.setRCode(code);
-            caller.runOnly();
-            code.endPlot();
-            if (plt.length() > 0) {
-                code.showPlot(plt);
+            if (bridge.hasOutput()) {
+                consoleWriterAfter.write(updateDbFromR(bridge));
             }
-        } catch (Exception e) {
-            logger.error("Failed when plotting. Error: ", e);
+            consoleWriterAfter.write("\nScript has finished running.");
+            consoleWriterAfter.flush();
+        } catch (IOException e) {
+            logger.error("Unable to pass the spreadsheet to R. Error: ", e);
         }
     }
 
-    private void updateDbFromR() {
-        // TODO: Fill in the code here
-    }
-
     /**
-     * Convert the Datavyu database to a csv file per column.
-     * This allows for easy reading into R.
+     * Reads what the script left in datavyu_out back into the spreadsheet, as one undoable edit.
+     *
+     * @return The message for the console.
      */
-    private HashMap<String, String> convertDbToColStrings() {
-        // TODO: Use StringBuilder here
-        DataStore db = Datavyu.getProjectController().getDataStore();
-        HashMap<String, String> str_db = new HashMap<>();
-
-        String str_var;
-        for (Variable v : db.getAllVariables()) {
-            str_var = "ordinal,onset,offset";
-            if (v.getRootNode().type == Argument.Type.MATRIX) {
-                for (Argument a : v.getRootNode().childArguments) {
-                    str_var += "," + a.name;
-                }
-            } else {
-                str_var += ",arg";
-            }
-            str_var += "\n";
-            for (int i = 0; i < v.getCellsTemporally().size(); i++) {
-                Cell c = v.getCellsTemporally().get(i);
-
-                String row = String.format("%d,%d,%d", i + 1, c.getOnset(), c.getOffset());
-                if (v.getRootNode().type == Argument.Type.MATRIX) {
-                    for (CellValue val : ((MatrixCellValue) c.getCellValue()).getArguments()) {
-                        row += ",";
-                        if (!val.isEmpty())
-                            row += val.toString();
-                    }
-                } else {
-                    row += ",";
-                    if (!c.getCellValue().isEmpty()) {
-                        row += c.getCellValue().toString();
-                    }
-                }
-                str_var += row + "\n";
-            }
-            str_db.put(v.getName(), str_var);
+    private String updateDbFromR(final RDataBridge bridge) {
+        DataStoreCopy copy = DataStoreCopy.of(Datavyu.getProjectController().getDataStore());
+        try {
+            long start = System.nanoTime();
+            List<String> names = bridge.read(copy.getCopy());
+            logger.info("Read " + names.size() + " columns back from R in " + (System.nanoTime() - start) / 1000000
+                    + " ms");
+        } catch (IOException | UserWarningException e) {
+            logger.error("Unable to read the output of R. Error: ", e);
+            return "\nUnable to read " + RDataBridge.OUTPUT + ": " + e.getMessage()
+                    + "\nThe spreadsheet has not been changed.";
         }
-
-        return str_db;
+        return applyChanges(copy.diff());
     }
 
     @Override
@@ -22,14 +22,16 @@ import org.datavyu.models.db.DataStore;
 import org.datavyu.models.db.UserWarningException;
 import org.datavyu.models.project.Project;
 import org.datavyu.models.project.ViewerSetting;
+import org.datavyu.util.ConfigProperties;
 import org.jdesktop.application.Application;
 import org.jdesktop.application.ResourceMap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Master controller for handling project and database file saving logic.
@@ -95,35 +97,55 @@ public final class SaveController {
      */
     protected void saveProject(final File projectFile, final Project project, final DataStore dataStore, boolean remember)
             throws UserWarningException {
+        saveProject(projectFile, project, dataStore, remember, ConfigProperties.getInstance().getJournalSaves());
+    }
 
-        try {
-            logger.info("Save project.");
+    /**
+     * Saves an entire project to disk in full, folding the journal of its earlier saves into the project file.
+     *
+     * @param projectFile The destination to save the project too
+     * @param project The project to save to disk
+     * @param dataStore The dataStore to save to disk
+     * @throws UserWarningException If unable to save the entire project to disk
+     */
+    public void compactProject(final File projectFile, final Project project, final DataStore dataStore)
+            throws UserWarningException {
+        ProjectJournal.stopTracking(projectFile);
+        saveProject(projectFile, project, dataStore, true);
+    }
 
-            FileOutputStream fos = new FileOutputStream(projectFile);
-            ZipOutputStream zos = new ZipOutputStream(fos);
+    /**
+     * @param journal Append the changes to the journal of the project file when possible, instead of writing it in
+     *                full; see ProjectJournal. The project file is written in full again once the journal would grow
+     *                larger than it.
+     */
+    private void saveProject(final File projectFile, final Project project, final DataStore dataStore,
+                             boolean remember, boolean journal) throws UserWarningException {
 
-            ZipEntry projectEntry = new ZipEntry("project");
-            zos.putNextEntry(projectEntry);
-            new SaveProjectFileController().save(zos, project);
-            zos.closeEntry();
+        try {
+            logger.info("Save project.");
 
-            ZipEntry dbEntry = new ZipEntry("db");
-            zos.putNextEntry(dbEntry);
-            new SaveDataStoreFileController().saveAsCsv(zos, dataStore);
-            zos.closeEntry();
+            byte[] projectBytes = projectBytes(project);
+            Map<String, byte[]> settings = settingsBytes(project);
 
-            // BugzID:1806
-            for (ViewerSetting vs : project.getViewerSettings()) {
-                ZipEntry vsEntry = new ZipEntry(vs.getSettingsId());
-                zos.putNextEntry(vsEntry);
-                vs.writeSettings(zos);
+            if (journal && ProjectJournal.append(projectFile, dataStore, projectBytes, settings)) {
+                if (remember) {
+                    FileHistory.rememberProject(projectFile);
+                }
+                return;
             }
 
-            zos.finish();
-            zos.close();
+            // The archive is written next to the file and then moved over it, as the variables that have not been
+            // loaded yet are copied from it.
+            BinaryDataStoreWriter dataStoreWriter = new BinaryDataStoreWriter(dataStore);
+            BatchController.writeFile(projectFile,
+                    out -> writeArchive(out, projectBytes, dataStoreWriter, settings), true);
 
-            fos.flush();
-            fos.close();
+            if (journal) {
+                ProjectJournal.checkpoint(projectFile, dataStore, dataStoreWriter, projectBytes, settings);
+            } else {
+                ProjectJournal.discard(projectFile);
+            }
 
             if (remember) {
                 FileHistory.rememberProject(projectFile);
@@ -135,4 +157,84 @@ public final class SaveController {
             throw new UserWarningException(rMap.getString("UnableToSave.message", projectFile), e);
         }
     }
+
+    /**
+     * @param project The project to save.
+     * @return The project as saved in the "project" entry of an archive.
+     */
+    static byte[] projectBytes(final Project project) {
+        ByteArrayOutputStream projectOutput = new ByteArrayOutputStream();
+        new SaveProjectFileController().save(projectOutput, project);
+        return projectOutput.toByteArray();
+    }
+
+    /**
+     * @param project The project to save.
+     * @return The viewer settings of the project by id, as saved in the entries of an archive.
+     * @throws IOException If the settings can not be written.
+     */
+    static Map<String, byte[]> settingsBytes(final Project project) throws IOException {
+        Map<String, byte[]> settings = new LinkedHashMap<>();
+        for (ViewerSetting vs : project.getViewerSettings()) {
+            ByteArrayOutputStream vsOutput = new ByteArrayOutputStream();
+            vs.writeSettings(vsOutput);
+            settings.put(vs.getSettingsId(), vsOutput.toByteArray());
+        }
+        return settings;
+    }
+
+    /**
+     * Writes a project archive.
+     *
+     * @param out             The stream to write to; it is finished but not closed.
+     * @param project         The project, from projectBytes.
+     * @param dataStoreWriter The writer of the data store.
+     * @param settings        The viewer settings, from settingsBytes.
+     * @throws IOException If the archive can not be written.
+     */
+    static void writeArchive(final OutputStream out, final byte[] project, final BinaryDataStoreWriter dataStoreWriter,
+                             final Map<String, byte[]> settings) throws IOException {
+        writeArchive(out, project, dataStoreWriter, settings, ConfigProperties.getInstance().getSaveCompressionLevel());
+    }
+
+    /**
+     * @param level The compression level of the entries, see ArchiveWriter.
+     */
+    static void writeArchive(final OutputStream out, final byte[] project, final BinaryDataStoreWriter dataStoreWriter,
+                             final Map<String, byte[]> settings, final int level) throws IOException {
+        writeArchive(out, project, dataStoreWriter, settings, level, ConfigProperties.getInstance().getLegacySaves());
+    }
+
+    /**
+     * @param level The compression level of the entries, see ArchiveWriter.
+     * @param csv   True to also write the data store as CSV in the "db" entry, for older versions of Datavyu. This
+     *              loads the variables that have not been loaded yet, which the binary entries copy as they are.
+     */
+    static void writeArchive(final OutputStream out, final byte[] project, final BinaryDataStoreWriter dataStoreWriter,
+                             final Map<String, byte[]> settings, final int level, final boolean csv)
+            throws IOException {
+        ArchiveWriter archive = new ArchiveWriter(out, level);
+
+        archive.putEntry("project", project);
+
+        // The data store goes in the binary format, with an entry per variable, which is what OpenController reads.
+        // Older versions only read the single CSV "db" entry, so that is written next to it when asked for.
+        dataStoreWriter.write(archive);
+        if (csv) {
+            archive.putEntry("db", zos -> {
+                try {
+                    new SaveDataStoreFileController().saveAsCsv(zos, dataStoreWriter.getSnapshot());
+                } catch (UserWarningException e) {
+                    throw new IOException(e.getMessage(), e.getCause());
+                }
+            });
+        }
+
+        // BugzID:1806
+        for (Map.Entry<String, byte[]> vs : settings.entrySet()) {
+            archive.putEntry(vs.getKey(), vs.getValue());
+        }
+
+        archive.finish();
+    }
 }
@@ -62,41 +62,47 @@ public final class SaveDataStoreFileController {
     public void saveAsCsv(final OutputStream outStream, final DataStore dataStore) throws UserWarningException {
         logger.info("Save data store as CSV to stream");
 
-        PrintStream ps = new PrintStream(outStream);
-        ps.println("#4");  // Write an identifier for the version of file
-
-        for (Variable variable : dataStore.getAllVariables()) {
-            ps.printf("%s (%s,%s,%s)",
-                    StringUtils.escapeCSV(variable.getName()),
-                    variable.getRootNode().type,
-                    !variable.isHidden(),
-                    "");
-
-            if (variable.getRootNode().type == Argument.Type.MATRIX) {
-                ps.print('-');
-
-                int numArgs = 0;
-                for (Argument arg : variable.getRootNode().childArguments) {
-                    ps.printf("%s|%s",
-                            StringUtils.escapeCSV(arg.name),
-                            arg.type);
-
-                    if (numArgs < (variable.getRootNode().childArguments.size() - 1)) {
-                        ps.print(',');
+        CsvCellWriter out = new CsvCellWriter(outStream);
+        try {
+            out.append("#4");  // Write an identifier for the version of file
+            out.newLine();
+
+            // Write a snapshot, so the file holds one consistent state even while other threads keep editing.
+            DataStore snapshot = dataStore.snapshot();
+            for (Variable variable : snapshot.getAllVariables()) {
+                out.append(StringUtils.escapeCSV(variable.getName()))
+                        .append(" (")
+                        .append(variable.getRootNode().type.toString())
+                        .append(',')
+                        .append(String.valueOf(!variable.isHidden()))
+                        .append(",)");
+
+                if (variable.getRootNode().type == Argument.Type.MATRIX) {
+                    out.append('-');
+
+                    int numArgs = 0;
+                    for (Argument arg : variable.getRootNode().childArguments) {
+                        out.append(StringUtils.escapeCSV(arg.name))
+                                .append('|')
+                                .append(arg.type.toString());
+
+                        if (numArgs < (variable.getRootNode().childArguments.size() - 1)) {
+                            out.append(',');
+                        }
+                        numArgs++;
                     }
-                    numArgs++;
                 }
-            }
 
-            ps.println();
+                out.newLine();
 
-            for (Cell cell : variable.getCells()) {
-                ps.printf("%s,%s,%s",
-                        cell.getOnsetString(),
-                        cell.getOffsetString(),
-                        cell.getCellValue().serialize());
-                ps.println();
+                for (Cell cell : variable.getCellsTemporally()) {
+                    out.writeCell(cell);
+                }
             }
+            out.flush();
+        } catch (IOException e) {
+            logger.error("Unable to save data store as CSV", e);
+            throw new UserWarningException("Unable to save data store as CSV", e);
         }
     }
 
@@ -67,7 +67,9 @@ public class DatavyuProjectRepresenter extends Representer {
             Map<String, Object> map = new TreeMap<String, Object>();
             map.put("feed", viewerSetting.getFilePath());
 //            map.put("plugin", viewerSetting.0());
-            map.put("plugin", viewerSetting.getPluginUUID().toString());
+            // A viewer whose plugin was not looked up keeps the name it was saved with, which is read back the same.
+            map.put("plugin", viewerSetting.getPluginUUID() != null
+                    ? viewerSetting.getPluginUUID().toString() : viewerSetting.getPluginName());
 
             // BugzID:2108
             map.put("classifier", viewerSetting.getPluginClassifier());
@@ -51,6 +51,9 @@ public final class Argument implements Serializable {
 
     private int lastCodeNumber = 0;
 
+    // The values used for this argument, created on first use
+    private transient ValueDictionary dictionary;
+
     /**
      * Constructor.
      *
@@ -82,10 +85,33 @@ public final class Argument implements Serializable {
         return child;
     }
 
+    /**
+     * @return A copy of this argument and its child arguments, with the same names, types and ids.
+     */
+    public Argument copy() {
+        Argument copy = new Argument(name, type, id);
+        copy.childArguments.clear();
+        for (Argument child : childArguments) {
+            copy.childArguments.add(child.copy());
+        }
+        copy.lastCodeNumber = lastCodeNumber;
+        return copy;
+    }
+
     public void clearChildArguments() {
         childArguments.clear();
     }
 
+    /**
+     * @return The dictionary of the values used for this argument by the cells of its variable.
+     */
+    public ValueDictionary getDictionary() {
+        if (dictionary == null) {
+            dictionary = new ValueDictionary();
+        }
+        return dictionary;
+    }
+
     public boolean equals(Argument other) {
         return  other.id == this.id;
     }
@@ -0,0 +1,32 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.io.IOException;
+
+/**
+ * Loads the cells of a variable that was opened without them, see DataStore.createLazyVariable.
+ */
+public interface CellLoader {
+
+    /**
+     * Creates the cells of a variable with Variable.createCell(onset, offset) and sets their values.
+     *
+     * @param variable A stand-in for the variable being loaded, with the same name and root node; its cells are moved
+     *                 to the variable afterwards.
+     * @throws IOException If the cells can not be read.
+     */
+    void loadCells(final Variable variable) throws IOException;
+}
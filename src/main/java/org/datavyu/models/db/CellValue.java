@@ -22,6 +22,8 @@
  */
 package org.datavyu.models.db;
 
+import java.io.IOException;
+
 /**
  * The value held in a cell.
  */
@@ -63,5 +65,21 @@ public interface CellValue {
     
     String serialize();
 
+    /**
+     * Writes the value, as returned by toString, to the supplied output without building the string.
+     *
+     * @param out The output to write to.
+     * @throws IOException If the output can not be written.
+     */
+    void appendTo(final Appendable out) throws IOException;
+
+    /**
+     * Writes the value, as returned by serialize, to the supplied output without building the string.
+     *
+     * @param out The output to write to.
+     * @throws IOException If the output can not be written.
+     */
+    void serializeTo(final Appendable out) throws IOException;
+
     String getPlaceholderString();
 }
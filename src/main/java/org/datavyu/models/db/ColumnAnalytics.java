@@ -0,0 +1,498 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.*;
+
+/**
+ * The analyses of the Ruby API that go over the cells of whole columns, for the Ruby functions that keep their
+ * signatures: resample, create_mutually_exclusive, merge_columns, compute_kappa and make_duration_block_rel pass the
+ * times of their cells as arrays in one call, and make their new cells from the indices of the cells that come back.
+ *
+ * The Ruby versions searched all the cells of a column again for every new cell. Here the cells are swept once in
+ * order of onset while the new cells go forward in time, with the cells that have started and not ended at hand, so
+ * resample, mutuallyExclusive and merge take O((n + m) log n) for n cells and m new cells, and agreement pairs the
+ * cells in O(n) through a map of onsets. The results are those of the Ruby versions, cell for cell.
+ */
+public final class ColumnAnalytics {
+
+    /**
+     * New cells made from the cells of columns: their times and, for every column, the index of the cell each was
+     * made from, -1 for none.
+     */
+    public static final class Intervals {
+
+        private long[] onsets;
+
+        private long[] offsets;
+
+        private final int[][] sources;
+
+        private int size;
+
+        Intervals(final int columns, final int capacity) {
+            onsets = new long[Math.max(capacity, 16)];
+            offsets = new long[onsets.length];
+            sources = new int[columns][onsets.length];
+        }
+
+        void add(final long onset, final long offset, final int... cells) {
+            if (size == onsets.length) {
+                int capacity = size * 2;
+                onsets = Arrays.copyOf(onsets, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                for (int i = 0; i < sources.length; i++) {
+                    sources[i] = Arrays.copyOf(sources[i], capacity);
+                }
+            }
+            onsets[size] = onset;
+            offsets[size] = offset;
+            for (int i = 0; i < sources.length; i++) {
+                sources[i][size] = cells[i];
+            }
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long[] getOnsets() {
+            return Arrays.copyOf(onsets, size);
+        }
+
+        public long[] getOffsets() {
+            return Arrays.copyOf(offsets, size);
+        }
+
+        /**
+         * @param column The index of the column.
+         * @return The index of the cell of the column that every new cell was made from, -1 for none.
+         */
+        public int[] getSources(final int column) {
+            return Arrays.copyOf(sources[column], size);
+        }
+    }
+
+    /**
+     * The agreement table of a code between the cells of a primary and a reliability column.
+     */
+    public static final class Agreement {
+
+        private final Object[] values;
+
+        private final int[][] counts;
+
+        private final int[] unmatched;
+
+        Agreement(final Object[] values, final int[][] counts, final int[] unmatched) {
+            this.values = values;
+            this.counts = counts;
+            this.unmatched = unmatched;
+        }
+
+        /**
+         * @return The values seen in the cells of either column, in the order they are first seen in the primary
+         * cells and then the reliability cells.
+         */
+        public Object[] getValues() {
+            return values.clone();
+        }
+
+        /**
+         * @return The number of pairs of cells for every primary value, by row, and reliability value, by column.
+         */
+        public int[][] getCounts() {
+            int[][] result = new int[counts.length][];
+            for (int i = 0; i < counts.length; i++) {
+                result[i] = counts[i].clone();
+            }
+            return result;
+        }
+
+        /**
+         * @return The indices of the reliability cells without a primary cell of the same onset, in order; they are
+         * not counted. compute_kappa fails on them, as the Ruby version did.
+         */
+        public int[] getUnmatched() {
+            return unmatched.clone();
+        }
+
+        /**
+         * @return Cohen's kappa, computed as CTable#kappa does.
+         */
+        public double getKappa() {
+            long agree = 0;
+            long total = 0;
+            long[] rows = new long[values.length];
+            long[] columns = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                agree += counts[i][i];
+                for (int j = 0; j < values.length; j++) {
+                    rows[i] += counts[i][j];
+                    columns[j] += counts[i][j];
+                    total += counts[i][j];
+                }
+            }
+            double chance = 0;
+            for (int i = 0; i < values.length; i++) {
+                chance += (rows[i] * columns[i]) / (double) total;
+            }
+            return (agree - chance) / (total - chance);
+        }
+    }
+
+    /**
+     * The cells of a column going forward in time: the cells that have started are kept by index, and those that have
+     * ended are dropped as they come up, since the times asked for only go up.
+     */
+    private static final class Sweep {
+
+        private final long[] onsets;
+
+        private final long[] offsets;
+
+        /** The cells by onset. */
+        private final int[] order;
+
+        /** The cells that have started, by index. */
+        private final PriorityQueue<Integer> started = new PriorityQueue<>();
+
+        /** The next cell in order to start. */
+        private int next;
+
+        Sweep(final long[] onsets, final long[] offsets) {
+            checkLength(onsets, offsets);
+            this.onsets = onsets;
+            this.offsets = offsets;
+            this.order = order(onsets);
+        }
+
+        /**
+         * Finds the first cell, from a given index on, that starts at or before t0 and ends at or after t1, as the
+         * Ruby versions find cells by going through the cells in order. Neither time, nor the index, may be smaller
+         * than in the previous call.
+         *
+         * @param exact True if the cell must start at t0 and end at t1.
+         * @return The index of the cell, -1 for none.
+         */
+        int first(final int from, final long t0, final long t1, final boolean exact) {
+            while (next < order.length && onsets[order[next]] <= t0) {
+                started.add(order[next++]);
+            }
+            Integer top;
+            while ((top = started.peek()) != null && (top < from || offsets[top] < t1)) {
+                started.poll();
+            }
+            if (top == null || !exact || (onsets[top] == t0 && offsets[top] == t1)) {
+                return top == null ? -1 : top;
+            }
+            int result = -1;
+            for (int i : started) {
+                if (i >= from && onsets[i] == t0 && offsets[i] == t1 && (result < 0 || i < result)) {
+                    result = i;
+                }
+            }
+            return result;
+        }
+    }
+
+    private ColumnAnalytics() {
+    }
+
+    /**
+     * Resamples a column, as RColumn#resample does: a new cell from every step of time from start to stop, with the
+     * codes of the cell that overlaps it the most, the first one of those that overlap it as much.
+     *
+     * @param onsets  The onsets of the cells of the column.
+     * @param offsets The offsets of the cells.
+     * @param start   The onset of the first new cell.
+     * @param stop    The last time a new cell may start at.
+     * @param step    The length of the new cells, from onset to the next onset.
+     * @return For every new cell, the index of the cell it takes its codes from, -1 for none.
+     */
+    public static int[] resample(final long[] onsets, final long[] offsets, final long start, final long stop,
+                                 final long step) {
+        checkLength(onsets, offsets);
+        if (step <= 0) {
+            throw new IllegalArgumentException("The step must be positive, got " + step);
+        }
+        if (stop < start) {
+            return new int[0];
+        }
+        // Cells with the offset before the onset only overlap by their ends, which lie between the two.
+        long[] lows = new long[onsets.length];
+        for (int i = 0; i < lows.length; i++) {
+            lows[i] = Math.min(onsets[i], offsets[i]);
+        }
+        int[] order = order(lows);
+
+        int[] result = new int[(int) ((stop - start) / step + 1)];
+        int[] active = new int[16];
+        int size = 0;
+        int next = 0;
+        for (int k = 0; k < result.length; k++) {
+            long onset = start + k * step;
+            long offset = onset + step - 1;
+            while (next < order.length && lows[order[next]] <= offset) {
+                if (size == active.length) {
+                    active = Arrays.copyOf(active, size * 2);
+                }
+                active[size++] = order[next++];
+            }
+
+            int best = -1;
+            long bestOverlap = 0;
+            int kept = 0;
+            for (int a = 0; a < size; a++) {
+                int i = active[a];
+                if (Math.max(onsets[i], offsets[i]) < onset) {
+                    continue;
+                }
+                active[kept++] = i;
+                if (overlaps(onsets[i], offsets[i], onset, offset)) {
+                    long overlap = Math.min(offsets[i], offset) - Math.max(onsets[i], onset);
+                    if (best < 0 || overlap > bestOverlap || (overlap == bestOverlap && i < best)) {
+                        best = i;
+                        bestOverlap = overlap;
+                    }
+                }
+            }
+            size = kept;
+            result[k] = best;
+        }
+        return result;
+    }
+
+    /**
+     * Finds the cells of two columns that are active between every two consecutive onsets or offsets of either, as
+     * create_mutually_exclusive does: a cell of a column counts if it starts at or before the first time and ends at
+     * or after the second, and it comes first among those from the cell found last on; between times a millisecond
+     * apart, only a cell of exactly that millisecond counts.
+     *
+     * @return A new cell for every two consecutive times with a cell of either column, with the indices of those
+     * cells, column 0 for the first column and 1 for the second.
+     */
+    public static Intervals mutuallyExclusive(final long[] onsets1, final long[] offsets1, final long[] onsets2,
+                                              final long[] offsets2) {
+        long[] times = times(onsets1, offsets1, onsets2, offsets2);
+        Sweep first = new Sweep(onsets1, offsets1);
+        Sweep second = new Sweep(onsets2, offsets2);
+        Intervals result = new Intervals(2, times.length);
+        int from1 = 0;
+        int from2 = 0;
+        for (int i = 0; i + 1 < times.length; i++) {
+            long t0 = times[i];
+            long t1 = times[i + 1];
+            boolean exact = t1 - t0 <= 1;
+            int cell1 = first.first(from1, t0, t1, exact);
+            int cell2 = second.first(from2, t0, t1, exact);
+            if (cell1 >= 0) {
+                from1 = cell1;
+            }
+            if (cell2 >= 0) {
+                from2 = cell2;
+            }
+            if (cell1 >= 0 || cell2 >= 0) {
+                result.add(t0, t1, cell1, cell2);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the cells of columns that enclose the time between every two consecutive onsets or offsets of any, as
+     * merge_columns does: the first cell of every column that starts at or before the first time and ends at or after
+     * the second.
+     *
+     * @param onsets  The onsets of the cells of every column.
+     * @param offsets The offsets of the cells of every column.
+     * @return A new cell for every two consecutive times, with the index of the enclosing cell of every column.
+     */
+    public static Intervals merge(final long[][] onsets, final long[][] offsets) {
+        if (onsets.length != offsets.length) {
+            throw new IllegalArgumentException("Expected the offsets of " + onsets.length + " columns, got "
+                    + offsets.length);
+        }
+        long[][] all = new long[onsets.length * 2][];
+        Sweep[] sweeps = new Sweep[onsets.length];
+        for (int c = 0; c < onsets.length; c++) {
+            all[c * 2] = onsets[c];
+            all[c * 2 + 1] = offsets[c];
+            sweeps[c] = new Sweep(onsets[c], offsets[c]);
+        }
+        long[] times = times(all);
+        Intervals result = new Intervals(onsets.length, times.length);
+        int[] cells = new int[onsets.length];
+        for (int i = 0; i + 1 < times.length; i++) {
+            for (int c = 0; c < sweeps.length; c++) {
+                cells[c] = sweeps[c].first(0, times[i], times[i + 1], false);
+            }
+            result.add(times[i], times[i + 1], cells);
+        }
+        return result;
+    }
+
+    /**
+     * Tables the values of a code of the cells of a reliability column against those of the primary column, as
+     * compute_kappa does: every reliability cell is paired with the first primary cell with the same onset.
+     * Reliability cells without one are not counted but listed, see Agreement.getUnmatched.
+     *
+     * @param priOnsets The onsets of the primary cells.
+     * @param priValues The values of the code of the primary cells.
+     * @param relOnsets The onsets of the reliability cells.
+     * @param relValues The values of the code of the reliability cells.
+     * @return The agreement table.
+     */
+    public static Agreement agreement(final long[] priOnsets, final Object[] priValues, final long[] relOnsets,
+                                      final Object[] relValues) {
+        checkLength(priOnsets, priValues);
+        checkLength(relOnsets, relValues);
+        Map<Object, Integer> indices = new LinkedHashMap<>();
+        for (Object value : priValues) {
+            indices.putIfAbsent(value, indices.size());
+        }
+        for (Object value : relValues) {
+            indices.putIfAbsent(value, indices.size());
+        }
+        Map<Long, Integer> byOnset = new HashMap<>();
+        for (int i = 0; i < priOnsets.length; i++) {
+            byOnset.putIfAbsent(priOnsets[i], i);
+        }
+
+        int[][] counts = new int[indices.size()][indices.size()];
+        int[] unmatched = new int[relOnsets.length];
+        int unmatchedCount = 0;
+        for (int i = 0; i < relOnsets.length; i++) {
+            Integer pri = byOnset.get(relOnsets[i]);
+            if (pri != null) {
+                counts[indices.get(priValues[pri])][indices.get(relValues[i])]++;
+            } else {
+                unmatched[unmatchedCount++] = i;
+            }
+        }
+        return new Agreement(indices.keySet().toArray(), counts, Arrays.copyOf(unmatched, unmatchedCount));
+    }
+
+    /**
+     * Splits the cells of a column into blocks, as make_duration_block_rel does: a cell no longer than a block is a
+     * block, and a longer one is cut into blocks from its onset, of which every skipBlocks-th is kept, the last one
+     * cut short at the offset.
+     *
+     * @param onsets        The onsets of the cells.
+     * @param offsets       The offsets of the cells.
+     * @param blockDuration The duration of a block, in milliseconds.
+     * @param skipBlocks    Keep every skipBlocks-th block of a cell, starting with the first.
+     * @return The blocks, with the index of the cell of each.
+     */
+    public static Intervals durationBlocks(final long[] onsets, final long[] offsets, final long blockDuration,
+                                           final int skipBlocks) {
+        checkLength(onsets, offsets);
+        if (blockDuration <= 0 || skipBlocks == 0) {
+            throw new IllegalArgumentException("Expected a positive block duration and number of blocks to skip, got "
+                    + blockDuration + " and " + skipBlocks);
+        }
+        Intervals result = new Intervals(1, onsets.length);
+        for (int i = 0; i < onsets.length; i++) {
+            long onset = onsets[i];
+            long offset = offsets[i];
+            long duration = offset - onset;
+            if (duration <= blockDuration) {
+                result.add(onset, offset, i);
+                continue;
+            }
+            long blocks = duration / blockDuration;
+            for (long b = 0; b <= blocks; b++) {
+                if (b % skipBlocks == 0) {
+                    long end = onset + (b + 1) * blockDuration;
+                    result.add(onset + b * blockDuration, end <= offset ? end : offset, i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return True if either cell spans an end of the other, as RCell#overlaps_cell has it.
+     */
+    static boolean overlaps(final long onset1, final long offset1, final long onset2, final long offset2) {
+        return spans(onset2, offset2, onset1) || spans(onset2, offset2, offset1)
+                || spans(onset1, offset1, onset2) || spans(onset1, offset1, offset2);
+    }
+
+    private static boolean spans(final long onset, final long offset, final long time) {
+        return onset <= time && offset >= time;
+    }
+
+    /**
+     * @return The times, each once, in order.
+     */
+    private static long[] times(final long[]... times) {
+        int length = 0;
+        for (long[] t : times) {
+            length += t.length;
+        }
+        long[] result = new long[length];
+        int size = 0;
+        for (long[] t : times) {
+            System.arraycopy(t, 0, result, size, t.length);
+            size += t.length;
+        }
+        Arrays.sort(result);
+        int unique = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (i == 0 || result[i] != result[unique - 1]) {
+                result[unique++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, unique);
+    }
+
+    /**
+     * @return The indices of the keys in ascending order of the keys, the same index before the higher one.
+     */
+    private static int[] order(final long[] keys) {
+        int[] result = new int[keys.length];
+        boolean sorted = true;
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = i;
+            sorted &= i == 0 || keys[i - 1] <= keys[i];
+        }
+        if (sorted) {
+            return result;
+        }
+        Integer[] boxed = new Integer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            boxed[i] = i;
+        }
+        Arrays.sort(boxed, Comparator.comparingLong(i -> keys[i]));
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = boxed[i];
+        }
+        return result;
+    }
+
+    private static void checkLength(final long[] onsets, final long[] offsets) {
+        if (onsets.length != offsets.length) {
+            throw new IllegalArgumentException("Expected " + onsets.length + " offsets, got " + offsets.length);
+        }
+    }
+
+    private static void checkLength(final long[] onsets, final Object[] values) {
+        if (onsets.length != values.length) {
+            throw new IllegalArgumentException("Expected " + onsets.length + " values, got " + values.length);
+        }
+    }
+}
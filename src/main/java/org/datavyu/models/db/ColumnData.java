@@ -0,0 +1,185 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The cells of a variable as arrays, for the Ruby API: get_column reads a whole column with one call to of and
+ * set_column writes it back with one call to applyTo, instead of a call from Ruby into Java for every field of every
+ * cell.
+ *
+ * Row i is a cell: its onset, its offset and the values of its arguments, arity of them from values[i * arity], as
+ * the strings CellValue.toString gives. Nominal and text variables have one value per cell.
+ */
+public final class ColumnData {
+
+    /** The cell of every row, null for a row that is to become a new cell. */
+    private final Cell[] cells;
+
+    private final long[] onsets;
+
+    private final long[] offsets;
+
+    /** The values of the arguments, row after row. */
+    private final String[] values;
+
+    /** Number of values per row. */
+    private final int arity;
+
+    /**
+     * @param cells   The cell of every row, null for a row that is to become a new cell.
+     * @param onsets  The onset of every row.
+     * @param offsets The offset of every row.
+     * @param values  The values of the arguments of every row, in argument order, row after row.
+     * @param arity   The number of values per row.
+     */
+    public ColumnData(final Cell[] cells, final long[] onsets, final long[] offsets, final String[] values,
+                      final int arity) {
+        if (onsets.length != cells.length || offsets.length != cells.length
+                || values.length != (long) cells.length * arity) {
+            throw new IllegalArgumentException("Expected " + cells.length + " onsets, offsets and rows of " + arity
+                    + " values; got " + onsets.length + ", " + offsets.length + " and " + values.length + " values.");
+        }
+        this.cells = cells;
+        this.onsets = onsets;
+        this.offsets = offsets;
+        this.values = values;
+        this.arity = arity;
+    }
+
+    /**
+     * Reads the cells of a variable.
+     *
+     * @param variable The variable to read.
+     * @return Its cells in temporal order.
+     */
+    public static ColumnData of(final Variable variable) {
+        Lock l = variable.getOwningDatastore().getLock().readLock();
+        l.lock();
+        try {
+            boolean matrix = variable.getRootNode().type == Argument.Type.MATRIX;
+            int arity = matrix ? variable.getRootNode().childArguments.size() : 1;
+            List<Cell> temporal = variable.getCellsTemporally();
+            int size = temporal.size();
+            Cell[] cells = temporal.toArray(new Cell[size]);
+            long[] onsets = new long[size];
+            long[] offsets = new long[size];
+            String[] values = new String[size * arity];
+            for (int i = 0; i < size; i++) {
+                Cell cell = cells[i];
+                onsets[i] = cell.getOnset();
+                offsets[i] = cell.getOffset();
+                CellValue value = cell.getCellValue();
+                if (matrix) {
+                    List<CellValue> arguments = ((MatrixCellValue) value).getArguments();
+                    for (int k = 0; k < Math.min(arity, arguments.size()); k++) {
+                        values[i * arity + k] = arguments.get(k).toString();
+                    }
+                } else {
+                    values[i] = value.toString();
+                }
+            }
+            return new ColumnData(cells, onsets, offsets, values, arity);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Writes the rows to a variable in one batch, changing only what differs: a row whose cell is null or belongs to
+     * another variable becomes a new cell, the onsets and offsets that differ are set, and the values are set as
+     * CellValue.set does. A null value, or an empty value of a matrix argument, leaves the value of the cell alone.
+     *
+     * @param variable The variable to write to; its arguments must be those of the rows.
+     * @return The cell of every row, the new ones included.
+     */
+    public Cell[] applyTo(final Variable variable) {
+        boolean matrix = variable.getRootNode().type == Argument.Type.MATRIX;
+        Cell[] result = new Cell[cells.length];
+        DataStore dataStore = variable.getOwningDatastore();
+        // Other threads see the rows written all at once.
+        Lock l = dataStore.getLock().writeLock();
+        l.lock();
+        dataStore.beginBatch();
+        try {
+            for (int i = 0; i < cells.length; i++) {
+                Cell cell = cells[i];
+                if (cell == null || cell.getVariable() != variable) {
+                    cell = variable.createCell(onsets[i], offsets[i]);
+                } else {
+                    if (cell.getOnset() != onsets[i]) {
+                        cell.setOnset(onsets[i]);
+                    }
+                    if (cell.getOffset() != offsets[i]) {
+                        cell.setOffset(offsets[i]);
+                    }
+                }
+                result[i] = cell;
+
+                CellValue value = cell.getCellValue();
+                if (matrix) {
+                    List<CellValue> arguments = ((MatrixCellValue) value).getArguments();
+                    for (int k = 0; k < Math.min(arity, arguments.size()); k++) {
+                        String newValue = values[i * arity + k];
+                        if (newValue != null && !newValue.isEmpty()) {
+                            arguments.get(k).set(newValue);
+                        }
+                    }
+                } else if (arity > 0 && values[i * arity] != null) {
+                    value.set(values[i * arity]);
+                }
+            }
+        } finally {
+            dataStore.commitBatch();
+            l.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of rows.
+     */
+    public int size() {
+        return cells.length;
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    /**
+     * @return The cell of every row, null for a row that is to become a new cell.
+     */
+    public Cell[] getCells() {
+        return cells;
+    }
+
+    public long[] getOnsets() {
+        return onsets;
+    }
+
+    public long[] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * @return The values of the arguments of every row, row after row; null where a cell has no such argument.
+     */
+    public String[] getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+/**
+ * A view of one row of a ColumnarVariable; all of its state lives in the variable.
+ */
+final class ColumnarCell implements Cell {
+
+    private final ColumnarVariable variable;
+
+    private final int row;
+
+    ColumnarCell(final ColumnarVariable variable, final int row) {
+        this.variable = variable;
+        this.row = row;
+    }
+
+    int getRow() {
+        return row;
+    }
+
+    @Override
+    public ColumnarVariable getVariable() {
+        return variable;
+    }
+
+    @Override
+    public String getOffsetString() {
+        return DatavyuCell.convertMStoTimestamp(getOffset());
+    }
+
+    @Override
+    public long getOffset() {
+        return variable.getOffset(row);
+    }
+
+    @Override
+    public void setOffset(final long newOffset) {
+        variable.setOffset(row, newOffset);
+    }
+
+    @Override
+    public void setOffset(final String newOffset) {
+        setOffset(DatavyuCell.convertTimestampToMS(newOffset));
+    }
+
+    @Override
+    public Cell getFreshCell() {
+        return this;
+    }
+
+    @Override
+    public long getOnset() {
+        return variable.getOnset(row);
+    }
+
+    @Override
+    public void setOnset(final String newOnset) {
+        setOnset(DatavyuCell.convertTimestampToMS(newOnset));
+    }
+
+    @Override
+    public void setOnset(final long newOnset) {
+        variable.setOnset(row, newOnset);
+    }
+
+    @Override
+    public String getOnsetString() {
+        return DatavyuCell.convertMStoTimestamp(getOnset());
+    }
+
+    @Override
+    public String getValueAsString() {
+        return getCellValue().toString();
+    }
+
+    @Override
+    public CellValue getCellValue() {
+        if (variable.getRootNode().type == Argument.Type.MATRIX) {
+            return new ColumnarCellValue.Matrix(variable, row);
+        }
+        return ColumnarCellValue.of(variable, row, 0);
+    }
+
+    @Override
+    public String getCellId() {
+        return variable.getID() + ":" + row;
+    }
+
+    @Override
+    public boolean isSelected() {
+        return variable.isSelected(row);
+    }
+
+    @Override
+    public void setSelected(final boolean selected) {
+        variable.setSelected(row, selected);
+    }
+
+    @Override
+    public boolean isHighlighted() {
+        return variable.isHighlighted(row);
+    }
+
+    @Override
+    public void setHighlighted(final boolean highlighted) {
+        variable.setHighlighted(row, highlighted);
+    }
+
+    @Override
+    public void setMatrixValue(final int index, final String value) {
+        ColumnarCellValue.of(variable, row, index).set(value);
+    }
+
+    @Override
+    public CellValue getMatrixValue(final int index) {
+        return ColumnarCellValue.of(variable, row, index);
+    }
+
+    @Override
+    public void clearMatrixValue(final int index) {
+        ColumnarCellValue.of(variable, row, index).clear();
+    }
+
+    // The values are kept by argument for all rows, so changing the arguments of a cell changes those of the variable.
+
+    @Override
+    public void addMatrixValue(final Argument type) {
+        variable.addArgumentColumn(type);
+    }
+
+    @Override
+    public void moveMatrixValue(final int oldIndex, final int newIndex) {
+        variable.moveArgument(oldIndex, newIndex);
+    }
+
+    @Override
+    public void removeMatrixValue(final int index) {
+        variable.removeArgument(index);
+    }
+
+    @Override
+    public void addListener(final CellListener cellListener) {
+        variable.addCellListener(row, cellListener);
+    }
+
+    @Override
+    public void removeListener(final CellListener cellListener) {
+        variable.removeCellListener(row, cellListener);
+    }
+
+    @Override
+    public boolean isInTimeWindow(long time) {
+        return time >= getOnset() && time <= getOffset();
+    }
+
+    @Override
+    public boolean isPastTimeWindow(long time) {
+        return time > Math.max(getOnset(), getOffset());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * variable.getID().hashCode() + row;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ColumnarCell)) {
+            return false;
+        }
+        ColumnarCell otherC = (ColumnarCell) other;
+        return otherC.variable == variable && otherC.row == row;
+    }
+
+    @Override
+    /* Print string representation of this cell. */
+    public String toString() {
+        return "[" + getOnset() + "," + getOffset() + "," + getValueAsString() + "]";
+    }
+}
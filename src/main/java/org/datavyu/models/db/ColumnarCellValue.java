@@ -0,0 +1,289 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.datavyu.util.StringUtils;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A view of one value in a row of a ColumnarVariable; behaves like the DatavyuCellValue it stands in for.
+ */
+abstract class ColumnarCellValue implements CellValue {
+
+    /** The logger for this class. */
+    private static Logger logger = LogManager.getLogger(ColumnarCellValue.class);
+
+    final ColumnarVariable variable;
+
+    final int row;
+
+    final int column;
+
+    ColumnarCellValue(final ColumnarVariable variable, final int row, final int column) {
+        this.variable = variable;
+        this.row = row;
+        this.column = column;
+    }
+
+    /**
+     * @return A view of the value of the row in the given argument column.
+     */
+    static ColumnarCellValue of(final ColumnarVariable variable, final int row, final int column) {
+        if (variable.getColumnArgument(column).type == Argument.Type.TEXT) {
+            return new Text(variable, row, column);
+        }
+        return new Nominal(variable, row, column);
+    }
+
+    @Override
+    public boolean isValid(final String value) {
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        variable.setValue(row, column, null);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        String value = variable.getValue(row, column);
+        return value == null || value.isEmpty();
+    }
+
+    @Override
+    public void set(final String newValue) {
+        if (!newValue.equals(toString()) && !newValue.equals(variable.getValue(row, column))) {
+            variable.setValue(row, column, newValue);
+            variable.markAsChanged();
+        }
+    }
+
+    @Override
+    public Argument getArgument() {
+        return variable.getColumnArgument(column);
+    }
+
+    @Override
+    public String toString() {
+        return isEmpty() ? "" : variable.getValue(row, column);
+    }
+
+    @Override
+    public String serialize() {
+        String value = variable.getValue(row, column);
+        if (value == null) return "";
+        return StringUtils.escapeCSVArgument(value);
+    }
+
+    @Override
+    public void appendTo(final Appendable out) throws IOException {
+        String value = variable.getValue(row, column);
+        if (value != null) {
+            out.append(value);
+        }
+    }
+
+    @Override
+    public void serializeTo(final Appendable out) throws IOException {
+        String value = variable.getValue(row, column);
+        if (value != null) {
+            StringUtils.appendEscapedCSVArgument(out, value);
+        }
+    }
+
+    @Override
+    public String getPlaceholderString() {
+        return "<" + getArgument().name + ">";
+    }
+
+    static final class Nominal extends ColumnarCellValue implements NominalCellValue {
+        Nominal(final ColumnarVariable variable, final int row, final int column) {
+            super(variable, row, column);
+        }
+    }
+
+    static final class Text extends ColumnarCellValue implements TextCellValue {
+        Text(final ColumnarVariable variable, final int row, final int column) {
+            super(variable, row, column);
+        }
+    }
+
+    /**
+     * The value of a whole row of a matrix variable, made up of one value per argument column.
+     */
+    static final class Matrix implements MatrixCellValue {
+
+        private final ColumnarVariable variable;
+
+        private final int row;
+
+        Matrix(final ColumnarVariable variable, final int row) {
+            this.variable = variable;
+            this.row = row;
+        }
+
+        @Override
+        public List<CellValue> getArguments() {
+            return new AbstractList<CellValue>() {
+                @Override
+                public CellValue get(final int index) {
+                    if (index < 0 || index >= size()) {
+                        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+                    }
+                    return of(variable, row, index);
+                }
+
+                @Override
+                public int size() {
+                    return variable.getColumnCount();
+                }
+            };
+        }
+
+        @Override
+        public CellValue createArgument(final Argument arg) {
+            return of(variable, row, variable.addArgumentColumn(arg));
+        }
+
+        @Override
+        public void removeArgument(final int index) {
+            variable.removeArgument(index);
+        }
+
+        @Override
+        public boolean isValid(final String value) {
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            for (int i = 0; i < variable.getColumnCount(); i++) {
+                variable.setValue(row, i, null);
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            for (int i = 0; i < variable.getColumnCount(); i++) {
+                String value = variable.getValue(row, i);
+                if (value != null && !value.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void set(String value) {
+            Lock l = variable.getOwningDatastore().getLock().writeLock();
+            l.lock();
+            try {
+                if (value.startsWith("(") && value.endsWith(")")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                int columns = variable.getColumnCount();
+
+                // Handle legacy variable types
+                if (columns == 1) {
+                    of(variable, row, 0).set(value);
+                } else {
+                    String[] args = value.split(",", -1);
+                    if (args.length != columns) {
+                        logger.error("Arg list and value list are different sizes, cannot undo.");
+                    }
+                    for (int i = 0; i < Math.min(args.length, columns); i++) {
+                        of(variable, row, i).set(args[i]);
+                    }
+                }
+            } finally {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public Argument getArgument() {
+            return variable.getRootNode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            try {
+                appendTo(result);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return result.toString();
+        }
+
+        @Override
+        public String serialize() {
+            StringBuilder result = new StringBuilder();
+            try {
+                serializeTo(result);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return result.toString();
+        }
+
+        @Override
+        public void appendTo(final Appendable out) throws IOException {
+            out.append('(');
+            appendArguments(out, ",");
+            out.append(')');
+        }
+
+        @Override
+        public void serializeTo(final Appendable out) throws IOException {
+            out.append('(');
+            for (int i = 0; i < variable.getColumnCount(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                String value = variable.getValue(row, i);
+                if (value != null) {
+                    StringUtils.appendEscapedCSVArgument(out, value);
+                }
+            }
+            out.append(')');
+        }
+
+        @Override
+        public void appendArguments(final Appendable out, final CharSequence separator) throws IOException {
+            for (int i = 0; i < variable.getColumnCount(); i++) {
+                if (i > 0) {
+                    out.append(separator);
+                }
+                String value = variable.getValue(row, i);
+                if (value != null) {
+                    out.append(value);
+                }
+            }
+        }
+
+        @Override
+        public String getPlaceholderString() {
+            return "<" + variable.getRootNode().name + ">";
+        }
+    }
+}
@@ -0,0 +1,1305 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.IntFunction;
+
+/**
+ * A variable that stores its cells column by column, for very large variables such as sensor data.
+ *
+ * Every cell is a row: onsets and offsets are kept in long arrays and every argument of the variable in an array of
+ * its own. The Cell and CellValue objects handed out are light-weight views of a row that are created on access; two
+ * views of the same row are equal. Rows are never reused, so a removed cell can be added back to the variable.
+ *
+ * The temporal order is an array of row numbers that is extended in place while cells are appended in order, and
+ * sorted again lazily the next time it is needed after cells were removed or moved out of order. Readers share the
+ * read lock of the data store, so a new order is published whole, together with the positions of the rows in it.
+ *
+ * Unlike the cells of a DatavyuVariable, new cells start out unselected, so that bulk loading does not fill the
+ * selection of the data store.
+ */
+public final class ColumnarVariable implements Variable {
+
+    /** Initial number of rows to allocate. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final UUID variableId = UUID.randomUUID();
+    private DatavyuDataStore owningDatastore;
+    private Argument rootNodeArgument = null;
+    private boolean selected;
+    private Boolean hidden;
+    private String name;
+    private int orderIndex = -1;
+    private VariableListener[] listeners = Listeners.NO_VARIABLE_LISTENERS;
+
+    /** Number of rows ever created. */
+    private int rowCount = 0;
+
+    /** Onset of every row. */
+    private long[] onsets = new long[INITIAL_CAPACITY];
+
+    /** Offset of every row. */
+    private long[] offsets = new long[INITIAL_CAPACITY];
+
+    /** The values of every row, one column per argument in argument order. */
+    private List<Column> values = new ArrayList<>();
+
+    /** The rows that are part of the variable. */
+    private BitSet live = new BitSet();
+
+    /** The selected rows; guarded by its own monitor, as selecting only takes the read lock. */
+    private final BitSet selectedRows = new BitSet();
+
+    /** The highlighted rows; guarded by its own monitor, as highlighting only takes the read lock. */
+    private final BitSet highlightedRows = new BitSet();
+
+    /** Listeners of the few rows that have any, usually those shown in the spreadsheet. */
+    private final Map<Integer, CellListener[]> cellListeners = new ConcurrentHashMap<>();
+
+    /** Number of live rows. */
+    private int size = 0;
+
+    /** The live rows in temporal order, only valid while orderDirty is false. */
+    private volatile TemporalOrder order = new TemporalOrder(new int[INITIAL_CAPACITY], new int[INITIAL_CAPACITY]);
+
+    /** True when order has to be sorted again. */
+    private boolean orderDirty = false;
+
+    /** Number of leading entries of order.rows that lists handed out still read; appends there copy the array first. */
+    private int sharedRows = 0;
+
+    /** maxEnds[i] is the largest end time of the rows order[0..i]. */
+    private long[] maxEnds = new long[0];
+
+    /** Number of valid entries at the start of maxEnds. */
+    private int maxEndsValid = 0;
+
+    /** Cached list of the cells in temporal order, null when it has to be rebuilt. */
+    private List<Cell> snapshot = null;
+
+    /** Cached list of the cells in row order, null when it has to be rebuilt. */
+    private List<Cell> added = null;
+
+    /** The copy of this variable for snapshots of the data store, null once the variable has changed. */
+    private VariableSnapshot frozen;
+
+    /** Number of leading rows that copies for snapshots still read; changing one copies the row arrays first. */
+    private int frozenRows = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param name          The name to use for the variable being constructed.
+     * @param type          The type to use for the variable being constructed.
+     * @param grandfathered Flag to exempt variable from naming rules.
+     * @param dds           The datastore to which this variable belongs
+     */
+    public ColumnarVariable(String name,
+                            Argument type,
+                            boolean grandfathered,
+                            DatavyuDataStore dds) throws UserWarningException {
+        owningDatastore = dds;
+        this.setName(name, grandfathered);
+        this.setRootNode(type);
+        this.setHidden(false);
+        this.setSelected(true);
+        owningDatastore.markAsChanged();
+    }
+
+    @Override
+    public void addCell(final Cell cell) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            // Only cells that were removed from this variable can come back; their row still holds their data.
+            if (cell instanceof ColumnarCell && ((ColumnarCell) cell).getVariable() == this) {
+                int row = ((ColumnarCell) cell).getRow();
+                if (!live.get(row)) {
+                    live.set(row);
+                    added = null;
+                    size++;
+                    orderDirty = true;
+                    snapshot = null;
+                    frozen = null;
+                    owningDatastore.updateCellSelection(cell);
+                    fireCellInserted(cell);
+                    owningDatastore.markAsChanged();
+                }
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Cell createCell() {
+        return createCell(0L, 0L);
+    }
+
+    @Override
+    public Cell createCell(final long onset, final long offset) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            int row = newRow(onset, offset);
+            Cell c = cellAt(row);
+            fireCellInserted(c);
+            owningDatastore.markAsChanged();
+            return c;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public void removeCell(final Cell cell) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            if (!contains(cell)) {
+                return;
+            }
+            int row = ((ColumnarCell) cell).getRow();
+            live.clear(row);
+            added = null;
+            cellListeners.remove(row);
+            if (!orderDirty && order.positions[row] == size - 1) {
+                maxEndsValid = Math.min(maxEndsValid, size - 1);
+            } else {
+                orderDirty = true;
+            }
+            size--;
+            snapshot = null;
+            frozen = null;
+            owningDatastore.updateCellSelection(cell);
+
+            owningDatastore.markAsChanged();
+
+            VariableChanges changes = owningDatastore.getBatchChanges(this);
+            if (changes != null) {
+                changes.cellRemoved(cell);
+            } else {
+                notifyListeners(() -> {
+                    for (VariableListener vl : listeners) {
+                        vl.cellRemoved(cell);
+                    }
+                });
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    private void fireCellInserted(final Cell cell) {
+        VariableChanges changes = owningDatastore.getBatchChanges(this);
+        if (changes != null) {
+            changes.cellInserted(cell);
+        } else {
+            notifyListeners(() -> {
+                for (VariableListener vl : listeners) {
+                    vl.cellInserted(cell);
+                }
+            });
+        }
+    }
+
+    /**
+     * Notifies the listeners of this variable once the lock of the data store is released.
+     */
+    private void notifyListeners(final Runnable notification) {
+        if (listeners.length > 0) {
+            owningDatastore.notify(notification);
+        }
+    }
+
+    /**
+     * Notifies the listeners of this variable and of its changed cells about a committed batch of changes.
+     *
+     * @param changes The changes made to this variable during the batch.
+     */
+    void deliverChanges(final VariableChanges changes) {
+        for (VariableListener vl : listeners) {
+            vl.cellsChanged(changes);
+        }
+        for (Cell cell : changes.getChangedCells()) {
+            int row = ((ColumnarCell) cell).getRow();
+            int flags = changes.getChangedFlags(cell);
+            for (CellListener cl : getCellListeners(row)) {
+                if ((flags & VariableChanges.ONSET) != 0) {
+                    cl.onsetChanged(onsets[row]);
+                }
+                if ((flags & VariableChanges.OFFSET) != 0) {
+                    cl.offsetChanged(offsets[row]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public DataStore getOwningDatastore() {
+        return owningDatastore;
+    }
+
+    /**
+     * @param dataStore The data store the variable is attached to, see DataStore.attachVariable.
+     */
+    void setOwningDatastore(final DatavyuDataStore dataStore) {
+        owningDatastore = dataStore;
+    }
+
+    /**
+     * @return The internal Identifier for this variable.
+     */
+    public UUID getID() {
+        return variableId;
+    }
+
+    /**
+     * @return All the cells in the order they were created; a cell that is removed and added again keeps its place.
+     */
+    @Override
+    public List<Cell> getCells() {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            // Readers may share the read lock, so the cached list needs a lock of its own.
+            synchronized (this) {
+                if (added == null) {
+                    Cell[] cells = new Cell[size];
+                    int i = 0;
+                    for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+                        cells[i++] = cellAt(row);
+                    }
+                    added = Collections.unmodifiableList(Arrays.asList(cells));
+                }
+                return added;
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Cell getCellTemporally(final int index) {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return cellAt(sortRows().rows[index]);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Argument getRootNode() {
+        return rootNodeArgument;
+    }
+
+    @Override
+    public void setRootNode(final Argument a) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            owningDatastore.markAsChanged();
+            rootNodeArgument = a;
+            frozen = null;
+
+            // Keep one column per argument; new arguments start out empty.
+            int columns = a.type == Argument.Type.MATRIX ? a.childArguments.size() : 1;
+            while (values.size() < columns) {
+                values.add(Column.of(getColumnArgument(values.size()), onsets.length));
+            }
+            while (values.size() > columns) {
+                values.remove(values.size() - 1);
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    @Deprecated
+    public Argument getVariableType() {
+        return getRootNode();
+    }
+
+    @Override
+    @Deprecated
+    public void setVariableType(final Argument a) {
+        setRootNode(a);
+    }
+
+    @Override
+    public List<Cell> getCellsTemporally() {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            // Readers may share the read lock, so the lazily built order needs a lock of its own.
+            synchronized (this) {
+                return temporalSnapshot();
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    private List<Cell> temporalSnapshot() {
+        if (snapshot == null) {
+            // Appends copy the array before writing within the list, and re-sorting replaces it, so the list stays put.
+            final int[] rows = sortRows().rows;
+            final int count = size;
+            sharedRows = Math.max(sharedRows, count);
+            snapshot = new AbstractList<Cell>() {
+                @Override
+                public Cell get(final int index) {
+                    if (index < 0 || index >= count) {
+                        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+                    }
+                    return cellAt(rows[index]);
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+        return snapshot;
+    }
+
+    @Override
+    public int getTemporalIndex(final Cell cell) {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            if (!contains(cell)) {
+                return -1;
+            }
+            return sortRows().positions[((ColumnarCell) cell).getRow()];
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public List<Cell> getCellsInRange(final long start, final long end) {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            List<Cell> result = new ArrayList<>();
+            if (start > end || size == 0) {
+                return result;
+            }
+            int[] rows;
+            long[] ends;
+            synchronized (this) {
+                rows = sortRows().rows;
+                ends = updateMaxEnds(rows);
+            }
+
+            // Only rows from the first one that reaches the start up to the last one that starts before the end qualify.
+            int from = firstReaching(ends, start);
+            int to = firstStartingAfter(rows, end);
+            for (int i = from; i < to; i++) {
+                int row = rows[i];
+                if (Math.max(onsets[row], offsets[row]) >= start) {
+                    result.add(cellAt(row));
+                }
+            }
+            return result;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public List<Cell> getCellsAt(final long time) {
+        return getCellsInRange(time, time);
+    }
+
+    @Override
+    public Cell getPreviousCell(final long time) {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            int[] rows = sortRows().rows;
+            int index = firstStartingAfter(rows, time) - 1;
+            return index < 0 ? null : cellAt(rows[index]);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Cell getNextCell(final long time) {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            int[] rows = sortRows().rows;
+            int index = firstStartingAfter(rows, time);
+            return index < size ? cellAt(rows[index]) : null;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getValueCounts(final int argIndex) {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            ValueCounter counter = new ValueCounter();
+            values.get(argIndex).count(live, counter);
+            return counter.getCounts();
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(final Cell c) {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            return c instanceof ColumnarCell && ((ColumnarCell) c).getVariable() == this
+                    && live.get(((ColumnarCell) c).getRow());
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public boolean isSelected() {
+        return selected;
+    }
+
+    @Override
+    public void setSelected(final boolean selected) {
+        this.selected = selected;
+    }
+
+    @Override
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    @Override
+    public void setHidden(final boolean hiddenParm) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            if (hidden == null || hiddenParm != hidden) {
+                owningDatastore.markAsChanged();
+                hidden = hiddenParm;
+                frozen = null;
+
+                notifyListeners(() -> {
+                    for (VariableListener vl : listeners) {
+                        vl.visibilityChanged(hiddenParm);
+                    }
+                });
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(final String newName) throws UserWarningException {
+        this.setName(newName, false);
+    }
+
+    @Override
+    public void setName(final String newName, boolean grandfathered) throws UserWarningException {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            // Pre-conditions, the newName must have at least one character.
+            if (newName.length() < 1) {
+                throw new UserWarningException("Unable to add column, a name must be supplied.");
+            }
+
+            // Pre-conditions, check to make sure newName doesn't contain invalid chars or begin with a number or underscore
+            if (!grandfathered && !isNameValid(newName)) {
+                throw new UserWarningException("Unable to add column:\n\tOnly alphanumeric characters and underscore are permitted.\n\tName must begin with a letter\n\tMust contain fewer than 255 characters");
+            }
+
+            if (grandfathered && !isNameValid(newName)) {
+                owningDatastore.addExemptionVariable(newName);
+            }
+
+            if (name != null) {
+                owningDatastore.updateVariableName(name, newName, this);
+            }
+            this.name = newName;
+            frozen = null;
+            notifyListeners(() -> {
+                for (VariableListener vl : listeners) {
+                    vl.nameChanged(newName);
+                }
+            });
+        } finally {
+            l.unlock();
+        }
+    }
+
+    private boolean isNameValid(String nameCandidate) {
+        return nameCandidate != null && nameCandidate.matches("[a-zA-Z][a-zA-Z0-9_]*") && nameCandidate.length() < 255;
+    }
+
+    @Override
+    public Argument addArgument(final Argument.Type type) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            Argument arg = getRootNode();
+            Argument child = arg.addChildArgument(type);
+
+            // Adds the empty column for the new argument.
+            this.setRootNode(arg);
+            return child;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public void moveArgument(final int old_index, final int new_index) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            Argument arg = getRootNode();
+
+            // Test to see if this is out of bounds
+            if (new_index > arg.childArguments.size() - 1 || new_index < 0) {
+                return;
+            }
+
+            arg.childArguments.add(new_index, arg.childArguments.remove(old_index));
+            values.add(new_index, values.remove(old_index));
+            this.setRootNode(arg);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public void moveArgument(final String name, final int new_index) {
+        moveArgument(getArgumentIndex(name), new_index);
+    }
+
+    @Override
+    public void removeArgument(final String name) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            Argument arg = getRootNode();
+            int arg_index = getArgumentIndex(name);
+            arg.childArguments.remove(arg_index);
+            values.remove(arg_index);
+            this.setRootNode(arg);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Adds the value of an argument to the cells, as Cell.addMatrixValue does for the cells of a DatavyuVariable. The
+     * values are kept by argument for all rows, so the argument is added to the variable, unless it is there already.
+     *
+     * @param argument The argument, a child of the root node or one to add to it.
+     * @return The index of the argument.
+     */
+    int addArgumentColumn(final Argument argument) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            Argument arg = getRootNode();
+            int index = arg.childArguments.indexOf(argument);
+            if (index < 0) {
+                arg.childArguments.add(argument);
+                index = arg.childArguments.size() - 1;
+            }
+
+            // Adds the empty column for the new argument.
+            this.setRootNode(arg);
+            return index;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Removes the value of an argument from the cells, as Cell.removeMatrixValue does for the cells of a
+     * DatavyuVariable; the argument is removed from the variable.
+     *
+     * @param index The index of the argument.
+     */
+    void removeArgument(final int index) {
+        removeArgument(getColumnArgument(index).name);
+    }
+
+    @Override
+    public int getArgumentIndex(final String name) {
+        Argument arg = getRootNode();
+        for (int i = 0; i < arg.childArguments.size(); i++) {
+            if (arg.childArguments.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void addListener(final VariableListener listener) {
+        listeners = Listeners.add(listeners, listener);
+    }
+
+    @Override
+    public void removeListener(final VariableListener listener) {
+        listeners = Listeners.remove(listeners, listener, Listeners.NO_VARIABLE_LISTENERS);
+    }
+
+    @Override
+    public int getOrderIndex() {
+        return orderIndex;
+    }
+
+    @Override
+    public void setOrderIndex(final int newIndex) {
+        orderIndex = newIndex;
+        frozen = null;
+        owningDatastore.markAsChanged();
+    }
+
+    // Row access for the cell and value views.
+
+    private Cell cellAt(final int row) {
+        return new ColumnarCell(this, row);
+    }
+
+    long getOnset(final int row) {
+        return onsets[row];
+    }
+
+    long getOffset(final int row) {
+        return offsets[row];
+    }
+
+    void setOnset(final int row, final long newOnset) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            if (newOnset != onsets[row]) {
+                owningDatastore.markAsChanged();
+            }
+            copyFrozenRows(row);
+            onsets[row] = newOnset;
+            frozen = null;
+            rowTimeChanged(row);
+            fireTimeChanged(row, VariableChanges.ONSET);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    void setOffset(final int row, final long newOffset) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            if (newOffset != offsets[row]) {
+                owningDatastore.markAsChanged();
+            }
+            copyFrozenRows(row);
+            offsets[row] = newOffset;
+            frozen = null;
+            rowTimeChanged(row);
+            fireTimeChanged(row, VariableChanges.OFFSET);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    private void fireTimeChanged(final int row, final int flag) {
+        if (live.get(row)) {
+            VariableChanges changes = owningDatastore.getBatchChanges(this);
+            if (changes != null) {
+                changes.cellChanged(cellAt(row), flag);
+                return;
+            }
+        }
+        final CellListener[] rowListeners = getCellListeners(row);
+        if (rowListeners.length > 0) {
+            final long time = flag == VariableChanges.ONSET ? onsets[row] : offsets[row];
+            owningDatastore.notify(() -> {
+                for (CellListener cl : rowListeners) {
+                    if (flag == VariableChanges.ONSET) {
+                        cl.onsetChanged(time);
+                    } else {
+                        cl.offsetChanged(time);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The number of argument columns.
+     */
+    int getColumnCount() {
+        return values.size();
+    }
+
+    /**
+     * @param column The argument column.
+     * @return The argument stored in the column.
+     */
+    Argument getColumnArgument(final int column) {
+        Argument root = getRootNode();
+        return root.type == Argument.Type.MATRIX ? root.childArguments.get(column) : root;
+    }
+
+    String getValue(final int row, final int column) {
+        return values.get(column).get(row);
+    }
+
+    void setValue(final int row, final int column, final String value) {
+        Lock l = owningDatastore.getLock().writeLock();
+        l.lock();
+        try {
+            copyFrozenRows(row);
+            values.get(column).set(row, value);
+            frozen = null;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    void markAsChanged() {
+        owningDatastore.markAsChanged();
+    }
+
+    /**
+     * @return The copy of this variable for a snapshot of the data store, taken while holding its read lock. It shares
+     * the row arrays, which are copied before one of the rows it reads changes.
+     */
+    synchronized VariableSnapshot snapshot() {
+        VariableSnapshot result = frozen;
+        if (result == null) {
+            List<IntFunction<String>> columns = new ArrayList<>(values.size());
+            for (Column column : values) {
+                columns.add(column.share());
+            }
+            SharedRows rows;
+            if (orderDirty) {
+                // Sorting is left to the copy; the live rows are the only thing writers change in place.
+                rows = new SharedRows(onsets, offsets, columns, null, (BitSet) live.clone(), size);
+            } else {
+                rows = new SharedRows(onsets, offsets, columns, order.rows, null, size);
+                sharedRows = Math.max(sharedRows, size);
+            }
+            frozenRows = rowCount;
+            result = new VariableSnapshot(this, rows);
+            frozen = result;
+        }
+        return result;
+    }
+
+    /**
+     * Copies the row arrays before a row changes in place, if a copy for snapshots still reads the row. Appended rows
+     * lie past the rows a copy reads, so they are written without copying.
+     */
+    private void copyFrozenRows(final int row) {
+        if (row < frozenRows) {
+            onsets = onsets.clone();
+            offsets = offsets.clone();
+            for (Column column : values) {
+                column.copyRows();
+            }
+            frozenRows = 0;
+        }
+    }
+
+    boolean isSelected(final int row) {
+        synchronized (selectedRows) {
+            return selectedRows.get(row);
+        }
+    }
+
+    void setSelected(final int row, final boolean selected) {
+        // Selecting changes no data, so it only keeps writers from removing the row meanwhile.
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            synchronized (selectedRows) {
+                selectedRows.set(row, selected);
+            }
+            Cell cell = cellAt(row);
+            owningDatastore.updateCellSelection(cell);
+            if (!selected) {
+                setHighlighted(row, false);
+            }
+
+            final CellListener[] rowListeners = getCellListeners(row);
+            if (rowListeners.length > 0) {
+                owningDatastore.notify(() -> {
+                    for (CellListener cl : rowListeners) {
+                        cl.selectionChange(selected);
+                        if (!selected) {
+                            cl.highlightingChange(false);
+                        }
+                    }
+                });
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    boolean isHighlighted(final int row) {
+        synchronized (highlightedRows) {
+            return highlightedRows.get(row);
+        }
+    }
+
+    void setHighlighted(final int row, final boolean highlighted) {
+        Lock l = owningDatastore.getLock().readLock();
+        l.lock();
+        try {
+            synchronized (highlightedRows) {
+                highlightedRows.set(row, highlighted);
+            }
+            owningDatastore.updateCellSelection(cellAt(row));
+
+            if (highlighted) {
+                setSelected(row, true);
+            }
+
+            final CellListener[] rowListeners = getCellListeners(row);
+            if (rowListeners.length > 0) {
+                owningDatastore.notify(() -> {
+                    for (CellListener cl : rowListeners) {
+                        cl.highlightingChange(highlighted);
+                    }
+                });
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    private CellListener[] getCellListeners(final int row) {
+        CellListener[] rowListeners = cellListeners.get(row);
+        return rowListeners == null ? Listeners.NO_CELL_LISTENERS : rowListeners;
+    }
+
+    void addCellListener(final int row, final CellListener listener) {
+        cellListeners.put(row, Listeners.add(getCellListeners(row), listener));
+    }
+
+    void removeCellListener(final int row, final CellListener listener) {
+        CellListener[] rowListeners = Listeners.remove(getCellListeners(row), listener, Listeners.NO_CELL_LISTENERS);
+        if (rowListeners.length == 0) {
+            cellListeners.remove(row);
+        } else {
+            cellListeners.put(row, rowListeners);
+        }
+    }
+
+    // Row storage and temporal order.
+
+    private int newRow(final long onset, final long offset) {
+        if (rowCount == onsets.length) {
+            int capacity = rowCount + (rowCount >> 1);
+            onsets = Arrays.copyOf(onsets, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            order = new TemporalOrder(order.rows, Arrays.copyOf(order.positions, capacity));
+            for (Column column : values) {
+                column.grow(capacity);
+            }
+        }
+        int row = rowCount++;
+        live.set(row);
+        added = null;
+        onsets[row] = onset;
+        offsets[row] = offset;
+
+        // Appending in order keeps the temporal order valid; only writers get here, so it is extended in place.
+        if (!orderDirty && (size == 0 || compare(order.rows[size - 1], row) <= 0)) {
+            // After removing the last rows, the position may still be read by a list handed out.
+            if (size == order.rows.length || size < sharedRows) {
+                int capacity = size == order.rows.length ? size + (size >> 1) : order.rows.length;
+                order = new TemporalOrder(Arrays.copyOf(order.rows, capacity), order.positions);
+                sharedRows = 0;
+            }
+            order.rows[size] = row;
+            order.positions[row] = size;
+        } else {
+            orderDirty = true;
+        }
+        size++;
+        snapshot = null;
+        frozen = null;
+        return row;
+    }
+
+    /**
+     * Keeps the temporal order up to date after the onset or offset of a row changed; in place if the row did not move
+     * past one of its neighbours.
+     */
+    private void rowTimeChanged(final int row) {
+        if (orderDirty || !live.get(row)) {
+            return;
+        }
+        int[] rows = order.rows;
+        int position = order.positions[row];
+        if ((position > 0 && compare(rows[position - 1], row) > 0)
+                || (position < size - 1 && compare(row, rows[position + 1]) > 0)) {
+            orderDirty = true;
+            snapshot = null;
+        } else {
+            maxEndsValid = Math.min(maxEndsValid, position);
+        }
+    }
+
+    private int compare(final int a, final int b) {
+        return compare(onsets, offsets, a, b);
+    }
+
+    private static int compare(final long[] onsets, final long[] offsets, final int a, final int b) {
+        if (onsets[a] != onsets[b]) {
+            return onsets[a] < onsets[b] ? -1 : 1;
+        }
+        if (offsets[a] != offsets[b]) {
+            return offsets[a] < offsets[b] ? -1 : 1;
+        }
+        return Integer.compare(a, b);
+    }
+
+    /**
+     * Sorts the live rows into temporal order, if they are not in order already.
+     *
+     * @return The temporal order.
+     */
+    private synchronized TemporalOrder sortRows() {
+        if (!orderDirty) {
+            return order;
+        }
+        int[] rows = new int[Math.max(size, INITIAL_CAPACITY)];
+        int count = 0;
+        for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+            rows[count++] = row;
+        }
+        mergeSort(onsets, offsets, rows, new int[count], 0, count);
+        int[] positions = new int[onsets.length];
+        for (int i = 0; i < count; i++) {
+            positions[rows[i]] = i;
+        }
+        order = new TemporalOrder(rows, positions);
+        orderDirty = false;
+        sharedRows = 0;
+        maxEndsValid = 0;
+        snapshot = null;
+        return order;
+    }
+
+    private static void mergeSort(final long[] onsets, final long[] offsets, final int[] rows, final int[] buffer,
+                                  final int from, final int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(onsets, offsets, rows, buffer, from, middle);
+        mergeSort(onsets, offsets, rows, buffer, middle, to);
+
+        // Mostly sorted input, such as rows appended in order with a few changed ones, needs no merging.
+        if (compare(onsets, offsets, rows[middle - 1], rows[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && compare(onsets, offsets, buffer[left], buffer[right]) <= 0)) {
+                rows[i] = buffer[left++];
+            } else {
+                rows[i] = buffer[right++];
+            }
+        }
+    }
+
+    /**
+     * @param rows The current temporal order.
+     * @return The largest end times by position in the temporal order.
+     */
+    private synchronized long[] updateMaxEnds(final int[] rows) {
+        if (maxEnds.length < size) {
+            maxEnds = Arrays.copyOf(maxEnds, rows.length);
+        }
+        for (int i = maxEndsValid; i < size; i++) {
+            int row = rows[i];
+            long end = Math.max(onsets[row], offsets[row]);
+            maxEnds[i] = i == 0 ? end : Math.max(maxEnds[i - 1], end);
+        }
+        maxEndsValid = size;
+        return maxEnds;
+    }
+
+    /**
+     * @return The position of the first row in temporal order with an onset after the time; size if there is none.
+     */
+    private int firstStartingAfter(final int[] rows, final long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (onsets[rows[middle]] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The first position in temporal order from which on some row ends at or after the time.
+     */
+    private int firstReaching(final long[] ends, final long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The live rows in temporal order and the position of every live row in it.
+     */
+    private static final class TemporalOrder {
+
+        final int[] rows;
+
+        final int[] positions;
+
+        TemporalOrder(final int[] rows, final int[] positions) {
+            this.rows = rows;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * The rows of a variable as it shares them with its copy for snapshots of the data store.
+     */
+    private static final class SharedRows implements VariableSnapshot.Source {
+
+        private final long[] onsets;
+        private final long[] offsets;
+        private final List<IntFunction<String>> values;
+
+        /** The live rows in temporal order, null if they have to be sorted. */
+        private final int[] order;
+
+        /** The live rows, when they have to be sorted. */
+        private final BitSet live;
+
+        private final int size;
+
+        SharedRows(final long[] onsets, final long[] offsets, final List<IntFunction<String>> values,
+                   final int[] order, final BitSet live, final int size) {
+            this.onsets = onsets;
+            this.offsets = offsets;
+            this.values = values;
+            this.order = order;
+            this.live = live;
+            this.size = size;
+        }
+
+        @Override
+        public VariableSnapshot.Columns read(final int columnCount) {
+            int[] rows = order;
+            if (rows == null) {
+                rows = new int[size];
+                int count = 0;
+                for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+                    rows[count++] = row;
+                }
+                mergeSort(onsets, offsets, rows, new int[size], 0, size);
+            }
+            long[] sortedOnsets = new long[size];
+            long[] sortedOffsets = new long[size];
+            String[][] sortedValues = new String[columnCount][size];
+            for (int i = 0; i < size; i++) {
+                int row = rows[i];
+                sortedOnsets[i] = onsets[row];
+                sortedOffsets[i] = offsets[row];
+                for (int column = 0; column < columnCount && column < values.size(); column++) {
+                    sortedValues[column][i] = values.get(column).apply(row);
+                }
+            }
+            return new VariableSnapshot.Columns(sortedOnsets, sortedOffsets, sortedValues);
+        }
+    }
+
+    /**
+     * The values of one argument for every row; null is an empty value.
+     */
+    private abstract static class Column {
+
+        static Column of(final Argument argument, final int capacity) {
+            if (argument.type == Argument.Type.NOMINAL) {
+                return new NominalColumn(argument.getDictionary(), capacity);
+            }
+            return new TextColumn(capacity);
+        }
+
+        abstract String get(final int row);
+
+        abstract void set(final int row, final String value);
+
+        abstract void grow(final int capacity);
+
+        /**
+         * @return The values of the rows as they are now, for a copy for snapshots; see copyRows.
+         */
+        abstract IntFunction<String> share();
+
+        /**
+         * Replaces the values of the rows by a copy, before a row that was shared changes.
+         */
+        abstract void copyRows();
+
+        /**
+         * Counts the values of the supplied rows.
+         */
+        abstract void count(final BitSet rows, final ValueCounter counter);
+    }
+
+    /**
+     * Free text values, held as they are.
+     */
+    private static final class TextColumn extends Column {
+
+        private String[] values;
+
+        TextColumn(final int capacity) {
+            values = new String[capacity];
+        }
+
+        @Override
+        String get(final int row) {
+            return values[row];
+        }
+
+        @Override
+        void set(final int row, final String value) {
+            values[row] = value;
+        }
+
+        @Override
+        void grow(final int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        IntFunction<String> share() {
+            final String[] shared = values;
+            return row -> shared[row];
+        }
+
+        @Override
+        void copyRows() {
+            values = values.clone();
+        }
+
+        @Override
+        void count(final BitSet rows, final ValueCounter counter) {
+            for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+                counter.add(values[row]);
+            }
+        }
+    }
+
+    /**
+     * Nominal values, held as their codes in the dictionary of the argument.
+     */
+    private static final class NominalColumn extends Column {
+
+        private final ValueDictionary dictionary;
+
+        private int[] codes;
+
+        NominalColumn(final ValueDictionary dictionary, final int capacity) {
+            this.dictionary = dictionary;
+            codes = new int[capacity];
+            Arrays.fill(codes, ValueDictionary.NO_CODE);
+        }
+
+        @Override
+        String get(final int row) {
+            return dictionary.getValue(codes[row]);
+        }
+
+        @Override
+        void set(final int row, final String value) {
+            int oldCode = codes[row];
+            codes[row] = dictionary.intern(value);
+            dictionary.release(oldCode);
+        }
+
+        @Override
+        void grow(final int capacity) {
+            int length = codes.length;
+            codes = Arrays.copyOf(codes, capacity);
+            Arrays.fill(codes, length, capacity, ValueDictionary.NO_CODE);
+        }
+
+        @Override
+        IntFunction<String> share() {
+            final int[] shared = codes;
+            final String[] dictionaryValues = dictionary.getValues();
+            return row -> shared[row] == ValueDictionary.NO_CODE ? null : dictionaryValues[shared[row]];
+        }
+
+        @Override
+        void copyRows() {
+            codes = codes.clone();
+        }
+
+        @Override
+        void count(final BitSet rows, final ValueCounter counter) {
+            for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+                counter.add(dictionary, codes[row]);
+            }
+        }
+    }
+}
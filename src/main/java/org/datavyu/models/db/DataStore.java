@@ -23,10 +23,25 @@
 package org.datavyu.models.db;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
 
 /**
  * An interface which abstracts away from the specific underlying database,
  * with methods to access columns and cells in an intuitive manner.
+ *
+ * A datastore may be used from several threads, such as the event dispatch thread, a script or a background export.
+ * Its contents are guarded by a read/write lock, see getLock. Every method that changes the datastore, its variables,
+ * cells or values holds the write lock while it runs, and every query over the variables and cells holds the read
+ * lock, so a single call always sees and leaves the datastore in a consistent state. Selecting or highlighting cells
+ * changes no data and only holds the read lock. The fields of a single cell (onset, offset, value) are read without
+ * locking. Variables and cells that are not part of a datastore all share one lock.
+ *
+ * To read the datastore consistently across several calls, hold the read lock for the whole read, or read a snapshot,
+ * which keeps no one from making changes meanwhile. To tell the listeners about several changes at once, make them in a
+ * batch. A batch holds no lock; to make its changes appear to other threads at once as well, hold the write lock
+ * around it, but only for as long as it takes to make the changes. Listeners are notified on the thread making the
+ * change, once it has released the lock, so they may read or change the datastore themselves.
  */
 public interface DataStore {
 
@@ -82,6 +97,17 @@ public interface DataStore {
      */
     Variable getVariable(Cell cell);
 
+    /**
+     * Finds the cells that are active at a point in time across several variables.
+     *
+     * @param time The time in milliseconds.
+     * @param vars The variables to search.
+     *
+     * @return For each of the supplied variables (in the supplied order) the cells active at the time, in temporal
+     * order.
+     */
+    Map<Variable, List<Cell>> getCellsAt(final long time, final List<Variable> vars);
+
     /**
      * Creates and adds a variable to this datastore.
      *
@@ -106,6 +132,34 @@ public interface DataStore {
     Variable createVariable(final String name, final Argument.Type type, boolean grandfathered)
         throws UserWarningException;
 
+    /**
+     * Creates and adds a variable to this datastore that stores its cells column by column. Such a variable takes a
+     * fraction of the memory of a regular one, which makes it the better choice for very large variables such as
+     * sensor data. Its cells start out unselected.
+     *
+     * @param name The name of the variable to add to the datastore.
+     * @param type The type of variable to add to the datastore.
+     *
+     * @return The new variable that was added to the datastore.
+     * @throws UserWarningException
+     */
+    Variable createColumnarVariable(final String name, final Argument.Type type) throws UserWarningException;
+
+    /**
+     * Creates and adds a variable to this datastore whose cells are only loaded when they are first used, so that
+     * opening a project does not have to read the variables nobody looks at. Until then the variable takes next to no
+     * memory. Like when a variable is read from a file, its name is exempt from the naming rules.
+     *
+     * @param name     The name of the variable to add to the datastore.
+     * @param rootNode The type of the variable, with its arguments.
+     * @param loader   Loads the cells of the variable on first use.
+     *
+     * @return The new variable that was added to the datastore.
+     * @throws UserWarningException
+     */
+    Variable createLazyVariable(final String name, final Argument rootNode, final CellLoader loader)
+        throws UserWarningException;
+
     /**
      * Removes a variable from the datastore.
      *
@@ -120,6 +174,15 @@ public interface DataStore {
      */
     void addVariable(final Variable var);
 
+    /**
+     * Moves a variable out of the data store it was created in into this one, e.g. from a data store of its own that
+     * it was decoded into on another thread. The cells keep their selection.
+     *
+     * @param var The variable to move.
+     * @throws UserWarningException If this data store already holds a variable with the same name.
+     */
+    void attachVariable(final Variable var) throws UserWarningException;
+
     /**
      * Removes a variable from the datastore.
      *
@@ -148,6 +211,78 @@ public interface DataStore {
      */
     boolean isChanged();
 
+    /**
+     * The lock guarding the contents of this datastore. A thread holding the read lock must not make changes or wait
+     * for a thread that might make changes, such as the event dispatch thread, since it would wait forever for the
+     * write lock.
+     *
+     * @return The read/write lock of this datastore.
+     */
+    ReadWriteLock getLock();
+
+    /**
+     * Takes an immutable snapshot of the contents of this datastore: its variables with their arguments, and their
+     * cells with onsets, offsets and values. The snapshot can be read on any thread without waiting for the lock while
+     * this datastore keeps changing, and can not be changed itself. Selections and listeners are not part of it.
+     *
+     * The copy of a variable is kept until the variable changes, so variables that did not change since the previous
+     * snapshot are shared with it. The copy of a variable that did change shares its cells with the variable, which
+     * copies them on write: the next change of a column array (ColumnarVariable) or of a tree node (DatavyuVariable)
+     * copies it first. Taking a snapshot thus costs O(1) per changed variable while holding the read lock. A copy lays
+     * out its cells in arrays the first time it is read, without holding the lock; that costs time in proportion to
+     * the cells of the variable, on the thread reading the snapshot.
+     *
+     * Variables whose cells have not been loaded yet (see createLazyVariable) are not loaded. Their copies read the
+     * cells the same way the first time they are used.
+     *
+     * @return A snapshot of this datastore; a snapshot returns itself.
+     */
+    DataStore snapshot();
+
+    /**
+     * @param var A variable of this datastore.
+     * @return The loader of the cells of the variable if they have not been loaded since it was created (see
+     * createLazyVariable), null otherwise. The loader of the copy of such a variable in a snapshot is returned even
+     * after the copy has read its cells, as they are still the ones of the loader.
+     */
+    CellLoader getCellLoader(final Variable var);
+
+    /**
+     * Starts a batch of changes. Until the batch is committed the cells and variables of this datastore are changed
+     * right away, but their listeners are not told about inserted and removed cells or changed onsets and offsets.
+     * Instead each changed variable delivers one summary of its changes on commit, see VariableListener.cellsChanged.
+     * Batches may be nested; the changes are delivered when the outermost batch is committed.
+     *
+     * Variables that are added or removed, as well as selection changes, are still reported right away.
+     *
+     * A batch only holds back the notifications: it belongs to the thread that began it and must be committed on that
+     * thread, while other threads keep reading and changing the datastore, their changes notified right away. Each
+     * change in the batch holds the write lock while it runs, as it would outside of one. A caller that wants other
+     * threads to see either none or all of the changes holds the write lock around the batch itself; it must then keep
+     * the batch short and make nothing but the changes in it, never run script code or other work of unbounded length,
+     * since every reader, such as the event dispatch thread painting the spreadsheet, waits for it.
+     */
+    void beginBatch();
+
+    /**
+     * Commits the current batch of changes, notifying the listeners if it was the outermost batch.
+     *
+     * @throws IllegalStateException if there is no batch to commit.
+     */
+    void commitBatch();
+
+    /**
+     * Runs the supplied changes as one batch; the batch is committed even if the changes fail.
+     *
+     * @param changes The changes to make to the datastore.
+     */
+    void batch(final Runnable changes);
+
+    /**
+     * @return True if the current thread has a batch of changes in progress, false otherwise.
+     */
+    boolean isInBatch();
+
     /**
      * Sets the name of the datastore.
      *
@@ -0,0 +1,306 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A detached copy of a data store, to be changed away from the data store and its listeners, e.g. by a script on
+ * another thread, and then applied to it as one DataStoreDiff.
+ *
+ * The copy remembers which variable and cell of the data store each of its variables and cells was copied from, and
+ * what they were at the time, so that diff finds what was changed in the copy without comparing its contents to the
+ * data store's, which may have been changed in the meantime.
+ */
+public final class DataStoreCopy {
+
+    /** A variable of the data store, as it was copied. */
+    static final class Original {
+
+        final Variable variable;
+
+        final String name;
+
+        final boolean hidden;
+
+        final String arguments;
+
+        final List<OriginalCell> cells = new ArrayList<>();
+
+        Original(final Variable variable) {
+            this.variable = variable;
+            this.name = variable.getName();
+            this.hidden = variable.isHidden();
+            this.arguments = arguments(variable.getRootNode());
+        }
+    }
+
+    /** A cell of the data store, as it was copied. */
+    static final class OriginalCell {
+
+        final Original variable;
+
+        final Cell cell;
+
+        final long onset;
+
+        final long offset;
+
+        final String value;
+
+        OriginalCell(final Original variable, final Cell cell) {
+            this.variable = variable;
+            this.cell = cell;
+            this.onset = cell.getOnset();
+            this.offset = cell.getOffset();
+            this.value = cell.getValueAsString();
+        }
+    }
+
+    private final DataStore dataStore;
+
+    private final DataStore copy;
+
+    /** The variables of the data store in their order, as they were copied. */
+    private final List<Original> originals = new ArrayList<>();
+
+    /** The original of every variable of the copy, as long as it is the copied variable. */
+    private final Map<Variable, Original> variables = new IdentityHashMap<>();
+
+    /** The original of every cell of the copy, as long as it is the copied cell. */
+    private final Map<Cell, OriginalCell> cells = new IdentityHashMap<>();
+
+    private DataStoreCopy(final DataStore dataStore) {
+        this.dataStore = dataStore;
+        this.copy = DataStoreFactory.newDataStore();
+    }
+
+    /**
+     * Copies the variables of a data store with their cells.
+     *
+     * @param dataStore The data store to copy.
+     * @return The copy.
+     */
+    public static DataStoreCopy of(final DataStore dataStore) {
+        DataStoreCopy result = new DataStoreCopy(dataStore);
+        Lock l = dataStore.getLock().readLock();
+        l.lock();
+        result.copy.beginBatch();
+        try {
+            for (Variable variable : dataStore.getAllVariables()) {
+                result.copyVariable(variable);
+            }
+        } catch (UserWarningException e) {
+            // The names are those of the data store already.
+            throw new IllegalStateException("Unable to copy the data store", e);
+        } finally {
+            result.copy.commitBatch();
+            l.unlock();
+        }
+        return result;
+    }
+
+    private void copyVariable(final Variable variable) throws UserWarningException {
+        Original original = new Original(variable);
+        Argument type = variable.getRootNode();
+        Variable var = copy.createVariable(original.name, type.type, true);
+        var.setRootNode(type.copy());
+        var.setHidden(original.hidden);
+        var.setOrderIndex(variable.getOrderIndex());
+        boolean matrix = type.type == Argument.Type.MATRIX;
+        for (Cell cell : variable.getCells()) {
+            OriginalCell originalCell = new OriginalCell(original, cell);
+            Cell c = var.createCell(originalCell.onset, originalCell.offset);
+            DataStoreDiff.setValues(c, matrix, DataStoreDiff.values(cell, matrix));
+            original.cells.add(originalCell);
+            cells.put(c, originalCell);
+        }
+        originals.add(original);
+        variables.put(var, original);
+    }
+
+    /**
+     * @return The copy, to be changed.
+     */
+    public DataStore getCopy() {
+        return copy;
+    }
+
+    /**
+     * @return The data store that was copied.
+     */
+    public DataStore getDataStore() {
+        return dataStore;
+    }
+
+    /**
+     * Finds what was changed in the copy since it was made.
+     *
+     * Variables and cells are followed from what they were copied from, so a renamed variable is renamed rather than
+     * removed and added again. A variable that was removed and then created again with the same name and arguments
+     * only has its cells changed, and a cell that was removed and then created again the same is left alone. A
+     * variable whose arguments changed is replaced by its copy.
+     *
+     * @return The changes, to be applied to the data store.
+     */
+    public DataStoreDiff diff() {
+        Lock l = copy.getLock().readLock();
+        l.lock();
+        try {
+            DataStoreDiff diff = new DataStoreDiff(dataStore);
+            Map<Original, Variable> matched = new IdentityHashMap<>();
+            List<Variable> unmatched = new ArrayList<>();
+            for (Variable var : copy.getAllVariables()) {
+                Original original = variables.get(var);
+                if (original != null && original.arguments.equals(arguments(var.getRootNode()))) {
+                    matched.put(original, var);
+                } else {
+                    unmatched.add(var);
+                }
+            }
+
+            // Variables created again alike.
+            Map<String, Original> byName = new HashMap<>();
+            for (Original original : originals) {
+                if (!matched.containsKey(original)) {
+                    byName.put(original.name, original);
+                }
+            }
+            for (Iterator<Variable> it = unmatched.iterator(); it.hasNext(); ) {
+                Variable var = it.next();
+                Original original = byName.get(var.getName());
+                if (original != null && original.arguments.equals(arguments(var.getRootNode()))) {
+                    byName.remove(original.name);
+                    matched.put(original, var);
+                    it.remove();
+                }
+            }
+
+            // Renaming a variable to the name of another one that is renamed too needs an order, or a name in between;
+            // a replacement is simpler.
+            Map<String, Original> matchedByName = new HashMap<>();
+            for (Original original : matched.keySet()) {
+                matchedByName.put(original.name, original);
+            }
+            List<Original> renamedOver = new ArrayList<>();
+            for (Map.Entry<Original, Variable> entry : matched.entrySet()) {
+                Original other = matchedByName.get(entry.getValue().getName());
+                if (other != null && other != entry.getKey()) {
+                    renamedOver.add(entry.getKey());
+                }
+            }
+            for (Original original : renamedOver) {
+                unmatched.add(matched.remove(original));
+            }
+
+            // A variable that is removed and replaced by its copy, or by one with its name, keeps its place.
+            Map<Original, Variable> replacements = new IdentityHashMap<>();
+            Set<Variable> replacing = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Variable var : unmatched) {
+                Original original = variables.get(var);
+                if (original != null && !matched.containsKey(original) && !replacements.containsKey(original)) {
+                    replacements.put(original, var);
+                    replacing.add(var);
+                }
+            }
+            for (Variable var : unmatched) {
+                Original original = byName.get(var.getName());
+                if (!replacing.contains(var) && original != null && !matched.containsKey(original)
+                        && !replacements.containsKey(original)) {
+                    replacements.put(original, var);
+                    replacing.add(var);
+                }
+            }
+
+            for (Original original : originals) {
+                Variable var = matched.get(original);
+                if (var != null) {
+                    diffVariable(diff, original, var);
+                } else {
+                    diff.removeVariable(original.variable, replacements.get(original));
+                }
+            }
+            for (Variable var : unmatched) {
+                if (!replacing.contains(var)) {
+                    diff.addVariable(var);
+                }
+            }
+            return diff;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    private void diffVariable(final DataStoreDiff diff, final Original original, final Variable var) {
+        Variable variable = original.variable;
+        if (!var.getName().equals(original.name)) {
+            diff.rename(variable, original.name, var.getName());
+        }
+        if (var.isHidden() != original.hidden) {
+            diff.toggleHidden(variable);
+        }
+
+        boolean matrix = var.getRootNode().type == Argument.Type.MATRIX;
+        Set<OriginalCell> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Cell> inserted = new ArrayList<>();
+        for (Cell c : var.getCells()) {
+            OriginalCell originalCell = cells.get(c);
+            if (originalCell == null || originalCell.variable != original || !kept.add(originalCell)) {
+                inserted.add(c);
+            } else if (c.getOnset() != originalCell.onset || c.getOffset() != originalCell.offset
+                    || !c.getValueAsString().equals(originalCell.value)) {
+                diff.changeCell(originalCell.cell, matrix, c.getOnset(), c.getOffset(), DataStoreDiff.values(c, matrix));
+            }
+        }
+
+        // Cells removed and created again the same stay as they are.
+        Map<String, Deque<OriginalCell>> removed = new HashMap<>();
+        for (OriginalCell originalCell : original.cells) {
+            if (!kept.contains(originalCell)) {
+                removed.computeIfAbsent(key(originalCell.onset, originalCell.offset, originalCell.value),
+                        k -> new ArrayDeque<>()).add(originalCell);
+            }
+        }
+        for (Cell c : inserted) {
+            Deque<OriginalCell> same = removed.get(key(c.getOnset(), c.getOffset(), c.getValueAsString()));
+            if (same != null && !same.isEmpty()) {
+                kept.add(same.poll());
+            } else {
+                diff.insertCell(variable, matrix, c.getOnset(), c.getOffset(), DataStoreDiff.values(c, matrix));
+            }
+        }
+        for (OriginalCell originalCell : original.cells) {
+            if (!kept.contains(originalCell)) {
+                diff.removeCell(variable, originalCell.cell);
+            }
+        }
+    }
+
+    private static String key(final long onset, final long offset, final String value) {
+        return onset + "," + offset + "," + value;
+    }
+
+    /**
+     * @return The type, names and types of the arguments of a variable, which its cells depend on.
+     */
+    static String arguments(final Argument rootNode) {
+        StringBuilder result = new StringBuilder(rootNode.type.name());
+        for (Argument child : rootNode.childArguments) {
+            result.append('\n').append(child.name).append(':').append(child.type);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The changes made to a DataStoreCopy, to be applied to the data store that was copied in one batch, and reverted
+ * again for undo.
+ *
+ * Only what changed is kept: the variables that were added, removed or replaced, renamed or hidden, and the cells
+ * that were inserted, removed or had their times or values changed. Apply and revert must be called in turn, on the
+ * thread the data store is changed on.
+ */
+public final class DataStoreDiff {
+
+    private static final class Rename {
+
+        final Variable variable;
+
+        final String oldName;
+
+        final String newName;
+
+        Rename(final Variable variable, final String oldName, final String newName) {
+            this.variable = variable;
+            this.oldName = oldName;
+            this.newName = newName;
+        }
+    }
+
+    private static final class CellChange {
+
+        final Cell cell;
+
+        final boolean matrix;
+
+        final long onset;
+
+        final long offset;
+
+        final String[] values;
+
+        /** What the cell was before the change was applied. */
+        long oldOnset;
+
+        long oldOffset;
+
+        String[] oldValues;
+
+        CellChange(final Cell cell, final boolean matrix, final long onset, final long offset, final String[] values) {
+            this.cell = cell;
+            this.matrix = matrix;
+            this.onset = onset;
+            this.offset = offset;
+            this.values = values;
+        }
+    }
+
+    private static final class CellInsert {
+
+        final Variable variable;
+
+        final boolean matrix;
+
+        final long onset;
+
+        final long offset;
+
+        final String[] values;
+
+        /** The inserted cell, once it has been. */
+        Cell cell;
+
+        CellInsert(final Variable variable, final boolean matrix, final long onset, final long offset,
+                   final String[] values) {
+            this.variable = variable;
+            this.matrix = matrix;
+            this.onset = onset;
+            this.offset = offset;
+            this.values = values;
+        }
+    }
+
+    private final DataStore dataStore;
+
+    /** The variables of the data store to remove. */
+    private final List<Variable> removedVariables = new ArrayList<>();
+
+    /** The variables of the copy to add, in the order of the copy. */
+    private final List<Variable> addedVariables = new ArrayList<>();
+
+    /** The removed variables that are replaced by an added one, with it. */
+    private final Map<Variable, Variable> replacements = new LinkedHashMap<>();
+
+    private final List<Rename> renamed = new ArrayList<>();
+
+    /** The variables of the data store whose hidden state is toggled. */
+    private final List<Variable> toggled = new ArrayList<>();
+
+    private final List<CellChange> changedCells = new ArrayList<>();
+
+    private final List<CellInsert> insertedCells = new ArrayList<>();
+
+    /** The cells of the data store to remove, with their variable. */
+    private final Map<Cell, Variable> removedCells = new LinkedHashMap<>();
+
+    /** The removed variables that were still in the data store when the changes were applied. */
+    private final List<Variable> removedFromDataStore = new ArrayList<>();
+
+    /** True once the added variables have been moved out of the copy into the data store. */
+    private boolean attached;
+
+    DataStoreDiff(final DataStore dataStore) {
+        this.dataStore = dataStore;
+    }
+
+    void removeVariable(final Variable variable, final Variable replacement) {
+        removedVariables.add(variable);
+        if (replacement != null) {
+            replacements.put(variable, replacement);
+            addedVariables.add(replacement);
+        }
+    }
+
+    void addVariable(final Variable variable) {
+        addedVariables.add(variable);
+    }
+
+    void rename(final Variable variable, final String oldName, final String newName) {
+        renamed.add(new Rename(variable, oldName, newName));
+    }
+
+    void toggleHidden(final Variable variable) {
+        toggled.add(variable);
+    }
+
+    void changeCell(final Cell cell, final boolean matrix, final long onset, final long offset,
+                    final String[] values) {
+        changedCells.add(new CellChange(cell, matrix, onset, offset, values));
+    }
+
+    void insertCell(final Variable variable, final boolean matrix, final long onset, final long offset,
+                    final String[] values) {
+        insertedCells.add(new CellInsert(variable, matrix, onset, offset, values));
+    }
+
+    void removeCell(final Variable variable, final Cell cell) {
+        removedCells.put(cell, variable);
+    }
+
+    /**
+     * @return True if nothing was changed.
+     */
+    public boolean isEmpty() {
+        return removedVariables.isEmpty() && addedVariables.isEmpty() && renamed.isEmpty() && toggled.isEmpty()
+                && changedCells.isEmpty() && insertedCells.isEmpty() && removedCells.isEmpty();
+    }
+
+    /**
+     * @return The variables of the data store that are removed and replaced by another, with their replacement,
+     * which would take their place among the columns.
+     */
+    public Map<Variable, Variable> getReplacements() {
+        return Collections.unmodifiableMap(replacements);
+    }
+
+    /**
+     * Applies the changes to the data store, in one batch.
+     *
+     * @throws UserWarningException If a variable would be added or renamed to the name of a variable that has been
+     *                              added to the data store since it was copied; nothing is changed then.
+     */
+    public void apply() throws UserWarningException {
+        // Other threads see the data store as it was or with all of the changes, and no one adds names meanwhile.
+        Lock l = dataStore.getLock().writeLock();
+        l.lock();
+        try {
+            applyLocked();
+        } finally {
+            l.unlock();
+        }
+    }
+
+    private void applyLocked() throws UserWarningException {
+        // Check the names first, so that the changes are made in full or not at all.
+        Set<String> names = new HashSet<>();
+        for (Variable variable : dataStore.getAllVariables()) {
+            names.add(variable.getName());
+        }
+        for (Variable variable : removedVariables) {
+            names.remove(variable.getName());
+        }
+        for (Rename rename : renamed) {
+            names.remove(rename.oldName);
+        }
+        for (Rename rename : renamed) {
+            checkName(names, rename.newName);
+        }
+        for (Variable variable : addedVariables) {
+            checkName(names, variable.getName());
+        }
+
+        dataStore.beginBatch();
+        try {
+            removedFromDataStore.clear();
+            for (Variable variable : removedVariables) {
+                if (dataStore.getVariable(variable.getName()) == variable) {
+                    dataStore.removeVariable(variable);
+                    removedFromDataStore.add(variable);
+                }
+            }
+            for (Rename rename : renamed) {
+                rename.variable.setName(rename.newName, true);
+            }
+            for (Variable variable : toggled) {
+                variable.setHidden(!variable.isHidden());
+            }
+            for (CellChange change : changedCells) {
+                Cell cell = change.cell;
+                change.oldOnset = cell.getOnset();
+                change.oldOffset = cell.getOffset();
+                change.oldValues = values(cell, change.matrix);
+                setCell(cell, change.matrix, change.onset, change.offset, change.values);
+            }
+            for (CellInsert insert : insertedCells) {
+                if (insert.cell == null) {
+                    insert.cell = insert.variable.createCell(insert.onset, insert.offset);
+                    setValues(insert.cell, insert.matrix, insert.values);
+                } else {
+                    insert.variable.addCell(insert.cell);
+                }
+            }
+            removeCells(removedCells);
+            for (Variable variable : addedVariables) {
+                if (attached) {
+                    dataStore.addVariable(variable);
+                } else {
+                    dataStore.attachVariable(variable);
+                }
+            }
+            attached = true;
+        } finally {
+            dataStore.commitBatch();
+        }
+    }
+
+    /**
+     * Reverts the changes applied to the data store, in one batch.
+     */
+    public void revert() {
+        Lock l = dataStore.getLock().writeLock();
+        l.lock();
+        dataStore.beginBatch();
+        try {
+            for (Variable variable : addedVariables) {
+                dataStore.removeVariable(variable);
+            }
+            Map<Cell, Variable> inserted = new LinkedHashMap<>();
+            for (CellInsert insert : insertedCells) {
+                inserted.put(insert.cell, insert.variable);
+            }
+            removeCells(inserted);
+            for (Map.Entry<Cell, Variable> entry : removedCells.entrySet()) {
+                entry.getValue().addCell(entry.getKey());
+            }
+            for (CellChange change : changedCells) {
+                setCell(change.cell, change.matrix, change.oldOnset, change.oldOffset, change.oldValues);
+            }
+            for (Variable variable : toggled) {
+                variable.setHidden(!variable.isHidden());
+            }
+            for (Rename rename : renamed) {
+                rename.variable.setName(rename.oldName, true);
+            }
+            for (Variable variable : removedFromDataStore) {
+                dataStore.addVariable(variable);
+            }
+        } catch (UserWarningException e) {
+            // The names were those of the variables before.
+            throw new IllegalStateException("Unable to revert the changes", e);
+        } finally {
+            dataStore.commitBatch();
+            l.unlock();
+        }
+    }
+
+    private static void checkName(final Set<String> names, final String name) throws UserWarningException {
+        if (!names.add(name)) {
+            throw new UserWarningException("Unable to apply the changes, a column named '" + name
+                    + "' has been added in the meantime.");
+        }
+    }
+
+    /**
+     * Removes cells from their variables, leaving out the ones that have been removed already.
+     */
+    private static void removeCells(final Map<Cell, Variable> cells) {
+        Map<Variable, Set<Cell>> contents = new IdentityHashMap<>();
+        for (Map.Entry<Cell, Variable> entry : cells.entrySet()) {
+            Variable variable = entry.getValue();
+            Set<Cell> content = contents.computeIfAbsent(variable,
+                    v -> Collections.newSetFromMap(new IdentityHashMap<>()));
+            if (content.isEmpty()) {
+                content.addAll(variable.getCells());
+            }
+            if (content.remove(entry.getKey())) {
+                variable.removeCell(entry.getKey());
+            }
+        }
+    }
+
+    private static void setCell(final Cell cell, final boolean matrix, final long onset, final long offset,
+                                final String[] values) {
+        if (cell.getOnset() != onset) {
+            cell.setOnset(onset);
+        }
+        if (cell.getOffset() != offset) {
+            cell.setOffset(offset);
+        }
+        setValues(cell, matrix, values);
+    }
+
+    /**
+     * @return The values of a cell as strings, one per argument of a matrix.
+     */
+    static String[] values(final Cell cell, final boolean matrix) {
+        if (!matrix) {
+            return new String[]{cell.getCellValue().toString()};
+        }
+        List<CellValue> arguments = ((MatrixCellValue) cell.getCellValue()).getArguments();
+        String[] values = new String[arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arguments.get(i).toString();
+        }
+        return values;
+    }
+
+    /**
+     * Sets the values of a cell from the strings of values, leaving alone those that are the same.
+     */
+    static void setValues(final Cell cell, final boolean matrix, final String[] values) {
+        if (!matrix) {
+            cell.getCellValue().set(values[0]);
+            return;
+        }
+        List<CellValue> arguments = ((MatrixCellValue) cell.getCellValue()).getArguments();
+        for (int i = 0; i < Math.min(values.length, arguments.size()); i++) {
+            arguments.get(i).set(values[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d columns added, %d removed, %d replaced, %d renamed; "
+                        + "%d cells added, %d removed, %d changed", addedVariables.size() - replacements.size(),
+                removedVariables.size() - replacements.size(), replacements.size(), renamed.size(),
+                insertedCells.size(), removedCells.size(), changedCells.size());
+    }
+}
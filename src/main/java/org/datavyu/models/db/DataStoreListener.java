@@ -22,6 +22,8 @@
  */
 package org.datavyu.models.db;
 
+import java.util.List;
+
 /**
  * Implement this interface to be notified of changes to the datastore.
  */
@@ -65,4 +67,13 @@ public interface DataStoreListener {
      * @param editedVariable The variable that has had its name changed.
      */
     void variableNameChange(final Variable editedVariable);
+
+    /**
+     * Called when a batch of changes has been committed, after the listeners of the changed variables and cells have
+     * been notified.
+     *
+     * @param changes The changes of every variable that changed during the batch.
+     */
+    default void batchCommitted(final List<VariableChanges> changes) {
+    }
 }
@@ -0,0 +1,137 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The read/write lock of a data store, which holds back the notifications of listeners until the thread making the
+ * change has let go of the lock. Listeners may then read or change any variable without waiting on a lock the
+ * notifying thread holds, which would deadlock as soon as two threads did so in a different order.
+ */
+final class DataStoreLock implements ReadWriteLock {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Lock readLock = new NotifyingLock(lock.readLock());
+
+    private final Lock writeLock = new NotifyingLock(lock.writeLock());
+
+    /** The notifications held back, per thread, in the order they were made. */
+    private final ThreadLocal<ArrayDeque<Runnable>> pending = new ThreadLocal<ArrayDeque<Runnable>>() {
+        @Override
+        protected ArrayDeque<Runnable> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    @Override
+    public Lock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writeLock;
+    }
+
+    private boolean isHeldByCurrentThread() {
+        return lock.isWriteLockedByCurrentThread() || lock.getReadHoldCount() > 0;
+    }
+
+    /**
+     * @return True if the current thread holds the read lock but not the write lock, which it then can not take.
+     */
+    boolean isOnlyReadLockedByCurrentThread() {
+        return !lock.isWriteLockedByCurrentThread() && lock.getReadHoldCount() > 0;
+    }
+
+    /**
+     * Notifies listeners: right away if the current thread holds no lock, or else once it has released it.
+     *
+     * @param notification Calls the listeners.
+     */
+    void notify(final Runnable notification) {
+        if (isHeldByCurrentThread()) {
+            pending.get().add(notification);
+        } else {
+            notification.run();
+        }
+    }
+
+    private void notifyPending() {
+        ArrayDeque<Runnable> notifications = pending.get();
+        try {
+            // Listeners that change the data store again add to the queue, and empty it when they unlock.
+            Runnable notification;
+            while (!isHeldByCurrentThread() && (notification = notifications.poll()) != null) {
+                notification.run();
+            }
+        } catch (RuntimeException | Error e) {
+            notifications.clear();
+            throw e;
+        }
+    }
+
+    /**
+     * A lock of the data store that sends the notifications held back once the thread has released all of its locks.
+     */
+    private final class NotifyingLock implements Lock {
+
+        private final Lock lock;
+
+        NotifyingLock(final Lock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public void lock() {
+            lock.lock();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            lock.lockInterruptibly();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return lock.tryLock();
+        }
+
+        @Override
+        public boolean tryLock(final long time, final TimeUnit unit) throws InterruptedException {
+            return lock.tryLock(time, unit);
+        }
+
+        @Override
+        public void unlock() {
+            lock.unlock();
+            if (!isHeldByCurrentThread()) {
+                notifyPending();
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            return lock.newCondition();
+        }
+    }
+}
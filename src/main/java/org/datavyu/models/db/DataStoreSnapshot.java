@@ -0,0 +1,255 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An immutable snapshot of a data store, see DataStore.snapshot.
+ *
+ * All the methods that would change the snapshot throw an UnsupportedOperationException. Nothing is ever selected in a
+ * snapshot and its lock is never write locked, so reading never waits.
+ */
+final class DataStoreSnapshot implements DataStore {
+
+    /** Message of the exception thrown when trying to change a snapshot. */
+    static final String READ_ONLY = "A snapshot of the data store can not be changed.";
+
+    private final String name;
+
+    private final boolean changed;
+
+    private final String exemptionVariables;
+
+    /** The variables in the order of getAllVariables. */
+    private final List<Variable> variables;
+
+    private final Map<String, Variable> variablesByName = new HashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param name               The name of the data store.
+     * @param changed            True if the data store had changed since it was last saved.
+     * @param exemptionVariables The names exempt from the naming rules.
+     * @param variables          The snapshots of the variables, in the order of getAllVariables.
+     */
+    DataStoreSnapshot(final String name, final boolean changed, final String exemptionVariables,
+                      final List<VariableSnapshot> variables) {
+        this.name = name;
+        this.changed = changed;
+        this.exemptionVariables = exemptionVariables;
+        this.variables = Collections.unmodifiableList(new ArrayList<Variable>(variables));
+        for (Variable variable : variables) {
+            variablesByName.put(variable.getName(), variable);
+        }
+    }
+
+    @Override
+    public List<Variable> getAllVariables() {
+        return new ArrayList<>(variables);
+    }
+
+    @Override
+    public List<Variable> getVisibleVariables() {
+        List<Variable> visibleVariables = new ArrayList<>();
+        for (Variable variable : variables) {
+            if (!variable.isHidden()) {
+                visibleVariables.add(variable);
+            }
+        }
+        return visibleVariables;
+    }
+
+    @Override
+    public List<Variable> getSelectedVariables() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void clearVariableSelection() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public List<Cell> getSelectedCells() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void clearCellSelection() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void deselectAll() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public Variable getVariable(final String varName) {
+        return variablesByName.get(varName);
+    }
+
+    @Override
+    public Variable getVariable(final Cell cell) {
+        Variable variable = cell.getVariable();
+        return variable != null && variablesByName.get(variable.getName()) == variable && variable.contains(cell)
+                ? variable : null;
+    }
+
+    @Override
+    public Map<Variable, List<Cell>> getCellsAt(final long time, final List<Variable> vars) {
+        Map<Variable, List<Cell>> result = new LinkedHashMap<>();
+        for (Variable v : vars) {
+            result.put(v, v.getCellsAt(time));
+        }
+        return result;
+    }
+
+    @Override
+    public Variable createVariable(final String name, final Argument.Type type) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public Variable createVariable(final String name, final Argument.Type type, final boolean grandfathered) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public Variable createColumnarVariable(final String name, final Argument.Type type) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public Variable createLazyVariable(final String name, final Argument rootNode, final CellLoader loader) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void removeVariable(final Variable var) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void addVariable(final Variable var) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void attachVariable(final Variable var) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void removeCell(final Cell cell) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void markAsUnchanged() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void markAsChanged() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    /**
+     * @return True if the data store had changed since it was last saved when the snapshot was taken.
+     */
+    @Override
+    public boolean isChanged() {
+        return changed;
+    }
+
+    @Override
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    @Override
+    public DataStore snapshot() {
+        return this;
+    }
+
+    @Override
+    public CellLoader getCellLoader(final Variable var) {
+        return var instanceof VariableSnapshot ? ((VariableSnapshot) var).getCellLoader() : null;
+    }
+
+    @Override
+    public void beginBatch() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void commitBatch() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void batch(final Runnable changes) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public boolean isInBatch() {
+        return false;
+    }
+
+    @Override
+    public void setName(final String datastoreName) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void updateVariableName(final String oldname, final String newName, final Variable variable) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public void setTitleNotifier(final TitleNotifier titleNotifier) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    // A snapshot never changes, so there is nothing to listen to.
+    @Override
+    public void addListener(final DataStoreListener listener) {
+    }
+
+    @Override
+    public void removeListener(final DataStoreListener listener) {
+    }
+
+    @Override
+    public void addExemptionVariable(final String s) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    @Override
+    public String getExemptionVariables() {
+        return exemptionVariables;
+    }
+}
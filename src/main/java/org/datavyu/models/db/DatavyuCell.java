@@ -15,32 +15,37 @@
 package org.datavyu.models.db;
 
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 
 public class DatavyuCell implements Cell {
 
-    static Map<UUID, List<CellListener>> allListeners = new HashMap<UUID, List<CellListener>>();
     final private UUID id = UUID.randomUUID();
     private long onset = 0L;
     private long offset = 0L;
     private Argument type;
-    private boolean selected;
-    private boolean highlighted;
+    private volatile boolean selected;
+    private volatile boolean highlighted;
     private Variable parent;
     private Map<String, CellValue> arguments = new HashMap<String, CellValue>();
     private CellValue cellValue;
+    private CellListener[] listeners = Listeners.NO_CELL_LISTENERS;
 
     public DatavyuCell() {
     }
 
     public DatavyuCell(Variable parent, Argument type) {
+        this(parent, type, 0L, 0L, true);
+    }
+
+    DatavyuCell(Variable parent, Argument type, long onset, long offset, boolean selected) {
         this.parent = parent;
         this.type = type;
 
-        this.onset = 0L;
-        this.offset = 0L;
-        this.selected = true;
-        this.highlighted = true;
+        this.onset = onset;
+        this.offset = offset;
+        this.selected = selected;
+        this.highlighted = selected;
 
         // Build argument list from the argument given
 
@@ -53,26 +58,18 @@ public class DatavyuCell implements Cell {
         }
     }
 
-    /**
-     * @param cellId The Identifier of the variable we want the listeners for.
-     * @return The list of listeners for the specified cellId.
-     */
-    private static List<CellListener> getListeners(UUID cellId) {
-        List<CellListener> result = allListeners.get(cellId);
-
-        if (result == null) {
-            result = new ArrayList<CellListener>();
-            allListeners.put(cellId, result);
-        }
-
-        return result;
-    }
-
     public Variable getVariable() {
         return parent;
     }
 
-    private String convertMStoTimestamp(long time) {
+    /**
+     * @param variable The variable this cell has been moved to, see DatavyuVariable.ensureLoaded.
+     */
+    void setVariable(final Variable variable) {
+        parent = variable;
+    }
+
+    static String convertMStoTimestamp(long time) {
         long hours = Math.round(Math.floor((time / 1000.0 / 60.0 / 60.0)));
         long minutes = Math.round(Math.floor(time / 1000.0 / 60.0 - (hours * 60)));
         long seconds = Math.round(Math.floor(time / 1000.0 - (hours * 60 * 60) - (minutes * 60)));
@@ -81,7 +78,7 @@ public class DatavyuCell implements Cell {
         return String.format("%02d:%02d:%02d:%03d", hours, minutes, seconds, mseconds);
     }
 
-    private long convertTimestampToMS(String timestamp) {
+    static long convertTimestampToMS(String timestamp) {
 
         String[] s = timestamp.split(":");
         if(s.length == 1){
@@ -108,10 +105,17 @@ public class DatavyuCell implements Cell {
 
     @Override
     public void setOffset(final long newOffset) {
-        if (newOffset != offset) parent.getOwningDatastore().markAsChanged();
-        offset = newOffset;
-        for (CellListener cl : getListeners(getID())) {
-            cl.offsetChanged(offset);
+        Lock l = DatavyuDataStore.lockOf(parent).writeLock();
+        l.lock();
+        try {
+            if (newOffset != offset) markAsChanged();
+            offset = newOffset;
+            updateTemporalPosition();
+            if (!deferChange(VariableChanges.OFFSET)) {
+                fireTimesChanged(VariableChanges.OFFSET);
+            }
+        } finally {
+            l.unlock();
         }
     }
 
@@ -137,10 +141,97 @@ public class DatavyuCell implements Cell {
 
     @Override
     public void setOnset(final long newOnset) {
-        if (newOnset != onset) parent.getOwningDatastore().markAsChanged();
-        onset = newOnset;
-        for (CellListener cl : getListeners(getID())) {
-            cl.onsetChanged(onset);
+        Lock l = DatavyuDataStore.lockOf(parent).writeLock();
+        l.lock();
+        try {
+            if (newOnset != onset) markAsChanged();
+            onset = newOnset;
+            updateTemporalPosition();
+            if (!deferChange(VariableChanges.ONSET)) {
+                fireTimesChanged(VariableChanges.ONSET);
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Marks the data store holding this cell as changed; a cell outside a data store has nothing to mark.
+     */
+    private void markAsChanged() {
+        DataStore dataStore = parent == null ? null : parent.getOwningDatastore();
+        if (dataStore != null) {
+            dataStore.markAsChanged();
+        }
+    }
+
+    /**
+     * Lets the parent variable re-sort this cell, before any listener gets to look at the new temporal order.
+     */
+    private void updateTemporalPosition() {
+        if (parent instanceof DatavyuVariable) {
+            ((DatavyuVariable) parent).cellTimeChanged(this);
+        }
+    }
+
+    /**
+     * Records a change of the onset or offset with the current batch of the owning data store, if there is one.
+     *
+     * @param flag The VariableChanges flag of what has changed.
+     * @return True if the change has been recorded and the listeners must not be notified yet.
+     */
+    private boolean deferChange(final int flag) {
+        DataStore dataStore = parent == null ? null : parent.getOwningDatastore();
+        if (dataStore instanceof DatavyuDataStore && parent.contains(this)) {
+            VariableChanges changes = ((DatavyuDataStore) dataStore).getBatchChanges(parent);
+            if (changes != null) {
+                changes.cellChanged(this, flag);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notifies the listeners about the times of this cell, once the lock of the data store is released; also after a
+     * batch of changes has been committed.
+     *
+     * @param flags The VariableChanges flags of what has changed.
+     */
+    void fireTimesChanged(final int flags) {
+        if (listeners.length == 0) {
+            return;
+        }
+        final long newOnset = onset;
+        final long newOffset = offset;
+        notifyListeners(() -> {
+            for (CellListener cl : listeners) {
+                if ((flags & VariableChanges.ONSET) != 0) {
+                    cl.onsetChanged(newOnset);
+                }
+                if ((flags & VariableChanges.OFFSET) != 0) {
+                    cl.offsetChanged(newOffset);
+                }
+            }
+        });
+    }
+
+    private void notifyListeners(final Runnable notification) {
+        DataStore dataStore = parent == null ? null : parent.getOwningDatastore();
+        if (dataStore instanceof DatavyuDataStore) {
+            ((DatavyuDataStore) dataStore).notify(notification);
+        } else {
+            DatavyuDataStore.notifyDetached(notification);
+        }
+    }
+
+    /**
+     * Lets the owning data store keep track of the selected and highlighted cells.
+     */
+    private void updateSelectionIndex() {
+        DataStore dataStore = parent == null ? null : parent.getOwningDatastore();
+        if (dataStore instanceof DatavyuDataStore) {
+            ((DatavyuDataStore) dataStore).updateCellSelection(this);
         }
     }
 
@@ -167,16 +258,28 @@ public class DatavyuCell implements Cell {
 
     @Override
     public void setSelected(final boolean selected) {
-        this.selected = selected;
-        if (!selected) {
-            setHighlighted(false);
-        }
-
-        for (CellListener cl : getListeners(getID())) {
-            cl.selectionChange(selected);
+        // Selection changes no data, so readers may go on.
+        Lock l = DatavyuDataStore.lockOf(parent).readLock();
+        l.lock();
+        try {
+            this.selected = selected;
+            updateSelectionIndex();
             if (!selected) {
-                cl.highlightingChange(false);
+                setHighlighted(false);
             }
+
+            if (listeners.length > 0) {
+                notifyListeners(() -> {
+                    for (CellListener cl : listeners) {
+                        cl.selectionChange(selected);
+                        if (!selected) {
+                            cl.highlightingChange(false);
+                        }
+                    }
+                });
+            }
+        } finally {
+            l.unlock();
         }
     }
 
@@ -187,14 +290,25 @@ public class DatavyuCell implements Cell {
 
     @Override
     public void setHighlighted(final boolean highlighted) {
-        this.highlighted = highlighted;
-
-        if (highlighted) {
-            setSelected(highlighted);
-        }
+        Lock l = DatavyuDataStore.lockOf(parent).readLock();
+        l.lock();
+        try {
+            this.highlighted = highlighted;
+            updateSelectionIndex();
+
+            if (highlighted) {
+                setSelected(highlighted);
+            }
 
-        for (CellListener cl : getListeners(getID())) {
-            cl.highlightingChange(highlighted);
+            if (listeners.length > 0) {
+                notifyListeners(() -> {
+                    for (CellListener cl : listeners) {
+                        cl.highlightingChange(highlighted);
+                    }
+                });
+            }
+        } finally {
+            l.unlock();
         }
     }
 
@@ -206,16 +320,7 @@ public class DatavyuCell implements Cell {
 
     @Override
     public void moveMatrixValue(final int oldIndex, int newIndex) {
-        DatavyuMatrixCellValue val = (DatavyuMatrixCellValue) getCellValue();
-        List<CellValue> cellValues = val.getArguments();
-        CellValue v = cellValues.get(oldIndex);
-
-        cellValues.remove(oldIndex);
-        cellValues.add(newIndex, v);
-
-        for (int i = 0; i < cellValues.size(); i++) {
-            ((DatavyuCellValue) cellValues.get(i)).setIndex(i);
-        }
+        ((DatavyuMatrixCellValue) getCellValue()).moveArgument(oldIndex, newIndex);
     }
 
     @Override
@@ -244,12 +349,12 @@ public class DatavyuCell implements Cell {
 
     @Override
     public void addListener(final CellListener cellListener) {
-        getListeners(getID()).add(cellListener);
+        listeners = Listeners.add(listeners, cellListener);
     }
 
     @Override
     public void removeListener(final CellListener cellListener) {
-        getListeners(getID()).remove(cellListener);
+        listeners = Listeners.remove(listeners, cellListener, Listeners.NO_CELL_LISTENERS);
     }
 
     public UUID getID() {
@@ -276,7 +381,7 @@ public class DatavyuCell implements Cell {
         }
         DatavyuCell otherC = (DatavyuCell) other;
 
-        if (otherC.getID().toString().equals(this.getID().toString())) {
+        if (otherC.getID().equals(this.getID())) {
             return true;
         } else {
             return false;
@@ -25,13 +25,15 @@ package org.datavyu.models.db;
 
 import org.datavyu.util.StringUtils;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 
 public abstract class DatavyuCellValue implements CellValue, Serializable, Comparable<DatavyuCellValue> {
 
-    String value;
     int index;
     UUID parent_id;
     UUID id = UUID.randomUUID();
@@ -39,18 +41,69 @@ public abstract class DatavyuCellValue implements CellValue, Serializable, Compa
     Argument arg;
     Cell parent;
 
+    // The matrix holding this value as an argument, if any
+    DatavyuMatrixCellValue matrix;
+
     @Override
     public boolean isValid(final String value) {
         return true;
     } 
 
+    /**
+     * @return The value held, null if there is none.
+     */
+    abstract String getValue();
+
+    /**
+     * Replaces the value held, without marking the datastore as changed.
+     *
+     * @param newValue The new value, null for none.
+     */
+    abstract void setValue(final String newValue);
+
+    /**
+     * @return The lock of the data store holding this value.
+     */
+    ReadWriteLock getLock() {
+        return DatavyuDataStore.lockOf(parent == null ? null : parent.getVariable());
+    }
+
+    /**
+     * Tells the matrix holding this value, if any, that the value changed.
+     */
+    void valueChanged() {
+        if (matrix != null) {
+            matrix.argumentsChanged();
+        } else {
+            contentsChanged();
+        }
+    }
+
+    /**
+     * Tells the variable holding this value that its contents changed.
+     */
+    void contentsChanged() {
+        Variable variable = parent == null ? null : parent.getVariable();
+        if (variable instanceof DatavyuVariable) {
+            ((DatavyuVariable) variable).contentsChanged(parent);
+        }
+    }
+
     @Override
     public void clear() {
-        this.value = null;
+        Lock l = getLock().writeLock();
+        l.lock();
+        try {
+            setValue(null);
+            valueChanged();
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
     public boolean isEmpty() {
+        String value = getValue();
         if (value == null || value.isEmpty()) {
             return true;
         } else {
@@ -79,9 +132,19 @@ public abstract class DatavyuCellValue implements CellValue, Serializable, Compa
 
     @Override
     public void set(final String newValue) {
-        if (!newValue.equals(toString()) && !newValue.equals(this.value)) {
-            this.value = newValue;
-            this.parent.getVariable().getOwningDatastore().markAsChanged();
+        Lock l = getLock().writeLock();
+        l.lock();
+        try {
+            if (!newValue.equals(toString()) && !newValue.equals(getValue())) {
+                setValue(newValue);
+                valueChanged();
+                DataStore dataStore = parent.getVariable().getOwningDatastore();
+                if (dataStore != null) {
+                    dataStore.markAsChanged();
+                }
+            }
+        } finally {
+            l.unlock();
         }
     }
 
@@ -94,7 +157,7 @@ public abstract class DatavyuCellValue implements CellValue, Serializable, Compa
         if (this.isEmpty()) {
             return "";
         } else {
-            return value;
+            return getValue();
         }
     }
 
@@ -103,7 +166,24 @@ public abstract class DatavyuCellValue implements CellValue, Serializable, Compa
     }
     
     public String serialize() {
+        String value = getValue();
         if(value == null) return "";
         return StringUtils.escapeCSVArgument(value);
     }
+
+    @Override
+    public void appendTo(final Appendable out) throws IOException {
+        String value = getValue();
+        if (value != null) {
+            out.append(value);
+        }
+    }
+
+    @Override
+    public void serializeTo(final Appendable out) throws IOException {
+        String value = getValue();
+        if (value != null) {
+            StringUtils.appendEscapedCSVArgument(out, value);
+        }
+    }
 }
@@ -26,6 +26,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 /**
  * TODO: Fill in the comment at the ???
@@ -40,18 +43,36 @@ public class DatavyuDataStore implements DataStore {
     /** The notifier to ping when the application's title changes. */
     private static TitleNotifier titleNotifier = null;
 
+    /** The lock of the variables, cells and values that are not part of any data store */
+    private static final DataStoreLock DETACHED_LOCK = new DataStoreLock();
+
     /** Name of the DataStore - does not need to persist - is used for file names. */
     private String name = "untitled";
 
     /** Has the DataStore changed since it has last been marked as not changed. */
-    private boolean changed;
+    private volatile boolean changed;
 
     /** All listeners of this data store */
-    private List<DataStoreListener> dataStoreListeners = new ArrayList<DataStoreListener>();
+    private List<DataStoreListener> dataStoreListeners = new CopyOnWriteArrayList<DataStoreListener>();
 
     /** The variable that this data store holds */
     private Map<String, Variable> variables;
 
+    /** The selected cells of all variables, in the order they were selected */
+    private Set<Cell> selectedCells = new LinkedHashSet<>();
+
+    /** The highlighted cells of all variables */
+    private Set<Cell> highlightedCells = new LinkedHashSet<>();
+
+    /** Guards the selected and highlighted cells, which change under the read lock */
+    private final Object selectionLock = new Object();
+
+    /** Guards the variables, cells and values of this data store */
+    private final DataStoreLock lock = new DataStoreLock();
+
+    /** The batch in progress on each thread, none when listeners are notified right away */
+    private final ThreadLocal<Batch> batches = new ThreadLocal<>();
+
     /** Compare variable with this class instance */
     private VariableComparator VariableComparator = new VariableComparator();
     
@@ -67,20 +88,41 @@ public class DatavyuDataStore implements DataStore {
     public void markAsChanged() {
         if (!changed) {
             changed = true;
-            if (DatavyuDataStore.titleNotifier != null) {
-                DatavyuDataStore.titleNotifier.updateTitle();
-            }
+            notifyTitle();
+        }
+    }
+
+    private void notifyTitle() {
+        final TitleNotifier notifier = DatavyuDataStore.titleNotifier;
+        if (notifier != null) {
+            lock.notify(() -> notifier.updateTitle());
         }
     }
 
+    /**
+     * Notifies listeners once the current thread has released the lock of this data store, right away if it holds
+     * none.
+     *
+     * @param notification Calls the listeners.
+     */
+    void notify(final Runnable notification) {
+        lock.notify(notification);
+    }
+
     @Override
     public List<Variable> getAllVariables() {
-        List<Variable> allVariables = new ArrayList<Variable>();
-        for (String s : variables.keySet()) {
-            allVariables.add(variables.get(s));
+        Lock l = lock.readLock();
+        l.lock();
+        try {
+            List<Variable> allVariables = new ArrayList<Variable>();
+            for (String s : variables.keySet()) {
+                allVariables.add(variables.get(s));
+            }
+            Collections.sort(allVariables, VariableComparator);
+            return allVariables;
+        } finally {
+            l.unlock();
         }
-        Collections.sort(allVariables, VariableComparator);
-        return allVariables;
     }
 
     public List<Variable> getVisibleVariables() {
@@ -96,49 +138,103 @@ public class DatavyuDataStore implements DataStore {
 
     @Override
     public List<Variable> getSelectedVariables() {
-        List<Variable> selectedVariables = new ArrayList<Variable>();
-        for (String s : variables.keySet()) {
-            if (variables.get(s).isSelected()) {
-                selectedVariables.add(variables.get(s));
+        Lock l = lock.readLock();
+        l.lock();
+        try {
+            List<Variable> selectedVariables = new ArrayList<Variable>();
+            for (String s : variables.keySet()) {
+                if (variables.get(s).isSelected()) {
+                    selectedVariables.add(variables.get(s));
+                }
             }
+            return selectedVariables;
+        } finally {
+            l.unlock();
         }
-        return selectedVariables;
     }
 
     @Override
     public void clearVariableSelection() {
-        for (String s : variables.keySet()) {
-            variables.get(s).setSelected(false);
+        // Selection changes no data, so readers may go on.
+        Lock l = lock.readLock();
+        l.lock();
+        try {
+            for (String s : variables.keySet()) {
+                variables.get(s).setSelected(false);
+            }
+        } finally {
+            l.unlock();
         }
     }
 
     @Override
     public List<Cell> getSelectedCells() {
-        List<Cell> selectedCells = new ArrayList<Cell>();
-        for (Variable variable : variables.values()) {
-            for (Cell cell : variable.getCells()) {
-                if (cell.isSelected()) {
-                    selectedCells.add(cell);
-                }
+        Lock l = lock.readLock();
+        l.lock();
+        try {
+            synchronized (selectionLock) {
+                return new ArrayList<>(selectedCells);
             }
+        } finally {
+            l.unlock();
         }
-        return selectedCells;
     }
 
     @Override
     public void clearCellSelection() {
-        for (Variable variable : variables.values()) {
-            for (Cell cell : variable.getCells()) {
-                if (cell.isSelected()) {
-                    cell.setSelected(false);
-                }
-                if (cell.isHighlighted()) {
-                    cell.setHighlighted(false);
-                }
+        Lock l = lock.readLock();
+        l.lock();
+        try {
+            // Deselecting a cell updates the sets, so work from a copy.
+            Cell[] selected;
+            Cell[] highlighted;
+            synchronized (selectionLock) {
+                selected = selectedCells.toArray(new Cell[selectedCells.size()]);
+                highlighted = highlightedCells.toArray(new Cell[highlightedCells.size()]);
+            }
+            for (Cell cell : selected) {
+                cell.setSelected(false);
+            }
+            for (Cell cell : highlighted) {
+                cell.setHighlighted(false);
             }
+        } finally {
+            l.unlock();
         }
     }
 
+    /**
+     * Brings the selection and highlight index up to date for a cell; called whenever the selection or highlight of
+     * the cell changes, or the cell is added to or removed from this data store. The caller holds the read or the
+     * write lock.
+     *
+     * @param cell The cell to update.
+     */
+    void updateCellSelection(final Cell cell) {
+        boolean held = holds(cell);
+        synchronized (selectionLock) {
+            if (held && cell.isSelected()) {
+                selectedCells.add(cell);
+            } else {
+                selectedCells.remove(cell);
+            }
+            if (held && cell.isHighlighted()) {
+                highlightedCells.add(cell);
+            } else {
+                highlightedCells.remove(cell);
+            }
+        }
+    }
+
+    /**
+     * @param cell The cell to check.
+     * @return True if the cell is part of a variable held in this data store.
+     */
+    private boolean holds(final Cell cell) {
+        Variable variable = cell.getVariable();
+        return variable != null && variables.get(variable.getName()) == variable && variable.contains(cell);
+    }
+
     @Override
     public void deselectAll() {
         this.clearCellSelection();
@@ -147,15 +243,45 @@ public class DatavyuDataStore implements DataStore {
 
     @Override
     public Variable getVariable(String varName) {
-        return variables.get(varName);
+        Lock l = lock.readLock();
+        l.lock();
+        try {
+            return variables.get(varName);
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
     public Variable getVariable(Cell cell) {
-        for (Variable v : variables.values()) {
-            if (v.getCells().contains(cell)) return v;
+        Lock l = lock.readLock();
+        l.lock();
+        try {
+            if (holds(cell)) {
+                return cell.getVariable();
+            }
+            for (Variable v : variables.values()) {
+                if (v.contains(cell)) return v;
+            }
+            return null;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Map<Variable, List<Cell>> getCellsAt(final long time, final List<Variable> vars) {
+        Lock l = lock.readLock();
+        l.lock();
+        try {
+            Map<Variable, List<Cell>> result = new LinkedHashMap<>();
+            for (Variable v : vars) {
+                result.put(v, v.getCellsAt(time));
+            }
+            return result;
+        } finally {
+            l.unlock();
         }
-        return null;
     }
 
     @Override
@@ -166,51 +292,289 @@ public class DatavyuDataStore implements DataStore {
     @Override
     public Variable createVariable(final String name, final Argument.Type type, boolean grandfathered)
             throws UserWarningException {
+        Lock l = lock.writeLock();
+        l.lock();
+        try {
+            checkVariableName(name);
+            return registerVariable(new DatavyuVariable(name, newRootNode(name, type), grandfathered, this));
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Variable createColumnarVariable(final String name, final Argument.Type type) throws UserWarningException {
+        Lock l = lock.writeLock();
+        l.lock();
+        try {
+            checkVariableName(name);
+            return registerVariable(new ColumnarVariable(name, newRootNode(name, type), false, this));
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Variable createLazyVariable(final String name, final Argument rootNode, final CellLoader loader)
+            throws UserWarningException {
+        Lock l = lock.writeLock();
+        l.lock();
+        try {
+            checkVariableName(name);
+            DatavyuVariable var = new DatavyuVariable(name, rootNode, true, this);
+            var.setCellLoader(loader);
+            return registerVariable(var);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    private void checkVariableName(final String name) throws UserWarningException {
         // Check to make sure the variable name is not already in use:
         Variable varTest = getVariable(name);
         if (varTest != null) {
             throw new UserWarningException("Unable to add column with name '" + name
                     + "', one with the same name already exists.");
         }
+    }
 
-        Argument rootNode;
-        if (type == Argument.Type.MATRIX) rootNode = new Argument(name + name.hashCode(), type);
-        else rootNode = new Argument("var", type);
+    private static Argument newRootNode(final String name, final Argument.Type type) {
+        if (type == Argument.Type.MATRIX) return new Argument(name + name.hashCode(), type);
+        else return new Argument("var", type);
+    }
 
-        Variable v = new DatavyuVariable(name, rootNode, grandfathered, this);
-        variables.put(name, v);
+    private Variable registerVariable(final Variable v) {
+        variables.put(v.getName(), v);
+        fireVariableAdded(v);
+        markAsChanged();
+        return v;
+    }
 
-        for (DataStoreListener dbl : this.dataStoreListeners) {
-            dbl.variableAdded(v);
+    /**
+     * @return The cells of the variable that may be selected or highlighted; none for a variable whose cells have not
+     * been loaded yet, as loaded cells start out unselected, so they are not loaded for this.
+     */
+    private static List<Cell> cellsOf(final Variable var) {
+        if (var instanceof DatavyuVariable && !((DatavyuVariable) var).isLoaded()) {
+            return Collections.emptyList();
         }
+        return var.getCells();
+    }
 
-        markAsChanged();
-        return v;
+    private void fireVariableAdded(final Variable var) {
+        notify(() -> {
+            for (DataStoreListener dbl : dataStoreListeners) {
+                dbl.variableAdded(var);
+            }
+        });
     }
 
     @Override
     public void removeVariable(final Variable var) {
-        for (DataStoreListener listener : this.dataStoreListeners) {
-            listener.variableRemoved(var);
+        Lock l = lock.writeLock();
+        l.lock();
+        try {
+            notify(() -> {
+                for (DataStoreListener listener : dataStoreListeners) {
+                    listener.variableRemoved(var);
+                }
+            });
+            variables.remove(var.getName());
+            for (Cell cell : cellsOf(var)) {
+                updateCellSelection(cell);
+            }
+            markAsChanged();
+        } finally {
+            l.unlock();
         }
-        variables.remove(var.getName());
-        markAsChanged();
     }
 
     @Override
     public void addVariable(final Variable var) {
-        for (DataStoreListener dbl : this.dataStoreListeners) {
-            dbl.variableAdded(var);
+        Lock l = lock.writeLock();
+        l.lock();
+        try {
+            fireVariableAdded(var);
+            variables.put(var.getName(), var);
+            for (Cell cell : cellsOf(var)) {
+                updateCellSelection(cell);
+            }
+            markAsChanged();
+        } finally {
+            l.unlock();
         }
+    }
 
-        variables.put(var.getName(), var);
-        markAsChanged();
+    @Override
+    public void attachVariable(final Variable var) throws UserWarningException {
+        Lock l = lock.writeLock();
+        l.lock();
+        try {
+            checkVariableName(var.getName());
+            DataStore source = var.getOwningDatastore();
+            if (source != null) {
+                source.removeVariable(var);
+                if (("\n" + source.getExemptionVariables()).contains("\n" + var.getName() + "\n")) {
+                    addExemptionVariable(var.getName());
+                }
+            }
+            if (var instanceof DatavyuVariable) {
+                ((DatavyuVariable) var).setOwningDatastore(this);
+            } else if (var instanceof ColumnarVariable) {
+                ((ColumnarVariable) var).setOwningDatastore(this);
+            } else {
+                throw new IllegalArgumentException("Unable to attach variable '" + var.getName() + "'.");
+            }
+            registerVariable(var);
+            for (Cell cell : cellsOf(var)) {
+                if (cell.isSelected() || cell.isHighlighted()) {
+                    updateCellSelection(cell);
+                }
+            }
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
     public void removeCell(final Cell cell) {
-        getVariable(cell).removeCell(cell);
-        markAsChanged();
+        Lock l = lock.writeLock();
+        l.lock();
+        try {
+            getVariable(cell).removeCell(cell);
+            markAsChanged();
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    /**
+     * @param variable The variable to lock, may be null.
+     * @return The lock of the data store holding the variable; one lock shared by everything outside a data store if
+     * there is no such data store.
+     */
+    static ReadWriteLock lockOf(final Variable variable) {
+        DataStore dataStore = variable == null ? null : variable.getOwningDatastore();
+        return dataStore == null ? DETACHED_LOCK : dataStore.getLock();
+    }
+
+    /**
+     * Notifies the listeners of a cell or value that is not part of any data store, see notify.
+     */
+    static void notifyDetached(final Runnable notification) {
+        DETACHED_LOCK.notify(notification);
+    }
+
+    @Override
+    public DataStore snapshot() {
+        Lock l = lock.readLock();
+        l.lock();
+        try {
+            List<VariableSnapshot> snapshots = new ArrayList<>();
+            for (Variable variable : getAllVariables()) {
+                if (variable instanceof DatavyuVariable) {
+                    snapshots.add(((DatavyuVariable) variable).snapshot());
+                } else if (variable instanceof ColumnarVariable) {
+                    snapshots.add(((ColumnarVariable) variable).snapshot());
+                } else {
+                    snapshots.add(new VariableSnapshot(variable));
+                }
+            }
+            return new DataStoreSnapshot(name, changed, exemptionVariables, snapshots);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public CellLoader getCellLoader(final Variable var) {
+        return var instanceof DatavyuVariable ? ((DatavyuVariable) var).getCellLoader() : null;
+    }
+
+    @Override
+    public void beginBatch() {
+        Batch batch = batches.get();
+        if (batch == null) {
+            batch = new Batch();
+            batches.set(batch);
+        }
+        batch.depth++;
+    }
+
+    @Override
+    public void commitBatch() {
+        Batch batch = batches.get();
+        if (batch == null) {
+            throw new IllegalStateException("No batch to commit.");
+        }
+        if (--batch.depth > 0) {
+            return;
+        }
+        // Listeners may start a batch of their own while being notified.
+        batches.remove();
+
+        List<VariableChanges> committed = new ArrayList<>();
+        for (VariableChanges changes : batch.changes.values()) {
+            if (!changes.isEmpty()) {
+                committed.add(changes);
+            }
+        }
+        if (committed.isEmpty()) {
+            return;
+        }
+
+        // If the caller holds the lock, the listeners see the committed batch once it is released.
+        notify(() -> {
+            for (VariableChanges changes : committed) {
+                Variable variable = changes.getVariable();
+                if (variable instanceof ColumnarVariable) {
+                    ((ColumnarVariable) variable).deliverChanges(changes);
+                } else {
+                    ((DatavyuVariable) variable).deliverChanges(changes);
+                }
+            }
+            for (DataStoreListener listener : dataStoreListeners) {
+                listener.batchCommitted(committed);
+            }
+        });
+    }
+
+    @Override
+    public void batch(final Runnable changes) {
+        beginBatch();
+        try {
+            changes.run();
+        } finally {
+            commitBatch();
+        }
+    }
+
+    @Override
+    public boolean isInBatch() {
+        return batches.get() != null;
+    }
+
+    /**
+     * @param variable The variable that is about to change.
+     * @return The changes of the variable in the batch of the current thread, null if the listeners have to be
+     * notified right away.
+     */
+    VariableChanges getBatchChanges(final Variable variable) {
+        Batch batch = batches.get();
+        if (batch == null) {
+            return null;
+        }
+        VariableChanges changes = batch.changes.get(variable);
+        if (changes == null) {
+            changes = new VariableChanges(variable);
+            batch.changes.put(variable, changes);
+        }
+        return changes;
     }
 
     @Override
@@ -227,17 +591,21 @@ public class DatavyuDataStore implements DataStore {
     public void markAsUnchanged() {
         if (changed) {
             changed = false;
-            if (DatavyuDataStore.titleNotifier != null) {
-                DatavyuDataStore.titleNotifier.updateTitle();
-            }
+            notifyTitle();
         }
     }
 
     @Override
     public void updateVariableName(String oldName, String newName, Variable variable) {
-        this.variables.remove(oldName);
-        this.variables.put(newName, variable);
-        if (!oldName.equals(newName)) markAsChanged();
+        Lock l = lock.writeLock();
+        l.lock();
+        try {
+            this.variables.remove(oldName);
+            this.variables.put(newName, variable);
+            if (!oldName.equals(newName)) markAsChanged();
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
@@ -273,4 +641,16 @@ public class DatavyuDataStore implements DataStore {
     {
         return exemptionVariables;
     }
+
+    /**
+     * The batch of changes in progress on one thread.
+     */
+    private static final class Batch {
+
+        /** Nesting depth of the open batches */
+        int depth = 0;
+
+        /** Changes made during the batch, per variable in the order they first changed */
+        final Map<Variable, VariableChanges> changes = new LinkedHashMap<>();
+    }
 }
@@ -23,14 +23,23 @@
 
 package org.datavyu.models.db;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 
 public final class DatavyuMatrixCellValue extends DatavyuCellValue implements MatrixCellValue {
 
     private UUID parentId;
     private String value;
+
+    // The arguments, kept in index order, and the read-only view of them handed out
     private List<CellValue> cellValues;
+    private List<CellValue> arguments;
+
+    // The results of toString and serialize, until the arguments change; read without the lock, so volatile
+    private transient volatile String string;
+    private transient volatile String serialized;
 
 
     public DatavyuMatrixCellValue() {
@@ -40,6 +49,7 @@ public final class DatavyuMatrixCellValue extends DatavyuCellValue implements Ma
         this.parentId = parent_id;
         this.parent = parent;
         cellValues = new ArrayList<CellValue>();
+        arguments = Collections.unmodifiableList(cellValues);
         for (Argument arg : type.childArguments) {
             createArgument(arg);
         }
@@ -47,110 +57,179 @@ public final class DatavyuMatrixCellValue extends DatavyuCellValue implements Ma
         value = "MATRIX";
     }
 
-    // Method to order the cellValues coming out of the DB.
-    private static void order(List<CellValue> cellValues) {
-
-        Collections.sort(cellValues, new Comparator() {
-            @Override
-            public int compare(Object o1, Object o2) {
+    /**
+     * Drops the cached strings and the snapshot of the variable; called whenever an argument or its value changes.
+     */
+    void argumentsChanged() {
+        string = null;
+        serialized = null;
+        contentsChanged();
+    }
 
-                int x1 = ((DatavyuCellValue) o1).getIndex();
-                int x2 = ((DatavyuCellValue) o2).getIndex();
+    @Override
+    public String toString() {
+        String result = string;
+        if (result == null) {
+            // Reading under the lock keeps a concurrent change from leaving a stale string in the cache.
+            Lock l = getLock().readLock();
+            l.lock();
+            try {
+                StringBuilder builder = new StringBuilder();
+                appendTo(builder);
+                result = builder.toString();
+                string = result;
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            } finally {
+                l.unlock();
+            }
+        }
+        return result;
+    }
 
-                if (x1 != x2) {
-                    return x1 - x2;
-                } else {
-                    return 0;
+    public String serialize() {
+        String result = serialized;
+        if (result == null) {
+            Lock l = getLock().readLock();
+            l.lock();
+            try {
+                StringBuilder builder = new StringBuilder();
+                serializeTo(builder);
+                result = builder.toString();
+                // Most values need no escaping, share the string then.
+                String shared = string;
+                if (result.equals(shared)) {
+                    result = shared;
                 }
+                serialized = result;
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            } finally {
+                l.unlock();
             }
-        });
+        }
+        return result;
     }
-    
+
     @Override
-    public String toString() {
-        String result = "";
-        List<CellValue> cellValues = getArguments();
+    public void appendTo(final Appendable out) throws IOException {
+        String result = string;
+        if (result != null) {
+            out.append(result);
+        } else {
+            out.append('(');
+            appendArguments(out, ",");
+            out.append(')');
+        }
+    }
 
-        result += "(";
-        for (int i = 0; i < cellValues.size(); i++) {
-            CellValue v = cellValues.get(i);
-            if (v.toString() == null) {
-                result += "<code" + String.valueOf(i) + ">";
-            } else {
-                result += v.toString();
-            }
-            if (i < cellValues.size() - 1) {
-                result += ",";
+    @Override
+    public void serializeTo(final Appendable out) throws IOException {
+        String result = serialized;
+        if (result != null) {
+            out.append(result);
+        } else {
+            out.append('(');
+            for (int i = 0; i < cellValues.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                cellValues.get(i).serializeTo(out);
             }
+            out.append(')');
         }
-        result += ")";
-
-        return result;
     }
 
-    public String serialize() {
-        List<CellValue> cellValues = getArguments();
-
-        StringBuilder result = new StringBuilder("(");
-        for (Iterator<CellValue> i = cellValues.iterator(); i.hasNext(); ) {
-            CellValue v = i.next();
-            result.append(v.serialize());
-            if (i.hasNext())
-                result.append(',');
+    @Override
+    public void appendArguments(final Appendable out, final CharSequence separator) throws IOException {
+        for (int i = 0; i < cellValues.size(); i++) {
+            if (i > 0) {
+                out.append(separator);
+            }
+            cellValues.get(i).appendTo(out);
         }
-        result.append(')');
+    }
+
+    // The values of a matrix are held by its arguments.
+    @Override
+    String getValue() {
+        return null;
+    }
 
-        return result.toString();
+    @Override
+    void setValue(final String newValue) {
     }
 
     @Override
     public List<CellValue> getArguments() {
-        order(cellValues);
-        return cellValues;
+        return arguments;
     }
 
     @Override
     public CellValue createArgument(Argument arg) {
-        CellValue val = null;
-        String name = String.format("code%02d", getArguments().size() + 1);
+        DatavyuCellValue val = null;
+        int index = cellValues.size();
+        String name = index < 9 ? "code0" + (index + 1) : "code" + (index + 1);
         if (arg.type == Argument.Type.NOMINAL) {
-            val = new DatavyuNominalCellValue(this.id, name, getArguments().size(), arg, parent);
+            val = new DatavyuNominalCellValue(this.id, name, index, arg, parent);
         } else if (arg.type == Argument.Type.TEXT) {
-            val = new DatavyuTextCellValue(this.id, name, getArguments().size(), arg, parent);
+            val = new DatavyuTextCellValue(this.id, name, index, arg, parent);
+        }
+        if (val != null) {
+            val.matrix = this;
         }
-        this.getArguments().add(val);
+        cellValues.add(val);
+        argumentsChanged();
         return val;
     }
 
+    /**
+     * Moves an argument to a new position.
+     *
+     * @param oldIndex The current index of the argument.
+     * @param newIndex The index to move the argument to.
+     */
+    void moveArgument(final int oldIndex, final int newIndex) {
+        cellValues.add(newIndex, cellValues.remove(oldIndex));
+        reindex();
+    }
+
     @Override
     public void removeArgument(final int index) {
-        List<CellValue> args = getArguments();
-        args.remove(index);
-        CellValue v;
-        for (int i = 0; i < args.size(); i++) {
-            v = args.get(i);
-            ((DatavyuNominalCellValue) v).setIndex(i);
+        cellValues.remove(index);
+        reindex();
+    }
+
+    private void reindex() {
+        for (int i = 0; i < cellValues.size(); i++) {
+            ((DatavyuCellValue) cellValues.get(i)).setIndex(i);
         }
+        argumentsChanged();
     }
 
     @Override
     public void set(String value) {
-        if (value.startsWith("(") && value.endsWith(")")) {
-            value = value.substring(1, value.length() - 1);
-        }
-        String[] args = value.split(",", -1);
-        List<CellValue> cellValues = getArguments();
-
-        // Handle legacy variable types
-        if (cellValues.size() == 1 && cellValues.get(0).getArgument().type != Argument.Type.MATRIX) {
-            cellValues.get(0).set(value);
-        } else {
-            if (args.length != cellValues.size()) {
-                System.err.println("Error: Arg list and value list are different sizes, cannot undo.");
+        Lock l = getLock().writeLock();
+        l.lock();
+        try {
+            if (value.startsWith("(") && value.endsWith(")")) {
+                value = value.substring(1, value.length() - 1);
             }
-            for (int i = 0; i < args.length; i++) {
-                cellValues.get(i).set(args[i]);
+            String[] args = value.split(",", -1);
+
+            // Handle legacy variable types
+            if (cellValues.size() == 1 && cellValues.get(0).getArgument().type != Argument.Type.MATRIX) {
+                cellValues.get(0).set(value);
+            } else {
+                if (args.length != cellValues.size()) {
+                    System.err.println("Error: Arg list and value list are different sizes, cannot undo.");
+                }
+                for (int i = 0; i < args.length; i++) {
+                    cellValues.get(i).set(args[i]);
+                }
             }
+        } finally {
+            l.unlock();
         }
     }
 }
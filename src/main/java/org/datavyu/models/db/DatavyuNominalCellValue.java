@@ -27,6 +27,12 @@ import java.util.UUID;
 
 public final class DatavyuNominalCellValue extends DatavyuCellValue implements NominalCellValue {
 
+    // The code of the value in the dictionary of the argument
+    private int code = ValueDictionary.NO_CODE;
+
+    // The dictionary of a value without an argument
+    private ValueDictionary ownDictionary;
+
     public DatavyuNominalCellValue() {
     }
 
@@ -48,4 +54,36 @@ public final class DatavyuNominalCellValue extends DatavyuCellValue implements N
         this.arg = type;
     }
 
+    /**
+     * @return The dictionary that the code of this value refers to.
+     */
+    public ValueDictionary getDictionary() {
+        if (arg != null) {
+            return arg.getDictionary();
+        }
+        if (ownDictionary == null) {
+            ownDictionary = new ValueDictionary();
+        }
+        return ownDictionary;
+    }
+
+    /**
+     * @return The code of this value in its dictionary, ValueDictionary.NO_CODE if there is no value.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    @Override
+    String getValue() {
+        return getDictionary().getValue(code);
+    }
+
+    @Override
+    void setValue(final String newValue) {
+        ValueDictionary dictionary = getDictionary();
+        int oldCode = code;
+        code = dictionary.intern(newValue);
+        dictionary.release(oldCode);
+    }
 }
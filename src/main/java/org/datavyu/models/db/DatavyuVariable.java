@@ -26,29 +26,39 @@ package org.datavyu.models.db;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 /**
  * Maps a Datavyu variable to a data store.
  */
 public final class DatavyuVariable implements Variable {
 
-    // All the listeners for variables in the data store
     private static Logger logger = LogManager.getLogger(DatavyuVariable.class);
-    private static Map<UUID, List<VariableListener>> allListeners = new HashMap<UUID, List<VariableListener>>();
-    private static CellComparator CellComparator = new CellComparator();
     final private UUID variableId = UUID.randomUUID();
-    private List<Cell> cells = new CopyOnWriteArrayList<>();
+    private TemporalCellIndex cells = new TemporalCellIndex();
     private Argument rootNodeArgument = null;
     private Boolean selected;
     private Boolean hidden;
     private String name;
     private int orderIndex = -1;
     private DatavyuDataStore owningDatastore;
+    private VariableListener[] listeners = Listeners.NO_VARIABLE_LISTENERS;
+
+    /** The copy of this variable for snapshots of the data store, null once the variable has changed. */
+    private VariableSnapshot frozen;
+
+    /** Loads the cells on first use, null once they are loaded. */
+    private volatile CellLoader loader;
+
+    /** The cells read by the loader, until they are swapped in; guarded by this variable. */
+    private TemporalCellIndex loadedCells;
 
     /**
-     * Default constructor.
+     * Default constructor; the variable is not part of any data store until it is attached to one, and meanwhile
+     * guarded by the lock shared by everything outside a data store (see DatavyuDataStore.lockOf).
      */
     public DatavyuVariable() {}
 
@@ -79,41 +89,116 @@ public final class DatavyuVariable implements Variable {
         this.setRootNode(type);
         this.setHidden(false);
         this.setSelected(true);
-        owningDatastore.markAsChanged();
+        markDB();
+    }
+
+    public void addCell(Cell cell) {
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            if (cell.getCellValue().getArgument() == this.getRootNode()) {
+                cells.add(cell);
+                frozen = null;
+                updateCellSelection(cell);
+                fireCellInserted(cell);
+                markDB();
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    public DataStore getOwningDatastore() {
+        return owningDatastore;
     }
 
     /**
-     * @param variableId The Identifier of the variable we want the listeners for.
-     * @return The list of listeners for the specified variableId.
+     * @param dataStore The data store the variable is attached to, see DataStore.attachVariable.
      */
-    private static List<VariableListener> getListeners(UUID variableId) {
-        List<VariableListener> result = allListeners.get(variableId);
-        if (result == null) {
-            result = new ArrayList<>();
-            allListeners.put(variableId, result);
-        }
-        return result;
+    void setOwningDatastore(final DatavyuDataStore dataStore) {
+        owningDatastore = dataStore;
     }
 
     /**
-     * Removes all the listeners for all the variables.
+     * @param cellLoader Loads the cells of this variable the first time they are used, see
+     *                   DataStore.createLazyVariable.
      */
-    public static void clearListeners() {
-        allListeners.clear();
+    void setCellLoader(final CellLoader cellLoader) {
+        loader = cellLoader;
     }
 
-    public void addCell(Cell cell) {
-        if (cell.getCellValue().getArgument() == this.getRootNode()) {
-            cells.add(cell);
-            for (VariableListener vl : getListeners(getID())) {
-                vl.cellInserted(cell);
+    /**
+     * @return True if the cells of this variable are in memory, false if they are still waiting to be loaded.
+     */
+    public boolean isLoaded() {
+        return loader == null;
+    }
+
+    /**
+     * @return The loader of the cells of this variable, null once they are loaded.
+     */
+    CellLoader getCellLoader() {
+        return loader;
+    }
+
+    /**
+     * Loads the cells of this variable if that has not happened yet. They are loaded into a variable of a data store
+     * of their own, without holding the lock of the owning data store, so readers and writers of other variables do
+     * not wait on the file. The cells are then swapped in under the write lock, without telling anyone: to the
+     * listeners and the owning data store they have been there all along. A thread that only holds the read lock can
+     * not take the write lock; it swaps them in under the lock of this variable alone, which is safe as every method
+     * loads the cells before it takes the lock of the data store.
+     *
+     * @throws IllegalStateException If the cells can not be loaded; the variable then stays unloaded.
+     */
+    private void ensureLoaded() {
+        CellLoader cellLoader = loader;
+        if (cellLoader == null) {
+            return;
+        }
+        TemporalCellIndex loaded;
+        synchronized (this) {
+            if (loader != cellLoader) {
+                return;
+            }
+            try {
+                if (loadedCells == null) {
+                    DatavyuVariable copy = new DatavyuVariable(name, rootNodeArgument, true, new DatavyuDataStore());
+                    cellLoader.loadCells(copy);
+                    loadedCells = copy.cells;
+                }
+                loaded = loadedCells;
+            } catch (UserWarningException | IOException e) {
+                logger.error("Unable to load the cells of " + name, e);
+                throw new IllegalStateException("Unable to load the cells of " + name, e);
             }
-            owningDatastore.markAsChanged();
         }
-    }
 
-    public DataStore getOwningDatastore() {
-        return owningDatastore;
+        ReadWriteLock lock = DatavyuDataStore.lockOf(this);
+        Lock l = lock instanceof DataStoreLock && ((DataStoreLock) lock).isOnlyReadLockedByCurrentThread()
+                ? null : lock.writeLock();
+        if (l != null) {
+            l.lock();
+        }
+        try {
+            synchronized (this) {
+                // Another thread may have swapped in the cells it loaded meanwhile.
+                if (loader == cellLoader) {
+                    for (Cell cell : loaded.asList()) {
+                        ((DatavyuCell) cell).setVariable(this);
+                    }
+                    cells = loaded;
+                    loadedCells = null;
+                    // A copy taken before reads the same cells with the loader, so it stays.
+                    loader = null;
+                }
+            }
+        } finally {
+            if (l != null) {
+                l.unlock();
+            }
+        }
     }
 
 
@@ -126,39 +211,138 @@ public final class DatavyuVariable implements Variable {
 
     @Override
     public Cell createCell() {
-        Cell c = new DatavyuCell(this, this.getRootNode());
-
-        cells.add(c);
-
-        for (VariableListener vl : getListeners(getID())) {
-            vl.cellInserted(c);
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            Cell c = new DatavyuCell(this, this.getRootNode());
+
+            cells.add(c);
+            frozen = null;
+            updateCellSelection(c);
+            fireCellInserted(c);
+
+            markDB();
+            return c;
+        } finally {
+            l.unlock();
         }
+    }
 
-        owningDatastore.markAsChanged();
-        return c;
+    /**
+     * Like the cells of a ColumnarVariable, the new cell starts out unselected; so bulk loading does not fill the
+     * selection of the data store.
+     */
+    @Override
+    public Cell createCell(final long onset, final long offset) {
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            Cell c = new DatavyuCell(this, this.getRootNode(), onset, offset, false);
+
+            cells.add(c);
+            frozen = null;
+            fireCellInserted(c);
+
+            markDB();
+            return c;
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
     public void removeCell(final Cell cell) {
-        cells.remove(cell);
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            cells.remove(cell);
+            frozen = null;
+            updateCellSelection(cell);
+
+            markDB();
+
+            VariableChanges changes = getBatchChanges();
+            if (changes != null) {
+                changes.cellRemoved(cell);
+            } else {
+                notifyListeners(() -> {
+                    for (VariableListener vl : listeners) {
+                        vl.cellRemoved(cell);
+                    }
+                });
+            }
+        } finally {
+            l.unlock();
+        }
+    }
 
-        owningDatastore.markAsChanged();
+    private void fireCellInserted(final Cell cell) {
+        VariableChanges changes = getBatchChanges();
+        if (changes != null) {
+            changes.cellInserted(cell);
+        } else {
+            notifyListeners(() -> {
+                for (VariableListener vl : listeners) {
+                    vl.cellInserted(cell);
+                }
+            });
+        }
+    }
 
-        for (VariableListener vl : getListeners(getID())) {
-            vl.cellRemoved(cell);
+    /**
+     * Notifies the listeners of this variable once the lock of the data store is released.
+     */
+    private void notifyListeners(final Runnable notification) {
+        if (listeners.length > 0) {
+            if (owningDatastore == null) {
+                DatavyuDataStore.notifyDetached(notification);
+            } else {
+                owningDatastore.notify(notification);
+            }
         }
+    }
 
+    /**
+     * Notifies the listeners of this variable and of its changed cells about a committed batch of changes.
+     *
+     * @param changes The changes made to this variable during the batch.
+     */
+    void deliverChanges(final VariableChanges changes) {
+        for (VariableListener vl : listeners) {
+            vl.cellsChanged(changes);
+        }
+        for (Cell cell : changes.getChangedCells()) {
+            if (cell instanceof DatavyuCell) {
+                ((DatavyuCell) cell).fireTimesChanged(changes.getChangedFlags(cell));
+            }
+        }
     }
 
     @Override
     public List<Cell> getCells() {
-        return cells;
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            return cells.inAddedOrder();
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
     public Cell getCellTemporally(final int index) {
-        Collections.sort(cells, CellComparator);
-        return cells.get(index);
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            return cells.get(index);
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
@@ -168,8 +352,16 @@ public final class DatavyuVariable implements Variable {
 
     @Override
     public void setRootNode(final Argument a) {
-        owningDatastore.markAsChanged();
-        rootNodeArgument = a;
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            markDB();
+            rootNodeArgument = a;
+            frozen = null;
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
@@ -186,13 +378,147 @@ public final class DatavyuVariable implements Variable {
 
     @Override
     public List<Cell> getCellsTemporally() {
-        Collections.sort(cells, CellComparator);
-        return cells;
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            return cells.asList();
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Moves the cell to its new temporal position; called by the cell when its onset or offset changes.
+     *
+     * @param cell The cell whose onset or offset has changed.
+     */
+    void cellTimeChanged(final Cell cell) {
+        cells.reposition(cell);
+        frozen = null;
+    }
+
+    /**
+     * Takes up the new values of a cell for the copies of this variable; called when a value of one of its cells
+     * changes.
+     *
+     * @param cell The cell whose value has changed.
+     */
+    void contentsChanged(final Cell cell) {
+        cells.valuesChanged(cell);
+        frozen = null;
+    }
+
+    /**
+     * @return The copy of this variable for a snapshot of the data store, taken while holding its read lock. It shares
+     * the cells, which are copied before they change from now on; taking it only reads the values of the cells that
+     * were added or changed since the last copy.
+     */
+    synchronized VariableSnapshot snapshot() {
+        // Readers may share the read lock, so the copy and freezing the cells need a lock of their own.
+        VariableSnapshot result = frozen;
+        if (result == null) {
+            CellLoader cellLoader = loader;
+            result = cellLoader != null ? new VariableSnapshot(this, cellLoader)
+                    : new VariableSnapshot(this, cells.freeze());
+            frozen = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int getTemporalIndex(final Cell cell) {
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            return cells.indexOf(cell);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public List<Cell> getCellsInRange(final long start, final long end) {
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            return cells.overlapping(start, end);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public List<Cell> getCellsAt(final long time) {
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            return cells.overlapping(time, time);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Cell getPreviousCell(final long time) {
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            return cells.lastStartingAtOrBefore(time);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Cell getNextCell(final long time) {
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            return cells.firstStartingAfter(time);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getValueCounts(final int argIndex) {
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            boolean matrix = getRootNode().type == Argument.Type.MATRIX;
+            ValueCounter counter = new ValueCounter();
+            for (Cell cell : getCells()) {
+                CellValue value = matrix ? cell.getMatrixValue(argIndex) : cell.getCellValue();
+                if (value instanceof DatavyuNominalCellValue) {
+                    DatavyuNominalCellValue nominal = (DatavyuNominalCellValue) value;
+                    counter.add(nominal.getDictionary(), nominal.getCode());
+                } else {
+                    counter.add(value.toString());
+                }
+            }
+            return counter.getCounts();
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
     public boolean contains(final Cell c) {
-        return cells.contains(c);
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).readLock();
+        l.lock();
+        try {
+            return cells.contains(c);
+        } finally {
+            l.unlock();
+        }
     }
 
     @Override
@@ -212,13 +538,22 @@ public final class DatavyuVariable implements Variable {
 
     @Override
     public void setHidden(final boolean hiddenParm) {
-        if (hidden == null || hiddenParm != hidden) {
-            owningDatastore.markAsChanged();
-            hidden = hiddenParm;
-
-            for (VariableListener vl : getListeners(getID())) {
-                vl.visibilityChanged(hidden);
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            if (hidden == null || hiddenParm != hidden) {
+                markDB();
+                hidden = hiddenParm;
+                frozen = null;
+
+                notifyListeners(() -> {
+                    for (VariableListener vl : listeners) {
+                        vl.visibilityChanged(hiddenParm);
+                    }
+                });
             }
+        } finally {
+            l.unlock();
         }
     }
 
@@ -234,26 +569,35 @@ public final class DatavyuVariable implements Variable {
 
 
     public void setName(final String newName, boolean grandfathered) throws UserWarningException {
-        // Pre-conditions, the newName must have at least one character.
-        if (newName.length() < 1) {
-            throw new UserWarningException("Unable to add column, a name must be supplied.");
-        }
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            // Pre-conditions, the newName must have at least one character.
+            if (newName.length() < 1) {
+                throw new UserWarningException("Unable to add column, a name must be supplied.");
+            }
 
-        // Pre-conditions, check to make sure newName doesn't contain invalid chars or begin with a number or underscore
-        if (!grandfathered && !isNameValid(newName)) {
-            throw new UserWarningException("Unable to add column:\n\tOnly alphanumeric characters and underscore are permitted.\n\tName must begin with a letter\n\tMust contain fewer than 255 characters");
-        }
+            // Pre-conditions, check to make sure newName doesn't contain invalid chars or begin with a number or underscore
+            if (!grandfathered && !isNameValid(newName)) {
+                throw new UserWarningException("Unable to add column:\n\tOnly alphanumeric characters and underscore are permitted.\n\tName must begin with a letter\n\tMust contain fewer than 255 characters");
+            }
 
-        if (grandfathered && !isNameValid(newName)) {
-            owningDatastore.addExemptionVariable(newName);
-        }
+            if (grandfathered && !isNameValid(newName) && owningDatastore != null) {
+                owningDatastore.addExemptionVariable(newName);
+            }
 
-        if (name != null && owningDatastore != null) {
-            owningDatastore.updateVariableName(name, newName, this);
-        }
-        this.name = newName;
-        for (VariableListener vl : getListeners(getID())) {
-            vl.nameChanged(newName);
+            if (name != null && owningDatastore != null) {
+                owningDatastore.updateVariableName(name, newName, this);
+            }
+            this.name = newName;
+            frozen = null;
+            notifyListeners(() -> {
+                for (VariableListener vl : listeners) {
+                    vl.nameChanged(newName);
+                }
+            });
+        } finally {
+            l.unlock();
         }
     }
 
@@ -264,59 +608,80 @@ public final class DatavyuVariable implements Variable {
 
     @Override
     public Argument addArgument(final Argument.Type type) {
-        Argument arg = getRootNode();
-        Argument child = arg.addChildArgument(type);
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            Argument arg = getRootNode();
+            Argument child = arg.addChildArgument(type);
+
+            for (Cell cell : getCells()) {
+                cell.addMatrixValue(child);
+            }
 
-        for (Cell cell : getCells()) {
-            cell.addMatrixValue(child);
+            this.setRootNode(arg);
+            markDB();
+            return arg.childArguments.get(arg.childArguments.size() - 1);
+        } finally {
+            l.unlock();
         }
-
-        this.setRootNode(arg);
-        owningDatastore.markAsChanged();
-        return arg.childArguments.get(arg.childArguments.size() - 1);
     }
 
     @Override
     public void moveArgument(final int old_index, final int new_index) {
-        Argument arg = getRootNode();
-
-        // Test to see if this is out of bounds
-        if (new_index > arg.childArguments.size() - 1 || new_index < 0) {
-            return;
-        }
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            Argument arg = getRootNode();
+
+            // Test to see if this is out of bounds
+            if (new_index > arg.childArguments.size() - 1 || new_index < 0) {
+                return;
+            }
 
-        Argument moved_arg = arg.childArguments.get(old_index);
-        arg.childArguments.remove(moved_arg);
-        arg.childArguments.add(new_index, moved_arg);
+            Argument moved_arg = arg.childArguments.get(old_index);
+            arg.childArguments.remove(moved_arg);
+            arg.childArguments.add(new_index, moved_arg);
 
-        // Move in all cells
-        for (Cell cell : getCells()) {
-            cell.moveMatrixValue(old_index, new_index);
+            // Move in all cells
+            for (Cell cell : getCells()) {
+                cell.moveMatrixValue(old_index, new_index);
+            }
+            markDB();
+            this.setRootNode(arg);
+        } finally {
+            l.unlock();
         }
-        owningDatastore.markAsChanged();
-        this.setRootNode(arg);
     }
 
     @Override
     public void moveArgument(final String name, final int new_index) {
         int old_index = getArgumentIndex(name);
         moveArgument(old_index, new_index);
-        owningDatastore.markAsChanged();
+        markDB();
     }
 
     @Override
     public void removeArgument(final String name) {
-        Argument arg = getRootNode();
-        int arg_index = getArgumentIndex(name);
-        arg.childArguments.remove(arg_index);
+        ensureLoaded();
+        Lock l = DatavyuDataStore.lockOf(this).writeLock();
+        l.lock();
+        try {
+            Argument arg = getRootNode();
+            int arg_index = getArgumentIndex(name);
+            arg.childArguments.remove(arg_index);
+
+            // Now send this change to the cells
+            for (Cell cell : getCells()) {
+                cell.removeMatrixValue(arg_index);
+            }
 
-        // Now send this change to the cells
-        for (Cell cell : getCells()) {
-            cell.removeMatrixValue(arg_index);
+            markDB();
+            this.setRootNode(arg);
+        } finally {
+            l.unlock();
         }
-
-        owningDatastore.markAsChanged();
-        this.setRootNode(arg);
     }
 
     @Override
@@ -332,12 +697,12 @@ public final class DatavyuVariable implements Variable {
 
     @Override
     public void addListener(final VariableListener listener) {
-        getListeners(getID()).add(listener);
+        listeners = Listeners.add(listeners, listener);
     }
 
     @Override
     public void removeListener(final VariableListener listener) {
-        getListeners(getID()).remove(listener);
+        listeners = Listeners.remove(listeners, listener, Listeners.NO_VARIABLE_LISTENERS);
     }
 
     @Override
@@ -348,16 +713,29 @@ public final class DatavyuVariable implements Variable {
     @Override
     public void setOrderIndex(final int newIndex) {
         orderIndex = newIndex;
-        owningDatastore.markAsChanged();
+        frozen = null;
+        markDB();
     }
 
-    //would like to change the above calls to DatavyuDataStore.markAsChanged to this,
-    //but am holding off for now to avoid merge complications
+    /**
+     * Marks the data store as changed; a variable that is not part of a data store has nothing to mark.
+     */
     private void markDB() {
         if (owningDatastore != null) {
             owningDatastore.markAsChanged();
-        } else {
-            logger.error("Failed to mark data store because no owning data store was set.");
         }
     }
+
+    private void updateCellSelection(final Cell cell) {
+        if (owningDatastore != null) {
+            owningDatastore.updateCellSelection(cell);
+        }
+    }
+
+    /**
+     * @return The changes to this variable in the batch of the current thread, null outside a batch or a data store.
+     */
+    private VariableChanges getBatchChanges() {
+        return owningDatastore == null ? null : owningDatastore.getBatchChanges(this);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for the copy-on-write listener arrays held by cells and variables.
+ *
+ * A model object without listeners points at a shared empty array, so it does not allocate anything for them. Adding
+ * or removing a listener replaces the array, which means that dispatching can simply loop over the array it read and
+ * listeners may add or remove themselves while being notified.
+ */
+final class Listeners {
+
+    static final CellListener[] NO_CELL_LISTENERS = new CellListener[0];
+
+    static final VariableListener[] NO_VARIABLE_LISTENERS = new VariableListener[0];
+
+    private Listeners() {
+    }
+
+    /**
+     * @param listeners The current listeners.
+     * @param listener  The listener to add.
+     * @return The listeners with the supplied listener appended; the same array if it was already present.
+     */
+    static <T> T[] add(final T[] listeners, final T listener) {
+        for (T l : listeners) {
+            if (l == listener) {
+                return listeners;
+            }
+        }
+        T[] result = Arrays.copyOf(listeners, listeners.length + 1);
+        result[listeners.length] = listener;
+        return result;
+    }
+
+    /**
+     * @param listeners The current listeners.
+     * @param listener  The listener to remove.
+     * @param empty     The shared empty array to use when the last listener is removed.
+     * @return The listeners without the supplied listener; the same array if it was not present.
+     */
+    static <T> T[] remove(final T[] listeners, final T listener, final T[] empty) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                if (listeners.length == 1) {
+                    return empty;
+                }
+                T[] result = Arrays.copyOf(listeners, listeners.length - 1);
+                System.arraycopy(listeners, i + 1, result, i, listeners.length - i - 1);
+                return result;
+            }
+        }
+        return listeners;
+    }
+}
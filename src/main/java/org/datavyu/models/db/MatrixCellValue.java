@@ -22,6 +22,7 @@
  */
 package org.datavyu.models.db;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -46,5 +47,15 @@ public interface MatrixCellValue extends CellValue {
 
     void removeArgument(final int index);
 
+    /**
+     * Writes the values of the arguments, as returned by their toString, to the supplied output. Unlike appendTo the
+     * values are not enclosed in brackets.
+     *
+     * @param out       The output to write to.
+     * @param separator The separator to write between the values.
+     * @throws IOException If the output can not be written.
+     */
+    void appendArguments(final Appendable out, final CharSequence separator) throws IOException;
+
 
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+/**
+ * A view of one cell of a VariableSnapshot; all of its state lives in the variable.
+ */
+final class SnapshotCell implements Cell {
+
+    private final VariableSnapshot variable;
+
+    private final int index;
+
+    SnapshotCell(final VariableSnapshot variable, final int index) {
+        this.variable = variable;
+        this.index = index;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    @Override
+    public VariableSnapshot getVariable() {
+        return variable;
+    }
+
+    @Override
+    public String getOffsetString() {
+        return DatavyuCell.convertMStoTimestamp(getOffset());
+    }
+
+    @Override
+    public long getOffset() {
+        return variable.getOffset(index);
+    }
+
+    @Override
+    public void setOffset(final long newOffset) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void setOffset(final String newOffset) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public Cell getFreshCell() {
+        return this;
+    }
+
+    @Override
+    public long getOnset() {
+        return variable.getOnset(index);
+    }
+
+    @Override
+    public void setOnset(final String newOnset) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void setOnset(final long newOnset) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public String getOnsetString() {
+        return DatavyuCell.convertMStoTimestamp(getOnset());
+    }
+
+    @Override
+    public String getValueAsString() {
+        return getCellValue().toString();
+    }
+
+    @Override
+    public CellValue getCellValue() {
+        if (variable.getRootNode().type == Argument.Type.MATRIX) {
+            return new SnapshotCellValue.Matrix(variable, index);
+        }
+        return SnapshotCellValue.of(variable, index, 0);
+    }
+
+    @Override
+    public String getCellId() {
+        return variable.getID() + ":" + index;
+    }
+
+    @Override
+    public boolean isSelected() {
+        return false;
+    }
+
+    @Override
+    public void setSelected(final boolean selected) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public boolean isHighlighted() {
+        return false;
+    }
+
+    @Override
+    public void setHighlighted(final boolean highlighted) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void setMatrixValue(final int index, final String value) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public CellValue getMatrixValue(final int column) {
+        return SnapshotCellValue.of(variable, index, column);
+    }
+
+    @Override
+    public void clearMatrixValue(final int index) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void addMatrixValue(final Argument type) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void moveMatrixValue(final int oldIndex, final int newIndex) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void removeMatrixValue(final int index) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    // A snapshot never changes, so there is nothing to listen to.
+    @Override
+    public void addListener(final CellListener cellListener) {
+    }
+
+    @Override
+    public void removeListener(final CellListener cellListener) {
+    }
+
+    @Override
+    public boolean isInTimeWindow(long time) {
+        return time >= getOnset() && time <= getOffset();
+    }
+
+    @Override
+    public boolean isPastTimeWindow(long time) {
+        return time > Math.max(getOnset(), getOffset());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * variable.getID().hashCode() + index;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SnapshotCell)) {
+            return false;
+        }
+        SnapshotCell otherC = (SnapshotCell) other;
+        return otherC.variable == variable && otherC.index == index;
+    }
+
+    @Override
+    /* Print string representation of this cell. */
+    public String toString() {
+        return "[" + getOnset() + "," + getOffset() + "," + getValueAsString() + "]";
+    }
+}
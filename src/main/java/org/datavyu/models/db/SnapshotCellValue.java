@@ -0,0 +1,255 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.datavyu.util.StringUtils;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A view of one value of a cell of a VariableSnapshot; reads like the DatavyuCellValue it was copied from.
+ */
+abstract class SnapshotCellValue implements CellValue {
+
+    final VariableSnapshot variable;
+
+    final int index;
+
+    final int column;
+
+    SnapshotCellValue(final VariableSnapshot variable, final int index, final int column) {
+        this.variable = variable;
+        this.index = index;
+        this.column = column;
+    }
+
+    /**
+     * @return A view of the value of the cell in the given argument column.
+     */
+    static SnapshotCellValue of(final VariableSnapshot variable, final int index, final int column) {
+        if (variable.getColumnArgument(column).type == Argument.Type.TEXT) {
+            return new Text(variable, index, column);
+        }
+        return new Nominal(variable, index, column);
+    }
+
+    @Override
+    public boolean isValid(final String value) {
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return variable.getValue(index, column) == null;
+    }
+
+    @Override
+    public void set(final String newValue) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public Argument getArgument() {
+        return variable.getColumnArgument(column);
+    }
+
+    @Override
+    public String toString() {
+        String value = variable.getValue(index, column);
+        return value == null ? "" : value;
+    }
+
+    @Override
+    public String serialize() {
+        String value = variable.getValue(index, column);
+        if (value == null) return "";
+        return StringUtils.escapeCSVArgument(value);
+    }
+
+    @Override
+    public void appendTo(final Appendable out) throws IOException {
+        String value = variable.getValue(index, column);
+        if (value != null) {
+            out.append(value);
+        }
+    }
+
+    @Override
+    public void serializeTo(final Appendable out) throws IOException {
+        String value = variable.getValue(index, column);
+        if (value != null) {
+            StringUtils.appendEscapedCSVArgument(out, value);
+        }
+    }
+
+    @Override
+    public String getPlaceholderString() {
+        return "<" + getArgument().name + ">";
+    }
+
+    static final class Nominal extends SnapshotCellValue implements NominalCellValue {
+        Nominal(final VariableSnapshot variable, final int index, final int column) {
+            super(variable, index, column);
+        }
+    }
+
+    static final class Text extends SnapshotCellValue implements TextCellValue {
+        Text(final VariableSnapshot variable, final int index, final int column) {
+            super(variable, index, column);
+        }
+    }
+
+    /**
+     * The value of a whole cell of a matrix variable, made up of one value per argument column.
+     */
+    static final class Matrix implements MatrixCellValue {
+
+        private final VariableSnapshot variable;
+
+        private final int index;
+
+        Matrix(final VariableSnapshot variable, final int index) {
+            this.variable = variable;
+            this.index = index;
+        }
+
+        @Override
+        public List<CellValue> getArguments() {
+            return new AbstractList<CellValue>() {
+                @Override
+                public CellValue get(final int column) {
+                    if (column < 0 || column >= size()) {
+                        throw new IndexOutOfBoundsException("Index: " + column + ", Size: " + size());
+                    }
+                    return of(variable, index, column);
+                }
+
+                @Override
+                public int size() {
+                    return variable.getColumnCount();
+                }
+            };
+        }
+
+        @Override
+        public CellValue createArgument(final Argument arg) {
+            throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+        }
+
+        @Override
+        public void removeArgument(final int index) {
+            throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+        }
+
+        @Override
+        public boolean isValid(final String value) {
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            for (int i = 0; i < variable.getColumnCount(); i++) {
+                if (variable.getValue(index, i) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void set(final String value) {
+            throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+        }
+
+        @Override
+        public Argument getArgument() {
+            return variable.getRootNode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            try {
+                appendTo(result);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return result.toString();
+        }
+
+        @Override
+        public String serialize() {
+            StringBuilder result = new StringBuilder();
+            try {
+                serializeTo(result);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return result.toString();
+        }
+
+        @Override
+        public void appendTo(final Appendable out) throws IOException {
+            out.append('(');
+            appendArguments(out, ",");
+            out.append(')');
+        }
+
+        @Override
+        public void serializeTo(final Appendable out) throws IOException {
+            out.append('(');
+            for (int i = 0; i < variable.getColumnCount(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                String value = variable.getValue(index, i);
+                if (value != null) {
+                    StringUtils.appendEscapedCSVArgument(out, value);
+                }
+            }
+            out.append(')');
+        }
+
+        @Override
+        public void appendArguments(final Appendable out, final CharSequence separator) throws IOException {
+            for (int i = 0; i < variable.getColumnCount(); i++) {
+                if (i > 0) {
+                    out.append(separator);
+                }
+                String value = variable.getValue(index, i);
+                if (value != null) {
+                    out.append(value);
+                }
+            }
+        }
+
+        @Override
+        public String getPlaceholderString() {
+            return "<" + variable.getRootNode().name + ">";
+        }
+    }
+}
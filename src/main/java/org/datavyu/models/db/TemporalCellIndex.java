@@ -0,0 +1,556 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.*;
+
+/**
+ * Keeps the cells of a variable permanently sorted by onset and offset.
+ *
+ * The index is a treap (randomized balanced binary search tree) ordered with the same rule as the CellComparator;
+ * ties are broken by insertion order. Every node is augmented with the size of its subtree, so the i-th cell can be
+ * found in O(log n), and with the largest end time in its subtree, so that it can be used as an interval tree.
+ *
+ * Insert, remove and re-keying a cell after its onset or offset changed are all O(log n). The sorted list handed out
+ * by asList is an immutable snapshot that is only rebuilt (without sorting) after the order has changed.
+ *
+ * The tree can be frozen for a snapshot of the data store, see freeze: a node that is part of a frozen tree is copied
+ * before it changes, together with the path to it from the root (copy on write). A change after freezing thus copies
+ * O(log n) nodes, and the frozen tree shares all the others. Frozen nodes hold the values of their cells as well, which
+ * are only taken when the tree is frozen, and only from the cells that were added or changed since it last was, so
+ * editing without snapshots costs no more than before.
+ *
+ * For the time queries a cell covers the closed interval [onset, max(onset, offset)], i.e. a cell whose offset has not
+ * been set (or lies before its onset) is treated as a single point at its onset.
+ */
+final class TemporalCellIndex {
+
+    /**
+     * A single cell in the tree; holds a copy of the key so that the cell can be found after it has changed, and of the
+     * values of the cell for frozen trees.
+     */
+    private static final class Node {
+        final Cell cell;
+        final long sequence;
+        final int priority;
+
+        /** The generation of the tree the node was made in; a node of an older one is frozen. */
+        final int generation;
+        long onset;
+        long offset;
+        long maxEnd;
+        int size;
+        Node left;
+        Node right;
+
+        /** The values of the cell, see valuesOf, taken by freeze; null until then and after the values changed. */
+        String[] values;
+
+        Node(final Cell cell, final long sequence, final int priority, final int generation) {
+            this.cell = cell;
+            this.sequence = sequence;
+            this.priority = priority;
+            this.generation = generation;
+        }
+
+        Node(final Node node, final int generation) {
+            this(node.cell, node.sequence, node.priority, generation);
+            onset = node.onset;
+            offset = node.offset;
+            maxEnd = node.maxEnd;
+            size = node.size;
+            left = node.left;
+            right = node.right;
+            values = node.values;
+        }
+    }
+
+    /** Random source for the node priorities. */
+    private final Random random = new Random();
+
+    /** Look up from cell to its node, in the order the cells were added. */
+    private final Map<Cell, Node> nodes = new LinkedHashMap<>();
+
+    /** The root of the tree, null when empty. */
+    private Node root = null;
+
+    /** Sequence number for the next inserted cell, used to break ties between identical onset/offset. */
+    private long nextSequence = 0L;
+
+    /** Cached sorted list of the cells, null when it has to be rebuilt. */
+    private List<Cell> snapshot = null;
+
+    /** Cached list of the cells in the order they were added, null when it has to be rebuilt. */
+    private List<Cell> added = null;
+
+    /** The generation of new and copied nodes; raised by freeze, which leaves the nodes of earlier ones unchanged. */
+    private int generation = 0;
+
+    /** The nodes whose values freeze has to take, as they were added or their values changed since the last freeze. */
+    private final List<Node> changedValues = new ArrayList<>();
+
+    private static int size(final Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static long maxEnd(final Node node) {
+        return node == null ? Long.MIN_VALUE : node.maxEnd;
+    }
+
+    private static void update(final Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        node.maxEnd = Math.max(Math.max(node.onset, node.offset), Math.max(maxEnd(node.left), maxEnd(node.right)));
+    }
+
+    private static int compare(final Node a, final Node b) {
+        if (a.onset != b.onset) {
+            return a.onset < b.onset ? -1 : 1;
+        }
+        if (a.offset != b.offset) {
+            return a.offset < b.offset ? -1 : 1;
+        }
+        return Long.compare(a.sequence, b.sequence);
+    }
+
+    /**
+     * @return The number of cells in the index.
+     */
+    int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @param cell The cell to look for.
+     * @return True if the cell is held in this index, false otherwise.
+     */
+    boolean contains(final Cell cell) {
+        return nodes.containsKey(cell);
+    }
+
+    /**
+     * Adds a cell to the index; does nothing if the cell is already indexed.
+     *
+     * @param cell The cell to add.
+     */
+    void add(final Cell cell) {
+        if (nodes.containsKey(cell)) {
+            return;
+        }
+        Node node = new Node(cell, nextSequence++, random.nextInt(), generation);
+        node.onset = cell.getOnset();
+        node.offset = cell.getOffset();
+        update(node);
+        nodes.put(cell, node);
+        changedValues.add(node);
+        root = insert(root, node);
+        snapshot = null;
+        added = null;
+    }
+
+    /**
+     * Removes a cell from the index.
+     *
+     * @param cell The cell to remove.
+     * @return True if the cell was held in this index, false otherwise.
+     */
+    boolean remove(final Cell cell) {
+        Node node = nodes.remove(cell);
+        if (node == null) {
+            return false;
+        }
+        root = delete(root, node);
+        snapshot = null;
+        added = null;
+        return true;
+    }
+
+    /**
+     * Moves a cell to its new position after its onset or offset has changed.
+     *
+     * @param cell The cell that has changed.
+     */
+    void reposition(final Cell cell) {
+        Node node = nodes.get(cell);
+        if (node == null || (node.onset == cell.getOnset() && node.offset == cell.getOffset())) {
+            return;
+        }
+        int oldRank = rank(node);
+        root = delete(root, node);
+        node = writable(node);
+        node.onset = cell.getOnset();
+        node.offset = cell.getOffset();
+        node.left = null;
+        node.right = null;
+        update(node);
+        root = insert(root, node);
+
+        // The snapshot only holds the order of the cells, so it remains valid if the cell did not move.
+        if (rank(node) != oldRank) {
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Takes up the values of a cell after they changed.
+     *
+     * @param cell The cell whose values have changed.
+     */
+    void valuesChanged(final Cell cell) {
+        Node node = nodes.get(cell);
+        if (node == null || node.values == null) {
+            return;
+        }
+        if (node.generation == generation) {
+            // The path to a node that is not frozen has been copied already.
+            node.values = null;
+            changedValues.add(node);
+        } else {
+            root = touch(root, node);
+        }
+    }
+
+    /**
+     * Freezes the tree as it is: the nodes are left unchanged from now on, and copied before they change.
+     *
+     * @return The frozen tree.
+     */
+    Frozen freeze() {
+        for (Node node : changedValues) {
+            // Nodes that have been removed, or replaced by a copy, are not part of the tree any more.
+            if (node.values == null && nodes.get(node.cell) == node) {
+                node.values = valuesOf(node.cell);
+            }
+        }
+        changedValues.clear();
+        generation++;
+        return new Frozen(root);
+    }
+
+    /**
+     * @param cell A cell.
+     * @return The values of the cell, one per argument of a matrix and otherwise one; null for an empty value.
+     */
+    private static String[] valuesOf(final Cell cell) {
+        CellValue value = cell.getCellValue();
+        if (value instanceof MatrixCellValue) {
+            List<CellValue> arguments = ((MatrixCellValue) value).getArguments();
+            String[] values = new String[arguments.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = valueOf(arguments.get(i));
+            }
+            return values;
+        }
+        return new String[]{valueOf(value)};
+    }
+
+    private static String valueOf(final CellValue value) {
+        return value == null || value.isEmpty() ? null : value.toString();
+    }
+
+    /**
+     * @param node A node of the tree.
+     * @return The node if it may be changed, or else a copy of it that replaces it in the lookup; the caller puts the
+     * copy in place of the node in the tree.
+     */
+    private Node writable(final Node node) {
+        if (node.generation == generation) {
+            return node;
+        }
+        Node copy = new Node(node, generation);
+        nodes.put(copy.cell, copy);
+        return copy;
+    }
+
+    /**
+     * Copies the path to a node, leaving the copy of the node for freeze to take the values of.
+     */
+    private Node touch(final Node node, final Node target) {
+        Node result = writable(node);
+        int c = compare(target, result);
+        if (c < 0) {
+            result.left = touch(result.left, target);
+        } else if (c > 0) {
+            result.right = touch(result.right, target);
+        } else {
+            result.values = null;
+            changedValues.add(result);
+        }
+        return result;
+    }
+
+    /**
+     * @param index The position of the cell in temporal order.
+     * @return The cell at the given position.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    Cell get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        Node node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.cell;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * @param cell The cell to look for.
+     * @return The position of the cell in temporal order, -1 if the cell is not in the index.
+     */
+    int indexOf(final Cell cell) {
+        Node node = nodes.get(cell);
+        return node == null ? -1 : rank(node);
+    }
+
+    /**
+     * @return An unmodifiable list of all the cells in temporal order. The list does not change when the index is
+     * modified afterwards.
+     */
+    List<Cell> asList() {
+        if (snapshot == null) {
+            Cell[] cells = new Cell[size()];
+            int i = 0;
+            Deque<Node> stack = new ArrayDeque<>();
+            Node node = root;
+            while (node != null || !stack.isEmpty()) {
+                while (node != null) {
+                    stack.push(node);
+                    node = node.left;
+                }
+                node = stack.pop();
+                cells[i++] = node.cell;
+                node = node.right;
+            }
+            snapshot = Collections.unmodifiableList(Arrays.asList(cells));
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return An unmodifiable list of all the cells in the order they were added, whatever their onsets and offsets.
+     * The list does not change when the index is modified afterwards.
+     */
+    List<Cell> inAddedOrder() {
+        if (added == null) {
+            added = Collections.unmodifiableList(Arrays.asList(nodes.keySet().toArray(new Cell[0])));
+        }
+        return added;
+    }
+
+    /**
+     * @param start The start of the time range in milliseconds.
+     * @param end The end of the time range in milliseconds.
+     * @return The cells that overlap the inclusive range [start, end], in temporal order.
+     */
+    List<Cell> overlapping(final long start, final long end) {
+        List<Cell> result = new ArrayList<>();
+        if (start <= end) {
+            collectOverlapping(root, start, end, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param time The time in milliseconds.
+     * @return The last cell in temporal order with an onset at or before the time, null if there is none.
+     */
+    Cell lastStartingAtOrBefore(final long time) {
+        Cell result = null;
+        Node node = root;
+        while (node != null) {
+            if (node.onset <= time) {
+                result = node.cell;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param time The time in milliseconds.
+     * @return The first cell in temporal order with an onset after the time, null if there is none.
+     */
+    Cell firstStartingAfter(final long time) {
+        Cell result = null;
+        Node node = root;
+        while (node != null) {
+            if (node.onset > time) {
+                result = node.cell;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return result;
+    }
+
+    private static void collectOverlapping(final Node node, final long start, final long end, final List<Cell> result) {
+        // Nothing in this subtree reaches the start of the range.
+        if (node == null || node.maxEnd < start) {
+            return;
+        }
+        collectOverlapping(node.left, start, end, result);
+
+        // Everything to the right starts no earlier than this node.
+        if (node.onset <= end) {
+            if (Math.max(node.onset, node.offset) >= start) {
+                result.add(node.cell);
+            }
+            collectOverlapping(node.right, start, end, result);
+        }
+    }
+
+    private int rank(final Node target) {
+        int rank = 0;
+        Node node = root;
+        while (node != null) {
+            int c = compare(target, node);
+            if (c < 0) {
+                node = node.left;
+            } else if (c > 0) {
+                rank += size(node.left) + 1;
+                node = node.right;
+            } else {
+                return rank + size(node.left);
+            }
+        }
+        return -1;
+    }
+
+    private Node insert(final Node parent, final Node newNode) {
+        if (parent == null) {
+            return newNode;
+        }
+        Node node = writable(parent);
+        if (compare(newNode, node) < 0) {
+            node.left = insert(node.left, newNode);
+            if (node.left.priority > node.priority) {
+                return rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, newNode);
+            if (node.right.priority > node.priority) {
+                return rotateLeft(node);
+            }
+        }
+        update(node);
+        return node;
+    }
+
+    private Node delete(final Node parent, final Node target) {
+        if (parent == null) {
+            return null;
+        }
+        if (parent == target) {
+            return merge(parent.left, parent.right);
+        }
+        Node node = writable(parent);
+        if (compare(target, node) < 0) {
+            node.left = delete(node.left, target);
+        } else {
+            node.right = delete(node.right, target);
+        }
+        update(node);
+        return node;
+    }
+
+    private Node merge(final Node left, final Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            Node node = writable(left);
+            node.right = merge(node.right, right);
+            update(node);
+            return node;
+        } else {
+            Node node = writable(right);
+            node.left = merge(left, node.left);
+            update(node);
+            return node;
+        }
+    }
+
+    // Rotations only get nodes that may be changed: the node and the child just returned by insert.
+
+    private static Node rotateRight(final Node node) {
+        Node pivot = node.left;
+        node.left = pivot.right;
+        pivot.right = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private static Node rotateLeft(final Node node) {
+        Node pivot = node.right;
+        node.right = pivot.left;
+        pivot.left = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    /**
+     * A frozen tree, the cells as they were when it was frozen; read without locking.
+     */
+    static final class Frozen implements VariableSnapshot.Source {
+
+        private final Node root;
+
+        private Frozen(final Node root) {
+            this.root = root;
+        }
+
+        @Override
+        public VariableSnapshot.Columns read(final int columnCount) {
+            int count = size(root);
+            long[] onsets = new long[count];
+            long[] offsets = new long[count];
+            String[][] values = new String[columnCount][count];
+            int i = 0;
+            Deque<Node> stack = new ArrayDeque<>();
+            Node node = root;
+            while (node != null || !stack.isEmpty()) {
+                while (node != null) {
+                    stack.push(node);
+                    node = node.left;
+                }
+                node = stack.pop();
+                onsets[i] = node.onset;
+                offsets[i] = node.offset;
+                for (int column = 0; column < columnCount && column < node.values.length; column++) {
+                    values[column][i] = node.values[column];
+                }
+                i++;
+                node = node.right;
+            }
+            return new VariableSnapshot.Columns(onsets, offsets, values);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the values of an argument; dictionary encoded values are counted by their code.
+ */
+final class ValueCounter {
+
+    private final List<ValueDictionary> dictionaries = new ArrayList<>();
+
+    private final List<int[]> codeCounts = new ArrayList<>();
+
+    private final Map<String, Integer> textCounts = new LinkedHashMap<>();
+
+    /** Index of the last dictionary counted, most values share one. */
+    private int last = -1;
+
+    /**
+     * Counts a dictionary encoded value.
+     *
+     * @param dictionary The dictionary of the value.
+     * @param code       The code of the value, ValueDictionary.NO_CODE for an empty value.
+     */
+    void add(final ValueDictionary dictionary, final int code) {
+        if (code == ValueDictionary.NO_CODE) {
+            return;
+        }
+        if (last < 0 || dictionaries.get(last) != dictionary) {
+            last = dictionaries.indexOf(dictionary);
+            if (last < 0) {
+                last = dictionaries.size();
+                dictionaries.add(dictionary);
+                codeCounts.add(new int[dictionary.size()]);
+            }
+        }
+        int[] counts = codeCounts.get(last);
+        if (code >= counts.length) {
+            counts = Arrays.copyOf(counts, dictionary.size());
+            codeCounts.set(last, counts);
+        }
+        counts[code]++;
+    }
+
+    /**
+     * Counts a value.
+     *
+     * @param value The value, null for an empty value.
+     */
+    void add(final String value) {
+        if (value != null && !value.isEmpty()) {
+            Integer count = textCounts.get(value);
+            textCounts.put(value, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * @return The number of times each non-empty value was counted.
+     */
+    Map<String, Integer> getCounts() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int i = 0; i < dictionaries.size(); i++) {
+            ValueDictionary dictionary = dictionaries.get(i);
+            int[] counts = codeCounts.get(i);
+            for (int code = 0; code < counts.length; code++) {
+                if (counts[code] > 0) {
+                    add(result, dictionary.getValue(code), counts[code]);
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> entry : textCounts.entrySet()) {
+            add(result, entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private static void add(final Map<String, Integer> counts, final String value, final int count) {
+        if (!value.isEmpty()) {
+            Integer current = counts.get(value);
+            counts.put(value, current == null ? count : current + count);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The distinct values used for one nominal argument, each identified by an int code.
+ *
+ * Nominal codes are a small vocabulary repeated across many cells, so the cells of a nominal argument store the code
+ * of their value instead of a string of their own. Codes are handed out in the order the values are first used. Every
+ * holder of a code, a cell value or a row of a column, takes a reference to it with intern and gives it back with
+ * release, so the values that are no longer used, as typos that have been corrected, are let go of: once they make up
+ * more than half of the dictionary, they are dropped and their codes handed out again.
+ */
+public final class ValueDictionary {
+
+    /** The code of an empty (null) value; never handed out for a value. */
+    public static final int NO_CODE = -1;
+
+    /** Unused values that are kept at least, so that a value set back and forth is not dropped every time. */
+    private static final int MIN_UNUSED = 16;
+
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    /**
+     * The values by code. An entry that has been handed out is never changed, so that the array can be read without
+     * locking, see getValues: values are dropped in a copy, and only codes that no one holds are handed out again.
+     */
+    private String[] values = new String[16];
+
+    /** The number of holders of each code. */
+    private int[] references = new int[16];
+
+    private int size = 0;
+
+    /** The number of codes that have a value but no holders. */
+    private int unused = 0;
+
+    /** The codes whose values have been dropped, to be handed out again. */
+    private int[] free = new int[0];
+
+    private int freeCount = 0;
+
+    /**
+     * Takes a reference to the code of a value, to be given back with release when the holder no longer uses it.
+     *
+     * @param value The value to look up, may be null.
+     * @return The code of the value, adding the value to the dictionary if needed; NO_CODE for null.
+     */
+    public int intern(final String value) {
+        if (value == null) {
+            return NO_CODE;
+        }
+        Integer code = codes.get(value);
+        if (code == null) {
+            if (freeCount > 0) {
+                code = free[--freeCount];
+            } else {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                    references = Arrays.copyOf(references, size * 2);
+                }
+                code = size++;
+            }
+            codes.put(value, code);
+            values[code] = value;
+        } else if (references[code] == 0) {
+            unused--;
+        }
+        references[code]++;
+        return code;
+    }
+
+    /**
+     * Gives back a reference taken with intern.
+     *
+     * @param code The code of the value that is no longer used by the holder; NO_CODE does nothing.
+     */
+    public void release(final int code) {
+        if (code == NO_CODE) {
+            return;
+        }
+        if (--references[code] == 0) {
+            unused++;
+            if (unused > MIN_UNUSED && unused * 2 > codes.size()) {
+                dropUnused();
+            }
+        }
+    }
+
+    /**
+     * Drops the values that have no holders, in a copy of the values, and frees their codes.
+     */
+    private void dropUnused() {
+        String[] kept = values.clone();
+        int[] freed = Arrays.copyOf(free, freeCount + unused);
+        for (int code = 0; code < size; code++) {
+            if (references[code] == 0 && kept[code] != null) {
+                codes.remove(kept[code]);
+                kept[code] = null;
+                freed[freeCount++] = code;
+            }
+        }
+        values = kept;
+        free = freed;
+        unused = 0;
+    }
+
+    /**
+     * @param value The value to look up, may be null.
+     * @return The code of the value, or NO_CODE if the value is null or is not in the dictionary.
+     */
+    public int getCode(final String value) {
+        if (value == null) {
+            return NO_CODE;
+        }
+        Integer code = codes.get(value);
+        return code == null ? NO_CODE : code;
+    }
+
+    /**
+     * @param code The code of the value.
+     * @return The value with the code; null for NO_CODE.
+     */
+    public String getValue(final int code) {
+        if (code == NO_CODE) {
+            return null;
+        }
+        if (code < 0 || code >= size) {
+            throw new IndexOutOfBoundsException("Code: " + code + ", Size: " + size);
+        }
+        return values[code];
+    }
+
+    /**
+     * @return The number of codes handed out so far; codes run from zero up to this number.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The values by code, at least for the codes handed out so far. The entries are never changed while a
+     * code refers to them, so the array can be read without locking, as by a snapshot of the data store, while values
+     * are added and dropped.
+     */
+    String[] getValues() {
+        return values;
+    }
+}
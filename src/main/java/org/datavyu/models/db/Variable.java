@@ -23,6 +23,7 @@
 package org.datavyu.models.db;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Just a collection of cells, relates to a DataColumn.
@@ -43,6 +44,17 @@ public interface Variable {
      */
     Cell createCell();
 
+    /**
+     * Creates and inserts a cell with the given times into the variable; cheaper than creating a cell and then setting
+     * its onset and offset, which moves it within the variable twice. Meant for loading cells, the new cell is not
+     * selected.
+     *
+     * @param onset  The onset of the new cell in milliseconds.
+     * @param offset The offset of the new cell in milliseconds.
+     * @return The newly created cell.
+     */
+    Cell createCell(final long onset, final long offset);
+
     /**
      * Removes a cell from the variable.
      *
@@ -51,12 +63,14 @@ public interface Variable {
     void removeCell(final Cell cell);
 
     /**
-     * @return All the cells stored in the variable.
+     * @return All the cells stored in the variable in the order they were added, whatever their onsets and offsets, so
+     * the position of a cell only changes when cells before it are removed. The list is unmodifiable and is not
+     * affected by later changes to the variable; use getCellsTemporally for the cells in temporal order.
      */
     List<Cell> getCells();
 
     /**
-     * Gets the 'index' cell from the variable that has been sorted temporally.
+     * Gets the 'index' cell from the variable that has been sorted temporally. Does not need to sort the variable.
      *
      * @param index The index (from first onset to last offset) of the cell.
      * @return The cell.
@@ -82,10 +96,56 @@ public interface Variable {
     void setVariableType(final Argument newType);
 
     /**
-     * @return All the cells stored in the variable using a temporal alignment.
+     * @return All the cells stored in the variable using a temporal alignment. The returned list is unmodifiable and
+     * is not affected by later changes to the variable.
      */
     List<Cell> getCellsTemporally();
 
+    /**
+     * @param cell The cell to look for.
+     * @return The position of the cell in temporal order (as used by getCellTemporally), -1 if the cell is not part
+     * of this variable.
+     */
+    int getTemporalIndex(final Cell cell);
+
+    /**
+     * Finds the cells that overlap a time range. A cell covers the time from its onset up to and including its
+     * offset; a cell with an offset before its onset covers its onset only.
+     *
+     * @param start The start of the range in milliseconds (inclusive).
+     * @param end   The end of the range in milliseconds (inclusive).
+     * @return The cells that overlap the range, in temporal order.
+     */
+    List<Cell> getCellsInRange(final long start, final long end);
+
+    /**
+     * @param time The time in milliseconds.
+     * @return The cells that are active at the supplied time, in temporal order.
+     */
+    List<Cell> getCellsAt(final long time);
+
+    /**
+     * @param time The time in milliseconds.
+     * @return The last cell, in temporal order, with an onset at or before the supplied time. Null if there is no
+     * such cell.
+     */
+    Cell getPreviousCell(final long time);
+
+    /**
+     * @param time The time in milliseconds.
+     * @return The first cell, in temporal order, with an onset after the supplied time. Null if there is no such cell.
+     */
+    Cell getNextCell(final long time);
+
+    /**
+     * Counts how often each value is used by the cells of this variable for one of its arguments. Empty values are not
+     * counted. Nominal values are counted by their code, without reading the values of the cells.
+     *
+     * @param argIndex The index of the argument; 0 for a variable that is not a matrix.
+     * @return The number of cells using each value, in the order the values were first used.
+     */
+    Map<String, Integer> getValueCounts(final int argIndex);
+
     /**
      * @param c The cell to check if it exists in this variable.
      * @return True if this variable contains the supplied cell, false otherwise.
@@ -0,0 +1,116 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.*;
+
+/**
+ * Summary of the changes made to the cells of one variable during a batch, see DataStore.beginBatch.
+ *
+ * Changes are coalesced as they are recorded: a cell that is inserted and removed again within the same batch does
+ * not show up at all, and a cell whose onset or offset changes many times is reported once with its final times.
+ * The inserted, removed and changed cells are disjoint.
+ */
+public final class VariableChanges {
+
+    /** Flag for a changed onset. */
+    static final int ONSET = 1;
+
+    /** Flag for a changed offset. */
+    static final int OFFSET = 2;
+
+    /** The variable that has changed. */
+    private final Variable variable;
+
+    /** Cells added to the variable during the batch. */
+    private final Set<Cell> inserted = new LinkedHashSet<>();
+
+    /** Cells removed from the variable during the batch, that were part of it before the batch. */
+    private final Set<Cell> removed = new LinkedHashSet<>();
+
+    /** Cells that were part of the variable before the batch and had their times changed, with the changed flags. */
+    private final Map<Cell, Integer> changed = new LinkedHashMap<>();
+
+    VariableChanges(final Variable variable) {
+        this.variable = variable;
+    }
+
+    /**
+     * @return The variable that has changed.
+     */
+    public Variable getVariable() {
+        return variable;
+    }
+
+    /**
+     * @return The cells that were added to the variable, in the order they were added.
+     */
+    public Collection<Cell> getInsertedCells() {
+        return Collections.unmodifiableSet(inserted);
+    }
+
+    /**
+     * @return The cells that were removed from the variable, in the order they were removed.
+     */
+    public Collection<Cell> getRemovedCells() {
+        return Collections.unmodifiableSet(removed);
+    }
+
+    /**
+     * @return The cells that remained in the variable, but had their onset or offset changed.
+     */
+    public Collection<Cell> getChangedCells() {
+        return Collections.unmodifiableSet(changed.keySet());
+    }
+
+    /**
+     * @return True if nothing has changed.
+     */
+    public boolean isEmpty() {
+        return inserted.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    /**
+     * @param cell The changed cell.
+     * @return The ONSET and OFFSET flags of what has changed on the cell.
+     */
+    int getChangedFlags(final Cell cell) {
+        Integer flags = changed.get(cell);
+        return flags == null ? 0 : flags;
+    }
+
+    void cellInserted(final Cell cell) {
+        // A cell that comes back is no longer new to the listeners, but it may have moved while it was gone.
+        if (removed.remove(cell)) {
+            changed.put(cell, ONSET | OFFSET);
+        } else {
+            inserted.add(cell);
+        }
+    }
+
+    void cellRemoved(final Cell cell) {
+        changed.remove(cell);
+        if (!inserted.remove(cell)) {
+            removed.add(cell);
+        }
+    }
+
+    void cellChanged(final Cell cell, final int flags) {
+        // Inserted cells are reported with their final times; removed cells are gone.
+        if (!inserted.contains(cell) && !removed.contains(cell)) {
+            changed.put(cell, getChangedFlags(cell) | flags);
+        }
+    }
+}
@@ -55,4 +55,19 @@ public interface VariableListener {
      * @param deletedCell The cell that has been removed from the variable.
      */
     void cellRemoved(final Cell deletedCell);
+
+    /**
+     * Called once when a batch of changes is committed, instead of cellInserted and cellRemoved for every cell that
+     * was inserted or removed during the batch. The default implementation replays the summary as such calls.
+     *
+     * @param changes The coalesced changes to the cells of the variable.
+     */
+    default void cellsChanged(final VariableChanges changes) {
+        for (Cell cell : changes.getRemovedCells()) {
+            cellRemoved(cell);
+        }
+        for (Cell cell : changes.getInsertedCells()) {
+            cellInserted(cell);
+        }
+    }
 }
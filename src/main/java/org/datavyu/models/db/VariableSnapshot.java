@@ -0,0 +1,513 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/**
+ * An immutable copy of a variable, taken for a snapshot of the data store.
+ *
+ * The cells are held in temporal order, column by column like in a ColumnarVariable: their onsets and offsets in long
+ * arrays and the values of every argument in a string array of their own, null for an empty value. The strings are
+ * shared with the variable the copy was taken of. The Cell and CellValue objects handed out are views of an index.
+ *
+ * A variable keeps its copy until it changes, so the copy can be shared by several snapshots of the data store. For
+ * this reason it has no owning data store. Taking the copy of a DatavyuVariable or ColumnarVariable costs O(1): it
+ * keeps a Source, the cells as the variable shares them with it, which the variable copies before it changes them (see
+ * TemporalCellIndex.freeze and ColumnarVariable.snapshot). The columns are read from the source the first time the copy is used, without holding
+ * the lock of the data store, so the writers do not wait for it.
+ *
+ * The copy of a variable whose cells have not been loaded yet (see DataStore.createLazyVariable) does not load them.
+ * It reads them with the loader of the variable the first time they are used, and keeps them while memory allows.
+ */
+final class VariableSnapshot implements Variable {
+
+    private final UUID variableId = UUID.randomUUID();
+    private final String name;
+    private final Argument rootNodeArgument;
+    private final boolean hidden;
+    private final int orderIndex;
+
+    /** The cells copied from the variable, null until they are read from the source or if the loader reads them. */
+    private volatile Columns copied;
+
+    /** The cells as the variable shares them, until they have been read; guarded by this. */
+    private Source source;
+
+    /** Reads the cells of a variable that had not been loaded, null if they were copied. */
+    private final CellLoader loader;
+
+    /** The cells read by the loader, while memory allows. */
+    private volatile SoftReference<Columns> loaded = new SoftReference<>(null);
+
+    private final List<Cell> cells = new AbstractList<Cell>() {
+        @Override
+        public Cell get(final int index) {
+            return getCellTemporally(index);
+        }
+
+        @Override
+        public int size() {
+            return columns().onsets.length;
+        }
+    };
+
+    /**
+     * Copies a variable; the caller holds the read lock of its data store.
+     *
+     * @param variable The variable to copy.
+     */
+    VariableSnapshot(final Variable variable) {
+        name = variable.getName();
+        rootNodeArgument = variable.getRootNode().copy();
+        hidden = variable.isHidden();
+        orderIndex = variable.getOrderIndex();
+        copied = Columns.of(variable, rootNodeArgument);
+        loader = null;
+    }
+
+    /**
+     * Copies a variable, sharing its cells; the caller holds the read lock of its data store.
+     *
+     * @param variable The variable to copy.
+     * @param source   The cells of the variable, which it leaves as they are from now on.
+     */
+    VariableSnapshot(final Variable variable, final Source source) {
+        name = variable.getName();
+        rootNodeArgument = variable.getRootNode().copy();
+        hidden = variable.isHidden();
+        orderIndex = variable.getOrderIndex();
+        this.source = source;
+        loader = null;
+    }
+
+    /**
+     * Copies a variable whose cells have not been loaded, without loading them; the caller holds the read lock of its
+     * data store.
+     *
+     * @param variable The variable to copy.
+     * @param loader   The loader of its cells.
+     */
+    VariableSnapshot(final Variable variable, final CellLoader loader) {
+        name = variable.getName();
+        rootNodeArgument = variable.getRootNode().copy();
+        hidden = variable.isHidden();
+        orderIndex = variable.getOrderIndex();
+        copied = null;
+        this.loader = loader;
+    }
+
+    /**
+     * The cells of a variable as a variable shares them with its copy.
+     */
+    interface Source {
+
+        /**
+         * Reads the cells; called once, by the thread that first uses the copy, without holding any lock.
+         *
+         * @param columnCount The number of value columns to read, one per argument.
+         * @return The cells in temporal order.
+         */
+        Columns read(final int columnCount);
+    }
+
+    /**
+     * The cells of a variable, in temporal order.
+     */
+    static final class Columns {
+
+        final long[] onsets;
+        final long[] offsets;
+
+        /** maxEnds[i] is the largest end time of the cells 0..i. */
+        final long[] maxEnds;
+
+        /** The values of every cell, one column per argument in argument order. */
+        final String[][] values;
+
+        /**
+         * @param onsets  The onsets of the cells in temporal order.
+         * @param offsets Their offsets.
+         * @param values  Their values, one column per argument; null for an empty value.
+         */
+        Columns(final long[] onsets, final long[] offsets, final String[][] values) {
+            this.onsets = onsets;
+            this.offsets = offsets;
+            this.values = values;
+            maxEnds = new long[onsets.length];
+            for (int i = 0; i < onsets.length; i++) {
+                long end = Math.max(onsets[i], offsets[i]);
+                maxEnds[i] = i == 0 ? end : Math.max(maxEnds[i - 1], end);
+            }
+        }
+
+        /**
+         * Copies the cells of a variable; the caller holds the read lock of its data store.
+         */
+        static Columns of(final Variable variable, final Argument rootNodeArgument) {
+            List<Cell> source = variable.getCellsTemporally();
+            int count = source.size();
+            boolean matrix = rootNodeArgument.type == Argument.Type.MATRIX;
+            long[] onsets = new long[count];
+            long[] offsets = new long[count];
+            String[][] values = new String[matrix ? rootNodeArgument.childArguments.size() : 1][count];
+            for (int i = 0; i < count; i++) {
+                Cell cell = source.get(i);
+                onsets[i] = cell.getOnset();
+                offsets[i] = cell.getOffset();
+                if (matrix) {
+                    List<CellValue> arguments = ((MatrixCellValue) cell.getCellValue()).getArguments();
+                    for (int column = 0; column < values.length && column < arguments.size(); column++) {
+                        values[column][i] = valueOf(arguments.get(column));
+                    }
+                } else {
+                    values[0][i] = valueOf(cell.getCellValue());
+                }
+            }
+            return new Columns(onsets, offsets, values);
+        }
+    }
+
+    private static String valueOf(final CellValue value) {
+        return value.isEmpty() ? null : value.toString();
+    }
+
+    /**
+     * @return The cells, read by the loader if they are not in memory.
+     * @throws IllegalStateException If the loader can not read the cells.
+     */
+    private Columns columns() {
+        Columns result = copied;
+        if (result != null) {
+            return result;
+        }
+        if (loader == null) {
+            synchronized (this) {
+                if (copied == null) {
+                    copied = source.read(getColumnCount());
+                    source = null;
+                }
+                return copied;
+            }
+        }
+        result = loaded.get();
+        if (result == null) {
+            synchronized (this) {
+                result = loaded.get();
+                if (result == null) {
+                    try {
+                        // Read like DatavyuVariable reads its cells, into a stand-in of a data store of its own.
+                        DatavyuVariable copy = new DatavyuVariable(name, rootNodeArgument.copy(), true,
+                                new DatavyuDataStore());
+                        loader.loadCells(copy);
+                        result = Columns.of(copy, rootNodeArgument);
+                    } catch (UserWarningException | IOException e) {
+                        throw new IllegalStateException("Unable to load the cells of " + name, e);
+                    }
+                    loaded = new SoftReference<>(result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The loader that reads the cells of the variable, which had not been loaded when it was copied; null if
+     * the cells were copied.
+     */
+    CellLoader getCellLoader() {
+        return loader;
+    }
+
+    // Access for the cell and value views.
+
+    UUID getID() {
+        return variableId;
+    }
+
+    long getOnset(final int index) {
+        return columns().onsets[index];
+    }
+
+    long getOffset(final int index) {
+        return columns().offsets[index];
+    }
+
+    int getColumnCount() {
+        return rootNodeArgument.type == Argument.Type.MATRIX ? rootNodeArgument.childArguments.size() : 1;
+    }
+
+    Argument getColumnArgument(final int column) {
+        return rootNodeArgument.type == Argument.Type.MATRIX
+                ? rootNodeArgument.childArguments.get(column) : rootNodeArgument;
+    }
+
+    String getValue(final int index, final int column) {
+        return columns().values[column][index];
+    }
+
+    @Override
+    public void addCell(final Cell cell) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public Cell createCell() {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public Cell createCell(final long onset, final long offset) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void removeCell(final Cell cell) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    /**
+     * @return The cells in temporal order; the copy does not keep the order they were added to the variable in.
+     */
+    @Override
+    public List<Cell> getCells() {
+        return cells;
+    }
+
+    @Override
+    public Cell getCellTemporally(final int index) {
+        int count = columns().onsets.length;
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        return new SnapshotCell(this, index);
+    }
+
+    /**
+     * @return The arguments of the variable; they must not be changed, copy them to use them elsewhere.
+     */
+    @Override
+    public Argument getRootNode() {
+        return rootNodeArgument;
+    }
+
+    @Override
+    public void setRootNode(final Argument newType) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    @Deprecated
+    public Argument getVariableType() {
+        return getRootNode();
+    }
+
+    @Override
+    @Deprecated
+    public void setVariableType(final Argument newType) {
+        setRootNode(newType);
+    }
+
+    @Override
+    public List<Cell> getCellsTemporally() {
+        return cells;
+    }
+
+    @Override
+    public int getTemporalIndex(final Cell cell) {
+        return contains(cell) ? ((SnapshotCell) cell).getIndex() : -1;
+    }
+
+    @Override
+    public List<Cell> getCellsInRange(final long start, final long end) {
+        List<Cell> result = new ArrayList<>();
+        if (start > end) {
+            return result;
+        }
+
+        // Only cells from the first one that reaches the start up to the last one that starts before the end qualify.
+        Columns c = columns();
+        int to = firstStartingAfter(c, end);
+        for (int i = firstReaching(c, start); i < to; i++) {
+            if (Math.max(c.onsets[i], c.offsets[i]) >= start) {
+                result.add(new SnapshotCell(this, i));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Cell> getCellsAt(final long time) {
+        return getCellsInRange(time, time);
+    }
+
+    @Override
+    public Cell getPreviousCell(final long time) {
+        int index = firstStartingAfter(columns(), time) - 1;
+        return index < 0 ? null : new SnapshotCell(this, index);
+    }
+
+    @Override
+    public Cell getNextCell(final long time) {
+        Columns c = columns();
+        int index = firstStartingAfter(c, time);
+        return index < c.onsets.length ? new SnapshotCell(this, index) : null;
+    }
+
+    /**
+     * @return The index of the first cell with an onset after the time; the number of cells if there is none.
+     */
+    private static int firstStartingAfter(final Columns c, final long time) {
+        int low = 0;
+        int high = c.onsets.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (c.onsets[middle] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The first index from which on some cell ends at or after the time.
+     */
+    private static int firstReaching(final Columns c, final long time) {
+        int low = 0;
+        int high = c.maxEnds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (c.maxEnds[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public Map<String, Integer> getValueCounts(final int argIndex) {
+        ValueCounter counter = new ValueCounter();
+        for (String value : columns().values[argIndex]) {
+            counter.add(value);
+        }
+        return counter.getCounts();
+    }
+
+    @Override
+    public boolean contains(final Cell c) {
+        return c instanceof SnapshotCell && ((SnapshotCell) c).getVariable() == this;
+    }
+
+    /**
+     * @return False; the selection is not part of a snapshot.
+     */
+    @Override
+    public boolean isSelected() {
+        return false;
+    }
+
+    @Override
+    public void setSelected(final boolean selected) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    @Override
+    public void setHidden(final boolean hidden) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(final String newName) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void setName(final String newName, final boolean grandfathered) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public Argument addArgument(final Argument.Type type) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void moveArgument(final int old_index, final int new_index) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void moveArgument(final String name, final int new_index) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public void removeArgument(final String name) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    @Override
+    public int getArgumentIndex(final String name) {
+        for (int i = 0; i < rootNodeArgument.childArguments.size(); i++) {
+            if (rootNodeArgument.childArguments.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // A snapshot never changes, so there is nothing to listen to.
+    @Override
+    public void addListener(final VariableListener listener) {
+    }
+
+    @Override
+    public void removeListener(final VariableListener listener) {
+    }
+
+    @Override
+    public int getOrderIndex() {
+        return orderIndex;
+    }
+
+    @Override
+    public void setOrderIndex(final int newIndex) {
+        throw new UnsupportedOperationException(DataStoreSnapshot.READ_ONLY);
+    }
+
+    /**
+     * @return Null; the copy may be shared by several snapshots of the data store.
+     */
+    @Override
+    public DataStore getOwningDatastore() {
+        return null;
+    }
+}
@@ -20,6 +20,7 @@ import org.apache.logging.log4j.Logger;
 import org.datavyu.plugins.Plugin;
 import org.datavyu.plugins.PluginManager;
 
+import java.awt.GraphicsEnvironment;
 import java.io.*;
 import java.util.UUID;
 
@@ -135,7 +136,8 @@ public final class ViewerSetting {
 
     public void setPluginName(final String pluginName) {
         this.pluginName = pluginName;
-        if(pluginUUID == null){
+        // Headless, as in a batch conversion, the plugins are not loaded; the viewer keeps the name it was saved with.
+        if(pluginUUID == null && !GraphicsEnvironment.isHeadless()){
             for(Plugin p : PluginManager.getInstance().getPlugins()){
                 if(pluginName.equals(p.getViewerClass().getName())){
                     setPluginNameAndUUID(p.getPluginUUID());
@@ -155,7 +157,7 @@ public final class ViewerSetting {
      */
     public void setPluginNameAndUUID(final UUID pluginUUID) {
         this.pluginUUID =  pluginUUID;
-        if(pluginName == null){
+        if(pluginName == null && !GraphicsEnvironment.isHeadless()){
             for(Plugin p : PluginManager.getInstance().getPlugins()){
                 if(pluginUUID.equals(p.getPluginUUID())){
                     setPluginName(p.getViewerClass().getName());
@@ -222,7 +224,12 @@ public final class ViewerSetting {
     public void writeSettings(final OutputStream os) throws IOException {
         assert os != null;
 
-        if(settingsOutput != null) settingsOutput.writeTo(os);
+        if(settingsOutput != null) {
+            settingsOutput.writeTo(os);
+        } else if (settingsData != null) {
+            // The viewer has not written settings since they were copied, as when converting without viewers.
+            os.write(settingsData);
+        }
     }
 
     /**
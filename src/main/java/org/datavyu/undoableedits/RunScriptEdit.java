@@ -17,7 +17,9 @@ package org.datavyu.undoableedits;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.datavyu.controllers.DeleteColumnController;
+import org.datavyu.models.db.Argument;
 import org.datavyu.models.db.Cell;
+import org.datavyu.models.db.DataStore;
 import org.datavyu.models.db.UserWarningException;
 import org.datavyu.models.db.Variable;
 
@@ -25,7 +27,6 @@ import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 
 /**
  * Undoable script edit.
@@ -38,13 +39,13 @@ public class RunScriptEdit extends SpreadSheetEdit {
     /** Script path */
     private String scriptPath;
 
-    /** Relevant columns */
-    private List<VariableTO> colsTO;
+    /** Snapshot of the spreadsheet to restore */
+    private DataStore state;
 
     public RunScriptEdit(String scriptPath) {
         super();
         this.scriptPath = scriptPath;
-        colsTO = getSpreadSheetState();
+        state = model.snapshot();
     }
 
     @Override
@@ -66,24 +67,12 @@ public class RunScriptEdit extends SpreadSheetEdit {
     }
 
     private void toggleSpreadSheetState() {
-        List<VariableTO> tempColsTO = this.getSpreadSheetState();
-        setSpreadSheetState(colsTO);
-        colsTO = tempColsTO;
+        DataStore tempState = model.snapshot();
+        setSpreadSheetState(state);
+        state = tempState;
     }
 
-    private List<VariableTO> getSpreadSheetState() {
-        List<VariableTO> varsTO = new ArrayList<>();
-
-        int pos = 0;
-        for (Variable var : model.getAllVariables()) {
-            varsTO.add(new VariableTO(var, pos));
-            pos++;
-        }
-
-        return varsTO;
-    }
-
-    private void setSpreadSheetState(List<VariableTO> varsTO) {
+    private void setSpreadSheetState(DataStore snapshot) {
         try {
             HashMap<String, Boolean> hiddenStates = new HashMap<>();
             for (Variable v : model.getAllVariables()) {
@@ -91,16 +80,30 @@ public class RunScriptEdit extends SpreadSheetEdit {
             }
             new DeleteColumnController(new ArrayList<>(model.getAllVariables()));
 
-            for (VariableTO varTO : varsTO) {
-                Variable var = model.createVariable(varTO.getName(), varTO.getType().type);
-                var.setRootNode(varTO.getType());
-
-                for (CellTO cellTO : varTO.getTOCells()) {
-                    Cell c = var.createCell();
-                    c.setOnset(cellTO.getOnset());
-                    c.setOffset(cellTO.getOffset());
-                    c.getCellValue().set(cellTO.getValue());
+            // The columns get all of their restored cells in one go.
+            model.beginBatch();
+            try {
+                for (Variable saved : snapshot.getAllVariables()) {
+                    Argument type = saved.getRootNode();
+                    Variable var = model.createVariable(saved.getName(), type.type);
+                    // The arguments of the snapshot stay as they are, the variable gets a copy of its own.
+                    var.setRootNode(type.copy());
+
+                    for (Cell savedCell : saved.getCells()) {
+                        Cell c = var.createCell();
+                        c.setOnset(savedCell.getOnset());
+                        c.setOffset(savedCell.getOffset());
+                        if (type.type == Argument.Type.MATRIX) {
+                            for (int i = 0; i < type.childArguments.size(); i++) {
+                                c.setMatrixValue(i, savedCell.getMatrixValue(i).toString());
+                            }
+                        } else {
+                            c.getCellValue().set(savedCell.getCellValue().toString());
+                        }
+                    }
                 }
+            } finally {
+                model.commitBatch();
             }
             for (Variable v : model.getAllVariables()) {
                 v.setHidden(hiddenStates.get(v.getName()));
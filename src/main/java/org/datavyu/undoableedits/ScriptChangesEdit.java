@@ -0,0 +1,122 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.undoableedits;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.datavyu.models.db.DataStoreDiff;
+import org.datavyu.models.db.UserWarningException;
+import org.datavyu.models.db.Variable;
+import org.datavyu.views.discrete.SpreadSheetPanel;
+import org.datavyu.views.discrete.SpreadsheetColumn;
+
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Undoable script edit for a script that ran on a copy of the spreadsheet: only the changes it made are kept, instead
+ * of a snapshot of the whole spreadsheet like RunScriptEdit.
+ */
+public class ScriptChangesEdit extends SpreadSheetEdit {
+
+    /** Logger for this class */
+    private static final Logger logger = LogManager.getLogger(ScriptChangesEdit.class);
+
+    /** Script path */
+    private final String scriptPath;
+
+    /** The changes made by the script */
+    private final DataStoreDiff changes;
+
+    public ScriptChangesEdit(final String scriptPath, final DataStoreDiff changes) {
+        super();
+        this.scriptPath = scriptPath;
+        this.changes = changes;
+    }
+
+    @Override
+    public String getPresentationName() {
+        return "Run Script \"" + scriptPath + "\"";
+    }
+
+    /**
+     * Applies the changes of the script for the first time.
+     *
+     * @throws UserWarningException If unable to apply the changes; nothing is changed then.
+     */
+    public void apply() throws UserWarningException {
+        List<Variable> columns = getColumnOrder();
+        changes.apply();
+        setColumnOrder(columns, changes.getReplacements());
+        unselectAll();
+    }
+
+    @Override
+    public void undo() throws CannotUndoException {
+        super.undo();
+        List<Variable> columns = getColumnOrder();
+        changes.revert();
+        Map<Variable, Variable> replaced = new HashMap<>();
+        for (Map.Entry<Variable, Variable> entry : changes.getReplacements().entrySet()) {
+            replaced.put(entry.getValue(), entry.getKey());
+        }
+        setColumnOrder(columns, replaced);
+        unselectAll();
+    }
+
+    @Override
+    public void redo() throws CannotRedoException {
+        super.redo();
+        try {
+            apply();
+        } catch (UserWarningException e) {
+            logger.error("Unable to redo the script. Error: ", e);
+            throw new CannotRedoException();
+        }
+    }
+
+    private List<Variable> getColumnOrder() {
+        List<Variable> columns = new ArrayList<>();
+        for (SpreadsheetColumn column : getSpreadsheet().getColumns()) {
+            columns.add(column.getVariable());
+        }
+        return columns;
+    }
+
+    /**
+     * Puts the columns back in their order, with the replaced variables in the place of the ones they replace; the
+     * spreadsheet adds the columns of new variables at the end.
+     */
+    private void setColumnOrder(final List<Variable> columns, final Map<Variable, Variable> replaced) {
+        SpreadSheetPanel panel = getSpreadsheet();
+        int target = 0;
+        for (Variable variable : columns) {
+            Variable replacement = replaced.get(variable);
+            Variable column = replacement != null ? replacement : variable;
+            List<SpreadsheetColumn> current = panel.getColumns();
+            for (int i = target; i < current.size(); i++) {
+                if (current.get(i).getVariable() == column) {
+                    panel.shuffleColumn(i, target);
+                    target++;
+                    break;
+                }
+            }
+        }
+    }
+}
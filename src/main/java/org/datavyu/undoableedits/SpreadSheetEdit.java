@@ -135,6 +135,8 @@ public abstract class SpreadSheetEdit extends AbstractUndoableEdit {
             msg = ((RemoveVariableEdit) this).getPresentationName();
         } else if (this instanceof RunScriptEdit) {
             msg = ((RunScriptEdit) this).getPresentationName();
+        } else if (this instanceof ScriptChangesEdit) {
+            msg = ((ScriptChangesEdit) this).getPresentationName();
         } else if (this instanceof VocabEditorEdit) {
             msg = ((VocabEditorEdit) this).getPresentationName();
         } else {
@@ -117,6 +117,21 @@ public final class ConfigProperties implements Serializable {
     /** True if is the user acknowledge sharing data */
     private boolean shareData;
 
+    /** True if saving a project appends the changes to a journal next to it instead of writing it in full */
+    private boolean journalSaves;
+
+    /** True if project archives also hold the CSV copy of the data store that older versions of Datavyu read */
+    private boolean legacySaves;
+
+    /** True if scripts run on a copy of the spreadsheet, whose changes are applied to it when they finish */
+    private boolean scriptsOnCopy;
+
+    /** Default compression level of project archives, the default level of deflate */
+    private static final int DEFAULT_SAVE_COMPRESSION_LEVEL = -1;
+
+    /** Compression level of project archives: 0 stores the entries, 1 to 9 trades speed for size */
+    private int saveCompressionLevel = DEFAULT_SAVE_COMPRESSION_LEVEL;
+
     /** Default on use of pre release */
     private static final boolean USE_PRE_RELEASE = false;
 
@@ -626,6 +641,68 @@ public final class ConfigProperties implements Serializable {
         shareData = share;
     }
 
+    /**
+     * @return True if saving a project appends the changes to a journal next to it instead of writing it in full.
+     */
+    public boolean getJournalSaves() {
+        return journalSaves;
+    }
+
+    /**
+     * @param journalSaves True if saving a project appends the changes to a journal next to it instead of writing
+     *                     it in full.
+     */
+    public void setJournalSaves(final boolean journalSaves) {
+        this.journalSaves = journalSaves;
+    }
+
+    /**
+     * @return True if project archives also hold the CSV "db" entry that older versions of Datavyu read; false if they
+     * hold the data store in the binary format only. Writing the CSV entry loads every variable that has not been
+     * loaded yet, on every save.
+     */
+    public boolean getLegacySaves() {
+        return legacySaves;
+    }
+
+    /**
+     * @param legacySaves True if project archives also hold the CSV "db" entry that older versions of Datavyu read.
+     */
+    public void setLegacySaves(final boolean legacySaves) {
+        this.legacySaves = legacySaves;
+    }
+
+    /**
+     * @return True if scripts run on a copy of the spreadsheet, whose changes are applied to it in one go when they
+     * finish, or not at all when they fail.
+     */
+    public boolean getScriptsOnCopy() {
+        return scriptsOnCopy;
+    }
+
+    /**
+     * @param scriptsOnCopy True if scripts run on a copy of the spreadsheet, whose changes are applied to it in one go
+     *                      when they finish, or not at all when they fail.
+     */
+    public void setScriptsOnCopy(final boolean scriptsOnCopy) {
+        this.scriptsOnCopy = scriptsOnCopy;
+    }
+
+    /**
+     * @return The compression level of project archives: 0 stores the entries uncompressed, which is the fastest for
+     * saves to a local disk, 1 to 9 trades speed for size and -1 is the default level of deflate.
+     */
+    public int getSaveCompressionLevel() {
+        return saveCompressionLevel;
+    }
+
+    /**
+     * @param saveCompressionLevel The compression level of project archives, from -1 to 9.
+     */
+    public void setSaveCompressionLevel(final int saveCompressionLevel) {
+        this.saveCompressionLevel = Math.max(DEFAULT_SAVE_COMPRESSION_LEVEL, Math.min(saveCompressionLevel, 9));
+    }
+
     /**
      * Get the user pre-release.
      *
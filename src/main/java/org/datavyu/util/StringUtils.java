@@ -14,8 +14,12 @@
  */
 package org.datavyu.util;
 
+import java.io.IOException;
+
 public final class StringUtils {
 
+    private static final String CSV_ARGUMENT_ESCAPES = "\\()\n\r-,|";
+
     /**
      * @param input The string to escape ',' '\' '-' and newline characters.
      * @return A copy of the input string - but with ',' '\' '-' and newline
@@ -26,7 +30,33 @@ public final class StringUtils {
     }
 
     public static String escapeCSVArgument(final String input) {
-        return escapeString(input, "\\()\n\r-,|");
+        return escapeString(input, CSV_ARGUMENT_ESCAPES);
+    }
+
+    /**
+     * Writes the input escaped as by escapeCSVArgument, without building the escaped string.
+     *
+     * @param out   The output to write to.
+     * @param input The string to escape.
+     * @throws IOException If the output can not be written.
+     */
+    public static void appendEscapedCSVArgument(final Appendable out, final String input) throws IOException {
+        int start = 0;
+        for (int n = 0; n < input.length(); n++) {
+            char c = input.charAt(n);
+            boolean escape = CSV_ARGUMENT_ESCAPES.indexOf(c) != -1;
+            if (escape || c <= '\u0001') {
+                out.append(input, start, n);
+                if (escape) {
+                    out.append('\\');
+                    start = n;
+                } else {
+                    // Control characters are dropped.
+                    start = n + 1;
+                }
+            }
+        }
+        out.append(input, start, input.length());
     }
 
     private static String escapeString(final String input, final String charsToEscape) {
@@ -12,7 +12,8 @@ import java.util.Date;
 public class DataviewProgressBar extends JDialog {
 
     private boolean isError;
-    private boolean isCanceled;
+    /** Set on the event dispatch thread when cancel is pressed, read by the worker reporting progress. */
+    private volatile boolean isCanceled;
     private int progress;
     private long startTime; // in milliseconds
     private JButton cancelButton;
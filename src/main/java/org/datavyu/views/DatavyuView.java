@@ -155,6 +155,9 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
     private javax.swing.JMenuItem runScriptMenuItem;
     private javax.swing.JMenuItem setFavouritesMenuItem;
     private javax.swing.JMenuItem saveAsMenuItem;
+    private javax.swing.JMenuItem compactProjectMenuItem;
+    private javax.swing.JCheckBoxMenuItem journalSavesMenuItem;
+    private javax.swing.JCheckBoxMenuItem legacySavesMenuItem;
     private javax.swing.JMenuItem exportMenuItem;
     private javax.swing.JMenuItem exportByFrameMenuItem;
     private javax.swing.JMenuItem saveMenuItem;
@@ -739,26 +742,18 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
             String path = FilenameUtils.getFullPath(tempFile.getPath());
             tempFile.delete();
             File folder = new File(path);
-            File[] listOfFiles = folder.listFiles();
-            if (listOfFiles != null) {
-                for (File f : listOfFiles) {
-                    // the last time datavyu crashed
-                    if ((f.isFile()) &&
-                            ((FilenameUtils.wildcardMatchOnSystem(f.getName(), "~*.opf")) ||
-                                    (FilenameUtils.wildcardMatchOnSystem(f.getName(), "~*.csv")))) {
-
-                        // Show the Dialog
-                        if (JOptionPane.showConfirmDialog(null,
-                                "Datavyu has detected an unsaved file. Would you like recover this file ?",
-                                "Datavyu",
-                                JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
-                            openRecoveredFile(f);
-                            this.saveAs();
-                        }
-                        // delete the recovered file
-                        f.delete();
-                    }
+            for (File f : AutoSaveController.findAutosaves(folder)) {
+                // the last time datavyu crashed
+                // Show the Dialog
+                if (JOptionPane.showConfirmDialog(null,
+                        "Datavyu has detected an unsaved file. Would you like recover this file ?",
+                        "Datavyu",
+                        JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                    openRecoveredFile(f);
+                    this.saveAs();
                 }
+                // delete the recovered file along with its older copies
+                AutoSaveController.deleteAutosaves(f);
             }
         } catch (IOException e) {
             logger.error("Auto save failed. Error: ", e);
@@ -890,6 +885,33 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
         }
     }
 
+    /**
+     * Action for writing the current project file in full, folding the journal of its earlier saves into it.
+     */
+    @Action
+    public void compactProject() {
+        ProjectController projectController = Datavyu.getProjectController();
+        if (projectController.isNewProject() || (projectController.getProjectName() == null)
+                || !(projectController.getLastSaveOption() instanceof OpfFilter)) {
+            save();
+            return;
+        }
+
+        try {
+            projectController.updateProject();
+            new SaveController().compactProject(
+                    new File(projectController.getProjectDirectory(), projectController.getProjectName() + ".opf"),
+                    projectController.getProject(),
+                    projectController.getDataStore()
+            );
+            projectController.markProjectAsUnchanged();
+            projectController.getDataStore().markAsUnchanged();
+        } catch (UserWarningException e) {
+            logger.error("Compact failed. Error: ", e);
+            Datavyu.getApplication().showWarningDialog(e);
+        }
+    }
+
     /**
      * Action for saving the current project as a particular file.
      */
@@ -956,6 +978,7 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
         DatavyuFileChooser fileChooser = new DatavyuFileChooser();
 
         fileChooser.addChoosableFileFilter(JSONFilter.INSTANCE);
+        fileChooser.addChoosableFileFilter(CompactJSONFilter.INSTANCE);
         fileChooser.setFileFilter(JSONFilter.INSTANCE);
 
         int result = fileChooser.showSaveDialog(getComponent());
@@ -985,7 +1008,8 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
             }
             File file = new File(fc.getSelectedFile().getParent(), dbFileName);
 
-            exportJSON.exportAsJSON(dbFileName, projectController.getDataStore());
+            exportJSON.exportAsJSON(dbFileName, projectController.getDataStore(),
+                    fc.getFileFilter() == CompactJSONFilter.INSTANCE);
         } catch (Exception e) {
             logger.error("Failed export to JSON. Error: ", e);
         }
@@ -1027,7 +1051,14 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
 
             File file = fc.getSelectedFile();
 
-            importJSON.importJSONToSpreadsheet(file, getSpreadsheetPanel());
+            // Show the imported columns once, rather than laying out the spreadsheet for every cell.
+            DataStore dataStore = getSpreadsheetPanel().getDataStore();
+            dataStore.beginBatch();
+            try {
+                importJSON.importJSONToSpreadsheet(file, getSpreadsheetPanel());
+            } finally {
+                dataStore.commitBatch();
+            }
         } catch (UserWarningException e) {
             logger.error("Failed export to JSON. Error: ", e);
             Datavyu.getApplication().showWarningDialog(e);
@@ -1119,7 +1150,32 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
                 return;
             }
 
-            exportC.exportByFrame(dbFileName, projController.getDataStore());
+            final double frameRate = exportC.askFrameRate();
+            if (frameRate <= 0) {
+                return;
+            }
+
+            // Export in the background; the progress bar can cancel it.
+            final String outFile = dbFileName;
+            final DataviewProgressBar exportProgress = new DataviewProgressBar(this.getFrame(), false);
+            exportProgress.setVisible(true);
+            new SwingWorker<Boolean, Void>() {
+                @Override
+                protected Boolean doInBackground() throws Exception {
+                    return exportC.exportByFrame(outFile, projController.getDataStore(), frameRate,
+                            exportProgress::setProgress);
+                }
+
+                @Override
+                protected void done() {
+                    exportProgress.close();
+                    try {
+                        get();
+                    } catch (Exception e) {
+                        logger.error("Export to CSV by frame failed. Error: ", e);
+                    }
+                }
+            }.execute();
 
         } catch (Exception e) {
             logger.error("Export to CSV by frame failed. Error: ", e);
@@ -1686,10 +1742,12 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
     public void runScript() {
         try {
             RunScriptController scriptC = new RunScriptController(Datavyu.getView().getFrame());
-            // record the effect
-            UndoableEdit edit = new RunScriptEdit(scriptC.getScriptFilePath());
-            // notify the listeners
-            Datavyu.getView().getUndoSupport().postEdit(edit);
+            // record the effect, unless the script records its changes itself
+            if (!scriptC.isRunningOnCopy()) {
+                UndoableEdit edit = new RunScriptEdit(scriptC.getScriptFilePath());
+                // notify the listeners
+                Datavyu.getView().getUndoSupport().postEdit(edit);
+            }
             scriptC.execute();
         } catch (IOException e) {
             logger.error("Unable run script", e);
@@ -1700,10 +1758,12 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
         logger.info("Running script: " + scriptFile.getAbsolutePath());
         try {
             RunScriptController scriptC = new RunScriptController(scriptFile);
-            // record the effect
-            UndoableEdit edit = new RunScriptEdit(scriptC.getScriptFilePath());
-            // notify the listeners
-            Datavyu.getView().getUndoSupport().postEdit(edit);
+            // record the effect, unless the script records its changes itself
+            if (!scriptC.isRunningOnCopy()) {
+                UndoableEdit edit = new RunScriptEdit(scriptC.getScriptFilePath());
+                // notify the listeners
+                Datavyu.getView().getUndoSupport().postEdit(edit);
+            }
             scriptC.execute();
         } catch (IOException e) {
             logger.error("Unable run script", e);
@@ -1980,6 +2040,9 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
         jSeparator7 = new javax.swing.JSeparator();
         saveMenuItem = new javax.swing.JMenuItem();
         saveAsMenuItem = new javax.swing.JMenuItem();
+        compactProjectMenuItem = new javax.swing.JMenuItem();
+        journalSavesMenuItem = new javax.swing.JCheckBoxMenuItem();
+        legacySavesMenuItem = new javax.swing.JCheckBoxMenuItem();
         exportMenuItem = new javax.swing.JMenuItem();
         exportByFrameMenuItem = new javax.swing.JMenuItem();
         javax.swing.JSeparator fileMenuSeparator = new javax.swing.JSeparator();
@@ -2114,6 +2177,28 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
         saveAsMenuItem.setName("saveAsMenuItem");
         fileMenu.add(saveAsMenuItem);
 
+        compactProjectMenuItem.setAction(actionMap.get("compactProject"));
+        compactProjectMenuItem.setName("compactProjectMenuItem");
+        fileMenu.add(compactProjectMenuItem);
+
+        journalSavesMenuItem.setName("journalSavesMenuItem");
+        journalSavesMenuItem.setSelected(ConfigProperties.getInstance().getJournalSaves());
+        journalSavesMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                journalSavesMenuItemActionPerformed(evt);
+            }
+        });
+        fileMenu.add(journalSavesMenuItem);
+
+        legacySavesMenuItem.setName("legacySavesMenuItem");
+        legacySavesMenuItem.setSelected(ConfigProperties.getInstance().getLegacySaves());
+        legacySavesMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                legacySavesMenuItemActionPerformed(evt);
+            }
+        });
+        fileMenu.add(legacySavesMenuItem);
+
         exportMenuItem.setAction(actionMap.get("exportFile"));
         exportMenuItem.setName("exportMenuItem");
         fileMenu.add(exportMenuItem);
@@ -2496,6 +2581,26 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
         setSheetLayout();
     }
 
+    /**
+     * The action to invoke when the user selects 'journal saves'.
+     *
+     * @param evt The event that fired this action.
+     */
+    private void journalSavesMenuItemActionPerformed(final java.awt.event.ActionEvent evt) {
+        ConfigProperties.getInstance().setJournalSaves(journalSavesMenuItem.isSelected());
+        ConfigProperties.save();
+    }
+
+    /**
+     * The action to invoke when the user selects 'saves for older versions'.
+     *
+     * @param evt The event that fired this action.
+     */
+    private void legacySavesMenuItemActionPerformed(final java.awt.event.ActionEvent evt) {
+        ConfigProperties.getInstance().setLegacySaves(legacySavesMenuItem.isSelected());
+        ConfigProperties.save();
+    }
+
     /**
      * The action to invoke when the user selects 'recent scripts' from the
      * scripting menu.
@@ -2778,12 +2883,14 @@ public final class DatavyuView extends FrameView implements FileDropEventListene
     private void runRecentScript(final ActionEvent evt) {
 
         try {
-            // record the effect
-            UndoableEdit edit = new RunScriptEdit(evt.getActionCommand());
             RunScriptController scriptC = new RunScriptController(evt.getActionCommand());
 
-            // notify the listeners
-            Datavyu.getView().getUndoSupport().postEdit(edit);
+            // record the effect, unless the script records its changes itself
+            if (!scriptC.isRunningOnCopy()) {
+                UndoableEdit edit = new RunScriptEdit(evt.getActionCommand());
+                // notify the listeners
+                Datavyu.getView().getUndoSupport().postEdit(edit);
+            }
             scriptC.execute();
         } catch (IOException e) {
             logger.error("Unable to run recent script", e);
@@ -47,6 +47,15 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
      * The model that this variable represents.
      */
     private Variable model;
+    /**
+     * The datastore holding the model.
+     */
+    private DataStore dataStore;
+    /**
+     * True once the SpreadsheetCells have been built; the cells of a hidden
+     * variable are only built when it is shown, so they need not be loaded.
+     */
+    private boolean cellsBuilt;
     /**
      * The cell selection listener used for cells in this column.
      */
@@ -90,6 +99,7 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
         viewMap = new HashMap<>();
         cellSelectionL = cellSelL;
         model = variable;
+        dataStore = db;
 
         setLayout(null);
         setBorder(BorderFactory.createMatteBorder(0, 0, 0, Constants.BORDER_SIZE,
@@ -105,7 +115,18 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
         this.add(padding);
 
         // Populate the data column with spreadsheet cells.
-        buildDataPanelCells(db, variable, cellSelL);
+        if (!variable.isHidden()) {
+            buildDataPanelCells(db, variable, cellSelL);
+        }
+    }
+
+    /**
+     * Builds the SpreadsheetCells of a column that was hidden until now.
+     */
+    public void buildCells() {
+        if (!cellsBuilt) {
+            buildDataPanelCells(dataStore, model, cellSelectionL);
+        }
     }
 
     /**
@@ -114,14 +135,21 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
      */
     public void registerListeners() {
         KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(this);
+        for (Map.Entry<Cell, SpreadsheetCell> entry : viewMap.entrySet()) {
+            entry.getKey().addListener(entry.getValue());
+        }
     }
 
     /**
      * Deregisters this column data panel with everything that is currently
-     * notifying this class of events.
+     * notifying this class of events. The cells stop holding on to their
+     * SpreadsheetCells, so the panel can be collected once it is discarded.
      */
     public void deregisterListeners() {
         KeyboardFocusManager.getCurrentKeyboardFocusManager().removeKeyEventDispatcher(this);
+        for (Map.Entry<Cell, SpreadsheetCell> entry : viewMap.entrySet()) {
+            entry.getKey().removeListener(entry.getValue());
+        }
     }
 
     /**
@@ -134,6 +162,7 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
      */
     private void buildDataPanelCells(final DataStore db, final Variable variable,
                                      final CellSelectionListener cellSelL) {
+        cellsBuilt = true;
 
         // traverse and build the cells
         for (Cell cell : variable.getCellsTemporally()) {
@@ -175,6 +204,9 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
      */
     public void deleteCell(final Cell cell) {
         SpreadsheetCell sCell = viewMap.get(cell);
+        if (sCell == null) {
+            return;
+        }
         cell.removeListener(sCell);
         this.remove(sCell);
         cells.remove(sCell);
@@ -191,6 +223,49 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
      *                 selection.
      */
     public void insertCell(final DataStore ds, final Cell cell, final CellSelectionListener cellSelL) {
+        if (!cellsBuilt) {
+            return;
+        }
+        SpreadsheetCell nCell = addCell(ds, cell, cellSelL);
+        if (nCell != null) {
+            nCell.requestFocus();
+        }
+    }
+
+    /**
+     * Insert new SpreadsheetCells for a batch of cells. Unlike insertCell none
+     * of them is given the focus, so the spreadsheet is laid out only once
+     * after the whole batch has been added.
+     *
+     * @param ds       The database holding the cells.
+     * @param newCells The cells to create and insert into this column data panel.
+     * @param cellSelL SpreadsheetCellSelectionListener to notify of changes in
+     *                 selection.
+     */
+    public void insertCells(final DataStore ds, final Collection<Cell> newCells,
+                            final CellSelectionListener cellSelL) {
+        if (!cellsBuilt) {
+            return;
+        }
+        for (Cell cell : newCells) {
+            addCell(ds, cell, cellSelL);
+        }
+    }
+
+    /**
+     * Creates and adds the SpreadsheetCell for a cell, unless it is already
+     * shown in this column data panel.
+     *
+     * @param ds       The database holding the cell.
+     * @param cell     The cell to create and insert into this column data panel.
+     * @param cellSelL SpreadsheetCellSelectionListener to notify of changes in
+     *                 selection.
+     * @return The new SpreadsheetCell, null if the cell was already shown.
+     */
+    private SpreadsheetCell addCell(final DataStore ds, final Cell cell, final CellSelectionListener cellSelL) {
+        if (viewMap.containsKey(cell)) {
+            return null;
+        }
 
         SpreadsheetCell nCell = new SpreadsheetCell(ds, cell, cellSelL);
         nCell.setWidth(this.getWidth());
@@ -201,7 +276,7 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
         this.add(nCell);
         this.cells.add(nCell);
         viewMap.put(cell, nCell);
-        nCell.requestFocus();
+        return nCell;
     }
 
     /**
@@ -240,11 +315,22 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
         return viewMap.get(model.getCellTemporally(index));
     }
 
+    /**
+     * @param cell The cell to look up.
+     * @return The SpreadsheetCell displaying the supplied cell, null if the cell is not displayed in this column.
+     */
+    public SpreadsheetCell getSpreadsheetCell(final Cell cell) {
+        return viewMap.get(cell);
+    }
+
     /**
      * @return The SpreadsheetCells in this column temporally.
      */
     public List<SpreadsheetCell> getCellsTemporally() {
         ArrayList<SpreadsheetCell> result = new ArrayList<>();
+        if (!cellsBuilt) {
+            return result;
+        }
 
         int ord = 1;
         for (Cell c : model.getCellsTemporally()) {
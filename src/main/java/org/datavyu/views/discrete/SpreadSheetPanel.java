@@ -377,6 +377,7 @@ public final class SpreadSheetPanel extends JPanel implements DataStoreListener,
     private void removeColumn(final Variable var) {
         for (SpreadsheetColumn col : columns) {
             if (col.getVariable().equals(var)) {
+                col.deregisterListeners();
                 mainView.removeColumn(col);
                 headerView.remove(col);
                 columns.remove(col);
@@ -474,6 +475,13 @@ public final class SpreadSheetPanel extends JPanel implements DataStoreListener,
         // Do nothing.
     }
 
+    @Override
+    public void batchCommitted(final List<VariableChanges> changes) {
+        // The columns have added and removed their cells without laying out, do it once for the whole batch.
+        revalidate();
+        repaint();
+    }
+
     /**
      * Dispatches the key event to the desired components.
      *
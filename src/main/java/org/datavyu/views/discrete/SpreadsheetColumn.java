@@ -479,37 +479,37 @@ public final class SpreadsheetColumn extends JLabel implements VariableListener,
 
     private void focusNextCell() {
         long time = Datavyu.getVideoController().getCurrentTime();
-        List<SpreadsheetCell> tempCells = getCellsTemporally();
-        for(int i = 0; i < tempCells.size(); i++) {
-            SpreadsheetCell c = tempCells.get(i);
-            if(c.getCell().isInTimeWindow(time)) {
-                if(!c.isFocusOwner()) {
-                    if(c.getCell().getCellValue() instanceof MatrixCellValue) {
-                        int firstEmpty = -1;
-                        List<CellValue> args = ((MatrixCellValue) c.getCell().getCellValue()).getArguments();
-                        for(int j = 0; j < args.size(); j++) {
-                            if(args.get(j).isEmpty()) {
-                                firstEmpty = j;
-                                break;
-                            }
-                        }
-                        if(firstEmpty > -1) {
-                            c.requestFocus();
-                            c.getDataView().getEdTracker().setEditor(c.getDataView().getEdTracker().getEditorAtArgIndex(firstEmpty));
-                        } else {
-                            c.requestFocus();
+        for (Cell cell : variable.getCellsAt(time)) {
+            if (!cell.isInTimeWindow(time)) {
+                continue;
+            }
+            SpreadsheetCell c = datapanel.getSpreadsheetCell(cell);
+            if (c == null) {
+                break;
+            }
+            if(!c.isFocusOwner()) {
+                if(cell.getCellValue() instanceof MatrixCellValue) {
+                    int firstEmpty = -1;
+                    List<CellValue> args = ((MatrixCellValue) cell.getCellValue()).getArguments();
+                    for(int j = 0; j < args.size(); j++) {
+                        if(args.get(j).isEmpty()) {
+                            firstEmpty = j;
+                            break;
                         }
+                    }
+                    if(firstEmpty > -1) {
+                        c.requestFocus();
+                        c.getDataView().getEdTracker().setEditor(c.getDataView().getEdTracker().getEditorAtArgIndex(firstEmpty));
                     } else {
-                        if(c.getCell().getCellValue().isEmpty()) {
-                            c.requestFocus();
-                        }
+                        c.requestFocus();
+                    }
+                } else {
+                    if(cell.getCellValue().isEmpty()) {
+                        c.requestFocus();
                     }
                 }
-                if(c.getCell().getOnset() > time) {
-                    break;
-                }
-                break;
             }
+            break;
         }
     }
 
@@ -567,6 +567,9 @@ public final class SpreadsheetColumn extends JLabel implements VariableListener,
 
     @Override
     public void visibilityChanged(final boolean isHidden) {
+        if (!isHidden) {
+            datapanel.buildCells();
+        }
         setVisible(!isHidden);
         this.datapanel.setVisible(!isHidden);
         this.setSelected(false);
@@ -589,6 +592,15 @@ public final class SpreadsheetColumn extends JLabel implements VariableListener,
         }
     }
 
+    @Override
+    public void cellsChanged(final VariableChanges changes) {
+        // Leave the focus alone and let the spreadsheet lay out the whole batch at once.
+        for (Cell cell : changes.getRemovedCells()) {
+            datapanel.deleteCell(cell);
+        }
+        datapanel.insertCells(dataStore, changes.getInsertedCells(), cellSelList);
+    }
+
     // *************************************************************************
     // MouseListener Overrides
     // *************************************************************************
@@ -40,6 +40,8 @@ import 'org.datavyu.models.db.CellValue'
 import 'org.datavyu.models.db.Variable'
 import 'org.datavyu.models.db.Cell'
 import 'org.datavyu.models.db.Argument'
+import 'org.datavyu.models.db.ColumnData'
+import 'org.datavyu.models.db.ColumnAnalytics'
 import 'org.datavyu.models.project.Project'
 import 'org.datavyu.controllers.SaveController'
 import 'org.datavyu.controllers.OpenController'
@@ -390,6 +392,31 @@ class RColumn
     end
   end
 
+  # @note This function is not for general use.
+  # Creates the cell objects from a ColumnData, which get_column fetches from the database in one call.
+  # @param data (required): ColumnData of the variable, cells in temporal order
+  # @param arglist (required): Array of the names of the arguments from the database
+  def set_column_data(data, arglist)
+    @cells = Array.new
+    @arglist = arglist.map{ |arg| RColumn.sanitize_codename(arg) }
+    # Each array crosses over from Java in one call.
+    db_cells = data.getCells.to_a
+    onsets = data.getOnsets.to_a
+    offsets = data.getOffsets.to_a
+    values = data.getValues.to_a
+    arity = data.getArity
+    db_cells.each_with_index do |cell, i|
+      c = RCell.new
+      c.onset = onsets[i]
+      c.offset = offsets[i]
+      c.db_cell = cell
+      c.parent = @name
+      c.set_args(values[i * arity, arity], @arglist)
+      c.ordinal = i + 1
+      @cells << c
+    end
+  end
+
   # Creates a new, blank cell at the end of this variable's cell array.
   # If a template cell is provided, copies over onset and offset times and code values for any matching code names.
   # @param cell [RCell] template cell
@@ -512,38 +539,27 @@ class RColumn
       opts[:stop_time] = @cells.map(&:offset).max
     end
 
+    # Find the source cell of every new cell in one sweep over the cells, in Java.
+    winners = ColumnAnalytics.resample(@cells.map(&:onset).to_java(:long), @cells.map(&:offset).to_java(:long),
+                                       opts[:start_time], opts[:stop_time], step).to_a
+
     # Construct new column
     ncol = new_column(opts[:column_name], self.arglist)
     # Construct new cells spanning range.
-    ( (opts[:start_time])..(opts[:stop_time]) ).step(step) do |time|
+    time = opts[:start_time]
+    winners.each do |index|
       ncell = ncol.new_cell
       ncell.onset = time
       ncell.offset = time + step - 1
+      time += step
 
-      # Find overlapping cells from self in this time region
-      overlap_cells = self.cells.select{ |x| x.overlaps_cell(ncell) }
-      # if overlap_cells.empty?
-      #   puts "no source cell for time #{time}"
-      #   next
-      # end
-      next if overlap_cells.empty? # no source cell
-
-      # Map each to their intersecting region and find the one with the largest duration.
-      sorted_by_intersection =  overlap_cells.sort do |x, y|
-        r1 = x.overlapping_region(ncell)
-        d1 = r1.last - r1.first
-
-        r2 = y.overlapping_region(ncell)
-        d2 = r2.last - r2.first
-
-        d2 <=> d1 # largest first
-      end
-      winner = sorted_by_intersection.first
+      next if index < 0 # no source cell
 
+      # The cell with the largest intersection with the new cell.
+      winner = @cells[index]
       ncell.arglist.each do |code|
         ncell.change_code(code, winner.get_code(code))
       end
-      # p ncol.cells.size
     end
     return ncol
   end
@@ -669,52 +685,40 @@ def compute_kappa(pri_col, rel_col, *codes)
 
   raise "Invalid parameters for getKappa()" unless (pri_col.class==RColumn && rel_col.class==RColumn)
 
-  # Get the list of observed values in each cell, per code
-  cells = pri_col.cells + rel_col.cells
-
-  # Build a hashmap from the list of codes to all observed values for that code
-  # across primary and reliability cells.
-  observed_values = Hash.new{ |h, k| h[k] = [] }
-  cells.each do |cell|
-    codes.each do |code|
-      observed_values[code] << cell.get_code(code)
-    end
-  end
-
-  # Take the unique values for each code.
-  # Filter out codes that do not have minimum number of required values to compute kappa.
-  observed_values.delete_if do |c, vs|
-    vs.uniq!
-    if vs.size < 2
-      puts "Cannot compute score for #{c} (less than 2 values observed): #{v.join(',')}"
-      true
-    else
-      false
-    end
-  end
-
-  # Init contingency tables for each code name
+  # Tables of the values of every code, with each reliability cell paired with the primary cell of the same onset.
+  # A reliability cell without one is an error.
+  pri_onsets = pri_col.cells.map(&:onset).to_java(:long)
+  rel_onsets = rel_col.cells.map(&:onset).to_java(:long)
   tables = Hash.new
-  observed_values.each_pair do |codename, codevalues|
-    tables[codename] = CTable.new(*codevalues)
-  end
-
-  # Get the pairs of corresponding primary and reliability cells
-  cellPairs = Hash.new
-  rel_col.cells.each do |relcell|
-    cellPairs[relcell] = pri_col.cells.find{ |pricell| pricell.onset == relcell.onset} # match by onset times
-  end
-
-  cellPairs.each_pair do |pricell, relcell|
-    tables.keys.each do |x|
-      tables[x].add(pricell.get_code(x), relcell.get_code(x))
-    end
-  end
-
-
   kappas = Hash.new
-  tables.each_pair do |codename, ctable|
-    kappas[codename] = ctable.kappa
+  codes.uniq.each do |code|
+    agreement = ColumnAnalytics.agreement(pri_onsets, pri_col.cells.map{ |cell| cell.get_code(code) }.to_java,
+                                          rel_onsets, rel_col.cells.map{ |cell| cell.get_code(code) }.to_java)
+
+    # Filter out codes that do not have minimum number of required values to compute kappa.
+    values = agreement.getValues.to_a
+    if values.size < 2
+      puts "Cannot compute score for #{code} (less than 2 values observed): #{values.join(',')}"
+      next
+    end
+
+    unmatched = agreement.getUnmatched.to_a
+    unless unmatched.empty?
+      cell = rel_col.cells[unmatched.first]
+      raise "No cell in #{pri_col.name} with the onset of cell #{cell.ordinal} (#{cell.onset}) in #{rel_col.name}; " +
+            "#{unmatched.size} reliability cells have no primary cell"
+    end
+
+    # The counts have the primary values by row; the tables have always had the reliability values by row.
+    table = CTable.new(*values)
+    counts = agreement.getCounts
+    values.each_index do |i|
+      values.each_index do |j|
+        table.table[j, i] = counts[i][j]
+      end
+    end
+    tables[code] = table
+    kappas[code] = table.kappa
   end
 
   return kappas, tables
@@ -735,30 +739,18 @@ def get_column(name)
     return nil
   end
 
-  # Convert each cell into an array and store in an array of arrays
-  cells = var.getCells()
-  arg_names = Array.new
+  # Fetch the onsets, offsets and code values of all cells at once
+  data = ColumnData.of(var)
 
   # Now get the arguments for each of the cells
-
-  # For matrix vars only
   type = var.getRootNode.type
-  if type == Argument::Type::MATRIX
-    # Matrix var
-    arg_names = Array.new
-    for arg in var.getRootNode.childArguments
-      arg_names << arg.name
-    end
-  else
-    # Nominal or text
-    arg_names = ["var"]
-  end
+  arg_names = get_code_names(var)
 
   v = RColumn.new
   v.name = name
   v.old_args = arg_names
   v.type = type
-  v.set_cells(cells, arg_names)
+  v.set_column_data(data, arg_names)
   v.sort_cells
   v.dirty = false
   v.db_var = var
@@ -769,6 +761,53 @@ alias :getVariable :get_column
 alias :getColumn :get_column
 
 
+# @!visibility private
+# @param var Java variable from the data store
+# @return [Array<String>] names of the codes of the variable; ["var"] for nominal and text variables
+def get_code_names(var)
+  if var.getRootNode.type == Argument::Type::MATRIX
+    var.getRootNode.childArguments.map{ |arg| arg.name }
+  else
+    ["var"]
+  end
+end
+private :get_code_names
+
+# Fetch the cells of a spreadsheet column that overlap the given time range.
+# Uses the column's temporal index, so only the matching cells are converted.
+# @param name [String] the name of the column in the spreadsheet
+# @param range [Range] time range in milliseconds (inclusive)
+# @return [Array<RCell>] cells overlapping the range, in temporal order; nil if the column does not exist
+# @note A cell without an offset (offset before onset) only covers its onset.
+# @example
+#       first_minute = get_cells_in_range("trial", 0..60000)
+def get_cells_in_range(name, range)
+  var = $db.getVariable(name)
+  if (var == nil)
+    printNoColumnFoundWarning(name.to_s)
+    return nil
+  end
+
+  last = range.exclude_end? ? range.last - 1 : range.last
+  col = RColumn.new
+  col.name = name
+  col.set_cells(var.getCellsInRange(range.first, last), get_code_names(var))
+  col.cells.each{ |c| c.ordinal = var.getTemporalIndex(c.db_cell) + 1 }
+  return col.cells
+end
+alias :getCellsInRange :get_cells_in_range
+
+# Fetch the cells of a spreadsheet column that span the given time.
+# @param name [String] the name of the column in the spreadsheet
+# @param time [Integer] time in milliseconds
+# @return [Array<RCell>] cells spanning the time, in temporal order; nil if the column does not exist
+# @example
+#       current = get_cells_at_time("trial", 1500)
+def get_cells_at_time(name, time)
+  get_cells_in_range(name, time..time)
+end
+alias :getCellsAtTime :get_cells_at_time
+
 # Translate a Ruby column object into a Datavyu column and saves it to the spreadsheet.
 # If two parameters are specified, the first parameter is the name under which the column will be saved.
 # @note This function will overwrite existing spreadsheet columns with the same name as specified column / name.
@@ -785,7 +824,6 @@ alias :getColumn :get_column
 #         ... Do some modification to trial ...
 #       set_column(trial)
 def set_column(*args, sanitize_codes: true)
-
   if args.length == 1
     var = args[0]
     name = var.name
@@ -875,48 +913,38 @@ def set_column(*args, sanitize_codes: true)
 
   end
 
-  # Create new cells and fill them in for each cell in the variable
-  for cell in var.cells
-    # Copy the information from the ruby variable to the new cell
-
-    if cell.db_cell == nil or cell.parent != name
-      cell.db_cell = var.db_var.createCell()
+  # Create new cells and fill them in for each cell in the variable.
+  # The cells go over to Java as arrays and are written in one call, which only changes what differs:
+  # a cell without a database cell, or from another column, becomes a new cell; onsets, offsets and
+  # code values that differ are set; an empty code value leaves a matrix cell's value alone.
+  root = var.db_var.getRootNode
+  codes = if root.type == Argument::Type::MATRIX
+    # The Ruby code of each of the database's codes, nil for a code the Ruby column does not have
+    root.childArguments.map do |dbarg|
+      var.old_args.include?(dbarg.name) ? var.convert_argname(dbarg.name) : nil
     end
-
-    value = cell.db_cell.getCellValue()
-
-    if cell.onset != cell.db_cell.getOnset
-      cell.db_cell.setOnset(cell.onset)
-    end
-
-    if cell.offset != cell.db_cell.getOffset
-      cell.db_cell.setOffset(cell.offset)
-    end
-
-    # Matrix cell
-    if cell.db_cell.getVariable.getRootNode.type == Argument::Type::MATRIX
-      values = cell.db_cell.getCellValue().getArguments()
-      for arg in var.old_args
-        # Find the arg in the dataStore's arglist that we are looking for
-        for i in 0...values.size
-          dbarg = values[i]
-          dbarg_name = dbarg.getArgument.name
-          if dbarg_name == arg and not ["", nil].include?(cell.get_arg(var.convert_argname(arg)))
-            dbarg.set(cell.get_arg(var.convert_argname(arg)))
-            break
-          end
-        end
-      end
-
-      # Non-matrix cell
-    else
-      value = cell.db_cell.getCellValue()
-      value.set(cell.get_arg("var"))
-    end
-
-    # Save the changes back to the DB
-
-  end
+  else
+    ["var"]
+  end
+  slots = codes.map{ |code| code.nil? ? nil : var.arglist.index(code) }
+  sources = var.cells.map{ |cell| cell.parent == name ? cell.db_cell : nil }
+  onsets = var.cells.map{ |cell| cell.onset.to_i }
+  offsets = var.cells.map{ |cell| cell.offset.to_i }
+  values = var.cells.flat_map do |cell|
+    # Cells taken from another column have codes of their own
+    cell_slots = cell.arglist.equal?(var.arglist) ? slots : codes.map{ |code| code.nil? ? nil : cell.arglist.index(code) }
+    cell_slots.map do |k|
+      val = k.nil? ? nil : cell.argvals[k]
+      val.nil? ? nil : val.to_s
+    end
+  end
+  data = ColumnData.new(sources.to_java(Cell), onsets.to_java(:long), offsets.to_java(:long),
+                        values.to_java(:string), codes.length)
+
+  # Save the changes back to the DB; applyTo writes them in one short batch of its own, so the spreadsheet
+  # picks them up in one go and is only kept from reading while the cells change, not while this script runs.
+  db_cells = data.applyTo(var.db_var).to_a
+  var.cells.each_with_index{ |cell, i| cell.db_cell = db_cells[i] }
   # if var.hidden
   var.db_var.setHidden(var.hidden)
   # end
@@ -1072,33 +1100,15 @@ def make_duration_block_rel(relname, var_to_copy, binding_column, block_dur, ski
 
 
   block_dur = block_dur * 1000 # Convert to milliseconds
-  block_num = 1
-  for bindcell in binding_col.cells
-    cell_dur = bindcell.offset - bindcell.onset
-    if cell_dur <= block_dur
-      cell = block_var.new_cell()
-      cell.change_code("block_num", block_num.to_s)
-      cell.onset = bindcell.onset
-      cell.offset = bindcell.offset
-      block_num += 1
-    else
-      num_possible_blocks = cell_dur / block_dur #Integer division
-      if num_possible_blocks > 0
-        for i in 0..num_possible_blocks
-          if i % skip_blocks == 0
-            cell = block_var.new_cell()
-            cell.change_code("block_num", block_num.to_s)
-            cell.onset = bindcell.onset + i * block_dur
-            if bindcell.onset + (i + 1) * block_dur <= bindcell.offset
-              cell.offset =  bindcell.onset + (i + 1) * block_dur
-            else
-              cell.offset = bindcell.offset
-            end
-            block_num += 1
-          end
-        end
-      end
-    end
+  blocks = ColumnAnalytics.durationBlocks(binding_col.cells.map(&:onset).to_java(:long),
+                                          binding_col.cells.map(&:offset).to_java(:long), block_dur.round, skip_blocks)
+  onsets = blocks.getOnsets.to_a
+  offsets = blocks.getOffsets.to_a
+  onsets.each_index do |i|
+    cell = block_var.new_cell()
+    cell.change_code("block_num", (i + 1).to_s)
+    cell.onset = onsets[i]
+    cell.offset = offsets[i]
   end
   set_column(relname + "_blocks", block_var)
 end
@@ -1308,108 +1318,38 @@ def create_mutually_exclusive(name, var1name, var2name, var1_argprefix=nil, var2
   mutex = createVariable(name, args)
   # puts "Mutex var created"
 
-  # And finally begin creating new cells
-  v1cell = nil
-  v2cell = nil
-  next_v1cell_ind = nil
-  next_v2cell_ind = nil
-
-  time = start_time
-  # puts "Start time", start_time
-  # puts "End time", end_time
-
-  flag = false
-
-  count = 0
-
   #######################
-  # BEGIN NEW MUTEX
   # Idea here: gather all of the time changes.
   # For each time change get the corresponding cells involved in that change.
   # Create the necessary cell at each time change.
+  # The cells are found in one sweep over both columns, in Java.
   #######################
-
-  time_changes = Set.new
-  v1_cells_at_time = Hash.new
-  v2_cells_at_time = Hash.new
-
-
-  # Preprocess relevant cells and times
-  for cell in var1.cells + var2.cells
-    time_changes.add(cell.onset)
-    time_changes.add(cell.offset)
-  end
-
-
-  time_changes = time_changes.to_a.sort
-  if $debug
-    p time_changes
+  intervals = ColumnAnalytics.mutuallyExclusive(var1.cells.map(&:onset).to_java(:long),
+                                                var1.cells.map(&:offset).to_java(:long),
+                                                var2.cells.map(&:onset).to_java(:long),
+                                                var2.cells.map(&:offset).to_java(:long))
+  onsets = intervals.getOnsets.to_a
+  offsets = intervals.getOffsets.to_a
+  v1cells = intervals.getSources(0).to_a
+  v2cells = intervals.getSources(1).to_a
+
+  # The codes of the new column and the cell codes they are filled from, as fill_mutex_cell does, once for all cells.
+  fills = []
+  for arg in mutex.arglist
+    fills << [arg, 0, arg.gsub(var1_argprefix, "")] if arg.index(var1_argprefix) == 0
+    fills << [arg, 1, arg.gsub(var2_argprefix, "")] if arg.index(var2_argprefix) == 0
   end
-  # p time_changes
-
-
-  mutex_cell = nil
-  mutex_cell_parent = nil
-
-  # TODO: make these handle empty cols
-  v1cell = var1.cells[0]
-  prev_v1cell = nil
-  prev_v2cell = nil
-  v2cell = var2.cells[0]
-  v1idx = 0
-  v2idx = 0
-
-  #
-  for i in 0..time_changes.length-2
-    t0 = time_changes[i]
-    t1 = time_changes[i+1]
-
-    # Find the cells that are active during these times
-    for j in v1idx..var1.cells.length-1
-      c = var1.cells[j]
-      v1cell = nil
-      if $debug
-        p "---", "T1", t0, t1, c.onset, c.offset, "---"
-      end
-      if c.onset <= t0 and c.offset >= t1 and (t1-t0 > 1 or (c.onset==t0 and c.offset==t1))
-        v1cell = c
-        v1idx = j
-        # p t0, t1, "Found V1"
-        break
-        # elsif c.onset > t1
-        #   break
-      else
-        v1cell = nil
-      end
-    end
-
-    for j in v2idx..var2.cells.length-1
-      c = var2.cells[j]
-      v2cell = nil
-      # p "---", "T2", t0, t1, c.onset, c.offset, "---"
-      if c.onset <= t0 and c.offset >= t1 and (t1-t0 > 1 or (c.onset==t0 and c.offset==t1))
-        v2cell = c
-        v2idx = j
-        # p t0, t1, "Found V2"
-        break
-        # elsif c.onset > t1
-        #   break
-      else
-        v2cell = nil
-      end
-    end
-
-    if v1cell != nil or v2cell != nil
-      mutex_cell = mutex.create_cell
 
-      mutex_cell.onset = t0
-      mutex_cell.offset = t1
-      fillMutexCell(v1cell, v2cell, mutex_cell, mutex, var1_argprefix, var2_argprefix)
+  onsets.each_index do |i|
+    sources = [v1cells[i] < 0 ? nil : var1.cells[v1cells[i]], v2cells[i] < 0 ? nil : var2.cells[v2cells[i]]]
+    mutex_cell = mutex.create_cell
+    mutex_cell.onset = onsets[i]
+    mutex_cell.offset = offsets[i]
+    fills.each do |arg, source, code|
+      mutex_cell.change_code(arg, sources[source].send(code)) unless sources[source].nil?
     end
-
   end
 
-
   # Now that we have all of the necessary temporal information
   # go through each time in the list and create a cell
 
@@ -1520,35 +1460,28 @@ def merge_columns(name, *cols)
   # Convert point cells to have offsets = onset + 1
   all_cells.each{ |x| x.offset = x.onset + 1 if x.onset == x.offset }
 
-	# Gather onsets and offsets and collect unique times into a single array
-	onsets = all_cells.map(&:onset)
-	offsets = all_cells.map(&:offset)
-	times = (onsets+offsets).uniq.sort
-
-	# For each consecutive time in times, create a new cell over that interval.
-	if times.size>0
-		onset = times.first
-		for offset in times[1..-1]
-			ncell = ncol.make_new_cell()
-			ncell.onset = onset
-			ncell.offset = offset
-
-      # Find an enclosing cell (if any) from each of the columns for this time region
-			ocells = cols.map do |col|
-				col.cells.find{ |y| y.contains(ncell) }
-			end
-
-			for c in ocells
-				unless c.nil?
-					ncell.change_code(c.parent.downcase+"_ordinal", c.ordinal)
-					c.arglist.each do |a|
-						ncell.change_code(c.parent.downcase+"_"+a, c.get_code(a))
-					end
-				end
-			end
-			onset = offset
-		end
-	end
+  # For each consecutive time among the onsets and offsets, create a new cell over that interval.
+  # The enclosing cell (if any) from each of the columns is found in one sweep over the columns, in Java.
+  intervals = ColumnAnalytics.merge(cols.map{ |col| col.cells.map(&:onset).to_java(:long) }.to_java(Java::long[]),
+                                    cols.map{ |col| col.cells.map(&:offset).to_java(:long) }.to_java(Java::long[]))
+  onsets = intervals.getOnsets.to_a
+  offsets = intervals.getOffsets.to_a
+  sources = cols.each_index.map{ |i| intervals.getSources(i).to_a }
+  onsets.each_index do |i|
+    ncell = ncol.make_new_cell()
+    ncell.onset = onsets[i]
+    ncell.offset = offsets[i]
+
+    cols.each_with_index do |col, j|
+      c = sources[j][i] < 0 ? nil : col.cells[sources[j][i]]
+      unless c.nil?
+        ncell.change_code(c.parent.downcase+"_ordinal", c.ordinal)
+        c.arglist.each do |a|
+          ncell.change_code(c.parent.downcase+"_"+a, c.get_code(a))
+        end
+      end
+    end
+  end
 
 	return ncol
 end
@@ -0,0 +1,197 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.*;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the writer of project archives.
+ */
+public class ArchiveWriterTest {
+
+    private File archive;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        archive = File.createTempFile("archive", ".opf");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        archive.delete();
+    }
+
+    @Test
+    public void readsBackDeflated() throws Exception {
+        Map<String, byte[]> entries = entries(3);
+        write(entries, Deflater.DEFAULT_COMPRESSION);
+        assertEntries(entries, ZipEntry.DEFLATED);
+        long size = 0;
+        for (byte[] bytes : entries.values()) {
+            size += bytes.length;
+        }
+        assertTrue(archive.length() < size / 2);
+    }
+
+    @Test
+    public void readsBackStored() throws Exception {
+        Map<String, byte[]> entries = entries(3);
+        write(entries, ArchiveWriter.STORED);
+        assertEntries(entries, ZipEntry.STORED);
+    }
+
+    @Test
+    public void readsBackAsStream() throws Exception {
+        Map<String, byte[]> entries = entries(3);
+        write(entries, Deflater.BEST_SPEED);
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(archive))) {
+            for (Map.Entry<String, byte[]> expected : entries.entrySet()) {
+                assertEquals(in.getNextEntry().getName(), expected.getKey());
+                assertTrue(Arrays.equals(readAll(in), expected.getValue()), expected.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void failsWithTheEntryThatCanNotBeWritten() throws Exception {
+        // The contents of an entry fail after the entries before it, an empty one among them, have been added.
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(archive))) {
+            ArchiveWriter writer = new ArchiveWriter(out, Deflater.DEFAULT_COMPRESSION);
+            writer.putEntry("empty", new byte[0]);
+            writer.putEntry("failing", content -> {
+                content.write('x');
+                throw new IOException("Unable to read variable");
+            });
+            writer.putEntry("after", new byte[]{1, 2, 3});
+            writer.finish();
+            throw new AssertionError("The archive was finished without the failing entry");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Unable to read variable");
+        }
+
+        // The stream fails while the entries are written.
+        OutputStream full = new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+        try {
+            ArchiveWriter writer = new ArchiveWriter(full, ArchiveWriter.STORED);
+            writer.putEntry("project", "name: test\n".getBytes(StandardCharsets.UTF_8));
+            writer.finish();
+            throw new AssertionError("The archive was finished on a full disk");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Disk full");
+        }
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void writeLargeArchive() throws Exception {
+        Map<String, byte[]> entries = entries(20);
+
+        long start = System.nanoTime();
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)))) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                zos.putNextEntry(new ZipEntry(entry.getKey()));
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        }
+        long zipOutputStreamMillis = BenchmarkUtils.millisSince(start);
+        long zipOutputStreamLength = archive.length();
+
+        start = System.nanoTime();
+        write(entries, Deflater.DEFAULT_COMPRESSION);
+        long deflatedMillis = BenchmarkUtils.millisSince(start);
+        long deflatedLength = archive.length();
+        assertEntries(entries, ZipEntry.DEFLATED);
+
+        start = System.nanoTime();
+        write(entries, ArchiveWriter.STORED);
+        long storedMillis = BenchmarkUtils.millisSince(start);
+
+        BenchmarkUtils.report("Wrote %d entries: ZipOutputStream %d ms (%d KB), "
+                        + "ArchiveWriter %d ms (%d KB), stored %d ms (%d KB)",
+                entries.size(), zipOutputStreamMillis, zipOutputStreamLength >> 10, deflatedMillis,
+                deflatedLength >> 10, storedMillis, archive.length() >> 10);
+    }
+
+    /**
+     * @return A project entry, a few variables of a few MB that take several blocks, an empty entry and settings.
+     */
+    private static Map<String, byte[]> entries(final int variables) {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("project", "name: test\n".getBytes(StandardCharsets.UTF_8));
+        Random random = new Random(17);
+        for (int i = 0; i < variables; i++) {
+            StringBuilder cells = new StringBuilder();
+            while (cells.length() < (3 << 20) + 12345 * i) {
+                cells.append(random.nextInt(100000)).append(",c").append(random.nextInt(10)).append('\n');
+            }
+            entries.put("datastore/" + i, cells.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        entries.put("datastore/empty", new byte[0]);
+        entries.put("settings-\u00e9", "volume=0.5\n".getBytes(StandardCharsets.UTF_8));
+        return entries;
+    }
+
+    private void write(final Map<String, byte[]> entries, final int level) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(archive))) {
+            ArchiveWriter writer = new ArchiveWriter(out, level);
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                writer.putEntry(entry.getKey(), entry.getValue());
+            }
+            writer.finish();
+        }
+    }
+
+    private void assertEntries(final Map<String, byte[]> entries, final int method) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            assertEquals(zipFile.size(), entries.size());
+            for (Map.Entry<String, byte[]> expected : entries.entrySet()) {
+                ZipEntry entry = zipFile.getEntry(expected.getKey());
+                assertEquals(entry.getMethod(), method);
+                assertEquals(entry.getSize(), expected.getValue().length);
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    assertTrue(Arrays.equals(readAll(in), expected.getValue()), expected.getKey());
+                }
+            }
+        }
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import org.datavyu.controllers.BatchController.Operation;
+import org.datavyu.controllers.BatchController.Result;
+import org.datavyu.models.db.*;
+import org.datavyu.models.project.Project;
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.ZipFile;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests for the conversion of project files without a user interface.
+ */
+public class BatchControllerTest {
+
+    private static final int NUM_FILES = 12;
+
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("batch").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        Files.walk(directory.toPath()).sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile)
+                .forEach(File::delete);
+    }
+
+    @Test
+    public void convertsEveryFile() throws Exception {
+        // A session, one with an empty column and cells before the start of the video, and one without any columns.
+        DataStore edges = dataStore(1, 20);
+        edges.createVariable("empty", Argument.Type.NOMINAL);
+        edges.getVariable("text").createCell(-3600001, -1).getCellValue().set("before");
+        List<DataStore> dataStores = Arrays.asList(dataStore(0, 200), edges, DataStoreFactory.newDataStore());
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < dataStores.size(); i++) {
+            files.add(writeProject(new File(directory, "session" + i + ".opf"), dataStores.get(i),
+                    ArchiveWriter.STORED));
+        }
+
+        BatchController batch = new BatchController(EnumSet.allOf(Operation.class));
+        batch.setFrameRate(30);
+        batch.setCompactJSON(true);
+        List<Result> results = batch.convertAll(files, 2, null);
+
+        assertEquals(results.size(), files.size());
+        for (int i = 0; i < files.size(); i++) {
+            Result result = results.get(i);
+            assertNull(result.getError(), result.toString());
+            assertEquals(result.getFile(), files.get(i));
+            assertEquals(new ArrayList<>(result.getMillis().keySet()),
+                    Arrays.asList("open", "frames", "cells", "json", "upgrade"));
+
+            DataStore snapshot = dataStores.get(i).snapshot();
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            new FrameCsvWriter(snapshot, 30).write(frames, null);
+            assertTrue(Arrays.equals(Files.readAllBytes(new File(directory, "session" + i + ".frames.csv").toPath()),
+                    frames.toByteArray()));
+
+            ByteArrayOutputStream cells = new ByteArrayOutputStream();
+            new ExportDatabaseFileController().exportAsCells(cells, snapshot);
+            assertTrue(Arrays.equals(Files.readAllBytes(new File(directory, "session" + i + ".cells.csv").toPath()),
+                    cells.toByteArray()));
+
+            try (JsonParser parser = new JsonFactory().createParser(new File(directory, "session" + i + ".json"))) {
+                assertSameCells(new JsonDataStoreReader(parser).read(), snapshot);
+            }
+
+            // Upgraded in place: compressed now, with the same cells.
+            try (ZipFile zipFile = new ZipFile(files.get(i))) {
+                assertEquals(zipFile.getEntry("project").getMethod(), java.util.zip.ZipEntry.DEFLATED);
+            }
+            OpenController openController = new OpenController();
+            openController.openProject(files.get(i));
+            assertSameCells(openController.getDataStore(), snapshot);
+            ProjectJournal.stopTracking(files.get(i));
+        }
+        for (File file : directory.listFiles()) {
+            assertFalse(file.getName().endsWith(".part"), file.getName());
+        }
+    }
+
+    @Test
+    public void reportsFailedFiles() throws Exception {
+        File good = writeProject(new File(directory, "good.opf"), dataStore(0, 10), Deflater.DEFAULT_COMPRESSION);
+        File bad = new File(directory, "bad.opf");
+        Files.write(bad.toPath(), new byte[]{1, 2, 3});
+        File csv = new File(directory, "data.csv");
+
+        BatchController batch = new BatchController(Collections.singleton(Operation.UPGRADE));
+        List<Result> results = batch.convertAll(Arrays.asList(bad, good, csv), 2, null);
+        assertNotNull(results.get(0).getError());
+        assertNull(results.get(1).getError());
+        assertNotNull(results.get(2).getError());
+        assertEquals(directory.list().length, 2);
+    }
+
+    @Test
+    public void findsFiles() throws Exception {
+        File nested = new File(directory, "a/b");
+        assertTrue(nested.mkdirs());
+        for (File file : new File[]{new File(directory, "one.opf"), new File(nested, "two.opf"),
+                new File(nested, "three.OPF"), new File(directory, "a/notes.txt")}) {
+            assertTrue(file.createNewFile());
+        }
+
+        assertEquals(names(BatchController.find(directory.getPath())), "three.OPF two.opf one.opf ");
+        assertEquals(names(BatchController.find(directory.getPath() + "/**/*.opf")), "two.opf ");
+        assertEquals(names(BatchController.find(directory.getPath() + "/*.{opf,txt}")), "one.opf ");
+        assertEquals(names(BatchController.find(directory.getPath() + "/a/*")), "notes.txt ");
+        assertEquals(names(BatchController.find(new File(nested, "two.opf").getPath())), "two.opf ");
+        assertTrue(BatchController.find(directory.getPath() + "/missing/*.opf").isEmpty());
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void convertManyFiles() throws Exception {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < NUM_FILES; i++) {
+            files.add(writeProject(new File(directory, "session" + i + ".opf"), dataStore(i, 5000),
+                    Deflater.DEFAULT_COMPRESSION));
+        }
+        BatchController batch = new BatchController(EnumSet.of(Operation.FRAMES, Operation.JSON));
+        batch.setFrameRate(30);
+
+        long start = System.nanoTime();
+        batch.convertAll(files, 1, null);
+        long oneMillis = BenchmarkUtils.millisSince(start);
+
+        int jobs = Runtime.getRuntime().availableProcessors();
+        start = System.nanoTime();
+        List<Result> results = batch.convertAll(files, jobs, null);
+        long jobsMillis = BenchmarkUtils.millisSince(start);
+
+        for (Result result : results) {
+            assertNull(result.getError(), result.toString());
+        }
+        BenchmarkUtils.report("Converted %d files: 1 at a time %d ms, %d at a time %d ms",
+                NUM_FILES, oneMillis, jobs, jobsMillis);
+    }
+
+    private static DataStore dataStore(final int seed, final int numCells) throws UserWarningException {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Random random = new Random(seed);
+        Variable text = ds.createVariable("text", Argument.Type.TEXT);
+        Variable matrix = ds.createVariable("matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.NOMINAL);
+        long time = 0;
+        for (int i = 0; i < numCells; i++) {
+            time += random.nextInt(2000);
+            text.createCell(time, time + random.nextInt(1500)).getCellValue().set("t, \"" + i + "\"");
+            Cell cell = matrix.createCell(time + 100, time + 900);
+            cell.setMatrixValue(0, "m" + random.nextInt(5));
+            cell.setMatrixValue(1, "n" + random.nextInt(5));
+        }
+        text.setOrderIndex(0);
+        matrix.setOrderIndex(1);
+        return ds;
+    }
+
+    /**
+     * Writes a project archive the way SaveController does.
+     */
+    private static File writeProject(final File file, final DataStore dataStore, final int level) throws IOException {
+        Project project = new Project();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            SaveController.writeArchive(out, SaveController.projectBytes(project), new BinaryDataStoreWriter(dataStore),
+                    SaveController.settingsBytes(project), level);
+        }
+        return file;
+    }
+
+    private static String names(final List<File> files) {
+        StringBuilder names = new StringBuilder();
+        for (File file : files) {
+            names.append(file.getName()).append(' ');
+        }
+        return names.toString();
+    }
+
+    private static void assertSameCells(final DataStore actual, final DataStore expected) {
+        assertEquals(actual.getAllVariables().size(), expected.getAllVariables().size());
+        for (Variable variable : expected.getAllVariables()) {
+            List<Cell> actualCells = actual.getVariable(variable.getName()).getCellsTemporally();
+            List<Cell> expectedCells = variable.getCellsTemporally();
+            assertEquals(actualCells.size(), expectedCells.size());
+            for (int i = 0; i < actualCells.size(); i++) {
+                assertEquals(actualCells.get(i).getOnset(), expectedCells.get(i).getOnset());
+                assertEquals(actualCells.get(i).getOffset(), expectedCells.get(i).getOffset());
+                assertEquals(actualCells.get(i).getValueAsString(), expectedCells.get(i).getValueAsString());
+            }
+        }
+    }
+}
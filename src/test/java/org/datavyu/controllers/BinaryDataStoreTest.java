@@ -0,0 +1,279 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.*;
+import org.datavyu.models.project.Project;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the binary columnar data store format.
+ */
+public class BinaryDataStoreTest {
+
+    private File archive;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        archive = File.createTempFile("datastore", ".opf");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        archive.delete();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable matrix = ds.createVariable("matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.TEXT);
+        matrix.addArgument(Argument.Type.NOMINAL);
+        for (int i = 0; i < 100; i++) {
+            Cell cell = matrix.createCell();
+            cell.setOnset(1000L * (i % 7));
+            cell.setOffset(i % 3 == 0 ? -1L : 1000L * (i % 7) + 999);
+            cell.setMatrixValue(0, "c" + (i % 5));
+            if (i % 4 != 0) {
+                cell.setMatrixValue(1, "text, (" + i + ")\n\u00e9\u4e2d");
+            }
+            cell.setMatrixValue(2, "n" + (i % 2));
+        }
+        Variable text = ds.createVariable("text", Argument.Type.TEXT);
+        text.createCell(5, 10).getCellValue().set("hidden text");
+        text.createCell(0, 0);
+        text.setHidden(true);
+        Variable nominal = ds.createColumnarVariable("nominal", Argument.Type.NOMINAL);
+        nominal.createCell(1, 2).getCellValue().set("yes");
+        ds.createVariable("empty", Argument.Type.NOMINAL);
+
+        write(ds);
+        DataStore read = read();
+
+        assertEquals(names(read.getAllVariables()), names(ds.getAllVariables()));
+        assertSameCells(read.getVariable("matrix"), matrix);
+        assertEquals(read.getVariable("matrix").getRootNode().childArguments.get(1).type, Argument.Type.TEXT);
+        assertTrue(read.getVariable("text").isHidden());
+        assertSameCells(read.getVariable("text"), text);
+        assertTrue(read.getVariable("nominal") instanceof ColumnarVariable);
+        assertSameCells(read.getVariable("nominal"), nominal);
+        assertEquals(read.getVariable("empty").getCells().size(), 0);
+    }
+
+    @Test
+    public void loadsHiddenVariablesLazily() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable hidden = ds.createVariable("hidden", Argument.Type.NOMINAL);
+        hidden.createCell(0, 1).getCellValue().set("a");
+        hidden.setHidden(true);
+        ds.createVariable("shown", Argument.Type.TEXT).createCell(0, 1);
+
+        write(ds);
+        DataStore read = read();
+        read.markAsUnchanged();
+
+        DatavyuVariable lazy = (DatavyuVariable) read.getVariable("hidden");
+        assertTrue(((DatavyuVariable) read.getVariable("shown")).isLoaded());
+        assertFalse(lazy.isLoaded());
+        assertEquals(lazy.getCells().size(), 1);
+        assertTrue(lazy.isLoaded());
+        assertEquals(lazy.getCells().get(0).getVariable(), lazy);
+        assertEquals(read.getVariable(lazy.getCells().get(0)), lazy);
+        assertFalse(read.isChanged());
+
+        // The loaded cells behave like any other.
+        lazy.getCells().get(0).setOnset(5);
+        assertTrue(read.isChanged());
+        assertEquals(lazy.createCell(2, 3).getVariable(), lazy);
+        assertEquals(lazy.getCells().size(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void noticesReplacedArchive() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable hidden = ds.createVariable("hidden", Argument.Type.TEXT);
+        hidden.createCell(0, 1).getCellValue().set("a");
+        hidden.setHidden(true);
+        write(ds);
+        DataStore read = read();
+
+        hidden.getCells().get(0).getCellValue().set("b");
+        write(ds);
+        read.getVariable("hidden").getCells();
+    }
+
+    @Test
+    public void copiesUnloadedVariablesAsTheyAre() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        ds.createVariable("shown", Argument.Type.TEXT).createCell(0, 1).getCellValue().set("s");
+        Variable hidden = ds.createVariable("hidden", Argument.Type.NOMINAL);
+        for (int i = 0; i < 10; i++) {
+            hidden.createCell(i, i + 1).getCellValue().set("h" + (i % 3));
+        }
+        hidden.setHidden(true);
+        write(ds);
+        DataStore read = read();
+        DatavyuVariable lazy = (DatavyuVariable) read.getVariable("hidden");
+
+        // Written over the archive it was read from, the variable is copied into it without loading it.
+        lazy.setOrderIndex(0);
+        read.getVariable("shown").setOrderIndex(1);
+        File copy = File.createTempFile("datastore", ".opf");
+        try {
+            write(read, copy);
+            assertFalse(lazy.isLoaded());
+            Files.move(copy.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            copy.delete();
+        }
+        assertEquals(names(read().getAllVariables()), "hidden shown ");
+        assertSameCells(read().getVariable("hidden"), hidden);
+        assertSameCells(lazy, hidden);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void noticesReplacedArchiveWhenCopying() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable hidden = ds.createVariable("hidden", Argument.Type.TEXT);
+        hidden.createCell(0, 1).getCellValue().set("a");
+        hidden.setHidden(true);
+        write(ds);
+        DataStore read = read();
+
+        hidden.getCells().get(0).getCellValue().set("b");
+        write(ds);
+        File copy = File.createTempFile("datastore", ".opf");
+        try {
+            write(read, copy);
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void writesCsvForOlderVersions() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable hidden = ds.createVariable("hidden", Argument.Type.TEXT);
+        hidden.createCell(0, 1).getCellValue().set("a");
+        hidden.setHidden(true);
+        write(ds);
+        DataStore read = read();
+
+        Project project = new Project();
+        for (boolean csv : new boolean[]{true, false}) {
+            File copy = File.createTempFile("datastore", ".opf");
+            try {
+                try (FileOutputStream out = new FileOutputStream(copy)) {
+                    SaveController.writeArchive(out, SaveController.projectBytes(project),
+                            new BinaryDataStoreWriter(read), SaveController.settingsBytes(project),
+                            Deflater.DEFAULT_COMPRESSION, csv);
+                }
+                try (ZipFile zipFile = new ZipFile(copy)) {
+                    assertTrue(BinaryDataStoreReader.holdsDataStore(zipFile));
+                    ZipEntry db = zipFile.getEntry("db");
+                    assertEquals(db != null, csv);
+                    if (csv) {
+                        DataStore older = new OpenDataStoreFileController().openAsCsv(zipFile.getInputStream(db));
+                        assertTrue(older.getVariable("hidden").isHidden());
+                        assertSameCells(older.getVariable("hidden"), hidden);
+                    }
+                }
+            } finally {
+                copy.delete();
+            }
+        }
+        assertFalse(((DatavyuVariable) read.getVariable("hidden")).isLoaded());
+    }
+
+    @Test
+    public void savesWithoutLoading() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        ds.createVariable("shown", Argument.Type.TEXT).createCell(0, 1).getCellValue().set("s");
+        Variable hidden = ds.createVariable("hidden", Argument.Type.NOMINAL);
+        for (int i = 0; i < 10; i++) {
+            hidden.createCell(i, i + 1).getCellValue().set("h" + i);
+        }
+        hidden.setHidden(true);
+        write(ds);
+        DataStore read = read();
+        DatavyuVariable lazy = (DatavyuVariable) read.getVariable("hidden");
+        read.getVariable("shown").createCell(2, 3);
+
+        // By default a save writes the binary entries only, which copy the variable that has not been loaded.
+        new SaveController().saveProject(archive, new Project(), read, false);
+        assertFalse(lazy.isLoaded());
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            assertEquals(zipFile.getEntry("db"), null);
+        }
+        assertEquals(read().getVariable("shown").getCells().size(), 2);
+        assertSameCells(read().getVariable("hidden"), hidden);
+        assertSameCells(lazy, hidden);
+    }
+
+    private void write(final DataStore ds) throws IOException {
+        write(ds, archive);
+    }
+
+    private static void write(final DataStore ds, final File file) throws IOException {
+        BinaryDataStoreWriter writer = new BinaryDataStoreWriter(ds);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            ArchiveWriter archiveWriter = new ArchiveWriter(out, Deflater.DEFAULT_COMPRESSION);
+            writer.write(archiveWriter);
+            archiveWriter.finish();
+        }
+    }
+
+    private DataStore read() throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            assertTrue(BinaryDataStoreReader.holdsDataStore(zipFile));
+            return new BinaryDataStoreReader(archive, zipFile).read();
+        }
+    }
+
+    private static String names(final List<Variable> variables) {
+        StringBuilder names = new StringBuilder();
+        for (Variable variable : variables) {
+            names.append(variable.getName()).append(' ');
+        }
+        return names.toString();
+    }
+
+    private static void assertSameCells(final Variable actual, final Variable expected) {
+        List<Cell> actualCells = actual.getCellsTemporally();
+        List<Cell> expectedCells = expected.getCellsTemporally();
+        assertEquals(actualCells.size(), expectedCells.size());
+        for (int i = 0; i < actualCells.size(); i++) {
+            assertEquals(actualCells.get(i).getOnset(), expectedCells.get(i).getOnset());
+            assertEquals(actualCells.get(i).getOffset(), expectedCells.get(i).getOffset());
+            assertEquals(actualCells.get(i).getValueAsString(), expectedCells.get(i).getValueAsString());
+        }
+    }
+}
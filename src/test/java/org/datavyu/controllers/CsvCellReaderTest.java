@@ -0,0 +1,194 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.Argument;
+import org.datavyu.models.db.Cell;
+import org.datavyu.models.db.DataStore;
+import org.datavyu.models.db.DataStoreFactory;
+import org.datavyu.models.db.Variable;
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the tokenizer of the CSV data store format.
+ */
+public class CsvCellReaderTest {
+
+    private static final int NUM_CELLS = 1000000;
+
+    @Test
+    public void readsLinesAndCells() throws IOException {
+        CsvCellReader reader = new CsvCellReader(new StringReader(
+                "#4\nname (MATRIX,true,)-a|NOMINAL,b|NOMINAL\r\n00:01:02:003,5,(x,\\(y\\,z\\))\r\nnext\n\n"));
+        List<String> values = new ArrayList<>();
+
+        assertFalse(reader.isAtCell());
+        assertEquals(reader.readLine(), "#4");
+        assertEquals(reader.readLine(), "name (MATRIX,true,)-a|NOMINAL,b|NOMINAL");
+        assertTrue(reader.isAtCell());
+        reader.readCell(values);
+        assertEquals(reader.getOnset(), 62003L);
+        assertEquals(reader.getOffset(), 5L);
+        assertEquals(values, Arrays.asList("x", "(y,z)"));
+        assertFalse(reader.isAtCell());
+        assertEquals(reader.readLine(), "next");
+        assertEquals(reader.readLine(), "");
+        assertNull(reader.readLine());
+        assertFalse(reader.isAtCell());
+    }
+
+    @Test
+    public void readsContinuationLines() throws IOException {
+        CsvCellReader reader = new CsvCellReader(new StringReader(
+                "00:00:00:000,00:00:01:000,(one\\\ntwo\\\r\nthree,\\\\)\n00:00:01:000,00:00:02:000,()"));
+        List<String> values = new ArrayList<>();
+
+        reader.readCell(values);
+        assertEquals(values, Arrays.asList("one\ntwo\nthree", "\\"));
+        assertEquals(reader.getLineNumber(), 4);
+        assertTrue(reader.isAtCell());
+        reader.readCell(values);
+        assertEquals(values, Arrays.asList(""));
+        assertEquals(reader.getOffset(), 2000L);
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void readsValuesAcrossTheBuffer() throws IOException {
+        char[] chars = new char[100000];
+        Arrays.fill(chars, 'v');
+        String value = new String(chars);
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            input.append("00:00:00:00").append(i).append(",00:00:00:00").append(i).append(",(")
+                    .append(value).append(",\\,").append(value).append(")\n");
+        }
+        CsvCellReader reader = new CsvCellReader(new StringReader(input.toString()));
+        List<String> values = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(reader.isAtCell());
+            reader.readCell(values);
+            assertEquals(reader.getOnset(), (long) i);
+            assertEquals(values, Arrays.asList(value, "," + value));
+        }
+        assertFalse(reader.isAtCell());
+    }
+
+    @Test
+    public void rejectsMalformedTimes() {
+        for (String line : new String[]{"00:00:00,00:00:00:000,()", "00:00:00:00a,0,()", "00:00:00:000\n"}) {
+            try {
+                new CsvCellReader(new StringReader(line)).readCell(new ArrayList<String>());
+                throw new AssertionError("Read a malformed cell: " + line);
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("Malformed cell time"));
+            }
+        }
+    }
+
+    @Test
+    public void readsNegativeTimes() throws IOException {
+        CsvCellReader reader = new CsvCellReader(new StringReader("-1:59:59:999,-25,()\n"));
+        reader.readCell(new ArrayList<String>());
+        assertEquals(reader.getOnset(), -1L);
+        assertEquals(reader.getOffset(), -25L);
+    }
+
+    @Test
+    public void roundTripsNegativeTimes() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        // Text and nominal cells are read apart from matrix cells; each variable starts with a negative time.
+        Variable[] variables = {ds.createVariable("times", Argument.Type.TEXT),
+                ds.createVariable("nominal", Argument.Type.NOMINAL),
+                ds.createVariable("codes", Argument.Type.MATRIX)};
+        variables[2].addArgument(Argument.Type.NOMINAL);
+        long[][] cells = {{-1, -1}, {-3600000, 5}, {-3600001, -7384005}, {0, -90061001}, {360000000, 360000001}};
+        for (Variable variable : variables) {
+            for (long[] cell : cells) {
+                Cell created = variable.createCell(cell[0], cell[1]);
+                if (variable == variables[2]) {
+                    created.setMatrixValue(0, "m" + cell[0]);
+                    created.setMatrixValue(1, "n" + cell[1]);
+                } else {
+                    created.getCellValue().set("t" + cell[0]);
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new SaveDataStoreFileController().saveAsCsv(bytes, ds);
+        DataStore read = new OpenDataStoreFileController().openAsCsv(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertNotNull(read, bytes.toString());
+        assertEquals(read.getAllVariables().size(), variables.length);
+        for (Variable variable : variables) {
+            List<Cell> written = variable.getCellsTemporally();
+            List<Cell> readCells = read.getVariable(variable.getName()).getCellsTemporally();
+            assertEquals(readCells.size(), cells.length, variable.getName());
+            for (int i = 0; i < cells.length; i++) {
+                assertEquals(readCells.get(i).getOnset(), written.get(i).getOnset());
+                assertEquals(readCells.get(i).getOffset(), written.get(i).getOffset());
+                assertEquals(readCells.get(i).getValueAsString(), written.get(i).getValueAsString());
+            }
+        }
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void openMillionCells() {
+        StringBuilder file = new StringBuilder("#4\ncodes (MATRIX,true,)-code|NOMINAL,note|NOMINAL\n");
+        for (int i = 0; i < NUM_CELLS; i++) {
+            file.append(timestamp(i * 40L)).append(',').append(timestamp(i * 40L + 39))
+                    .append(",(c").append(i % 10).append(",<note>)\n");
+        }
+        byte[] bytes = file.toString().getBytes(Charset.defaultCharset());
+        file = null;
+
+        long start = System.nanoTime();
+        DataStore ds = new OpenDataStoreFileController().openAsCsv(new ByteArrayInputStream(bytes));
+        BenchmarkUtils.report("Opened %d cells (%d MB) in %d ms", NUM_CELLS, bytes.length >> 20,
+                BenchmarkUtils.millisSince(start));
+
+        assertNotNull(ds);
+        Variable codes = ds.getVariable("codes");
+        assertEquals(codes.getCells().size(), NUM_CELLS);
+        Cell last = codes.getCellTemporally(NUM_CELLS - 1);
+        assertEquals(last.getOnset(), (NUM_CELLS - 1) * 40L);
+        assertEquals(last.getValueAsString(), "(c9,)");
+    }
+
+    /**
+     * @return The time formatted like the data store files hold it.
+     */
+    private static String timestamp(final long time) {
+        return String.format("%02d:%02d:%02d:%03d", time / 3600000, time / 60000 % 60, time / 1000 % 60, time % 1000);
+    }
+}
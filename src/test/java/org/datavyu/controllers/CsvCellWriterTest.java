@@ -0,0 +1,187 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.*;
+import org.datavyu.util.BenchmarkUtils;
+import org.datavyu.util.StringUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the writer of the CSV data store format.
+ */
+public class CsvCellWriterTest {
+
+    private static final int NUM_CELLS = 1000000;
+
+    @Test
+    public void formatsTimestampsLikeCells() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Cell cell = ds.createVariable("times", Argument.Type.TEXT).createCell();
+        Random random = new Random(16);
+        long[] times = new long[20000];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i < 10000 ? (i - 5000) * 997L : random.nextInt(Integer.MAX_VALUE) * (long) random.nextInt(100);
+        }
+        times[0] = 3599999;
+        times[1] = 3600000;
+        times[2] = -3600000;
+        times[3] = 359999999;
+        times[4] = 360000000;
+
+        for (long time : times) {
+            cell.setOnset(time);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            CsvCellWriter out = new CsvCellWriter(bytes);
+            out.writeTimestamp(time);
+            out.flush();
+            assertEquals(bytes.toString(), cell.getOnsetString(), "time " + time);
+        }
+    }
+
+    @Test
+    public void writesLikePrintStream() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable matrix = ds.createVariable("matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.NOMINAL);
+        for (int i = 0; i < 500; i++) {
+            Cell cell = matrix.createCell();
+            cell.setOnset(i * 1234L);
+            cell.setOffset(i % 3 == 0 ? -1 : i * 1234L + 999);
+            cell.setMatrixValue(0, "a,b(" + i + ")\\-|");
+            if (i % 2 == 0) {
+                cell.setMatrixValue(1, "n" + i);
+            }
+        }
+        Variable text = ds.createVariable("text, with-escapes", Argument.Type.TEXT, true);
+        text.createCell(0, 10).getCellValue().set("line\nbreak\u0001 \u00e9\u4e2d\ud83d\ude00 ctrl\u0000");
+        text.createCell(5, 5);
+        text.setHidden(true);
+        ds.createColumnarVariable("columnar", Argument.Type.NOMINAL).createCell(7, 8).getCellValue().set("c");
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeWithPrintStream(expected, ds);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        new SaveDataStoreFileController().saveAsCsv(actual, ds);
+        assertTrue(Arrays.equals(actual.toByteArray(), expected.toByteArray()), actual.toString());
+    }
+
+    @Test
+    public void writesEmptyVariablesNegativeTimesAndLongValues() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        ds.createVariable("empty", Argument.Type.NOMINAL);
+        Variable text = ds.createVariable("text", Argument.Type.TEXT);
+        text.createCell(-1, -3600001).getCellValue().set("before");
+        // A value longer than the buffer, with characters of several bytes across its boundaries.
+        StringBuilder longValue = new StringBuilder();
+        while (longValue.length() < 200000) {
+            longValue.append("\u00e9\u4e2d\ud83d\ude00 ");
+        }
+        text.createCell(0, 1).getCellValue().set(longValue.toString());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeWithPrintStream(expected, ds);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        new SaveDataStoreFileController().saveAsCsv(actual, ds);
+        assertTrue(Arrays.equals(actual.toByteArray(), expected.toByteArray()));
+
+        // The variables are written in no particular order, in the platform charset as before.
+        String nl = System.lineSeparator();
+        String written = actual.toString();
+        assertTrue(written.startsWith("#4" + nl));
+        assertTrue(written.contains(nl + "empty (NOMINAL,true,)" + nl));
+        assertTrue(written.contains(nl + "text (TEXT,true,)" + nl
+                + "-1:59:59:999,-2:59:59:999,before" + nl
+                + "00:00:00:000,00:00:00:001," + new String(longValue.toString().getBytes()) + nl));
+        assertEquals(written.split(nl).length, 5);
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void writeMillionCells() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable codes = ds.createVariable("codes", Argument.Type.MATRIX);
+        codes.addArgument(Argument.Type.NOMINAL);
+        for (int i = 0; i < NUM_CELLS; i++) {
+            Cell cell = codes.createCell(i * 40L, i * 40L + 39);
+            cell.setMatrixValue(0, "c" + (i % 10));
+        }
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream(64 << 20);
+        long start = System.nanoTime();
+        writeWithPrintStream(expected, ds);
+        long printStreamMillis = BenchmarkUtils.millisSince(start);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream(64 << 20);
+        start = System.nanoTime();
+        new SaveDataStoreFileController().saveAsCsv(actual, ds);
+        long writerMillis = BenchmarkUtils.millisSince(start);
+
+        BenchmarkUtils.report("Wrote %d cells (%d MB): PrintStream %d ms, CsvCellWriter %d ms",
+                NUM_CELLS, actual.size() >> 20, printStreamMillis, writerMillis);
+        assertTrue(Arrays.equals(actual.toByteArray(), expected.toByteArray()));
+    }
+
+    /**
+     * The way SaveDataStoreFileController wrote the format before CsvCellWriter.
+     */
+    private static void writeWithPrintStream(final ByteArrayOutputStream outStream, final DataStore dataStore)
+            throws IOException {
+        PrintStream ps = new PrintStream(outStream);
+        ps.println("#4");
+        for (Variable variable : dataStore.snapshot().getAllVariables()) {
+            ps.printf("%s (%s,%s,%s)",
+                    StringUtils.escapeCSV(variable.getName()),
+                    variable.getRootNode().type,
+                    !variable.isHidden(),
+                    "");
+
+            if (variable.getRootNode().type == Argument.Type.MATRIX) {
+                ps.print('-');
+
+                int numArgs = 0;
+                for (Argument arg : variable.getRootNode().childArguments) {
+                    ps.printf("%s|%s",
+                            StringUtils.escapeCSV(arg.name),
+                            arg.type);
+
+                    if (numArgs < (variable.getRootNode().childArguments.size() - 1)) {
+                        ps.print(',');
+                    }
+                    numArgs++;
+                }
+            }
+
+            ps.println();
+
+            for (Cell cell : variable.getCellsTemporally()) {
+                ps.printf("%s,%s,%s",
+                        cell.getOnsetString(),
+                        cell.getOffsetString(),
+                        cell.getCellValue().serialize());
+                ps.println();
+            }
+        }
+        ps.flush();
+    }
+}
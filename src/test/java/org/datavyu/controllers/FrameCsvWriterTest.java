@@ -0,0 +1,302 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.*;
+import org.datavyu.util.BenchmarkUtils;
+import org.datavyu.util.StringUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the writer of frame-by-frame CSV files.
+ */
+public class FrameCsvWriterTest {
+
+    @Test
+    public void writesLikeBefore() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Random random = new Random(19);
+        Variable text = ds.createVariable("text", Argument.Type.TEXT);
+        long time = 40;
+        for (int i = 0; i < 300; i++) {
+            // Gaps, overlaps, cells shorter than a frame and cells without length.
+            long onset = time + random.nextInt(200) - 50;
+            long offset = onset + (i % 7 == 0 ? 0 : random.nextInt(i % 3 == 0 ? 20 : 400));
+            text.createCell(onset, offset).getCellValue().set("t\"" + i + ",x");
+            time += random.nextInt(300);
+        }
+        Variable matrix = ds.createVariable("matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.NOMINAL);
+        for (int i = 0; i < 100; i++) {
+            Cell cell = matrix.createCell(i * 500L, i * 500L + 499);
+            cell.setMatrixValue(0, "m" + i);
+        }
+        ds.createVariable("empty", Argument.Type.NOMINAL);
+        ds.createVariable("nominal", Argument.Type.NOMINAL).createCell(1000, 2000).getCellValue().set("n");
+
+        for (double frameRate : new double[]{30, 29.97f, 60, 25, 7}) {
+            assertSameOutput(ds, frameRate);
+        }
+    }
+
+    @Test
+    public void writesHeaderOnlyWithoutCells() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        ds.createVariable("empty", Argument.Type.TEXT);
+        assertSameOutput(ds, 30);
+        assertSameOutput(DataStoreFactory.newDataStore(), 30);
+    }
+
+    @Test
+    public void cancels() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        ds.createVariable("long", Argument.Type.TEXT).createCell(0, 3600000).getCellValue().set("v");
+
+        List<Integer> updates = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(new FrameCsvWriter(ds.snapshot(), 60).write(out, (value, update) -> {
+            updates.add(value);
+            return value >= 10;
+        }));
+        assertEquals(updates.get(updates.size() - 1).intValue(), 10);
+        assertTrue(out.size() < 216000 * 20 / 5);
+
+        updates.clear();
+        assertTrue(new FrameCsvWriter(ds.snapshot(), 60).write(new ByteArrayOutputStream(), (value, update) -> {
+            updates.add(value);
+            return false;
+        }));
+        assertEquals(updates.get(updates.size() - 1).intValue(), 100);
+    }
+
+    @Test
+    public void cancelledFromAnotherThreadLeavesNoFile() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        ds.createVariable("long", Argument.Type.TEXT).createCell(0, 3600000).getCellValue().set("v");
+        File file = File.createTempFile("frames", ".csv");
+
+        // The export runs off the event dispatch thread, where the user presses cancel once it has started.
+        AtomicBoolean canceled = new AtomicBoolean();
+        List<Integer> updates = new ArrayList<>();
+        boolean completed = new ExportDatabaseFileController().exportByFrame(file.getPath(), ds, 60,
+                (value, update) -> {
+                    updates.add(value);
+                    if (updates.size() == 1) {
+                        Thread cancel = new Thread(() -> canceled.set(true));
+                        cancel.start();
+                        try {
+                            cancel.join();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                    return canceled.get();
+                });
+
+        assertFalse(completed);
+        assertEquals(updates.size(), 1);
+        assertFalse(file.exists());
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void writeLongSession() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Random random = new Random(60);
+        for (int v = 0; v < 20; v++) {
+            Variable variable = ds.createVariable("v" + v, Argument.Type.MATRIX);
+            variable.addArgument(Argument.Type.NOMINAL);
+            for (long time = 0; time < 10 * 60 * 1000; time += 500 + random.nextInt(5000)) {
+                Cell cell = variable.createCell(time, time + random.nextInt(4000));
+                cell.setMatrixValue(0, "c" + random.nextInt(5));
+                cell.setMatrixValue(1, "d" + random.nextInt(5));
+            }
+        }
+        DataStore snapshot = ds.snapshot();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream(64 << 20);
+        long start = System.nanoTime();
+        writeLikeBefore(expected, snapshot, 60);
+        long beforeMillis = BenchmarkUtils.millisSince(start);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream(64 << 20);
+        start = System.nanoTime();
+        assertTrue(new FrameCsvWriter(snapshot, 60).write(actual, null));
+        long writerMillis = BenchmarkUtils.millisSince(start);
+
+        BenchmarkUtils.report("Exported 10 minutes at 60 fps of 20 variables (%d MB): "
+                + "before %d ms, FrameCsvWriter %d ms", actual.size() >> 20, beforeMillis, writerMillis);
+        assertTrue(Arrays.equals(actual.toByteArray(), expected.toByteArray()));
+    }
+
+    private static void assertSameOutput(final DataStore ds, final double frameRate) throws Exception {
+        DataStore snapshot = ds.snapshot();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeLikeBefore(expected, snapshot, frameRate);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        assertTrue(new FrameCsvWriter(snapshot, frameRate).write(actual, null));
+        assertEquals(actual.toString(), expected.toString(), "frame rate " + frameRate);
+    }
+
+    /**
+     * The way ExportDatabaseFileController.exportByFrame wrote the file before FrameCsvWriter, after asking for the
+     * frame rate.
+     */
+    private static void writeLikeBefore(final ByteArrayOutputStream fos, final DataStore snapshot,
+                                        final double frameRate) {
+        PrintStream ps = new PrintStream(fos);
+        List<Variable> variables = snapshot.getAllVariables();
+
+        ArrayList<List<Cell>> cellCache = new ArrayList<>();
+        int[] currentIndex = new int[variables.size()];
+
+        // Get all of the cells from the DB and store them locally
+        for (Variable v : variables) {
+            cellCache.add(v.getCellsTemporally());
+        }
+
+        // Get first and last time point by sweeping over the cells
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = 0;
+
+        for (int i = 0; i < variables.size(); i++) {
+            List<Cell> cells = cellCache.get(i);
+            if (cells.isEmpty()) {
+                continue;
+            }
+            if (cells.get(0).getOnset() < firstTime) {
+                firstTime = cells.get(0).getOnset();
+            }
+            if (cells.get(0).getOffset() < firstTime) {
+                firstTime = cells.get(0).getOffset();
+            }
+
+            if (cells.get(cells.size() - 1).getOnset() > lastTime) {
+                lastTime = cells.get(cells.size() - 1).getOnset();
+            }
+            if (cells.get(cells.size() - 1).getOffset() > lastTime) {
+                lastTime = cells.get(cells.size() - 1).getOffset();
+            }
+        }
+
+        long current_time = firstTime;
+
+        // Print header
+        String header = "nFrame,time,";
+        for (Variable v : variables) {
+
+            header += v.getName() + ".ordinal";
+            header += "," + v.getName() + ".onset";
+            header += "," + v.getName() + ".offset";
+
+            // Test if the variable is a matrix. If it is, then we have to print out all of its arguments.
+            if (v.getRootNode().type == Argument.Type.MATRIX) {
+                for (Argument a : v.getRootNode().childArguments) {
+                    header += "," + v.getName() + "." + a.name;
+                }
+            } else {
+                header += "," + v.getName() + ".value";
+            }
+            header += ',';
+        }
+        header = header.trim();
+
+        // Write header
+        ps.println(header);
+
+        int nFrame = 1;
+        while (current_time <= lastTime + 1000.0 / frameRate) {
+            // Update the currentIndex list, moving on to the latest cell that has started once the current one ended
+            for (int i = 0; i < variables.size(); i++) {
+                if (!cellCache.get(i).isEmpty()) {
+                    Cell c = cellCache.get(i).get(currentIndex[i]);
+                    if (current_time > c.getOffset()) {
+                        Variable v = variables.get(i);
+                        Cell latestCell = v.getPreviousCell(current_time);
+                        if (latestCell != null) {
+                            currentIndex[i] = Math.max(currentIndex[i], v.getTemporalIndex(latestCell));
+                        }
+                    }
+                }
+            }
+
+            // Now print each frame as we loop through it
+            String row = Integer.toString(nFrame) + "," + Long.toString(current_time) + ",";
+            for (int i = 0; i < variables.size(); i++) {
+                if (!cellCache.get(i).isEmpty()) {
+
+                    Cell cell = cellCache.get(i).get(currentIndex[i]);
+
+                    if ((cell.getOnset() <= current_time && cell.getOffset() >= current_time) ||
+                            (Math.abs(cell.getOffset() - cell.getOnset()) < 1000.0 / frameRate &&
+                                    cell.getOnset() > current_time - 1000.0 / frameRate + 1 &&
+                                    current_time >= cell.getOnset() &&
+                                    cell.getOnset() < current_time + 1000.0 / frameRate - 1)) {
+
+                        CellValue cellValue = cell.getCellValue();
+
+                        // Print ordinal, onset, offset
+                        row += Integer.toString(currentIndex[i] + 1) + "," +
+                                Long.toString(cell.getOnset()) + "," +
+                                Long.toString(cell.getOffset());
+
+                        if (cellValue instanceof MatrixCellValue) {
+                            MatrixCellValue mv = (MatrixCellValue) cellValue;
+                            for (CellValue v : mv.getArguments()) {
+                                row += "," + StringUtils.escapeCSVQuotes(v.toString());
+                            }
+                        } else {
+                            row += "," + StringUtils.escapeCSVQuotes(cell.getCellValue().toString());
+                        }
+                        row += ",";
+
+                    } else {
+                        CellValue cellValue = cell.getCellValue();
+
+                        // Print ordinal, onset, offset
+                        row += ",,";
+
+                        if (cellValue instanceof MatrixCellValue) {
+                            MatrixCellValue mv = (MatrixCellValue) cellValue;
+                            for (CellValue v : mv.getArguments()) {
+                                row += ",";
+                            }
+                        } else {
+                            row += ",";
+                        }
+                        row += ",";
+                    }
+                }
+
+            }
+            ps.println(row);
+            current_time += 1000.0 / frameRate;
+            ++nFrame;
+        }
+        ps.flush();
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import org.datavyu.models.db.*;
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the JSON export and the streaming reader of it.
+ */
+public class JsonDataStoreTest {
+
+    private static final int NUM_CELLS = 500000;
+
+    @Test
+    public void roundTrip() throws Exception {
+        DataStore ds = dataStore();
+        assertSameVariables(read(write(ds, false)), ds);
+        assertSameVariables(read(write(ds, true)), ds);
+    }
+
+    @Test
+    public void compactHasNumericTimes() throws Exception {
+        String json = new String(write(dataStore(), true), StandardCharsets.UTF_8);
+        assertTrue(json.contains("{\"onset\":3723004,\"offset\":3723999,\"values\":[\"a\"]}"), json);
+        assertTrue(!json.contains("\n"));
+    }
+
+    @Test
+    public void readsFieldsInAnyOrder() throws Exception {
+        String json = "{\"version\": {\"ignored\": [1, 2]}, \"passes\": ["
+                + "{\"name\": \"skipped\", \"type\": \"PREDICATE\", \"arguments\": {}, \"cells\": [{\"values\": []}]},"
+                + "{\"type\": \"MATRIX\", \"name\": \"m\", \"arguments\": {\"NOMINAL\": \"x\", \"NOMINAL\": \"y\"},"
+                + " \"cells\": [{\"values\": [\"1\", \"2\"], \"offset\": \"00:00:01:000\", \"id\": 1, \"onset\": 500}]}"
+                + "]}";
+        DataStore read = read(json.getBytes(StandardCharsets.UTF_8));
+        assertEquals(read.getAllVariables().size(), 1);
+        Variable m = read.getVariable("m");
+        assertEquals(m.getRootNode().childArguments.size(), 2);
+        assertEquals(m.getRootNode().childArguments.get(1).name, "y");
+        Cell cell = m.getCells().get(0);
+        assertEquals(cell.getOnset(), 500);
+        assertEquals(cell.getOffset(), 1000);
+        assertEquals(cell.getMatrixValue(1).toString(), "2");
+    }
+
+    @Test(expectedExceptions = UserWarningException.class)
+    public void rejectsCellsBeforeType() throws Exception {
+        read("{\"passes\": [{\"name\": \"t\", \"cells\": [], \"type\": \"TEXT\"}]}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expectedExceptions = UserWarningException.class)
+    public void rejectsBadTime() throws Exception {
+        read(("{\"passes\": [{\"name\": \"t\", \"type\": \"TEXT\", \"arguments\": {},"
+                + " \"cells\": [{\"onset\": \"00:01\"}]}]}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void roundTripEmptyVariablesAndNegativeTimes() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        ds.createVariable("empty", Argument.Type.TEXT);
+        ds.createVariable("emptyMatrix", Argument.Type.MATRIX).addArgument(Argument.Type.NOMINAL);
+        Variable times = ds.createVariable("times", Argument.Type.MATRIX);
+        times.addArgument(Argument.Type.TEXT);
+        times.createCell(-1, -3600001).setMatrixValue(0, "before");
+        times.createCell(-90061001, 0);
+
+        for (boolean compact : new boolean[]{false, true}) {
+            DataStore read = read(write(ds, compact));
+            assertSameVariables(read, ds);
+            assertEquals(read.getVariable("emptyMatrix").getRootNode().childArguments.size(), 2);
+            assertEquals(read.getVariable("times").getCellTemporally(0).getValueAsString(), "(,)");
+        }
+        String json = new String(write(ds, true), StandardCharsets.UTF_8);
+        assertTrue(json.contains("{\"onset\":-1,\"offset\":-3600001,\"values\":[\"before\",\"\"]}"), json);
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void roundTripLargeSpreadsheet() throws Exception {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable codes = ds.createVariable("codes", Argument.Type.MATRIX);
+        codes.addArgument(Argument.Type.NOMINAL);
+        for (int i = 0; i < NUM_CELLS; i++) {
+            Cell cell = codes.createCell(i * 40L, i * 40L + 39);
+            cell.setMatrixValue(0, "c" + (i % 10));
+            cell.setMatrixValue(1, "n" + (i % 7));
+        }
+
+        for (boolean compact : new boolean[]{false, true}) {
+            long start = System.nanoTime();
+            byte[] json = write(ds, compact);
+            long writeMillis = BenchmarkUtils.millisSince(start);
+            start = System.nanoTime();
+            DataStore read = read(json);
+            long readMillis = BenchmarkUtils.millisSince(start);
+            BenchmarkUtils.report("%s JSON of %d cells (%d MB): write %d ms, read %d ms",
+                    compact ? "Compact" : "Pretty", NUM_CELLS, json.length >> 20, writeMillis, readMillis);
+            assertEquals(read.getVariable("codes").getCells().size(), NUM_CELLS);
+        }
+    }
+
+    private static DataStore dataStore() throws UserWarningException {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable text = ds.createVariable("text", Argument.Type.TEXT);
+        text.createCell(3723004, 3723999).getCellValue().set("a");
+        text.createCell(0, 10).getCellValue().set("quote \" back\\slash \u00e9\u4e2d\n");
+        text.createCell(5, 5);
+        Variable nominal = ds.createVariable("nominal", Argument.Type.NOMINAL);
+        nominal.createCell(7, 8).getCellValue().set("n");
+        Variable matrix = ds.createVariable("matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.NOMINAL);
+        matrix.addArgument(Argument.Type.TEXT);
+        Cell cell = matrix.createCell(100, 200);
+        cell.setMatrixValue(0, "first");
+        cell.setMatrixValue(2, "third, with comma");
+        matrix.createCell(50, 60);
+        return ds;
+    }
+
+    private static byte[] write(final DataStore ds, final boolean compact) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator g = new JsonFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            new ExportDatabaseFileController().writeJSON(g, ds.snapshot(), compact);
+        }
+        return out.toByteArray();
+    }
+
+    private static DataStore read(final byte[] json) throws IOException, UserWarningException {
+        try (JsonParser parser = new JsonFactory().createParser(json)) {
+            return new JsonDataStoreReader(parser).read();
+        }
+    }
+
+    private static void assertSameVariables(final DataStore actual, final DataStore expected) {
+        List<Variable> actualVariables = actual.getAllVariables();
+        List<Variable> expectedVariables = expected.getAllVariables();
+        assertEquals(actualVariables.size(), expectedVariables.size());
+        for (Variable variable : expectedVariables) {
+            Variable read = actual.getVariable(variable.getName());
+            assertEquals(read.getRootNode().type, variable.getRootNode().type);
+            assertEquals(read.getRootNode().childArguments.size(), variable.getRootNode().childArguments.size());
+            List<Cell> readCells = read.getCellsTemporally();
+            List<Cell> cells = variable.getCellsTemporally();
+            assertEquals(readCells.size(), cells.size());
+            for (int i = 0; i < cells.size(); i++) {
+                assertEquals(readCells.get(i).getOnset(), cells.get(i).getOnset());
+                assertEquals(readCells.get(i).getOffset(), cells.get(i).getOffset());
+                assertEquals(readCells.get(i).getValueAsString(), cells.get(i).getValueAsString());
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@
 package org.datavyu.controllers;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
 
 import org.apache.logging.log4j.LogManager;
 import org.datavyu.models.db.Argument;
@@ -25,6 +26,7 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.util.Collections;
 import java.util.Comparator;
@@ -154,4 +156,38 @@ public class OpenControllerTest {
         List<Cell> cells = vars.get(0).getCells();
         assertEquals(cells.size(), 1);
     }
+
+    @Test
+    public void testLoadVariablesConcurrently() {
+        String csv = "#4\n"
+                + "codes (MATRIX,true,)-code|NOMINAL,note|NOMINAL\n"
+                + "00:00:01:000,00:00:02:000,(a,<note>)\n"
+                + "00:00:00:000,00:00:00:500,(b,first\\\n12:00 (TEXT\\,true\\,)\\\nlast)\n"
+                + "notes (TEXT,false,)\n"
+                + "00:00:03:000,00:00:04:000,some\\, text\n"
+                + "kinds (NOMINAL,true,)\n"
+                + "00:00:05:000,00:00:06:000,x\n"
+                + "00:00:07:000,00:00:08:000,y\n"
+                + "empty (MATRIX,true,)-code01|NOMINAL\n";
+        OpenDataStoreFileController controller = new OpenDataStoreFileController();
+        DataStore ds = controller.openAsCsv(new ByteArrayInputStream(csv.getBytes()));
+        assertNotNull(ds);
+
+        List<Variable> vars = ds.getAllVariables();
+        assertEquals(vars.size(), 4);
+        assertEquals(vars.get(0).getName(), "codes");
+        assertEquals(vars.get(1).getName(), "notes");
+        assertEquals(vars.get(2).getName(), "kinds");
+        assertEquals(vars.get(3).getName(), "empty");
+        assertEquals(vars.get(1).isHidden(), true);
+        assertEquals(vars.get(0).getOwningDatastore(), ds);
+
+        List<Cell> cells = vars.get(0).getCells();
+        assertEquals(cells.size(), 2);
+        assertEquals(cells.get(0).getValueAsString(), "(b,first\n12:00 (TEXT,true,)\nlast)");
+        assertEquals(cells.get(1).getValueAsString(), "(a,)");
+        assertEquals(vars.get(1).getCells().get(0).getValueAsString(), "some, text");
+        assertEquals(vars.get(2).getCells().size(), 2);
+        assertEquals(vars.get(3).getCells().size(), 0);
+    }
 }
@@ -0,0 +1,244 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.ZipFile;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests for the journal of incremental saves.
+ */
+public class ProjectJournalTest {
+
+    private static final Map<String, byte[]> NO_SETTINGS = Collections.emptyMap();
+
+    private File archive;
+
+    private DataStore ds;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        archive = File.createTempFile("journal", ".opf");
+        ds = DataStoreFactory.newDataStore();
+        Variable large = ds.createVariable("large", Argument.Type.TEXT);
+        for (int i = 0; i < 2000; i++) {
+            large.createCell(i * 10, i * 10 + 5).getCellValue().set("value " + i);
+        }
+        ds.createVariable("small", Argument.Type.NOMINAL).createCell(0, 1).getCellValue().set("a");
+        large.setOrderIndex(0);
+        ds.getVariable("small").setOrderIndex(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        ProjectJournal.discard(archive);
+        archive.delete();
+    }
+
+    @Test
+    public void appendsOnlyChangedVariables() throws Exception {
+        writeInFull(ds, true);
+        long archiveLength = archive.length();
+
+        ds.getVariable("small").getCells().get(0).getCellValue().set("b");
+        Variable added = ds.createVariable("added", Argument.Type.TEXT);
+        added.createCell(3, 4).getCellValue().set("new");
+        added.setOrderIndex(2);
+        assertTrue(ProjectJournal.append(archive, ds, bytes("second"), NO_SETTINGS));
+
+        ds.getVariable("small").setName("renamed");
+        ds.getVariable("renamed").setHidden(true);
+        assertTrue(ProjectJournal.append(archive, ds, bytes("second"), NO_SETTINGS));
+
+        assertEquals(archive.length(), archiveLength);
+        assertTrue(ProjectJournal.journalFile(archive).length() < archiveLength / 4);
+
+        ProjectJournal journal;
+        DataStore read;
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            journal = ProjectJournal.open(archive, zipFile);
+            assertEquals(text(journal.getProject()), "second");
+            read = new BinaryDataStoreReader(archive, zipFile).read(journal);
+        }
+        assertEquals(names(read), "large renamed added ");
+        assertTrue(read.getVariable("renamed").isHidden());
+        assertSameCells(read.getVariable("large"), ds.getVariable("large"));
+        assertSameCells(read.getVariable("renamed"), ds.getVariable("renamed"));
+        assertSameCells(read.getVariable("added"), added);
+
+        // Saves of the data store opened from the journal carry on appending to it.
+        journal.track(archive, read);
+        read.getVariable("added").createCell(5, 6);
+        assertTrue(ProjectJournal.append(archive, read, bytes("second"), NO_SETTINGS));
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            DataStore reread = new BinaryDataStoreReader(archive, zipFile).read(ProjectJournal.open(archive, zipFile));
+            assertEquals(names(reread), "large renamed added ");
+            assertEquals(reread.getVariable("added").getCells().size(), 2);
+            assertSameCells(reread.getVariable("large"), ds.getVariable("large"));
+        }
+    }
+
+    @Test
+    public void dropsIncompleteCommit() throws Exception {
+        writeInFull(ds, true);
+        ds.getVariable("small").getCells().get(0).getCellValue().set("b");
+        assertTrue(ProjectJournal.append(archive, ds, bytes("one"), NO_SETTINGS));
+        long committed = ProjectJournal.journalFile(archive).length();
+        ds.getVariable("small").getCells().get(0).getCellValue().set("c");
+        assertTrue(ProjectJournal.append(archive, ds, bytes("second"), NO_SETTINGS));
+
+        // A crash in the middle of writing the second commit.
+        try (RandomAccessFile file = new RandomAccessFile(ProjectJournal.journalFile(archive), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        DataStore read;
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            ProjectJournal journal = ProjectJournal.open(archive, zipFile);
+            assertEquals(text(journal.getProject()), "one");
+            read = new BinaryDataStoreReader(archive, zipFile).read(journal);
+            journal.track(archive, read);
+        }
+        assertEquals(read.getVariable("small").getCells().get(0).getValueAsString(), "b");
+
+        // The next save writes over the incomplete commit.
+        read.getVariable("small").getCells().get(0).getCellValue().set("d");
+        assertTrue(ProjectJournal.append(archive, read, bytes("third"), NO_SETTINGS));
+        assertTrue(ProjectJournal.journalFile(archive).length() > committed);
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            ProjectJournal journal = ProjectJournal.open(archive, zipFile);
+            assertEquals(text(journal.getProject()), "third");
+            read = new BinaryDataStoreReader(archive, zipFile).read(journal);
+        }
+        assertEquals(read.getVariable("small").getCells().get(0).getValueAsString(), "d");
+    }
+
+    @Test
+    public void ignoresJournalOfAnotherArchive() throws Exception {
+        writeInFull(ds, true);
+        ds.getVariable("small").getCells().get(0).getCellValue().set("b");
+        assertTrue(ProjectJournal.append(archive, ds, bytes("first"), NO_SETTINGS));
+
+        // Written in full by a version that does not know about journals.
+        ds.getVariable("small").getCells().get(0).getCellValue().set("c");
+        writeInFull(ds, false);
+
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            ProjectJournal journal = ProjectJournal.open(archive, zipFile);
+            assertNull(journal.getProject());
+            DataStore read = new BinaryDataStoreReader(archive, zipFile).read(journal);
+            assertEquals(read.getVariable("small").getCells().get(0).getValueAsString(), "c");
+        }
+    }
+
+    @Test
+    public void writesInFullWhenNotTracked() throws Exception {
+        assertFalse(ProjectJournal.append(archive, ds, bytes("first"), NO_SETTINGS));
+        writeInFull(ds, true);
+        assertFalse(ProjectJournal.append(archive, DataStoreFactory.newDataStore(), bytes("first"), NO_SETTINGS));
+        ProjectJournal.stopTracking(archive);
+        assertFalse(ProjectJournal.append(archive, ds, bytes("first"), NO_SETTINGS));
+    }
+
+    @Test
+    public void leavesUnloadedVariablesUnloaded() throws Exception {
+        ds.getVariable("small").setHidden(true);
+        writeInFull(ds, true);
+        ds.getVariable("small").getCells().get(0).getCellValue().set("b");
+        assertTrue(ProjectJournal.append(archive, ds, bytes("first"), NO_SETTINGS));
+
+        DataStore read;
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            ProjectJournal journal = ProjectJournal.open(archive, zipFile);
+            read = new BinaryDataStoreReader(archive, zipFile).read(journal);
+            journal.track(archive, read);
+        }
+        DatavyuVariable small = (DatavyuVariable) read.getVariable("small");
+
+        // Neither journaling nor writing in full loads the hidden variable, which was read from the journal.
+        read.createVariable("added", Argument.Type.TEXT).createCell(0, 1);
+        assertTrue(ProjectJournal.append(archive, read, bytes("first"), NO_SETTINGS));
+        writeInFull(read, true);
+        assertFalse(small.isLoaded());
+        assertFalse(ProjectJournal.journalFile(archive).exists());
+
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            read = new BinaryDataStoreReader(archive, zipFile).read(ProjectJournal.open(archive, zipFile));
+        }
+        assertEquals(read.getVariable("small").getCells().get(0).getValueAsString(), "b");
+        assertEquals(read.getVariable("added").getCells().size(), 1);
+        assertEquals(small.getCells().get(0).getValueAsString(), "b");
+    }
+
+    /**
+     * Writes the archive the way SaveController does.
+     */
+    private void writeInFull(final DataStore dataStore, final boolean checkpoint) throws IOException {
+        BinaryDataStoreWriter writer = new BinaryDataStoreWriter(dataStore);
+        BatchController.writeFile(archive, out -> {
+            ArchiveWriter archiveWriter = new ArchiveWriter(out, Deflater.DEFAULT_COMPRESSION);
+            archiveWriter.putEntry("project", bytes("first"));
+            writer.write(archiveWriter);
+            archiveWriter.finish();
+        }, true);
+        if (checkpoint) {
+            ProjectJournal.checkpoint(archive, dataStore, writer, bytes("first"), NO_SETTINGS);
+        }
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String names(final DataStore dataStore) {
+        StringBuilder names = new StringBuilder();
+        for (Variable variable : dataStore.getAllVariables()) {
+            names.append(variable.getName()).append(' ');
+        }
+        return names.toString();
+    }
+
+    private static void assertSameCells(final Variable actual, final Variable expected) {
+        List<Cell> actualCells = actual.getCellsTemporally();
+        List<Cell> expectedCells = expected.getCellsTemporally();
+        assertEquals(actualCells.size(), expectedCells.size());
+        for (int i = 0; i < actualCells.size(); i++) {
+            assertEquals(actualCells.get(i).getOnset(), expectedCells.get(i).getOnset());
+            assertEquals(actualCells.get(i).getOffset(), expectedCells.get(i).getOffset());
+            assertEquals(actualCells.get(i).getValueAsString(), expectedCells.get(i).getValueAsString());
+        }
+    }
+}
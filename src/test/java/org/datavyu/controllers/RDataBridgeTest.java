@@ -0,0 +1,282 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.models.db.*;
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for passing the data store to R and reading the output of R back.
+ */
+public class RDataBridgeTest {
+
+    private DataStore ds;
+
+    private Variable matrix;
+
+    private Variable text;
+
+    @BeforeMethod
+    public void setUp() throws UserWarningException {
+        ds = DataStoreFactory.newDataStore();
+        matrix = ds.createVariable("Matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.NOMINAL);
+        for (int i = 9; i >= 0; i--) {
+            Cell cell = matrix.createCell(i * 1000, i * 1000 + 500);
+            cell.setMatrixValue(0, "m" + i);
+            if (i % 2 == 0) {
+                cell.setMatrixValue(1, "x");
+            }
+        }
+        text = ds.createVariable("text", Argument.Type.TEXT);
+        text.createCell(0, 10).getCellValue().set("say \"hi\", then go");
+        text.createCell(20, 30);
+    }
+
+    private static List<List<String>> readAll(final Reader in) throws IOException {
+        List<List<String>> records = new ArrayList<>();
+        for (List<String> record = RDataBridge.readRecord(in); record != null; record = RDataBridge.readRecord(in)) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * @return The files that the load code reads, by the name of the list element.
+     */
+    private static List<String[]> loads(final String code) {
+        List<String[]> result = new ArrayList<>();
+        Matcher m = Pattern.compile("db\\[\\[\"(.*)\"]] <- read\\.csv\\(\"([^\"]*)\", colClasses = (c\\([^)]*\\)+)")
+                .matcher(code);
+        while (m.find()) {
+            result.add(new String[]{m.group(1), m.group(2), m.group(3)});
+        }
+        return result;
+    }
+
+    @Test
+    public void exportsTheCellsInOrder() throws IOException {
+        try (RDataBridge bridge = new RDataBridge()) {
+            bridge.export(ds);
+            List<String[]> loads = loads(bridge.getLoadCode());
+            assertEquals(loads.size(), 2);
+            assertEquals(loads.get(0)[0], "matrix");
+            assertEquals(loads.get(0)[2], "c(\"integer\", \"numeric\", \"numeric\", rep(NA, 2))");
+            assertEquals(loads.get(1)[0], "text");
+
+            List<List<String>> rows = readAll(Files.newBufferedReader(new File(loads.get(0)[1]).toPath()));
+            assertEquals(rows.size(), 11);
+            List<String> header = new ArrayList<>(Arrays.asList("ordinal", "onset", "offset"));
+            for (Argument child : matrix.getRootNode().childArguments) {
+                header.add(child.name);
+            }
+            assertEquals(rows.get(0), header);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(rows.get(i + 1), Arrays.asList(String.valueOf(i + 1), String.valueOf(i * 1000),
+                        String.valueOf(i * 1000 + 500), "m" + i, i % 2 == 0 ? "x" : ""));
+            }
+
+            rows = readAll(Files.newBufferedReader(new File(loads.get(1)[1]).toPath()));
+            assertEquals(rows, Arrays.asList(Arrays.asList("ordinal", "onset", "offset", "arg"),
+                    Arrays.asList("1", "0", "10", "say \"hi\", then go"), Arrays.asList("2", "20", "30", "")));
+        }
+    }
+
+    @Test
+    public void readsQuotedValues() throws IOException {
+        List<List<String>> records = readAll(new StringReader("\"a\",\"b \"\"c\"\"\",,1.5\r\n\"x\ny\",\"\",NA\n"));
+        assertEquals(records, Arrays.asList(Arrays.asList("a", "b \"c\"", "", "1.5"),
+                Arrays.asList("x\ny", "", "NA")));
+        assertEquals(RDataBridge.rString("C:\\tmp\\\"x\""), "\"C:\\\\tmp\\\\\\\"x\\\"\"");
+    }
+
+    private static void writeOutput(final RDataBridge bridge, final String... files) throws IOException {
+        File output = bridge.getOutputDirectory();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < files.length; i += 2) {
+            names.add(files[i]);
+            Files.write(new File(output, (i / 2 + 1) + ".csv").toPath(),
+                    files[i + 1].getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(new File(output, RDataBridge.NAMES).toPath(), names, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void readsOutputBack() throws Exception {
+        Argument rootNode = matrix.getRootNode();
+        String codes = "\"" + rootNode.childArguments.get(0).name + "\",\"" + rootNode.childArguments.get(1).name
+                + "\"";
+        StringBuilder changed = new StringBuilder("\"ordinal\",\"onset\",\"offset\"," + codes + "\n");
+        for (int i = 0; i < 10; i++) {
+            // One cell changed, one left out, one added.
+            if (i != 3) {
+                changed.append(i + 1).append(',').append(i * 1000).append(',').append(i * 1000 + 500)
+                        .append(",\"m").append(i == 5 ? "changed" : String.valueOf(i)).append("\",")
+                        .append(i % 2 == 0 ? "\"x\"" : "").append('\n');
+            }
+        }
+        changed.append("NA,20000,20000.4,\"new\",\"\"\n");
+
+        try (RDataBridge bridge = new RDataBridge()) {
+            assertFalse(bridge.hasOutput());
+            writeOutput(bridge, "Matrix", changed.toString(),
+                    "text", "\"onset\",\"offset\",\"code01\"\n5,6,\"now a matrix\"\n",
+                    "summary", "\"onset\",\"offset\",\"mean\",\"n\"\n0,9500,4.5,10\n",
+                    "notes", "\"onset\",\"offset\",\"arg\"\n100,200,\"a note\"\n");
+            assertTrue(bridge.hasOutput());
+
+            DataStoreCopy copy = DataStoreCopy.of(ds);
+            assertEquals(bridge.read(copy.getCopy()), Arrays.asList("Matrix", "text", "summary", "notes"));
+            DataStoreDiff diff = copy.diff();
+            assertEquals(diff.toString(), "2 columns added, 0 removed, 1 replaced, 0 renamed; "
+                    + "2 cells added, 2 removed, 0 changed");
+            diff.apply();
+        }
+
+        assertSame(ds.getVariable("Matrix"), matrix);
+        assertEquals(matrix.getCells().size(), 10);
+        assertEquals(matrix.getCellTemporally(4).getMatrixValue(0).toString(), "mchanged");
+        assertEquals(matrix.getCellTemporally(9).getOffset(), 20000);
+
+        Variable replaced = ds.getVariable("text");
+        assertNotSame(replaced, text);
+        assertEquals(replaced.getRootNode().type, Argument.Type.MATRIX);
+        assertEquals(replaced.getCellTemporally(0).getMatrixValue(0).toString(), "now a matrix");
+
+        Variable summary = ds.getVariable("summary");
+        assertEquals(summary.getRootNode().childArguments.get(1).name, "n");
+        assertEquals(summary.getCellTemporally(0).getMatrixValue(0).toString(), "4.5");
+        assertEquals(summary.getCellTemporally(0).getMatrixValue(1).toString(), "10");
+        assertEquals(ds.getVariable("notes").getRootNode().type, Argument.Type.TEXT);
+        assertEquals(ds.getVariable("notes").getCellTemporally(0).getValueAsString(), "a note");
+    }
+
+    @Test
+    public void makesTheNamesOfR() {
+        assertEquals(RDataBridge.rNames(Arrays.asList("code01", "my code", "2nd", "_x", ".5", "if", "onset", "a-b",
+                "a.b")), Arrays.asList("code01", "my.code", "X2nd", "X_x", "X.5", "if.", "onset.1", "a.b", "a.b.1"));
+    }
+
+    @Test
+    public void readsNamesMadeByRBack() throws Exception {
+        Argument rootNode = matrix.getRootNode();
+        rootNode.childArguments.get(1).name = "second code";
+        matrix.setRootNode(rootNode);
+
+        try (RDataBridge bridge = new RDataBridge()) {
+            writeOutput(bridge, "Matrix", "\"ordinal\",\"onset\",\"offset\",\"" + rootNode.childArguments.get(0).name
+                    + "\",\"second.code\"\n1,0,500,\"m0\",\"y\"\n");
+            DataStoreCopy copy = DataStoreCopy.of(ds);
+            bridge.read(copy.getCopy());
+            DataStoreDiff diff = copy.diff();
+            assertTrue(diff.getReplacements().isEmpty(), diff.toString());
+            diff.apply();
+        }
+
+        assertSame(ds.getVariable("Matrix"), matrix);
+        assertEquals(matrix.getRootNode().childArguments.get(1).name, "second code");
+        assertEquals(matrix.getCells().size(), 1);
+        assertEquals(matrix.getCellTemporally(0).getMatrixValue(1).toString(), "y");
+    }
+
+    @Test
+    public void rejectsOutputWithoutTimes() throws IOException {
+        try (RDataBridge bridge = new RDataBridge()) {
+            writeOutput(bridge, "times", "\"onset\",\"offset\",\"arg\"\n1,two,\"x\"\n");
+            bridge.read(DataStoreCopy.of(ds).getCopy());
+            fail("The offset is not a number");
+        } catch (UserWarningException e) {
+            assertTrue(e.getMessage().contains("'two'"), e.getMessage());
+        }
+        try (RDataBridge bridge = new RDataBridge()) {
+            writeOutput(bridge, "times", "\"start\",\"offset\",\"arg\"\n1,2,\"x\"\n");
+            bridge.read(DataStoreCopy.of(ds).getCopy());
+            fail("There is no onset column");
+        } catch (UserWarningException e) {
+            assertTrue(e.getMessage().contains("onset"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void exportsEmptyColumnsAndNegativeTimes() throws IOException, UserWarningException {
+        DataStore edges = DataStoreFactory.newDataStore();
+        edges.createVariable("empty", Argument.Type.MATRIX).addArgument(Argument.Type.NOMINAL);
+        Variable before = edges.createVariable("before", Argument.Type.NOMINAL);
+        before.createCell(-90061001, -1).getCellValue().set("n");
+        before.createCell(-3600000, 0);
+
+        try (RDataBridge bridge = new RDataBridge()) {
+            bridge.export(edges);
+            Set<String> names = new HashSet<>();
+            for (String[] load : loads(bridge.getLoadCode())) {
+                names.add(load[0]);
+                List<List<String>> rows = readAll(Files.newBufferedReader(new File(load[1]).toPath()));
+                if (load[0].equals("empty")) {
+                    // The columns are still there, for R to name them.
+                    assertEquals(rows, Arrays.asList(Arrays.asList("ordinal", "onset", "offset", "code01", "code02")));
+                } else {
+                    assertEquals(rows, Arrays.asList(Arrays.asList("ordinal", "onset", "offset", "arg"),
+                            Arrays.asList("1", "-90061001", "-1", "n"), Arrays.asList("2", "-3600000", "0", "")));
+                }
+            }
+            assertEquals(names, new HashSet<>(Arrays.asList("empty", "before")));
+        }
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void exportsLargeDataStore() throws Exception {
+        DataStore large = DataStoreFactory.newDataStore();
+        for (int v = 0; v < 8; v++) {
+            Variable var = large.createVariable("v" + v, Argument.Type.MATRIX);
+            var.addArgument(Argument.Type.NOMINAL);
+            for (int i = 0; i < 50000; i++) {
+                Cell cell = var.createCell(i * 100L, i * 100L + 50);
+                cell.setMatrixValue(0, "a" + i % 17);
+                cell.setMatrixValue(1, "b" + i % 5);
+            }
+        }
+        long start = System.nanoTime();
+        try (RDataBridge bridge = new RDataBridge()) {
+            bridge.export(large);
+            BenchmarkUtils.report("Exported 8 columns of 50000 cells for R in %d ms", BenchmarkUtils.millisSince(start));
+            for (String[] load : loads(bridge.getLoadCode())) {
+                assertEquals(Files.readAllLines(new File(load[1]).toPath()).size(), 50001);
+            }
+        }
+    }
+}
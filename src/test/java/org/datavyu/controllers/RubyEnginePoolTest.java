@@ -0,0 +1,83 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.Datavyu;
+import org.datavyu.controllers.project.ProjectController;
+import org.datavyu.models.db.DataStore;
+import org.datavyu.models.db.DataStoreFactory;
+import org.jruby.embed.EvalFailedException;
+import org.jruby.embed.ScriptingContainer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the engines kept ready for Ruby scripts.
+ */
+public class RubyEnginePoolTest {
+
+    @AfterMethod
+    public void tearDown() {
+        Datavyu.setProjectController(null);
+    }
+
+    /**
+     * Makes the API see the given data store as the one of the open project.
+     */
+    private static void open(final DataStore ds) {
+        ProjectController controller = mock(ProjectController.class);
+        when(controller.getDataStore()).thenReturn(ds);
+        Datavyu.setProjectController(controller);
+    }
+
+    @Test
+    public void failedScriptLeavesTheNextEngineFresh() {
+        // The next engine is loaded while one project is open, and taken after another one has been opened.
+        open(DataStoreFactory.newDataStore());
+        ScriptingContainer first = RubyEnginePool.take();
+        try {
+            first.runScriptlet("$left_over = 1\n"
+                    + "def left_over\n"
+                    + "  2\n"
+                    + "end\n"
+                    + "raise 'script failed'\n");
+            throw new AssertionError("The script did not fail");
+        } catch (EvalFailedException e) {
+            assertTrue(e.getMessage().contains("script failed"), e.getMessage());
+        } finally {
+            first.terminate();
+        }
+        DataStore ds = DataStoreFactory.newDataStore();
+        open(ds);
+
+        ScriptingContainer second = RubyEnginePool.take();
+        try {
+            assertNotSame(second, first);
+            assertEquals(second.runScriptlet("defined?(get_column)"), "method");
+            assertEquals(second.runScriptlet("defined?($left_over)"), null);
+            assertEquals(second.runScriptlet("defined?(left_over)"), null);
+            assertSame(second.runScriptlet("$db"), ds);
+        } finally {
+            second.terminate();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import org.datavyu.Datavyu;
+import org.datavyu.controllers.project.ProjectController;
+import org.datavyu.models.db.*;
+import org.jruby.embed.EvalFailedException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Runs Ruby scripts through the API the way the script runner does: on a copy of the spreadsheet, whose changes are
+ * then applied like ScriptChangesEdit applies and undoes them.
+ */
+public class RunScriptControllerTest {
+
+    private DataStore ds;
+
+    private Variable trial;
+
+    private StringWriter output;
+
+    @BeforeMethod
+    public void setUp() throws UserWarningException {
+        ds = DataStoreFactory.newDataStore();
+        trial = ds.createVariable("trial", Argument.Type.MATRIX);
+        trial.addArgument(Argument.Type.NOMINAL);
+        for (int i = 0; i < 5; i++) {
+            Cell cell = trial.createCell(i * 1000, i * 1000 + 999);
+            cell.setMatrixValue(0, "c" + i);
+            cell.setMatrixValue(1, i % 2 == 0 ? "even" : "odd");
+        }
+
+        // The API takes the data store from the project controller when it is loaded.
+        ProjectController controller = mock(ProjectController.class);
+        when(controller.getDataStore()).thenReturn(ds);
+        Datavyu.setProjectController(controller);
+        output = new StringWriter();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        Datavyu.setProjectController(null);
+    }
+
+    /**
+     * @return The cells of a variable as onset, offset and value.
+     */
+    private static List<String> cells(final Variable variable) {
+        List<String> result = new ArrayList<>();
+        for (Cell cell : variable.getCellsTemporally()) {
+            result.add(cell.getOnset() + "," + cell.getOffset() + "," + cell.getValueAsString());
+        }
+        return result;
+    }
+
+    /**
+     * Runs a script on a copy of the data store.
+     *
+     * @return The changes the script made.
+     */
+    private DataStoreDiff run(final String script) {
+        DataStoreCopy copy = DataStoreCopy.of(ds);
+        RunScriptController.runRuby(new StringReader(script), copy, output);
+        return copy.diff();
+    }
+
+    @Test
+    public void roundTripChangesNothing() {
+        List<String> before = cells(trial);
+
+        DataStoreDiff changes = run("set_column(get_column('trial'))\n");
+
+        assertTrue(changes.isEmpty(), changes.toString());
+        assertEquals(cells(trial), before);
+    }
+
+    @Test
+    public void appliesAndRevertsTheChanges() throws UserWarningException {
+        List<String> before = cells(trial);
+
+        DataStoreDiff changes = run("trial = get_column('trial')\n"
+                + "trial.cells.each { |cell| cell.change_code('code01', cell.get_code('code01') + 'x') }\n"
+                + "trial.cells.last.offset = 9000\n"
+                + "set_column(trial)\n"
+                + "set_column('trial_copy', get_column('trial'))\n"
+                + "puts 'done'\n");
+
+        assertTrue(output.toString().contains("done"), output.toString());
+        // The script only changed its copy.
+        assertEquals(cells(trial), before);
+        assertNull(ds.getVariable("trial_copy"));
+        assertFalse(changes.isEmpty());
+        assertTrue(changes.getReplacements().isEmpty());
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            expected.add(i * 1000 + "," + (i == 4 ? 9000 : i * 1000 + 999) + ",(c" + i + "x,"
+                    + (i % 2 == 0 ? "even" : "odd") + ")");
+        }
+        changes.apply();
+        assertEquals(cells(trial), expected);
+        assertEquals(cells(ds.getVariable("trial_copy")), expected);
+
+        changes.revert();
+        assertEquals(cells(trial), before);
+        assertNull(ds.getVariable("trial_copy"));
+    }
+
+    @Test
+    public void failedScriptLeavesTheSpreadsheet() {
+        List<String> before = cells(trial);
+        DataStoreCopy copy = DataStoreCopy.of(ds);
+        try {
+            RunScriptController.runRuby(new StringReader("trial = get_column('trial')\n"
+                    + "trial.cells.each { |cell| cell.change_code('code01', 'changed') }\n"
+                    + "set_column(trial)\n"
+                    + "raise 'stopped'\n"), copy, output);
+            fail("The script did not fail");
+        } catch (EvalFailedException e) {
+            assertTrue(e.getMessage().contains("stopped"), e.getMessage());
+        }
+        assertEquals(cells(trial), before);
+    }
+}
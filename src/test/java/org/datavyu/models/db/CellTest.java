@@ -142,4 +142,15 @@ public class CellTest {
 //        assertEquals(model.getOnset(), 17999999);
         assertEquals(model.getOnsetString(), "04:59:59:999");
     }
+
+    @Test
+    public void testRandomIds() {
+        // Ids are saved with the values, so they must not repeat the ids of another run.
+        DatavyuCell cell = (DatavyuCell) model;
+        DatavyuCell other = (DatavyuCell) var.createCell();
+        assertEquals(cell.getID().version(), 4);
+        assertEquals(((DatavyuCellValue) cell.getCellValue()).id.version(), 4);
+        assertFalse(cell.getID().equals(other.getID()));
+        assertFalse(cell.getID().getMostSignificantBits() == other.getID().getMostSignificantBits());
+    }
 }
@@ -0,0 +1,186 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.datavyu.Datavyu;
+import org.datavyu.controllers.project.ProjectController;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.fail;
+
+/**
+ * Runs the column analyses of the Ruby API in JRuby next to the Ruby versions they replaced (kept in
+ * ruby/baseline_analytics.rb), on the same columns.
+ */
+public class ColumnAnalyticsRubyTest {
+
+    /** Lists the cells of a column, one per line, as onset, offset and code values. */
+    private static final String DUMP_CELLS = "def dump_cells(col)\n"
+            + "  col.cells.map{ |c| ([c.onset, c.offset] + c.argvals).join(',') }.join(\"\\n\")\n"
+            + "end\n";
+
+    /** Lists the kappas and the tables of compute_kappa. */
+    private static final String DUMP_KAPPAS = "def dump_kappas(kappas, tables)\n"
+            + "  kappas.map{ |code, kappa| \"#{code}=#{kappa}\" }.join(';') + \"\\n\" +\n"
+            + "    tables.map{ |code, t| \"#{code}:#{t.codes.join(',')}:#{t.table.to_a}\" }.join(';')\n"
+            + "end\n";
+
+    private ScriptEngine engine;
+
+    @BeforeClass
+    public void setUp() throws UserWarningException, ScriptException, IOException {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Random random = new Random(25);
+        // Two columns of cells in order, apart or touching, some a millisecond long or a point.
+        addCells(ds.createVariable("looking", Argument.Type.MATRIX), random, 120, "left", "right", "away");
+        addCells(ds.createVariable("talking", Argument.Type.MATRIX), random, 90, "yes", "no");
+        // A primary column of long cells and a reliability column coding every other one of them.
+        Variable pri = ds.createVariable("pri", Argument.Type.MATRIX);
+        Variable rel = ds.createVariable("rel", Argument.Type.MATRIX);
+        // The same with a reliability cell that has no primary cell.
+        Variable mismatched = ds.createVariable("mismatched", Argument.Type.MATRIX);
+        for (Variable var : new Variable[]{pri, rel, mismatched}) {
+            var.addArgument(Argument.Type.NOMINAL);
+        }
+        for (int i = 0; i < 60; i++) {
+            String value = i % 3 == 0 ? "x" : i % 3 == 1 ? "y" : "z";
+            String other = random.nextBoolean() ? "a" : "b";
+            Cell cell = pri.createCell(i * 10000L, i * 10000L + random.nextInt(10000));
+            cell.setMatrixValue(0, value);
+            cell.setMatrixValue(1, other);
+            if (i % 2 == 0) {
+                Cell relCell = rel.createCell(cell.getOnset(), cell.getOffset());
+                relCell.setMatrixValue(0, random.nextInt(10) < 7 ? value : "x");
+                relCell.setMatrixValue(1, random.nextInt(10) < 7 ? other : "a");
+                Cell mismatchedCell = mismatched.createCell(relCell.getOnset(), relCell.getOffset());
+                mismatchedCell.setMatrixValue(0, relCell.getMatrixValue(0).toString());
+                mismatchedCell.setMatrixValue(1, relCell.getMatrixValue(1).toString());
+            }
+        }
+        mismatched.createCell(5, 9000).setMatrixValue(0, "y");
+
+        // The API takes the data store from the project controller when it is loaded.
+        ProjectController controller = mock(ProjectController.class);
+        when(controller.getDataStore()).thenReturn(ds);
+        Datavyu.setProjectController(controller);
+
+        engine = new ScriptEngineManager().getEngineByName("jruby");
+        assertNotNull(engine, "No JRuby script engine");
+        engine.getContext().setWriter(new StringWriter());
+        engine.eval("load 'Datavyu_API.rb'\n");
+        try (Reader baseline = new InputStreamReader(
+                getClass().getResourceAsStream("/ruby/baseline_analytics.rb"), StandardCharsets.UTF_8)) {
+            engine.eval(baseline);
+        }
+        engine.eval(DUMP_CELLS + DUMP_KAPPAS);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        Datavyu.setProjectController(null);
+    }
+
+    /**
+     * Adds cells with two codes to a variable.
+     */
+    private static void addCells(final Variable var, final Random random, final int size, final String... values) {
+        var.addArgument(Argument.Type.NOMINAL);
+        long time = 1 + random.nextInt(50);
+        for (int i = 0; i < size; i++) {
+            long onset = time + (random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(400));
+            int length = random.nextInt(5) == 0 ? random.nextInt(2) : 1 + random.nextInt(1200);
+            Cell cell = var.createCell(onset, onset + length);
+            cell.setMatrixValue(0, values[random.nextInt(values.length)]);
+            cell.setMatrixValue(1, Integer.toString(i));
+            time = onset + length + (random.nextBoolean() ? 0 : 1);
+        }
+    }
+
+    /**
+     * Checks that two Ruby expressions give the same, not empty, result.
+     */
+    private void assertSameAsBaseline(final String expression, final String baseline) throws ScriptException {
+        String result = String.valueOf(engine.eval(expression));
+        assertFalse(result.isEmpty(), expression);
+        assertEquals(result, String.valueOf(engine.eval(baseline)), expression);
+    }
+
+    @Test
+    public void resamplesLikeTheBaseline() throws ScriptException {
+        assertSameAsBaseline("dump_cells(get_column('looking').resample(250))",
+                "dump_cells(get_column('looking').baseline_resample(250))");
+        assertSameAsBaseline("dump_cells(get_column('talking').resample(97, :start_time => 50, :stop_time => 20000))",
+                "dump_cells(get_column('talking').baseline_resample(97, :start_time => 50, :stop_time => 20000))");
+        assertSameAsBaseline("dump_cells(get_column('looking').resample(3, :start_time => 1000, :stop_time => 4000))",
+                "dump_cells(get_column('looking').baseline_resample(3, :start_time => 1000, :stop_time => 4000))");
+    }
+
+    @Test
+    public void makesMutuallyExclusiveCellsLikeTheBaseline() throws ScriptException {
+        assertSameAsBaseline("dump_cells(create_mutually_exclusive('mutex', 'looking', 'talking'))",
+                "dump_cells(baseline_create_mutually_exclusive('mutex', 'looking', 'talking'))");
+        assertSameAsBaseline("dump_cells(create_mutually_exclusive('mutex', 'talking', 'looking', 't_', 'l_'))",
+                "dump_cells(baseline_create_mutually_exclusive('mutex', 'talking', 'looking', 't_', 'l_'))");
+    }
+
+    @Test
+    public void mergesLikeTheBaseline() throws ScriptException {
+        assertSameAsBaseline("dump_cells(merge_columns('merged', 'looking', 'talking', 'rel'))",
+                "dump_cells(baseline_merge_columns('merged', 'looking', 'talking', 'rel'))");
+    }
+
+    @Test
+    public void computesKappaLikeTheBaseline() throws ScriptException {
+        assertSameAsBaseline("dump_kappas(*compute_kappa('pri', 'rel', 'code01', 'code02'))",
+                "dump_kappas(*baseline_compute_kappa('pri', 'rel', 'code01', 'code02'))");
+    }
+
+    @Test
+    public void failsOnUnmatchedCellsLikeTheBaseline() {
+        for (String kappa : new String[]{"compute_kappa", "baseline_compute_kappa"}) {
+            try {
+                engine.eval(kappa + "('pri', 'mismatched', 'code01', 'code02')");
+                fail(kappa + " counted a reliability cell without a primary cell");
+            } catch (ScriptException e) {
+                // The baseline fails on the missing primary cell, compute_kappa says which cell it is.
+            }
+        }
+    }
+
+    @Test
+    public void makesDurationBlocksLikeTheBaseline() throws ScriptException {
+        engine.eval("make_duration_block_rel('new_rel', 'looking', 'pri', 2, 2)\n"
+                + "baseline_make_duration_block_rel('baseline_rel', 'looking', 'pri', 2, 2)\n");
+        assertSameAsBaseline("dump_cells(get_column('new_rel_blocks'))",
+                "dump_cells(get_column('baseline_rel_blocks'))");
+    }
+}
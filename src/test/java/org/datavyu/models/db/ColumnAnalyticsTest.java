@@ -0,0 +1,307 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the column analyses of the Ruby API, against the Ruby versions: the reference methods here go through the
+ * cells the way the Ruby code does, line for line.
+ */
+public class ColumnAnalyticsTest {
+
+    /** The cells of a column: onsets and offsets. */
+    private static long[][] column(final Random random, final int size, final boolean tidy) {
+        long[] onsets = new long[size];
+        long[] offsets = new long[size];
+        long time = random.nextInt(50);
+        for (int i = 0; i < size; i++) {
+            if (tidy) {
+                // In order, apart or touching, some a millisecond long or a point.
+                onsets[i] = time + (random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(40));
+                int length = random.nextInt(5) == 0 ? random.nextInt(2) : random.nextInt(120);
+                offsets[i] = onsets[i] + length;
+                time = offsets[i] + (random.nextBoolean() ? 0 : 1);
+            } else {
+                // Anywhere, overlapping, some backwards.
+                onsets[i] = random.nextInt(size * 40 + 1);
+                offsets[i] = onsets[i] + random.nextInt(300) - (random.nextInt(10) == 0 ? 100 : 0);
+            }
+        }
+        return new long[][]{onsets, offsets};
+    }
+
+    // RColumn#resample
+    private static int[] resampleLikeRuby(final long[] onsets, final long[] offsets, final long start,
+                                          final long stop, final long step) {
+        List<Integer> result = new ArrayList<>();
+        for (long time = start; time <= stop; time += step) {
+            long on = time;
+            long off = time + step - 1;
+            int winner = -1;
+            long largest = 0;
+            // The first of the largest, as the sort leaves them.
+            for (int i = 0; i < onsets.length; i++) {
+                if (ColumnAnalytics.overlaps(onsets[i], offsets[i], on, off)) {
+                    long d = Math.min(offsets[i], off) - Math.max(onsets[i], on);
+                    if (winner < 0 || d > largest) {
+                        winner = i;
+                        largest = d;
+                    }
+                }
+            }
+            result.add(winner);
+        }
+        return result.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static long[] timesLikeRuby(final long[]... times) {
+        TreeSet<Long> set = new TreeSet<>();
+        for (long[] t : times) {
+            for (long time : t) {
+                set.add(time);
+            }
+        }
+        return set.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    // create_mutually_exclusive, returning onset, offset, cell of var1, cell of var2 for every new cell
+    private static List<List<Long>> mutexLikeRuby(final long[] on1, final long[] off1, final long[] on2,
+                                                  final long[] off2) {
+        long[] timeChanges = timesLikeRuby(on1, off1, on2, off2);
+        List<List<Long>> result = new ArrayList<>();
+        int v1idx = 0;
+        int v2idx = 0;
+        for (int i = 0; i < timeChanges.length - 1; i++) {
+            long t0 = timeChanges[i];
+            long t1 = timeChanges[i + 1];
+            int v1cell = -1;
+            for (int j = v1idx; j < on1.length; j++) {
+                if (on1[j] <= t0 && off1[j] >= t1 && (t1 - t0 > 1 || (on1[j] == t0 && off1[j] == t1))) {
+                    v1cell = j;
+                    v1idx = j;
+                    break;
+                }
+            }
+            int v2cell = -1;
+            for (int j = v2idx; j < on2.length; j++) {
+                if (on2[j] <= t0 && off2[j] >= t1 && (t1 - t0 > 1 || (on2[j] == t0 && off2[j] == t1))) {
+                    v2cell = j;
+                    v2idx = j;
+                    break;
+                }
+            }
+            if (v1cell >= 0 || v2cell >= 0) {
+                result.add(Arrays.asList(t0, t1, (long) v1cell, (long) v2cell));
+            }
+        }
+        return result;
+    }
+
+    // merge_columns, after the point cells are made a millisecond long
+    private static List<List<Long>> mergeLikeRuby(final long[][] onsets, final long[][] offsets) {
+        long[][] all = new long[onsets.length * 2][];
+        for (int c = 0; c < onsets.length; c++) {
+            all[c * 2] = onsets[c];
+            all[c * 2 + 1] = offsets[c];
+        }
+        long[] times = timesLikeRuby(all);
+        List<List<Long>> result = new ArrayList<>();
+        for (int i = 1; i < times.length; i++) {
+            long onset = times[i - 1];
+            long offset = times[i];
+            List<Long> row = new ArrayList<>(Arrays.asList(onset, offset));
+            for (int c = 0; c < onsets.length; c++) {
+                long found = -1;
+                for (int j = 0; j < onsets[c].length; j++) {
+                    // RCell#contains
+                    if (onset >= onsets[c][j] && offset <= offsets[c][j] && onset <= offsets[c][j]
+                            && offset >= onsets[c][j]) {
+                        found = j;
+                        break;
+                    }
+                }
+                row.add(found);
+            }
+            result.add(row);
+        }
+        return result;
+    }
+
+    private static List<List<Long>> rows(final ColumnAnalytics.Intervals intervals, final int columns) {
+        List<List<Long>> result = new ArrayList<>();
+        long[] onsets = intervals.getOnsets();
+        long[] offsets = intervals.getOffsets();
+        int[][] sources = new int[columns][];
+        for (int c = 0; c < columns; c++) {
+            sources[c] = intervals.getSources(c);
+        }
+        for (int i = 0; i < intervals.size(); i++) {
+            List<Long> row = new ArrayList<>(Arrays.asList(onsets[i], offsets[i]));
+            for (int c = 0; c < columns; c++) {
+                row.add((long) sources[c][i]);
+            }
+            result.add(row);
+        }
+        return result;
+    }
+
+    private static void makePointsLonger(final long[][] column) {
+        for (int i = 0; i < column[0].length; i++) {
+            if (column[0][i] == column[1][i]) {
+                column[1][i]++;
+            }
+        }
+    }
+
+    @Test
+    public void resamplesLikeRuby() {
+        for (int seed = 0; seed < 40; seed++) {
+            Random random = new Random(seed);
+            long[][] c = column(random, random.nextInt(60), seed % 2 == 0);
+            long start = random.nextInt(100);
+            long stop = start + random.nextInt(3000);
+            long step = 1 + random.nextInt(seed % 3 == 0 ? 5 : 200);
+            assertEquals(Arrays.toString(ColumnAnalytics.resample(c[0], c[1], start, stop, step)),
+                    Arrays.toString(resampleLikeRuby(c[0], c[1], start, stop, step)), "seed " + seed);
+        }
+    }
+
+    @Test
+    public void makesMutuallyExclusiveCellsLikeRuby() {
+        for (int seed = 0; seed < 40; seed++) {
+            Random random = new Random(seed);
+            long[][] a = column(random, random.nextInt(60), seed % 3 != 0);
+            long[][] b = column(random, random.nextInt(60), seed % 3 != 1);
+            assertEquals(rows(ColumnAnalytics.mutuallyExclusive(a[0], a[1], b[0], b[1]), 2),
+                    mutexLikeRuby(a[0], a[1], b[0], b[1]), "seed " + seed);
+        }
+    }
+
+    @Test
+    public void mergesLikeRuby() {
+        for (int seed = 0; seed < 40; seed++) {
+            Random random = new Random(seed);
+            int columns = 1 + random.nextInt(4);
+            long[][] onsets = new long[columns][];
+            long[][] offsets = new long[columns][];
+            for (int c = 0; c < columns; c++) {
+                long[][] column = column(random, random.nextInt(50), random.nextBoolean());
+                makePointsLonger(column);
+                onsets[c] = column[0];
+                offsets[c] = column[1];
+            }
+            assertEquals(rows(ColumnAnalytics.merge(onsets, offsets), columns), mergeLikeRuby(onsets, offsets),
+                    "seed " + seed);
+        }
+    }
+
+    @Test
+    public void tablesAgreementLikeRuby() {
+        // The primary cells at 0, 10, ..., the reliability cells at every other of those, and one elsewhere.
+        long[] priOnsets = new long[10];
+        String[] priValues = new String[10];
+        for (int i = 0; i < 10; i++) {
+            priOnsets[i] = i * 10;
+            priValues[i] = i % 3 == 0 ? "a" : "b";
+        }
+        long[] relOnsets = {0, 20, 40, 60, 80, 85};
+        String[] relValues = {"a", "a", "b", "a", "c", "d"};
+
+        ColumnAnalytics.Agreement agreement = ColumnAnalytics.agreement(priOnsets, priValues, relOnsets, relValues);
+        assertEquals(Arrays.asList(agreement.getValues()), Arrays.asList("a", "b", "c", "d"));
+        int[][] counts = agreement.getCounts();
+        // Pairs (a,a) (b,a) (b,b) (a,a) (b,c), primary by row.
+        assertTrue(Arrays.deepEquals(counts, new int[][]{{2, 0, 0, 0}, {1, 1, 1, 0}, {0, 0, 0, 0}, {0, 0, 0, 0}}),
+                Arrays.deepToString(counts));
+        // The cell at 85 has no primary cell; the Ruby version failed on it.
+        assertTrue(Arrays.equals(agreement.getUnmatched(), new int[]{5}), Arrays.toString(agreement.getUnmatched()));
+        // CTable#kappa: agree 3, total 5, chance 2 * 3 / 5 + 3 * 1 / 5
+        double chance = 2 * 3 / 5.0 + 3 * 1 / 5.0;
+        assertEquals(agreement.getKappa(), (3 - chance) / (5 - chance));
+    }
+
+    @Test
+    public void makesDurationBlocksLikeRuby() {
+        long[] onsets = {0, 1000, 10000, 20000};
+        long[] offsets = {500, 3000, 19000, 26000};
+        ColumnAnalytics.Intervals blocks = ColumnAnalytics.durationBlocks(onsets, offsets, 2000, 2);
+        // 1000-3000 fits a block; 10000-19000 has blocks 0 to 4, of which 0, 2 and 4 are kept, the last cut short;
+        // 20000-26000 has blocks 0 to 3, of which 0 and 2 are kept.
+        assertEquals(rows(blocks, 1), Arrays.asList(Arrays.asList(0L, 500L, 0L), Arrays.asList(1000L, 3000L, 1L),
+                Arrays.asList(10000L, 12000L, 2L), Arrays.asList(14000L, 16000L, 2L),
+                Arrays.asList(18000L, 19000L, 2L), Arrays.asList(20000L, 22000L, 3L),
+                Arrays.asList(24000L, 26000L, 3L)));
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void analyzesLargeColumns() {
+        Random random = new Random(25);
+        long[][] a = column(random, 10000, true);
+        long[][] b = column(random, 10000, true);
+        long stop = Math.max(a[1][a[1].length - 1], b[1][b[1].length - 1]);
+
+        long start = System.nanoTime();
+        int[] before = resampleLikeRuby(a[0], a[1], 0, stop, 100);
+        long reference = BenchmarkUtils.millisSince(start);
+        start = System.nanoTime();
+        int[] after = ColumnAnalytics.resample(a[0], a[1], 0, stop, 100);
+        long sweep = BenchmarkUtils.millisSince(start);
+        assertTrue(Arrays.equals(after, before));
+        BenchmarkUtils.report("Resampled 10000 cells into %d cells: like Ruby %d ms, ColumnAnalytics %d ms",
+                after.length, reference, sweep);
+
+        // The cells of b in reverse, which the Ruby version goes through from the start for every new cell.
+        long[][] reversed = {new long[10000], new long[10000]};
+        for (int i = 0; i < 10000; i++) {
+            reversed[0][i] = b[0][9999 - i];
+            reversed[1][i] = b[1][9999 - i];
+        }
+        start = System.nanoTime();
+        List<List<Long>> mutexBefore = mutexLikeRuby(a[0], a[1], reversed[0], reversed[1]);
+        reference = BenchmarkUtils.millisSince(start);
+        start = System.nanoTime();
+        List<List<Long>> mutexAfter = rows(ColumnAnalytics.mutuallyExclusive(a[0], a[1], reversed[0], reversed[1]),
+                2);
+        sweep = BenchmarkUtils.millisSince(start);
+        assertEquals(mutexAfter, mutexBefore);
+        BenchmarkUtils.report("Made %d mutually exclusive cells of 2 x 10000 cells: like Ruby %d ms, "
+                + "ColumnAnalytics %d ms", mutexAfter.size(), reference, sweep);
+
+        makePointsLonger(a);
+        makePointsLonger(b);
+        long[][] onsets = {a[0], b[0]};
+        long[][] offsets = {a[1], b[1]};
+        start = System.nanoTime();
+        List<List<Long>> mergeBefore = mergeLikeRuby(onsets, offsets);
+        reference = BenchmarkUtils.millisSince(start);
+        start = System.nanoTime();
+        List<List<Long>> mergeAfter = rows(ColumnAnalytics.merge(onsets, offsets), 2);
+        sweep = BenchmarkUtils.millisSince(start);
+        assertEquals(mergeAfter, mergeBefore);
+        BenchmarkUtils.report("Merged 2 x 10000 cells into %d cells: like Ruby %d ms, ColumnAnalytics %d ms",
+                mergeAfter.size(), reference, sweep);
+    }
+}
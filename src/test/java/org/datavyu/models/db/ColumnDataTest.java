@@ -0,0 +1,160 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the bulk transfer of the cells of a variable to and from the Ruby API.
+ */
+public class ColumnDataTest {
+
+    private DataStore ds;
+
+    private Variable matrix;
+
+    private Variable text;
+
+    @BeforeMethod
+    public void setUp() throws UserWarningException {
+        ds = DataStoreFactory.newDataStore();
+        matrix = ds.createVariable("matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.TEXT);
+        text = ds.createVariable("text", Argument.Type.TEXT);
+        for (int i = 0; i < 5; i++) {
+            Cell c = matrix.createCell(1000 - i * 100, 1050 - i * 100);
+            c.setMatrixValue(0, "a" + i);
+            c.setMatrixValue(1, "b" + i);
+            text.createCell(i * 10, i * 10 + 5).getCellValue().set("t" + i);
+        }
+    }
+
+    @Test
+    public void readsInTemporalOrder() {
+        ColumnData data = ColumnData.of(matrix);
+        assertEquals(data.size(), 5);
+        assertEquals(data.getArity(), 2);
+        assertTrue(Arrays.equals(data.getOnsets(), new long[]{600, 700, 800, 900, 1000}));
+        assertTrue(Arrays.equals(data.getOffsets(), new long[]{650, 750, 850, 950, 1050}));
+        assertEquals(data.getValues()[0], "a4");
+        assertEquals(data.getValues()[1], "b4");
+        assertEquals(Arrays.asList(data.getCells()), matrix.getCellsTemporally());
+
+        data = ColumnData.of(text);
+        assertEquals(data.getArity(), 1);
+        assertEquals(Arrays.asList(data.getValues()), Arrays.asList("t0", "t1", "t2", "t3", "t4"));
+    }
+
+    @Test
+    public void changesOnlyWhatDiffers() {
+        ColumnData read = ColumnData.of(matrix);
+        List<String> changes = new ArrayList<>();
+        for (Cell cell : read.getCells()) {
+            cell.addListener(new CellListener() {
+                public void offsetChanged(final long newOffset) {
+                    changes.add("offset " + newOffset);
+                }
+
+                public void onsetChanged(final long newOnset) {
+                    changes.add("onset " + newOnset);
+                }
+
+                public void highlightingChange(final boolean isHighlighted) {
+                }
+
+                public void selectionChange(final boolean isSelected) {
+                }
+
+                public void valueChange(final CellValue newCellValue) {
+                }
+            });
+        }
+
+        long[] onsets = read.getOnsets().clone();
+        onsets[1] = 710;
+        String[] values = read.getValues().clone();
+        values[5] = "changed";
+        // Empty matrix values leave the cell alone, as set_column always did.
+        values[6] = "";
+        values[7] = null;
+        Cell[] cells = new ColumnData(read.getCells(), onsets, read.getOffsets(), values, 2).applyTo(matrix);
+
+        assertEquals(Arrays.asList(cells), Arrays.asList(read.getCells()));
+        assertEquals(changes, Arrays.asList("onset 710"));
+        assertEquals(cells[2].getValueAsString(), "(a2,changed)");
+        assertEquals(cells[3].getValueAsString(), "(a1,b1)");
+    }
+
+    @Test
+    public void createsNewCells() {
+        Cell[] sources = {text.getCellsTemporally().get(0), null, matrix.getCellsTemporally().get(0)};
+        ColumnData data = new ColumnData(sources, new long[]{0, 200, 300}, new long[]{5, 250, 350},
+                new String[]{"t0", "new", null}, 1);
+        Cell[] cells = data.applyTo(text);
+
+        assertSame(cells[0], sources[0]);
+        assertEquals(text.getCells().size(), 7);
+        assertEquals(cells[1].getOnset(), 200);
+        assertEquals(cells[1].getValueAsString(), "new");
+        // A cell of another variable is copied, not moved.
+        assertNotSame(cells[2], sources[2]);
+        assertSame(cells[2].getVariable(), text);
+        assertEquals(cells[2].getOffset(), 350);
+        assertEquals(matrix.getCells().size(), 5);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsRowsOfTheWrongSize() {
+        new ColumnData(new Cell[2], new long[2], new long[2], new String[3], 2);
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void transferLargeColumn() throws UserWarningException {
+        Variable large = ds.createVariable("large", Argument.Type.MATRIX);
+        large.addArgument(Argument.Type.NOMINAL);
+        for (int i = 0; i < 100000; i++) {
+            Cell cell = large.createCell(i * 10L, i * 10L + 9);
+            cell.setMatrixValue(0, "x" + (i % 7));
+            cell.setMatrixValue(1, "y" + (i % 3));
+        }
+
+        long start = System.nanoTime();
+        ColumnData data = ColumnData.of(large);
+        long readMillis = BenchmarkUtils.millisSince(start);
+
+        String[] values = data.getValues().clone();
+        for (int i = 0; i < values.length; i += 20) {
+            values[i] = "z";
+        }
+        start = System.nanoTime();
+        new ColumnData(data.getCells(), data.getOnsets(), data.getOffsets(), values, 2).applyTo(large);
+        long writeMillis = BenchmarkUtils.millisSince(start);
+
+        BenchmarkUtils.report("Transferred 100000 cells: read %d ms, write %d ms", readMillis, writeMillis);
+        assertEquals(large.getCellsTemporally().get(10).getValueAsString(), "(z,y1)");
+        assertEquals(large.getCellsTemporally().get(11).getValueAsString(), "(x4,y2)");
+    }
+}
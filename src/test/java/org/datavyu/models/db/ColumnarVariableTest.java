@@ -0,0 +1,252 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the ColumnarVariable, including a memory benchmark against the DatavyuVariable.
+ */
+public class ColumnarVariableTest {
+
+    /** Number of cells to create for the memory benchmark. */
+    private static final int NUM_CELLS = 100000;
+
+    /** Codes used for the values of the benchmark cells. */
+    private static final String[] CODES = {"a", "b", "c", "d", "e"};
+
+    private DataStore ds;
+
+    private Variable model;
+
+    @BeforeMethod
+    public void setUp() throws UserWarningException {
+        ds = DataStoreFactory.newDataStore();
+        model = ds.createColumnarVariable("test", Argument.Type.MATRIX);
+        model.addArgument(Argument.Type.NOMINAL);
+    }
+
+    @Test
+    public void cellsAndValues() {
+        Cell c1 = model.createCell();
+        c1.setOnset("00:00:01:000");
+        c1.setOffset(1999);
+        c1.getCellValue().set("(x,y)");
+        Cell c2 = model.createCell();
+
+        assertEquals(model.getCellsTemporally().get(1), c1);
+        assertEquals(c1.getOnset(), 1000);
+        assertEquals(c1.getOffsetString(), "00:00:01:999");
+        assertEquals(c1.getValueAsString(), "(x,y)");
+        assertEquals(c1.getMatrixValue(1).toString(), "y");
+        assertEquals(c1.getMatrixValue(1).getArgument().name, "code02");
+        assertEquals(c2.getValueAsString(), "(,)");
+
+        // Cells are views of their row; every view of the same row is the same cell.
+        Cell view = model.getCellTemporally(1);
+        assertEquals(view, c1);
+        assertEquals(view.hashCode(), c1.hashCode());
+        assertEquals(ds.getVariable(view), model);
+
+        model.removeArgument("code01");
+        assertEquals(c1.getValueAsString(), "(y)");
+
+        model.removeCell(c2);
+        assertFalse(model.contains(c2));
+        assertEquals(model.getCells().size(), 1);
+        model.addCell(c2);
+        assertTrue(model.contains(c2));
+        assertEquals(model.getCellTemporally(0), c2);
+    }
+
+    @Test
+    public void argumentsThroughCells() {
+        Cell c1 = model.createCell();
+        c1.getCellValue().set("(x,y)");
+        Cell c2 = model.createCell();
+
+        // The arguments of every cell are those of the variable.
+        Argument added = new Argument("extra", Argument.Type.NOMINAL);
+        c1.addMatrixValue(added);
+        assertEquals(model.getRootNode().childArguments.size(), 3);
+        assertEquals(c2.getValueAsString(), "(,,)");
+        CellValue value = ((MatrixCellValue) c2.getCellValue()).createArgument(added);
+        assertEquals(model.getRootNode().childArguments.size(), 3);
+        value.set("z");
+        assertEquals(c2.getValueAsString(), "(,,z)");
+
+        c2.moveMatrixValue(2, 0);
+        assertEquals(model.getRootNode().childArguments.get(0), added);
+        assertEquals(c1.getValueAsString(), "(,x,y)");
+        c1.removeMatrixValue(1);
+        ((MatrixCellValue) c2.getCellValue()).removeArgument(0);
+        assertEquals(model.getRootNode().childArguments.size(), 1);
+        assertEquals(c1.getValueAsString(), "(y)");
+    }
+
+    @Test
+    public void removedCellsDropTheirListeners() {
+        Cell cell = model.createCell();
+        final List<Long> onsets = new ArrayList<Long>();
+        cell.addListener(new CellListener() {
+            @Override
+            public void offsetChanged(final long newOffset) {
+            }
+
+            @Override
+            public void onsetChanged(final long newOnset) {
+                onsets.add(newOnset);
+            }
+
+            @Override
+            public void highlightingChange(final boolean isHighlighted) {
+            }
+
+            @Override
+            public void selectionChange(final boolean isSelected) {
+            }
+
+            @Override
+            public void valueChange(final CellValue newCellValue) {
+            }
+        });
+        cell.setOnset(10);
+        model.removeCell(cell);
+        model.addCell(cell);
+        cell.setOnset(20);
+        assertEquals(onsets, Arrays.asList(10L));
+    }
+
+    @Test
+    public void timeQueries() {
+        for (int i = 0; i < 100; i++) {
+            Cell c = model.createCell();
+            c.setOnset(i * 1000);
+            c.setOffset(i * 1000 + 999);
+        }
+        // Moving a cell out of order re-sorts the variable.
+        Cell moved = model.getCellTemporally(10);
+        moved.setOnset(50500);
+        moved.setOffset(50999);
+
+        assertEquals(model.getCellsAt(10500).size(), 0);
+        assertEquals(model.getCellsAt(50700).size(), 2);
+        assertEquals(model.getCellsInRange(20000, 21500).size(), 2);
+        assertEquals(model.getPreviousCell(50600), moved);
+        assertEquals(model.getNextCell(50600).getOnset(), 51000);
+        assertEquals(model.getTemporalIndex(moved), 50);
+    }
+
+    @Test
+    public void temporalListsStayPut() {
+        for (int i = 0; i < 5; i++) {
+            model.createCell(i * 1000, i * 1000 + 999);
+        }
+        List<Cell> before = model.getCellsTemporally();
+        List<Cell> expected = new ArrayList<Cell>(before);
+
+        // The last cell goes and a new one takes its place at the end of the order.
+        model.removeCell(before.get(4));
+        Cell appended = model.createCell(4000, 4999);
+
+        assertEquals(before, expected);
+        assertEquals(model.getCellsTemporally().size(), 5);
+        assertEquals(model.getCellsTemporally().get(4), appended);
+    }
+
+    @Test
+    public void batchedChanges() {
+        Cell kept = model.createCell();
+        List<Cell> inserted = new ArrayList<Cell>();
+
+        ds.beginBatch();
+        inserted.add(model.createCell());
+        kept.setOnset(10);
+        ds.commitBatch();
+
+        final List<VariableChanges> committed = new ArrayList<VariableChanges>();
+        model.addListener(new VariableListener() {
+            @Override
+            public void nameChanged(final String newName) {
+            }
+
+            @Override
+            public void visibilityChanged(final boolean isHidden) {
+            }
+
+            @Override
+            public void cellInserted(final Cell newCell) {
+            }
+
+            @Override
+            public void cellRemoved(final Cell deletedCell) {
+            }
+
+            @Override
+            public void cellsChanged(final VariableChanges changes) {
+                committed.add(changes);
+            }
+        });
+        ds.beginBatch();
+        Cell added = model.createCell();
+        kept.setOnset(20);
+        ds.commitBatch();
+
+        assertEquals(committed.size(), 1);
+        assertEquals(new ArrayList<Cell>(committed.get(0).getInsertedCells()).get(0), added);
+        assertEquals(new ArrayList<Cell>(committed.get(0).getChangedCells()).get(0), kept);
+    }
+
+    private static long fill(final Variable var) {
+        long before = BenchmarkUtils.usedHeap();
+        for (int i = 0; i < NUM_CELLS; i++) {
+            Cell c = var.createCell();
+            c.setOnset(i * 40L);
+            c.setOffset(i * 40L + 39);
+            c.getCellValue().set("(" + CODES[i % CODES.length] + "," + CODES[(i / 7) % CODES.length] + ")");
+        }
+        var.getCellsTemporally();
+        return BenchmarkUtils.usedHeap() - before;
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void memoryFootprint() throws UserWarningException {
+        DataStore store = DataStoreFactory.newDataStore();
+
+        Variable regular = store.createVariable("regular", Argument.Type.MATRIX);
+        regular.addArgument(Argument.Type.NOMINAL);
+        long regularBytes = fill(regular);
+
+        Variable columnar = store.createColumnarVariable("columnar", Argument.Type.MATRIX);
+        columnar.addArgument(Argument.Type.NOMINAL);
+        long columnarBytes = fill(columnar);
+
+        BenchmarkUtils.report("%d cells: DatavyuVariable %d bytes/cell, ColumnarVariable %d bytes/cell", NUM_CELLS,
+                regularBytes / NUM_CELLS, columnarBytes / NUM_CELLS);
+        assertEquals(columnar.getCells().size(), NUM_CELLS);
+        assertEquals(regular.getCells().size(), NUM_CELLS);
+        assertTrue(columnarBytes * 4 < regularBytes, "Columnar variable is not substantially smaller");
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for the detached copies of a data store and the changes made to them.
+ */
+public class DataStoreCopyTest {
+
+    private DataStore ds;
+
+    private Variable matrix;
+
+    private Variable text;
+
+    private Variable nominal;
+
+    @BeforeMethod
+    public void setUp() throws UserWarningException {
+        ds = DataStoreFactory.newDataStore();
+        matrix = ds.createVariable("matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.TEXT);
+        text = ds.createVariable("text", Argument.Type.TEXT);
+        nominal = ds.createColumnarVariable("nominal", Argument.Type.NOMINAL);
+        for (int i = 0; i < 10; i++) {
+            Cell c = matrix.createCell(i * 100, i * 100 + 99);
+            c.setMatrixValue(0, "a" + i);
+            if (i % 3 != 0) {
+                c.setMatrixValue(1, "b,c");
+            }
+            text.createCell(i * 10, i * 10 + 5).getCellValue().set(i % 4 == 0 ? "" : "t" + i);
+            nominal.createCell(i * 50, i * 50).getCellValue().set("n" + (i % 2));
+        }
+    }
+
+    /**
+     * @return The contents of a data store, variable after variable by name.
+     */
+    private static List<String> contents(final DataStore dataStore) {
+        List<String> result = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (Variable variable : dataStore.getAllVariables()) {
+            names.add(variable.getName());
+        }
+        Collections.sort(names);
+        for (String name : names) {
+            Variable variable = dataStore.getVariable(name);
+            result.add(name + " " + DataStoreCopy.arguments(variable.getRootNode()) + " " + variable.isHidden());
+            for (Cell cell : variable.getCellsTemporally()) {
+                result.add(cell.getOnset() + "," + cell.getOffset() + "," + cell.getValueAsString());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void copiesEverything() {
+        DataStoreCopy copy = DataStoreCopy.of(ds);
+        assertEquals(contents(copy.getCopy()), contents(ds));
+        assertTrue(copy.diff().isEmpty(), copy.diff().toString());
+    }
+
+    @Test
+    public void appliesAndReverts() throws UserWarningException {
+        List<String> before = contents(ds);
+        DataStoreCopy copy = DataStoreCopy.of(ds);
+        DataStore changed = copy.getCopy();
+
+        Variable m = changed.getVariable("matrix");
+        m.getCellTemporally(1).setOnset(150);
+        m.getCellTemporally(2).getMatrixValue(0).set("changed");
+        m.getCellTemporally(5).clearMatrixValue(1);
+        m.removeCell(m.getCellTemporally(4));
+        m.createCell(2000, 2100).setMatrixValue(1, "new");
+        m.setName("renamed");
+        Variable t = changed.getVariable("text");
+        t.setHidden(true);
+        t.getCellTemporally(0).getCellValue().set("was empty");
+        changed.removeVariable(changed.getVariable("nominal"));
+        Variable added = changed.createVariable("added", Argument.Type.NOMINAL);
+        added.createCell(5, 10).getCellValue().set("x");
+        List<String> after = contents(changed);
+
+        DataStoreDiff diff = copy.diff();
+        assertEquals(diff.toString(), "1 columns added, 1 removed, 0 replaced, 1 renamed; "
+                + "1 cells added, 1 removed, 4 changed");
+        List<Cell> cells = new ArrayList<>(matrix.getCells());
+        diff.apply();
+        assertEquals(contents(ds), after);
+        // The cells that were changed are the same cells.
+        assertSame(ds.getVariable("renamed"), matrix);
+        assertTrue(matrix.getCells().containsAll(cells.subList(0, 4)));
+
+        diff.revert();
+        assertEquals(contents(ds), before);
+        assertNull(ds.getVariable("added"));
+        diff.apply();
+        assertEquals(contents(ds), after);
+        diff.revert();
+        assertEquals(contents(ds), before);
+    }
+
+    @Test
+    public void appliesAsOneChange() throws UserWarningException {
+        DataStoreCopy copy = DataStoreCopy.of(ds);
+        Variable t = copy.getCopy().getVariable("text");
+        for (int i = 0; i < 5; i++) {
+            t.getCellTemporally(i).setOffset(t.getCellTemporally(i).getOffset() + 1);
+        }
+        t.removeCell(t.getCellTemporally(9));
+        t.removeCell(t.getCellTemporally(8));
+        for (int i = 0; i < 3; i++) {
+            t.createCell(1000 + i, 1000 + i).getCellValue().set("new" + i);
+        }
+        DataStoreDiff diff = copy.diff();
+
+        final List<String> calls = new ArrayList<>();
+        text.addListener(new VariableListener() {
+            @Override
+            public void nameChanged(final String newName) {
+                calls.add("nameChanged");
+            }
+
+            @Override
+            public void visibilityChanged(final boolean isHidden) {
+                calls.add("visibilityChanged");
+            }
+
+            @Override
+            public void cellInserted(final Cell newCell) {
+                calls.add("cellInserted");
+            }
+
+            @Override
+            public void cellRemoved(final Cell deletedCell) {
+                calls.add("cellRemoved");
+            }
+
+            @Override
+            public void cellsChanged(final VariableChanges changes) {
+                calls.add("cellsChanged " + changes.getInsertedCells().size() + " "
+                        + changes.getRemovedCells().size() + " " + changes.getChangedCells().size());
+            }
+        });
+
+        // One summary each way, and none for cells one at a time.
+        diff.apply();
+        diff.revert();
+        assertEquals(calls, Arrays.asList("cellsChanged 3 2 5", "cellsChanged 2 3 5"));
+
+        // Nothing is heard of a diff without changes, nor of one that fails on a conflict.
+        DataStoreCopy.of(ds).diff().apply();
+        DataStoreCopy conflicting = DataStoreCopy.of(ds);
+        conflicting.getCopy().getVariable("text").getCellTemporally(0).setOnset(5000);
+        conflicting.getCopy().createVariable("added", Argument.Type.TEXT);
+        ds.createVariable("added", Argument.Type.NOMINAL);
+        try {
+            conflicting.diff().apply();
+            fail("A column was added twice");
+        } catch (UserWarningException e) {
+            assertEquals(calls.size(), 2);
+        }
+    }
+
+    @Test
+    public void replacesVariablesWithOtherArguments() throws UserWarningException {
+        List<String> before = contents(ds);
+        DataStoreCopy copy = DataStoreCopy.of(ds);
+        DataStore changed = copy.getCopy();
+        changed.getVariable("matrix").addArgument(Argument.Type.NOMINAL);
+        // Swapping names goes through replacements too.
+        changed.getVariable("text").setName("swap");
+        changed.getVariable("nominal").setName("text");
+        changed.getVariable("swap").setName("nominal");
+        List<String> after = contents(changed);
+
+        DataStoreDiff diff = copy.diff();
+        assertEquals(diff.getReplacements().size(), 3);
+        assertSame(diff.getReplacements().get(matrix), changed.getVariable("matrix"));
+        diff.apply();
+        assertEquals(contents(ds), after);
+        diff.revert();
+        assertEquals(contents(ds), before);
+        assertSame(ds.getVariable("matrix"), matrix);
+    }
+
+    @Test
+    public void keepsWhatIsCreatedAgainTheSame() throws UserWarningException {
+        DataStoreCopy copy = DataStoreCopy.of(ds);
+        DataStore changed = copy.getCopy();
+        Variable old = changed.getVariable("text");
+        changed.removeVariable(old);
+        Variable again = changed.createVariable("text", Argument.Type.TEXT);
+        for (Cell cell : old.getCells()) {
+            again.createCell(cell.getOnset(), cell.getOffset()).getCellValue().set(cell.getCellValue().toString());
+        }
+        again.getCellTemporally(9).setOffset(1000);
+
+        DataStoreDiff diff = copy.diff();
+        assertEquals(diff.toString(), "0 columns added, 0 removed, 0 replaced, 0 renamed; "
+                + "1 cells added, 1 removed, 0 changed");
+        diff.apply();
+        assertSame(ds.getVariable("text"), text);
+        assertEquals(text.getCellTemporally(9).getOffset(), 1000);
+    }
+
+    @Test
+    public void changesNothingOnConflict() throws UserWarningException {
+        DataStoreCopy copy = DataStoreCopy.of(ds);
+        copy.getCopy().getVariable("text").getCellTemporally(1).getCellValue().set("changed");
+        copy.getCopy().createVariable("added", Argument.Type.TEXT);
+        ds.createVariable("added", Argument.Type.NOMINAL);
+        List<String> before = contents(ds);
+
+        try {
+            copy.diff().apply();
+            fail("A column was added twice");
+        } catch (UserWarningException e) {
+            assertEquals(contents(ds), before);
+        }
+    }
+
+    @Test
+    public void keepsChangesMadeInTheMeantime() throws UserWarningException {
+        DataStoreCopy copy = DataStoreCopy.of(ds);
+        copy.getCopy().getVariable("text").getCellTemporally(1).getCellValue().set("script");
+        text.getCellTemporally(2).getCellValue().set("user");
+
+        copy.diff().apply();
+        assertEquals(text.getCellTemporally(1).getValueAsString(), "script");
+        assertEquals(text.getCellTemporally(2).getValueAsString(), "user");
+        assertFalse(text.isHidden());
+    }
+}
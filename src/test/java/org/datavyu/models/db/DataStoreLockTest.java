@@ -0,0 +1,208 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the locking of the DataStore and the notification of its listeners.
+ */
+public class DataStoreLockTest {
+
+    private DataStore ds;
+
+    private Variable var;
+
+    private Variable columnar;
+
+    @BeforeMethod
+    public void setUp() throws UserWarningException {
+        ds = DataStoreFactory.newDataStore();
+        var = ds.createVariable("var", Argument.Type.TEXT);
+        columnar = ds.createColumnarVariable("columnar", Argument.Type.TEXT);
+    }
+
+    /**
+     * @return True if another thread can take the write lock of the data store.
+     */
+    private boolean writeLockIsFree() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(() -> {
+                Lock l = ds.getLock().writeLock();
+                if (!l.tryLock(1, TimeUnit.SECONDS)) {
+                    return false;
+                }
+                l.unlock();
+                return true;
+            }).get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failingListenerLeavesTheLockFree() throws Exception {
+        final List<String> names = new ArrayList<>();
+        var.addListener(new VariableListener() {
+            @Override
+            public void nameChanged(final String newName) {
+                names.add(newName);
+                if (newName.equals("failing")) {
+                    throw new IllegalStateException("Listener failed");
+                }
+            }
+
+            @Override
+            public void visibilityChanged(final boolean isHidden) {
+            }
+
+            @Override
+            public void cellInserted(final Cell newCell) {
+            }
+
+            @Override
+            public void cellRemoved(final Cell deletedCell) {
+            }
+        });
+
+        Lock l = ds.getLock().writeLock();
+        l.lock();
+        var.setName("failing");
+        var.setName("dropped");
+        try {
+            l.unlock();
+            throw new AssertionError("The failure of the listener was lost");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "Listener failed");
+        }
+
+        // The lock is released, and the notifications held back behind the failing one are not sent later.
+        assertTrue(writeLockIsFree());
+        var.setName("later");
+        assertEquals(names, Arrays.asList("failing", "later"));
+    }
+
+    @Test
+    public void listenersRunAfterUnlocking() throws Exception {
+        final List<Boolean> free = new ArrayList<>();
+        var.addListener(new VariableListener() {
+            @Override
+            public void nameChanged(final String newName) {
+                try {
+                    free.add(writeLockIsFree());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public void visibilityChanged(final boolean isHidden) {
+            }
+
+            @Override
+            public void cellInserted(final Cell newCell) {
+            }
+
+            @Override
+            public void cellRemoved(final Cell deletedCell) {
+            }
+        });
+
+        var.setName("renamed");
+        assertEquals(free.size(), 1);
+        assertTrue(free.get(0));
+    }
+
+    @Test
+    public void listenersWaitForTheOutermostLock() throws UserWarningException {
+        final List<Cell> inserted = new ArrayList<>();
+        var.addListener(new VariableListener() {
+            @Override
+            public void nameChanged(final String newName) {
+            }
+
+            @Override
+            public void visibilityChanged(final boolean isHidden) {
+            }
+
+            @Override
+            public void cellInserted(final Cell newCell) {
+                inserted.add(newCell);
+                // Listeners may change the data store in turn.
+                newCell.setOnset(42);
+            }
+
+            @Override
+            public void cellRemoved(final Cell deletedCell) {
+            }
+        });
+
+        Lock l = ds.getLock().writeLock();
+        l.lock();
+        Cell cell;
+        try {
+            cell = var.createCell();
+            assertTrue(inserted.isEmpty());
+        } finally {
+            l.unlock();
+        }
+        assertEquals(inserted.size(), 1);
+        assertSame(inserted.get(0), cell);
+        assertEquals(cell.getOnset(), 42);
+    }
+
+    @Test
+    public void selectingTakesTheReadLock() {
+        Cell cell = var.createCell();
+        Cell row = columnar.createCell();
+
+        Lock l = ds.getLock().readLock();
+        l.lock();
+        try {
+            cell.setSelected(true);
+            row.setHighlighted(true);
+        } finally {
+            l.unlock();
+        }
+        assertTrue(cell.isSelected());
+        assertTrue(row.isSelected());
+        assertTrue(row.isHighlighted());
+        assertEquals(ds.getSelectedCells().size(), 2);
+
+        ds.clearCellSelection();
+        assertFalse(cell.isSelected());
+        assertFalse(row.isSelected());
+    }
+
+    @Test
+    public void detachedVariablesShareALock() {
+        assertSame(DatavyuDataStore.lockOf(null), DatavyuDataStore.lockOf(null));
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the snapshots of the DataStore.
+ */
+public class DataStoreSnapshotTest {
+
+    private DataStore ds;
+
+    private Variable matrix;
+
+    private Variable text;
+
+    private Variable columnar;
+
+    @BeforeMethod
+    public void setUp() throws UserWarningException {
+        ds = DataStoreFactory.newDataStore();
+        matrix = ds.createVariable("matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.TEXT);
+        text = ds.createVariable("text", Argument.Type.TEXT);
+        columnar = ds.createColumnarVariable("columnar", Argument.Type.MATRIX);
+        for (int i = 0; i < 10; i++) {
+            Cell c = matrix.createCell();
+            c.setOnset(i * 100);
+            c.setOffset(i * 100 + 99);
+            c.setMatrixValue(0, "a" + i);
+            c.setMatrixValue(1, "b,c");
+            text.createCell().getCellValue().set("t" + i);
+            Cell r = columnar.createCell();
+            r.setOnset(1000 - i * 100);
+            r.getCellValue().set("(r" + i + ")");
+        }
+    }
+
+    /**
+     * @return The state of the variable as written to a file.
+     */
+    private static List<String> contents(final Variable variable) {
+        List<String> result = new ArrayList<>();
+        result.add(variable.getName() + " " + variable.getRootNode().childArguments.size() + " " + variable.isHidden());
+        for (Cell cell : variable.getCellsTemporally()) {
+            result.add(cell.getOnsetString() + "," + cell.getOffsetString() + "," + cell.getCellValue().serialize()
+                    + "," + cell.getValueAsString());
+        }
+        return result;
+    }
+
+    @Test
+    public void sameContents() {
+        DataStore snapshot = ds.snapshot();
+        assertEquals(snapshot.getAllVariables().size(), 3);
+        assertSame(snapshot.snapshot(), snapshot);
+        for (Variable variable : ds.getAllVariables()) {
+            assertEquals(contents(snapshot.getVariable(variable.getName())), contents(variable));
+        }
+
+        Variable copy = snapshot.getVariable("matrix");
+        Cell cell = copy.getCellTemporally(3);
+        assertEquals(cell.getMatrixValue(1).toString(), "b,c");
+        assertEquals(cell.getCellValue().serialize(), "(a3,b\\,c)");
+        assertTrue(cell.getMatrixValue(1) instanceof TextCellValue);
+        assertEquals(copy.getTemporalIndex(cell), 3);
+        assertSame(snapshot.getVariable(cell), copy);
+        assertEquals(copy.getCellsAt(350).size(), 1);
+        assertEquals(copy.getCellsInRange(150, 450).size(), 4);
+        assertEquals(copy.getPreviousCell(350).getOnset(), 300);
+        assertEquals(copy.getNextCell(350).getOnset(), 400);
+        assertEquals(copy.getValueCounts(1).get("b,c"), Integer.valueOf(10));
+    }
+
+    @Test
+    public void unaffectedByChanges() throws UserWarningException {
+        DataStore snapshot = ds.snapshot();
+        List<String> before = contents(snapshot.getVariable("matrix"));
+
+        matrix.getCellTemporally(0).setOnset(5000);
+        matrix.getCellTemporally(1).getMatrixValue(0).set("changed");
+        matrix.addArgument(Argument.Type.NOMINAL);
+        matrix.removeCell(matrix.getCellTemporally(2));
+        text.setHidden(true);
+        ds.createVariable("added", Argument.Type.NOMINAL);
+
+        assertEquals(contents(snapshot.getVariable("matrix")), before);
+        assertEquals(snapshot.getVariable("matrix").getRootNode().childArguments.size(), 2);
+        assertFalse(snapshot.getVariable("text").isHidden());
+        assertNull(snapshot.getVariable("added"));
+
+        DataStore later = ds.snapshot();
+        assertEquals(contents(later.getVariable("matrix")), contents(matrix));
+        assertTrue(later.getVariable("text").isHidden());
+        assertEquals(later.getAllVariables().size(), 4);
+    }
+
+    @Test
+    public void copiedOnWrite() throws UserWarningException {
+        Variable nominal = ds.createColumnarVariable("nominal", Argument.Type.NOMINAL);
+        for (int i = 0; i < 5; i++) {
+            nominal.createCell().getCellValue().set("n" + (i % 2));
+        }
+        List<String> matrixBefore = contents(matrix);
+        List<String> columnarBefore = contents(columnar);
+        List<String> nominalBefore = contents(nominal);
+
+        // The copies share the cells of the variables and are not read before the changes.
+        DataStore first = ds.snapshot();
+        matrix.getCellTemporally(3).setOffset(5000);
+        matrix.getCellTemporally(4).setMatrixValue(0, "changed");
+        matrix.removeCell(matrix.getCellTemporally(5));
+        matrix.createCell().setOnset(50);
+        columnar.getCellTemporally(0).setOnset(2000);
+        columnar.getCellTemporally(1).getCellValue().set("(changed)");
+        columnar.createCell().setOnset(10);
+        nominal.getCellTemporally(0).getCellValue().set("other");
+        nominal.createCell().getCellValue().set("n1");
+
+        List<String> matrixBetween = contents(matrix);
+        List<String> columnarBetween = contents(columnar);
+        List<String> nominalBetween = contents(nominal);
+        DataStore second = ds.snapshot();
+        matrix.getCellTemporally(0).setMatrixValue(1, "again");
+        columnar.getCellTemporally(2).setOffset(3000);
+        nominal.getCellTemporally(1).getCellValue().clear();
+
+        assertEquals(contents(first.getVariable("matrix")), matrixBefore);
+        assertEquals(contents(first.getVariable("columnar")), columnarBefore);
+        assertEquals(contents(first.getVariable("nominal")), nominalBefore);
+        assertEquals(contents(second.getVariable("matrix")), matrixBetween);
+        assertEquals(contents(second.getVariable("columnar")), columnarBetween);
+        assertEquals(contents(second.getVariable("nominal")), nominalBetween);
+        assertEquals(contents(ds.snapshot().getVariable("matrix")), contents(matrix));
+        assertEquals(contents(ds.snapshot().getVariable("columnar")), contents(columnar));
+        assertEquals(contents(ds.snapshot().getVariable("nominal")), contents(nominal));
+    }
+
+    @Test
+    public void valuesAsTheyWereAtTheSnapshot() {
+        // Values set after the cell was added, and set again and again between snapshots.
+        Cell cell = text.createCell();
+        cell.setOnset(5000);
+        cell.getCellValue().set("first");
+        DataStore first = ds.snapshot();
+        cell.getCellValue().set("second");
+        cell.getCellValue().set("third");
+        text.getCellTemporally(0).getCellValue().set("t0 changed");
+        DataStore second = ds.snapshot();
+        cell.getCellValue().clear();
+        text.removeCell(cell);
+
+        assertEquals(first.getVariable("text").getCellTemporally(10).getValueAsString(), "first");
+        assertEquals(first.getVariable("text").getCellTemporally(0).getValueAsString(), "t0");
+        assertEquals(second.getVariable("text").getCellTemporally(10).getValueAsString(), "third");
+        assertEquals(second.getVariable("text").getCellTemporally(0).getValueAsString(), "t0 changed");
+        assertEquals(ds.snapshot().getVariable("text").getCellsTemporally().size(), 10);
+    }
+
+    @Test
+    public void sharesUnchangedVariables() {
+        DataStore first = ds.snapshot();
+        text.getCellTemporally(4).getCellValue().set("changed");
+        columnar.getCellTemporally(0).setOffset(12345);
+        DataStore second = ds.snapshot();
+
+        assertSame(second.getVariable("matrix"), first.getVariable("matrix"));
+        assertNotSame(second.getVariable("text"), first.getVariable("text"));
+        assertNotSame(second.getVariable("columnar"), first.getVariable("columnar"));
+        assertEquals(first.getVariable("text").getCellTemporally(4).getValueAsString(), "t4");
+        assertEquals(second.getVariable("text").getCellTemporally(4).getValueAsString(), "changed");
+
+        // Changing a value of a matrix argument, or clearing it, is a change of the variable too.
+        matrix.getCellTemporally(0).clearMatrixValue(1);
+        DataStore third = ds.snapshot();
+        assertNotSame(third.getVariable("matrix"), second.getVariable("matrix"));
+        assertEquals(third.getVariable("matrix").getCellTemporally(0).getValueAsString(), "(a0,)");
+
+        // Selecting is not.
+        matrix.getCellTemporally(0).setSelected(false);
+        assertSame(ds.snapshot().getVariable("matrix"), third.getVariable("matrix"));
+    }
+
+    @Test
+    public void lazyVariablesStayUnloaded() throws UserWarningException {
+        final int[] loads = {0};
+        DatavyuVariable lazy = (DatavyuVariable) ds.createLazyVariable("lazy",
+                new Argument("lazy", Argument.Type.TEXT), variable -> {
+                    loads[0]++;
+                    for (int i = 0; i < 3; i++) {
+                        variable.createCell(i * 10, i * 10 + 9).getCellValue().set("l" + i);
+                    }
+                });
+
+        Variable copy = ds.snapshot().getVariable("lazy");
+        assertEquals(loads[0], 0);
+        assertFalse(lazy.isLoaded());
+
+        // The copy reads the cells on first use, without loading the variable.
+        assertEquals(copy.getCellsTemporally().size(), 3);
+        assertEquals(copy.getCellTemporally(2).getValueAsString(), "l2");
+        assertEquals(copy.getCellsAt(15).get(0).getOnset(), 10);
+        assertFalse(lazy.isLoaded());
+
+        // Loading the variable does not change it, so the copy is still its snapshot.
+        assertEquals(lazy.getCellTemporally(1).getValueAsString(), "l1");
+        assertSame(ds.snapshot().getVariable("lazy"), copy);
+    }
+
+    @Test
+    public void lazyVariablesMoveUnloaded() throws UserWarningException {
+        final int[] loads = {0};
+        DatavyuVariable lazy = (DatavyuVariable) ds.createLazyVariable("lazy",
+                new Argument("lazy", Argument.Type.TEXT), variable -> {
+                    loads[0]++;
+                    variable.createCell(0, 9).getCellValue().set("l0");
+                });
+
+        // Removing, adding back and moving the variable to another data store leave its cells where they are.
+        ds.removeVariable(lazy);
+        ds.addVariable(lazy);
+        DataStore other = DataStoreFactory.newDataStore();
+        other.attachVariable(lazy);
+        assertEquals(loads[0], 0);
+        assertFalse(lazy.isLoaded());
+
+        // The cells are loaded for the data store the variable is in now, while a reader holds its read lock.
+        Lock l = other.getLock().readLock();
+        l.lock();
+        try {
+            assertEquals(lazy.getCellTemporally(0).getValueAsString(), "l0");
+        } finally {
+            l.unlock();
+        }
+        assertEquals(loads[0], 1);
+        assertSame(other.getVariable(lazy.getCellTemporally(0)), lazy);
+        assertEquals(other.getSelectedCells().size(), 0);
+    }
+
+    @Test
+    public void readOnly() {
+        DataStore snapshot = ds.snapshot();
+        Variable copy = snapshot.getVariable("matrix");
+        Runnable[] changes = {
+                () -> copy.createCell(),
+                () -> copy.getCellTemporally(0).setOnset(1),
+                () -> copy.getCellTemporally(0).getMatrixValue(0).set("x"),
+                () -> copy.getCellTemporally(0).getCellValue().clear(),
+                () -> snapshot.removeVariable(copy),
+                () -> snapshot.beginBatch()
+        };
+        for (Runnable change : changes) {
+            try {
+                change.run();
+                throw new AssertionError("A snapshot has been changed");
+            } catch (UnsupportedOperationException e) {
+                assertEquals(e.getMessage(), DataStoreSnapshot.READ_ONLY);
+            }
+        }
+    }
+}
@@ -14,10 +14,15 @@
  */
 package org.datavyu.models.db;
 
+import org.mockito.ArgumentCaptor;
 import org.testng.annotations.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.assertEquals;
@@ -136,6 +141,139 @@ public class DataStoreTest {
         verify(modelListener, times(0)).variableOrderChanged();
     }
 
+    @Test
+    public void cellSelection() throws UserWarningException {
+        Variable var1 = model.createVariable("foo", Argument.Type.TEXT);
+        Variable var2 = model.createVariable("bar", Argument.Type.TEXT);
+        Cell c1 = var1.createCell();
+        Cell c2 = var1.createCell();
+        Cell c3 = var2.createCell();
+
+        // New cells start out selected.
+        assertEquals(model.getSelectedCells().size(), 3);
+        model.clearCellSelection();
+        assertEquals(model.getSelectedCells().size(), 0);
+        assertFalse(c1.isSelected());
+        assertFalse(c1.isHighlighted());
+
+        c2.setHighlighted(true);
+        c3.setSelected(true);
+        List<Cell> selected = new ArrayList<Cell>();
+        selected.add(c2);
+        selected.add(c3);
+        assertEquals(model.getSelectedCells(), selected);
+
+        // Removed cells drop out of the selection.
+        var1.removeCell(c2);
+        selected.remove(c2);
+        assertEquals(model.getSelectedCells(), selected);
+        model.removeVariable(var2);
+        assertEquals(model.getSelectedCells().size(), 0);
+        model.addVariable(var2);
+        assertEquals(model.getSelectedCells(), selected);
+
+        assertEquals(model.getVariable(c1), var1);
+        assertEquals(model.getVariable(c3), var2);
+        assertEquals(model.getVariable(c2), null);
+    }
+
+    @Test
+    public void attachVariable() throws UserWarningException {
+        DataStore scratch = DataStoreFactory.newDataStore();
+        Variable var = scratch.createVariable("foo", Argument.Type.TEXT);
+        Cell c1 = var.createCell();
+        var.createCell(0L, 10L);
+
+        model.attachVariable(var);
+
+        assertEquals(scratch.getAllVariables().size(), 0);
+        assertEquals(var.getOwningDatastore(), model);
+        assertEquals(model.getVariable("foo"), var);
+        assertEquals(model.getVariable(c1), var);
+        assertEquals(model.getSelectedCells(), Collections.singletonList(c1));
+        verify(modelListener).variableAdded(var);
+    }
+
+    @Test(expectedExceptions = UserWarningException.class)
+    public void unableToAttachVariable() throws UserWarningException {
+        model.createVariable("foo", Argument.Type.TEXT);
+        model.attachVariable(DataStoreFactory.newDataStore().createVariable("foo", Argument.Type.TEXT));
+    }
+
+    @Test
+    public void batchedChanges() throws UserWarningException {
+        Variable var = model.createVariable("foo", Argument.Type.TEXT);
+        Cell kept = var.createCell();
+        Cell removed = var.createCell();
+        VariableListener varListener = mock(VariableListener.class);
+        CellListener cellListener = mock(CellListener.class);
+        var.addListener(varListener);
+        kept.addListener(cellListener);
+
+        model.beginBatch();
+        Cell added = var.createCell();
+        Cell temporary = var.createCell();
+        var.removeCell(temporary);
+        var.removeCell(removed);
+        kept.setOnset(100);
+        kept.setOnset(200);
+        added.setOnset(300);
+
+        // The variable changes right away, the listeners have to wait for the commit.
+        assertTrue(model.isInBatch());
+        assertEquals(var.getCellsTemporally().get(1), added);
+        verifyZeroInteractions(varListener, cellListener);
+
+        model.commitBatch();
+        assertFalse(model.isInBatch());
+
+        ArgumentCaptor<VariableChanges> captor = ArgumentCaptor.forClass(VariableChanges.class);
+        verify(varListener).cellsChanged(captor.capture());
+        VariableChanges changes = captor.getValue();
+        assertEquals(changes.getVariable(), var);
+        assertEquals(new ArrayList<Cell>(changes.getInsertedCells()), Collections.singletonList(added));
+        assertEquals(new ArrayList<Cell>(changes.getRemovedCells()), Collections.singletonList(removed));
+        assertEquals(new ArrayList<Cell>(changes.getChangedCells()), Collections.singletonList(kept));
+
+        verify(cellListener).onsetChanged(200);
+        verify(cellListener, never()).onsetChanged(100);
+        verify(cellListener, never()).offsetChanged(anyLong());
+        verify(varListener, never()).cellInserted(any(Cell.class));
+        verify(varListener, never()).cellRemoved(any(Cell.class));
+        verify(modelListener).batchCommitted(Collections.singletonList(changes));
+    }
+
+    @Test
+    public void nestedBatches() throws UserWarningException {
+        Variable var = model.createVariable("foo", Argument.Type.TEXT);
+        VariableListener varListener = mock(VariableListener.class);
+        var.addListener(varListener);
+
+        model.batch(new Runnable() {
+            @Override
+            public void run() {
+                model.batch(new Runnable() {
+                    @Override
+                    public void run() {
+                        var.createCell();
+                    }
+                });
+                verify(varListener, never()).cellsChanged(any(VariableChanges.class));
+                var.createCell();
+            }
+        });
+        verify(varListener, times(1)).cellsChanged(any(VariableChanges.class));
+
+        // Outside of a batch the listeners are notified right away.
+        Cell c = var.createCell();
+        verify(varListener).cellInserted(c);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void commitWithoutBatch() {
+        model.commitBatch();
+    }
+
     @Test
     public void unchangedByDefault() throws UserWarningException {
         assertFalse(model.isChanged());
@@ -144,4 +282,120 @@ public class DataStoreTest {
         model.markAsUnchanged();
         assertFalse(model.isChanged());
     }
+
+    @Test
+    public void batchBelongsToItsThread() throws Exception {
+        final Variable var = model.createVariable("foo", Argument.Type.TEXT);
+        VariableListener varListener = mock(VariableListener.class);
+        var.addListener(varListener);
+        final boolean[] seen = new boolean[2];
+        final Cell[] other = new Cell[1];
+        Runnable reader = new Runnable() {
+            @Override
+            public void run() {
+                Lock lock = model.getLock().readLock();
+                seen[0] = lock.tryLock();
+                if (seen[0]) {
+                    lock.unlock();
+                }
+                seen[1] = model.isInBatch();
+                other[0] = var.createCell();
+            }
+        };
+
+        // Other threads keep reading and changing during a batch, and the batch is not theirs.
+        model.beginBatch();
+        try {
+            Cell mine = var.createCell();
+            assertTrue(model.isInBatch());
+            Thread thread = new Thread(reader);
+            thread.start();
+            thread.join();
+            assertTrue(seen[0]);
+            assertFalse(seen[1]);
+            verify(varListener).cellInserted(other[0]);
+            verify(varListener, never()).cellInserted(mine);
+        } finally {
+            model.commitBatch();
+        }
+
+        ArgumentCaptor<VariableChanges> captor = ArgumentCaptor.forClass(VariableChanges.class);
+        verify(varListener).cellsChanged(captor.capture());
+        assertEquals(captor.getValue().getInsertedCells().size(), 1);
+        assertFalse(captor.getValue().getInsertedCells().contains(other[0]));
+    }
+
+    @Test
+    public void concurrentReaders() throws Exception {
+        final Variable var = model.createVariable("foo", Argument.Type.TEXT);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        // Cells are always added and removed in pairs, so readers must only ever see an even number of them.
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 500; i++) {
+                    final int time = i;
+                    // The batch only holds back the notifications; the write lock makes the pairs appear at once.
+                    Lock lock = model.getLock().writeLock();
+                    lock.lock();
+                    try {
+                        model.batch(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (int j = 0; j < 2; j++) {
+                                    Cell cell = var.createCell();
+                                    cell.setOnset(time * 10 + j);
+                                    cell.getCellValue().set("v" + time);
+                                }
+                                if (time % 3 == 0) {
+                                    var.removeCell(var.getCellTemporally(0));
+                                    var.removeCell(var.getCellTemporally(0));
+                                }
+                            }
+                        });
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        });
+        Runnable reads = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        Lock lock = model.getLock().readLock();
+                        lock.lock();
+                        try {
+                            List<Cell> cells = var.getCellsTemporally();
+                            assertEquals(cells.size() % 2, 0);
+                            assertEquals(var.getCellsInRange(Long.MIN_VALUE, Long.MAX_VALUE), cells);
+                            for (int i = 1; i < cells.size(); i++) {
+                                assertTrue(cells.get(i - 1).getOnset() <= cells.get(i).getOnset());
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        Thread[] readers = {new Thread(reads), new Thread(reads)};
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.start();
+        writer.join();
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(failure.get(), null);
+        assertEquals(var.getCells().size(), 2 * (500 - 167));
+    }
 }
@@ -0,0 +1,156 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the cell listeners, held by every cell itself, and a heap regression test for them: deleted cells must
+ * not stay reachable.
+ */
+public class ListenerHeapTest {
+
+    /** Number of cells to create and delete. */
+    private static final int NUM_CELLS = 1000000;
+
+    /** Keep a weak reference to every n-th cell. */
+    private static final int SAMPLE_EVERY = 1000;
+
+    /** Allowed growth of the used heap after all cells have been deleted. */
+    private static final long MAX_HEAP_GROWTH = 32L * 1024L * 1024L;
+
+    /** Listener that does nothing; stands in for a SpreadsheetCell. */
+    private static final class NullCellListener implements CellListener {
+        @Override
+        public void offsetChanged(final long newOffset) {
+        }
+
+        @Override
+        public void onsetChanged(final long newOnset) {
+        }
+
+        @Override
+        public void highlightingChange(final boolean isHighlighted) {
+        }
+
+        @Override
+        public void selectionChange(final boolean isSelected) {
+        }
+
+        @Override
+        public void valueChange(final CellValue newCellValue) {
+        }
+    }
+
+    /** Records the onsets it is told about, and removes itself from the cell at the given onset. */
+    private static final class OnsetListener implements CellListener {
+
+        final List<Long> onsets = new ArrayList<Long>();
+
+        Cell cell;
+
+        long removeAt = -1;
+
+        @Override
+        public void offsetChanged(final long newOffset) {
+        }
+
+        @Override
+        public void onsetChanged(final long newOnset) {
+            onsets.add(newOnset);
+            if (newOnset == removeAt) {
+                cell.removeListener(this);
+            }
+        }
+
+        @Override
+        public void highlightingChange(final boolean isHighlighted) {
+        }
+
+        @Override
+        public void selectionChange(final boolean isSelected) {
+        }
+
+        @Override
+        public void valueChange(final CellValue newCellValue) {
+        }
+    }
+
+    @Test
+    public void listenersOfEachCell() throws UserWarningException {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable var = ds.createVariable("test", Argument.Type.MATRIX);
+        Cell first = var.createCell();
+        Cell second = var.createCell();
+        OnsetListener leaving = new OnsetListener();
+        leaving.cell = first;
+        leaving.removeAt = 10;
+        OnsetListener staying = new OnsetListener();
+        first.addListener(leaving);
+        first.addListener(staying);
+        // Adding a listener again does not notify it twice.
+        first.addListener(staying);
+
+        // A listener that removes itself while notified does not keep the next one from hearing the change.
+        first.setOnset(10);
+        first.setOnset(20);
+        second.setOnset(30);
+        assertEquals(leaving.onsets, Arrays.asList(10L));
+        assertEquals(staying.onsets, Arrays.asList(10L, 20L));
+
+        // Removing a listener that is not there changes nothing.
+        second.removeListener(staying);
+        first.removeListener(leaving);
+        first.setOnset(40);
+        assertEquals(staying.onsets, Arrays.asList(10L, 20L, 40L));
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void createAndDeleteCells() throws UserWarningException {
+        DataStore ds = DataStoreFactory.newDataStore();
+        Variable var = ds.createVariable("test", Argument.Type.MATRIX);
+        CellListener listener = new NullCellListener();
+        List<WeakReference<Cell>> samples = new ArrayList<WeakReference<Cell>>();
+
+        long before = BenchmarkUtils.usedHeap();
+        for (int i = 0; i < NUM_CELLS; i++) {
+            Cell cell = var.createCell();
+            cell.addListener(listener);
+            cell.setOnset(i);
+            if (i % SAMPLE_EVERY == 0) {
+                samples.add(new WeakReference<Cell>(cell));
+            }
+            var.removeCell(cell);
+        }
+        assertEquals(var.getCells().size(), 0);
+        assertEquals(ds.getSelectedCells().size(), 0);
+
+        long after = BenchmarkUtils.usedHeap();
+        for (WeakReference<Cell> sample : samples) {
+            assertNull(sample.get(), "Deleted cell is still reachable");
+        }
+        assertTrue(after - before < MAX_HEAP_GROWTH, "Heap grew by " + (after - before) + " bytes");
+    }
+}
@@ -18,6 +18,8 @@ import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
+import java.io.IOException;
+
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -156,5 +158,61 @@ public class MatrixCellValueTest {
         assertTrue(cell.getMatrixValue(0).isEmpty());
     }
 
+    @Test
+    public void testCachedStrings() {
+        var.addArgument(Argument.Type.TEXT);
+        model.set("(a,b-c)");
+        assertEquals(model.toString(), "(a,b-c)");
+        assertEquals(model.serialize(), "(a,b\\-c)");
+
+        // Every change to the arguments is seen by the cached strings.
+        cell.setMatrixValue(0, "x");
+        assertEquals(model.toString(), "(x,b-c)");
+        cell.getMatrixValue(1).clear();
+        assertEquals(model.serialize(), "(x,)");
+        var.addArgument(Argument.Type.NOMINAL);
+        assertEquals(model.toString(), "(x,,)");
+        var.moveArgument("code01", 2);
+        assertEquals(model.toString(), "(,,x)");
+        var.removeArgument("code01");
+        assertEquals(model.serialize(), "(,)");
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testArgumentsAreReadOnly() {
+        // Arguments are changed through the variable, which keeps the cached strings in step.
+        ((MatrixCellValue) model).getArguments().remove(0);
+    }
 
+    @Test
+    public void testAppendTo() throws IOException, UserWarningException {
+        Variable columnar = ds.createColumnarVariable("columnar", Argument.Type.MATRIX);
+        for (Variable variable : new Variable[]{var, columnar}) {
+            variable.addArgument(Argument.Type.TEXT);
+            variable.addArgument(Argument.Type.NOMINAL);
+        }
+        // Empty arguments, and characters that are escaped only when serialized.
+        CellValue empty = columnar.createCell().getCellValue();
+        Cell escaped = columnar.createCell();
+        model.set("(a,b|c,)");
+        escaped.setMatrixValue(0, "x(y)");
+        escaped.setMatrixValue(1, "b-c,d");
+
+        assertEquals(written(model), "(a,b|c,) (a,b\\|c,) a; b|c; ");
+        assertEquals(written(empty), "(,,) (,,) ; ; ");
+        assertEquals(written(escaped.getCellValue()), "(x(y),b-c,d,) (x\\(y\\),b\\-c\\,d,) x(y); b-c,d; ");
+    }
+
+    /**
+     * @return The value as appendTo, serializeTo and appendArguments write it, separated by spaces.
+     */
+    private static String written(final CellValue value) throws IOException {
+        StringBuilder out = new StringBuilder();
+        value.appendTo(out);
+        out.append(' ');
+        value.serializeTo(out);
+        out.append(' ');
+        ((MatrixCellValue) value).appendArguments(out, "; ");
+        return out.toString();
+    }
 }
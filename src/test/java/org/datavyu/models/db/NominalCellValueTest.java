@@ -0,0 +1,198 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import org.datavyu.util.BenchmarkUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the dictionary encoded NominalCellValue.
+ */
+public class NominalCellValueTest {
+
+    /** Number of values in the heap fixture. */
+    private static final int NUM_VALUES = 1000000;
+
+    /** The codes used by the heap fixture. */
+    private static final String[] CODES = {"look", "reach", "grasp", "mouth", "drop", "other"};
+
+    /**
+     * The parent DataStore for the values we are testing.
+     */
+    private DataStore ds;
+
+    /**
+     * The parent variable for the values we are testing.
+     */
+    private Variable var;
+
+    @BeforeMethod
+    public void setUp() throws UserWarningException {
+        ds = DataStoreFactory.newDataStore();
+        var = ds.createVariable("test", Argument.Type.MATRIX);
+        var.addArgument(Argument.Type.NOMINAL);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        var = null;
+        ds = null;
+    }
+
+    @Test
+    public void testSetAndClear() {
+        CellValue model = var.createCell().getMatrixValue(0);
+        assertTrue(model.isEmpty());
+        assertEquals(model.serialize(), "");
+
+        model.set("a,b");
+        assertFalse(model.isEmpty());
+        assertEquals(model.toString(), "a,b");
+        assertEquals(model.serialize(), "a\\,b");
+
+        model.set("");
+        assertTrue(model.isEmpty());
+        assertEquals(model.toString(), "");
+
+        model.clear();
+        assertTrue(model.isEmpty());
+    }
+
+    @Test
+    public void testValuesShareDictionary() {
+        Cell c1 = var.createCell();
+        Cell c2 = var.createCell();
+        c1.getCellValue().set("(" + new String("look") + ",x)");
+        c2.getCellValue().set("(" + new String("look") + ",y)");
+
+        DatavyuNominalCellValue v1 = (DatavyuNominalCellValue) c1.getMatrixValue(0);
+        DatavyuNominalCellValue v2 = (DatavyuNominalCellValue) c2.getMatrixValue(0);
+        assertSame(v1.getDictionary(), var.getRootNode().childArguments.get(0).getDictionary());
+        assertSame(v1.getDictionary(), v2.getDictionary());
+        assertEquals(v1.getCode(), v2.getCode());
+        assertSame(v1.toString(), v2.toString());
+
+        // Each argument has a dictionary of its own.
+        DatavyuNominalCellValue w1 = (DatavyuNominalCellValue) c1.getMatrixValue(1);
+        assertEquals(w1.getCode(), 0);
+        assertEquals(w1.toString(), "x");
+    }
+
+    @Test
+    public void testValueCounts() throws UserWarningException {
+        String[] values = {"b", "a", "b", "", "c", "b"};
+        Variable columnar = ds.createColumnarVariable("columnar", Argument.Type.MATRIX);
+        columnar.addArgument(Argument.Type.TEXT);
+        for (String value : values) {
+            var.createCell().getCellValue().set("(" + value + ",t" + value + ")");
+            columnar.createCell().getCellValue().set("(" + value + ",t" + value + ")");
+        }
+        var.createCell();
+
+        Map<String, Integer> expected = new LinkedHashMap<>();
+        expected.put("b", 3);
+        expected.put("a", 1);
+        expected.put("c", 1);
+        assertEquals(var.getValueCounts(0), expected);
+        assertEquals(columnar.getValueCounts(0), expected);
+        assertEquals(columnar.getValueCounts(1).get("tb"), Integer.valueOf(3));
+        assertEquals(columnar.getValueCounts(1).get("t"), Integer.valueOf(1));
+    }
+
+    @Test
+    public void testReplacedValuesAreReleased() throws UserWarningException {
+        Variable columnar = ds.createColumnarVariable("columnar", Argument.Type.NOMINAL);
+        Cell kept = var.createCell();
+        kept.getCellValue().set("(look,x)");
+        Cell typed = var.createCell();
+        Cell column = columnar.createCell();
+        column.getCellValue().set("look");
+        DataStore snapshot = ds.snapshot();
+
+        for (int i = 0; i < 100; i++) {
+            typed.getCellValue().set("(typo" + i + ",x)");
+            column.getCellValue().set("typo" + i);
+        }
+        typed.getCellValue().set("(final,x)");
+        column.getCellValue().set("final");
+
+        ValueDictionary dictionary = var.getRootNode().childArguments.get(0).getDictionary();
+        assertEquals(dictionary.getCode("typo5"), ValueDictionary.NO_CODE);
+        assertTrue(dictionary.size() < 25, "size " + dictionary.size());
+        // A few of the last values are kept, in case they are set again.
+        int typos = 0;
+        for (String value : dictionary.getValues()) {
+            if (value != null && value.startsWith("typo")) {
+                typos++;
+            }
+        }
+        assertTrue(typos <= 16, "typos " + typos);
+        assertEquals(kept.getCellValue().toString(), "(look,x)");
+        assertEquals(typed.getCellValue().toString(), "(final,x)");
+
+        ValueDictionary columnDictionary = columnar.getRootNode().getDictionary();
+        assertEquals(columnDictionary.getCode("typo50"), ValueDictionary.NO_CODE);
+        assertTrue(columnDictionary.size() < 25, "size " + columnDictionary.size());
+        assertEquals(column.getCellValue().toString(), "final");
+
+        // The snapshot keeps the value it was taken with.
+        assertEquals(snapshot.getVariable("columnar").getCells().get(0).getCellValue().toString(), "look");
+    }
+
+    /**
+     * Fills the values as CSV parsing does, from strings of their own.
+     */
+    private static long fill(final DatavyuCellValue[] values) {
+        long before = BenchmarkUtils.usedHeap();
+        for (int i = 0; i < values.length; i++) {
+            values[i].setValue(("(" + CODES[i % CODES.length] + ")").substring(1, CODES[i % CODES.length].length() + 1));
+        }
+        return BenchmarkUtils.usedHeap() - before;
+    }
+
+    @Test(groups = BenchmarkUtils.GROUP)
+    public void testHeapSavings() {
+        Argument argument = new Argument("code01", Argument.Type.NOMINAL);
+
+        // Text values hold their strings as nominal values did before they were dictionary encoded.
+        DatavyuCellValue[] text = new DatavyuCellValue[NUM_VALUES];
+        for (int i = 0; i < NUM_VALUES; i++) {
+            text[i] = new DatavyuTextCellValue(null, argument, null);
+        }
+        long textBytes = fill(text);
+        text = null;
+
+        DatavyuCellValue[] nominal = new DatavyuCellValue[NUM_VALUES];
+        for (int i = 0; i < NUM_VALUES; i++) {
+            nominal[i] = new DatavyuNominalCellValue(null, argument, null);
+        }
+        long nominalBytes = fill(nominal);
+
+        BenchmarkUtils.report("%d values: %d MB as strings, %d MB as codes", NUM_VALUES, textBytes >> 20,
+                nominalBytes >> 20);
+        assertEquals(argument.getDictionary().size(), CODES.length);
+        assertTrue(nominalBytes * 10 < textBytes, "Codes do not save the heap taken by strings");
+    }
+}
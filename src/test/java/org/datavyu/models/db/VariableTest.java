@@ -184,6 +184,120 @@ public class VariableTest {
         assertEquals(model.getCellTemporally(0), c2);
     }
 
+    @Test
+    public void testTemporalOrderAfterChange() {
+        Cell c1 = model.createCell();
+        Cell c2 = model.createCell();
+        Cell c3 = model.createCell();
+        c1.setOnset(300);
+        c2.setOnset(100);
+        c3.setOnset(200);
+
+        List<Cell> before = model.getCellsTemporally();
+        assertEquals(before.get(0), c2);
+        assertEquals(before.get(1), c3);
+        assertEquals(before.get(2), c1);
+
+        // Ties on onset are broken by offset.
+        c2.setOnset(200);
+        c2.setOffset(250);
+        assertEquals(model.getCellTemporally(0), c3);
+        assertEquals(model.getCellTemporally(1), c2);
+        assertEquals(model.getCellTemporally(2), c1);
+
+        // Lists that were handed out earlier are not changed.
+        assertEquals(before.get(0), c2);
+
+        model.removeCell(c3);
+        assertEquals(model.getCellsTemporally().size(), 2);
+        assertEquals(model.getCellTemporally(0), c2);
+    }
+
+    @Test
+    public void testTimeQueries() {
+        Cell c1 = model.createCell();
+        c1.setOnset(0);
+        c1.setOffset(999);
+        Cell c2 = model.createCell();
+        c2.setOnset(1000);
+        c2.setOffset(1999);
+        Cell c3 = model.createCell();
+        c3.setOnset(1500);
+        c3.setOffset(3000);
+        // No offset, covers its onset only.
+        Cell c4 = model.createCell();
+        c4.setOnset(5000);
+
+        List<Cell> expected = new ArrayList<Cell>();
+        expected.add(c2);
+        expected.add(c3);
+        assertEquals(model.getCellsInRange(1000, 2500), expected);
+        assertEquals(model.getCellsAt(1700), expected);
+        assertEquals(model.getCellsAt(999).get(0), c1);
+        assertEquals(model.getCellsAt(4000).size(), 0);
+        assertEquals(model.getCellsAt(5000).get(0), c4);
+        assertEquals(model.getCellsInRange(3001, 4999).size(), 0);
+
+        assertEquals(model.getPreviousCell(1499), c2);
+        assertEquals(model.getPreviousCell(1500), c3);
+        assertEquals(model.getPreviousCell(-1), null);
+        assertEquals(model.getNextCell(1500), c4);
+        assertEquals(model.getNextCell(5000), null);
+
+        assertEquals(model.getTemporalIndex(c3), 2);
+        model.removeCell(c1);
+        assertEquals(model.getTemporalIndex(c3), 1);
+        assertEquals(model.getTemporalIndex(c1), -1);
+    }
+
+    @Test
+    public void testCellsInAddedOrder() {
+        Cell c1 = model.createCell();
+        Cell c2 = model.createCell();
+        Cell c3 = model.createCell();
+        c1.setOnset(300);
+        c2.setOnset(100);
+        c3.setOnset(200);
+
+        // Moving cells in time does not move them in getCells, so positions in it stay valid for the undo edits.
+        List<Cell> expected = new ArrayList<Cell>();
+        expected.add(c1);
+        expected.add(c2);
+        expected.add(c3);
+        assertEquals(model.getCells(), expected);
+        assertEquals(model.getCellTemporally(0), c2);
+
+        // A cell that is added again goes to the end.
+        model.removeCell(c1);
+        model.addCell(c1);
+        expected.remove(c1);
+        expected.add(c1);
+        assertEquals(model.getCells(), expected);
+    }
+
+    @Test
+    public void testDetachedVariable() throws UserWarningException {
+        DatavyuVariable detached = new DatavyuVariable();
+        detached.setRootNode(new Argument("detached", Argument.Type.TEXT));
+        detached.setName("detached");
+        assertEquals(detached.getCells().size(), 0);
+        assertEquals(detached.getCellsTemporally().size(), 0);
+        assertEquals(detached.getCellsAt(0).size(), 0);
+        assertEquals(detached.getName(), "detached");
+
+        Cell cell = detached.createCell();
+        cell.setOnset(100);
+        assertEquals(detached.getCells().size(), 1);
+        assertEquals(detached.getCellsAt(100).get(0), cell);
+        assertFalse(ds.isChanged());
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testTemporalCellsUnmodifiable() {
+        model.createCell();
+        model.getCellsTemporally().clear();
+    }
+
     @Test(expectedExceptions = UserWarningException.class)
     public void uniqueVariableNames() throws UserWarningException {
         ds.createVariable("test", Argument.Type.TEXT);
@@ -0,0 +1,62 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Utilities for the tests that time or weigh large data sets. Those tests are in the benchmark group, which the
+ * default build leaves out; run them with the benchmark profile: mvn test -Pbenchmark
+ */
+public final class BenchmarkUtils {
+
+    /** The TestNG group of the benchmarks */
+    public static final String GROUP = "benchmark";
+
+    /** Logger for this class */
+    private static final Logger logger = LogManager.getLogger(BenchmarkUtils.class);
+
+    private BenchmarkUtils() {
+    }
+
+    /**
+     * @return The heap in use after collecting the garbage, in bytes. Only an estimate: the collector may leave some.
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return The milliseconds since a time from System.nanoTime().
+     */
+    public static long millisSince(final long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Logs a result of a benchmark.
+     *
+     * @param format The message, as for String.format.
+     * @param args   The values of the message.
+     */
+    public static void report(final String format, final Object... args) {
+        logger.info(String.format(format, args));
+    }
+}
@@ -0,0 +1,422 @@
+# The column analyses of the Ruby API as they were before they moved to Java sweeps
+# (org.datavyu.models.db.ColumnAnalytics), kept word for word under a "baseline_" name.
+# ColumnAnalyticsRubyTest runs them next to the API's own on the same columns; load Datavyu_API.rb first.
+
+class RColumn
+  def baseline_resample(step, opts={})
+    @resample_defaults = {
+      :column_name => self.name,
+      :start_time => :earliest,
+      :stop_time => :latest
+    }
+
+    opts = @resample_defaults.merge(opts)
+    if opts[:start_time] == :earliest
+      opts[:start_time] = @cells.map(&:onset).min
+    end
+    if opts[:stop_time] == :latest
+      opts[:stop_time] = @cells.map(&:offset).max
+    end
+
+    # Construct new column
+    ncol = new_column(opts[:column_name], self.arglist)
+    # Construct new cells spanning range.
+    ( (opts[:start_time])..(opts[:stop_time]) ).step(step) do |time|
+      ncell = ncol.new_cell
+      ncell.onset = time
+      ncell.offset = time + step - 1
+
+      # Find overlapping cells from self in this time region
+      overlap_cells = self.cells.select{ |x| x.overlaps_cell(ncell) }
+      # if overlap_cells.empty?
+      #   puts "no source cell for time #{time}"
+      #   next
+      # end
+      next if overlap_cells.empty? # no source cell
+
+      # Map each to their intersecting region and find the one with the largest duration.
+      sorted_by_intersection =  overlap_cells.sort do |x, y|
+        r1 = x.overlapping_region(ncell)
+        d1 = r1.last - r1.first
+
+        r2 = y.overlapping_region(ncell)
+        d2 = r2.last - r2.first
+
+        d2 <=> d1 # largest first
+      end
+      winner = sorted_by_intersection.first
+
+      ncell.arglist.each do |code|
+        ncell.change_code(code, winner.get_code(code))
+      end
+      # p ncol.cells.size
+    end
+    return ncol
+  end
+end
+
+def baseline_compute_kappa(pri_col, rel_col, *codes)
+  codes = pri_col.arglist if codes.nil? || codes.empty?
+  raise "No codes!" if codes.empty?
+
+  pri_col = get_column(pri_col) if pri_col.class == String
+  rel_col = get_column(rel_col) if rel_col.class == String
+  codes.flatten!
+
+  raise "Invalid parameters for getKappa()" unless (pri_col.class==RColumn && rel_col.class==RColumn)
+
+  # Get the list of observed values in each cell, per code
+  cells = pri_col.cells + rel_col.cells
+
+  # Build a hashmap from the list of codes to all observed values for that code
+  # across primary and reliability cells.
+  observed_values = Hash.new{ |h, k| h[k] = [] }
+  cells.each do |cell|
+    codes.each do |code|
+      observed_values[code] << cell.get_code(code)
+    end
+  end
+
+  # Take the unique values for each code.
+  # Filter out codes that do not have minimum number of required values to compute kappa.
+  observed_values.delete_if do |c, vs|
+    vs.uniq!
+    if vs.size < 2
+      puts "Cannot compute score for #{c} (less than 2 values observed): #{v.join(',')}"
+      true
+    else
+      false
+    end
+  end
+
+  # Init contingency tables for each code name
+  tables = Hash.new
+  observed_values.each_pair do |codename, codevalues|
+    tables[codename] = CTable.new(*codevalues)
+  end
+
+  # Get the pairs of corresponding primary and reliability cells
+  cellPairs = Hash.new
+  rel_col.cells.each do |relcell|
+    cellPairs[relcell] = pri_col.cells.find{ |pricell| pricell.onset == relcell.onset} # match by onset times
+  end
+
+  cellPairs.each_pair do |pricell, relcell|
+    tables.keys.each do |x|
+      tables[x].add(pricell.get_code(x), relcell.get_code(x))
+    end
+  end
+
+
+  kappas = Hash.new
+  tables.each_pair do |codename, ctable|
+    kappas[codename] = ctable.kappa
+  end
+
+  return kappas, tables
+end
+
+def baseline_make_duration_block_rel(relname, var_to_copy, binding_column, block_dur, skip_blocks)
+  block_var = new_column(relname + "_blocks", "block_num")
+  rel_var = make_rel(relname, var_to_copy, 0)
+
+  var_to_copy = get_column(var_to_copy)
+  binding_col = get_column(binding_column)
+
+
+  block_dur = block_dur * 1000 # Convert to milliseconds
+  block_num = 1
+  for bindcell in binding_col.cells
+    cell_dur = bindcell.offset - bindcell.onset
+    if cell_dur <= block_dur
+      cell = block_var.new_cell()
+      cell.change_code("block_num", block_num.to_s)
+      cell.onset = bindcell.onset
+      cell.offset = bindcell.offset
+      block_num += 1
+    else
+      num_possible_blocks = cell_dur / block_dur #Integer division
+      if num_possible_blocks > 0
+        for i in 0..num_possible_blocks
+          if i % skip_blocks == 0
+            cell = block_var.new_cell()
+            cell.change_code("block_num", block_num.to_s)
+            cell.onset = bindcell.onset + i * block_dur
+            if bindcell.onset + (i + 1) * block_dur <= bindcell.offset
+              cell.offset =  bindcell.onset + (i + 1) * block_dur
+            else
+              cell.offset = bindcell.offset
+            end
+            block_num += 1
+          end
+        end
+      end
+    end
+  end
+  set_column(relname + "_blocks", block_var)
+end
+
+def baseline_create_mutually_exclusive(name, var1name, var2name, var1_argprefix=nil, var2_argprefix=nil)
+  if var1name.class == "".class
+    var1 = get_column(var1name)
+  else
+    var1 = var1name
+  end
+  if var2name.class == "".class
+    var2 = get_column(var2name)
+  else
+    var2 = var2name
+  end
+
+  scan_for_bad_cells(var1)
+  scan_for_bad_cells(var2)
+
+  for cell in var1.cells
+    if cell.offset == 0
+      puts "ERROR: CELL IN " + var1.name + " ORD: " + cell.ordinal.to_s + "HAS BLANK OFFSET, EXITING"
+      exit
+    end
+  end
+
+  for cell in var2.cells
+    if cell.offset == 0
+      puts "ERROR: CELL IN " + var2.name + " ORD: " + cell.ordinal.to_s + "HAS BLANK OFFSET, EXITING"
+      exit
+    end
+  end
+
+  # TODO Handle special cases where one or both of columns have no cells
+
+  # TODO Handle special case where column has a cell with negative time
+
+  # Get the earliest time between the two cols
+  time1_on = 9999999999
+  time2_on = 9999999999
+
+  time1_off = 0
+  time2_off = 0
+  if var1.cells.length > 0
+    time1_on = var1.cells[0].onset
+    time1_off = var1.cells[var1.cells.length-1].offset
+  end
+  if var2.cells.length > 0
+    time2_on = var2.cells[0].onset
+    time2_off = var2.cells[var2.cells.length-1].offset
+  end
+  start_time = [time1_on, time2_on].min
+
+  # And the end time
+  end_time = [time1_off, time2_off].max
+
+
+  # Create the new variable
+  if var1_argprefix == nil
+    var1_argprefix = var1.name.gsub(/(\W)+/, "").downcase + "___"
+    var1_argprefix.gsub(".", "")
+  end
+  if var2_argprefix == nil
+    var2_argprefix = var2.name.gsub(/(\W)+/, "").downcase + "___"
+    var2_argprefix.gsub(".", "")
+  end
+
+  v1arglist = var1.arglist.map { |arg| var1_argprefix + arg }
+  v2arglist = var2.arglist.map { |arg| var2_argprefix + arg }
+
+  # puts "NEW ARGUMENT NAMES:", v1arglist, v2arglist
+  args = Array.new
+  args << (var1_argprefix + "ordinal")
+  args += v1arglist
+
+  args << (var2_argprefix + "ordinal")
+  args += v2arglist
+
+  # puts "Creating mutex var", var1.arglist
+  mutex = createVariable(name, args)
+  # puts "Mutex var created"
+
+  # And finally begin creating new cells
+  v1cell = nil
+  v2cell = nil
+  next_v1cell_ind = nil
+  next_v2cell_ind = nil
+
+  time = start_time
+  # puts "Start time", start_time
+  # puts "End time", end_time
+
+  flag = false
+
+  count = 0
+
+  #######################
+  # BEGIN NEW MUTEX
+  # Idea here: gather all of the time changes.
+  # For each time change get the corresponding cells involved in that change.
+  # Create the necessary cell at each time change.
+  #######################
+
+  time_changes = Set.new
+  v1_cells_at_time = Hash.new
+  v2_cells_at_time = Hash.new
+
+
+  # Preprocess relevant cells and times
+  for cell in var1.cells + var2.cells
+    time_changes.add(cell.onset)
+    time_changes.add(cell.offset)
+  end
+
+
+  time_changes = time_changes.to_a.sort
+  if $debug
+    p time_changes
+  end
+  # p time_changes
+
+
+  mutex_cell = nil
+  mutex_cell_parent = nil
+
+  # TODO: make these handle empty cols
+  v1cell = var1.cells[0]
+  prev_v1cell = nil
+  prev_v2cell = nil
+  v2cell = var2.cells[0]
+  v1idx = 0
+  v2idx = 0
+
+  #
+  for i in 0..time_changes.length-2
+    t0 = time_changes[i]
+    t1 = time_changes[i+1]
+
+    # Find the cells that are active during these times
+    for j in v1idx..var1.cells.length-1
+      c = var1.cells[j]
+      v1cell = nil
+      if $debug
+        p "---", "T1", t0, t1, c.onset, c.offset, "---"
+      end
+      if c.onset <= t0 and c.offset >= t1 and (t1-t0 > 1 or (c.onset==t0 and c.offset==t1))
+        v1cell = c
+        v1idx = j
+        # p t0, t1, "Found V1"
+        break
+        # elsif c.onset > t1
+        #   break
+      else
+        v1cell = nil
+      end
+    end
+
+    for j in v2idx..var2.cells.length-1
+      c = var2.cells[j]
+      v2cell = nil
+      # p "---", "T2", t0, t1, c.onset, c.offset, "---"
+      if c.onset <= t0 and c.offset >= t1 and (t1-t0 > 1 or (c.onset==t0 and c.offset==t1))
+        v2cell = c
+        v2idx = j
+        # p t0, t1, "Found V2"
+        break
+        # elsif c.onset > t1
+        #   break
+      else
+        v2cell = nil
+      end
+    end
+
+    if v1cell != nil or v2cell != nil
+      mutex_cell = mutex.create_cell
+
+      mutex_cell.onset = t0
+      mutex_cell.offset = t1
+      fillMutexCell(v1cell, v2cell, mutex_cell, mutex, var1_argprefix, var2_argprefix)
+    end
+
+  end
+
+
+  # Now that we have all of the necessary temporal information
+  # go through each time in the list and create a cell
+
+  for arg in mutex.arglist
+    mutex.change_code_name(arg, arg.gsub("___", "_"))
+  end
+  for i in 0..mutex.cells.length-1
+    c = mutex.cells[i]
+    c.ordinal = i+1
+  end
+  puts "Created a column with #{mutex.cells.length} cells."
+
+  return mutex
+end
+
+def baseline_merge_columns(name, *cols)
+  # Handle degenerate cases
+  return nil if cols.nil? || cols.size == 0
+
+  # Ensure cols contains RColumns
+  cols.map! do |x|
+    case x
+    when String
+      get_column(x)
+    when RColumn
+      x
+    else
+      raise "Unhandled column value or class: #{x}, #{x.class}."
+    end
+  end
+
+  # Do nothing if only one column given.
+  return cols.first if cols.size == 1
+
+	# Concatenate arglists and cells.
+  # Codes have their column name and an underscore prepended to them.
+	my_args = []
+	all_cells = []
+	cols.each{
+		|x|
+		my_args << x.name.downcase+"_ordinal"
+		my_args << x.arglist.map{ |y| x.name.downcase+"_"+y}
+		all_cells << x.cells
+	}
+	my_args.flatten!
+	all_cells.flatten!
+
+	ncol = new_column(name, *my_args)
+
+  # Convert point cells to have offsets = onset + 1
+  all_cells.each{ |x| x.offset = x.onset + 1 if x.onset == x.offset }
+
+	# Gather onsets and offsets and collect unique times into a single array
+	onsets = all_cells.map(&:onset)
+	offsets = all_cells.map(&:offset)
+	times = (onsets+offsets).uniq.sort
+
+	# For each consecutive time in times, create a new cell over that interval.
+	if times.size>0
+		onset = times.first
+		for offset in times[1..-1]
+			ncell = ncol.make_new_cell()
+			ncell.onset = onset
+			ncell.offset = offset
+
+      # Find an enclosing cell (if any) from each of the columns for this time region
+			ocells = cols.map do |col|
+				col.cells.find{ |y| y.contains(ncell) }
+			end
+
+			for c in ocells
+				unless c.nil?
+					ncell.change_code(c.parent.downcase+"_ordinal", c.ordinal)
+					c.arglist.each do |a|
+						ncell.change_code(c.parent.downcase+"_"+a, c.get_code(a))
+					end
+				end
+			end
+			onset = offset
+		end
+	end
+
+	return ncol
+end